@@ -19,6 +19,8 @@ import freenet.support.Logger.LogLevel;
 import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
 import freenet.support.io.Closer;
+import freenet.support.io.RandomAccessBucket;
+import freenet.support.io.RandomAccessThing;
 
 /**
  * FEC (forward error correction) handler.
@@ -123,7 +125,11 @@ public abstract class FECCodec {
 	 */
 	public abstract int countCheckBlocks();
 
-	protected void realDecode(SplitfileBlock[] dataBlockStatus, SplitfileBlock[] checkBlockStatus, int blockLength, BucketFactory bf) throws IOException {
+	/**
+	 * Do the actual decode.
+	 * @param striper Splits the work on each stripe between threads. May be null.
+	 */
+	protected void realDecode(SplitfileBlock[] dataBlockStatus, SplitfileBlock[] checkBlockStatus, int blockLength, BucketFactory bf, FECStriper striper) throws IOException {
 		loadFEC();
 		if(logMINOR)
 			Logger.minor(this, "Doing decode: " + dataBlockStatus.length + " data blocks, " + checkBlockStatus.length + " check blocks, block length " + blockLength + " with " + this, new Exception("debug"));
@@ -133,6 +139,8 @@ public abstract class FECCodec {
 			throw new IllegalArgumentException();
 		Buffer[] packets = new Buffer[k];
 		Bucket[] buckets = new Bucket[n];
+		// Buckets which support it are read and written in place, the rest through streams.
+		RandomAccessThing[] randomAccess = new RandomAccessThing[n];
 		DataInputStream[] readers = new DataInputStream[n];
 		OutputStream[] writers = new OutputStream[k];
 		boolean[] toWrite = new boolean[k];
@@ -149,12 +157,14 @@ public abstract class FECCodec {
 
 			byte[] realBuffer = new byte[k * stripeSize];
 
-			// Indicates where the data is for each block. Many of the blocks won't have any data.
+			// Indicates where the data is for each block. Data blocks we have are in their own
+			// slot, and check blocks go in the slots of the data blocks we don't have.
 			int[] packetIndexes = new int[k];
 			for(int i = 0; i < packetIndexes.length; i++)
 				packetIndexes[i] = -1;
 
 			int idx = 0;
+			int freeSlot = 0;
 
 			for(int i = 0; i < k; i++)
 				packets[i] = new Buffer(realBuffer, i * stripeSize,
@@ -173,7 +183,8 @@ public abstract class FECCodec {
 				buckets[i] = dataBlockStatus[i].getData();
 				if(buckets[i] == null) {
 					buckets[i] = bf.makeBucket(blockLength);
-					if(stripeSize != blockLength) {
+					randomAccess[i] = getRandomAccess(buckets[i]);
+					if(randomAccess[i] == null && stripeSize != blockLength) {
 						writers[i] = buckets[i].getOutputStream();
 					}
 					toWrite[i] = true;
@@ -190,8 +201,11 @@ public abstract class FECCodec {
 						if(logMINOR)
 							Logger.minor(this, "writers[" + i + "] = null (already filled)");
 						writers[i] = null;
-						readers[i] = new DataInputStream(buckets[i].getInputStream());
-						packetIndexes[idx++] = i;
+						randomAccess[i] = getRandomAccess(buckets[i]);
+						if(randomAccess[i] == null && stripeSize != blockLength)
+							readers[i] = new DataInputStream(buckets[i].getInputStream());
+						packetIndexes[i] = i;
+						idx++;
 					}
 				}
 			}
@@ -200,11 +214,14 @@ public abstract class FECCodec {
 				if(buckets[i + k] == null) {
 					readers[i + k] = null;
 				} else {
-					if(stripeSize != blockLength) {
+					randomAccess[i + k] = getRandomAccess(buckets[i + k]);
+					if(randomAccess[i + k] == null && stripeSize != blockLength) {
 						readers[i + k] = new DataInputStream(buckets[i + k].getInputStream());
 					}
 					if(idx < k) {
-						packetIndexes[idx++] = i + k;
+						while(packetIndexes[freeSlot] != -1) freeSlot++;
+						packetIndexes[freeSlot] = i + k;
+						idx++;
 					}
 				}
 			}
@@ -223,6 +240,10 @@ public abstract class FECCodec {
 				// Read the data in first
 				for(int i = 0; i < k; i++) {
 					int x = packetIndexes[i];
+					if(randomAccess[x] != null) {
+						randomAccess[x].pread(offset, realBuffer, i * stripeSize, stripeSize);
+						continue;
+					}
 					DataInputStream dis;
 					if(stripeSize == blockLength)
 						dis = new DataInputStream(buckets[x].getInputStream());
@@ -240,11 +261,15 @@ public abstract class FECCodec {
 				// The FEC codec will change the indexes in disposableIndexes. We need them to stay the same for multiple stripes.
 				int[] disposableIndexes = packetIndexes.clone();
 				// Do the decode, not shuffled
-				fec.decode(packets, disposableIndexes);
+				decode(packets, disposableIndexes, striper);
 				// packets now contains an array of decoded blocks, in order
 				// Write the data out
 				for(int i = 0; i < k; i++) {
 					if(toWrite[i]) {
+						if(randomAccess[i] != null) {
+							randomAccess[i].pwrite(offset, realBuffer, i * stripeSize, stripeSize);
+							continue;
+						}
 						OutputStream os;
 						if(stripeSize == blockLength) {
 							os = buckets[i].getOutputStream();
@@ -266,8 +291,10 @@ public abstract class FECCodec {
 		finally {
 			for(int i = 0; i < k; i++)
 				Closer.close(writers[i]);
-			for(int i = 0; i < n; i++)
+			for(int i = 0; i < n; i++) {
 				Closer.close(readers[i]);
+				Closer.close(randomAccess[i]);
+			}
 		}
 		// Set new buckets only after have a successful decode.
 		// Note that the last data bucket will be overwritten padded.
@@ -283,11 +310,19 @@ public abstract class FECCodec {
 		}
 	}
 
+	/** @return Random access to the bucket's contents, if it supports it, otherwise null. */
+	private static RandomAccessThing getRandomAccess(Bucket bucket) throws IOException {
+		if(bucket instanceof RandomAccessBucket)
+			return ((RandomAccessBucket) bucket).toRandomAccessThing();
+		return null;
+	}
+
 	/**
 	 * Do the actual encode.
+	 * @param striper Splits the work on each stripe between threads. May be null.
 	 */
 	protected void realEncode(Bucket[] dataBlockStatus,
-		Bucket[] checkBlockStatus, int blockLength, BucketFactory bf)
+		Bucket[] checkBlockStatus, int blockLength, BucketFactory bf, FECStriper striper)
 		throws IOException {
 		if(bf == null) throw new NullPointerException();
 		loadFEC();
@@ -307,7 +342,9 @@ public abstract class FECCodec {
 		Buffer[] checkPackets;
 		Bucket[] buckets = new Bucket[n];
 		DataInputStream[] readers = new DataInputStream[k];
+		RandomAccessThing[] dataRandomAccess = new RandomAccessThing[k];
 		OutputStream[] writers = null;
+		RandomAccessThing[] checkRandomAccess = null;
 		
 		try {
 
@@ -327,6 +364,7 @@ public abstract class FECCodec {
 			toEncode = new int[numberToEncode];
 			checkPackets = new Buffer[numberToEncode];
 			writers = new OutputStream[numberToEncode];
+			checkRandomAccess = new RandomAccessThing[numberToEncode];
 			
 			int stripeSize = MAX_MEMORY_BUFFER / (k + numberToEncode);
 			if(stripeSize > blockLength)
@@ -343,7 +381,8 @@ public abstract class FECCodec {
 				if(checkBlockStatus[i] == null) {
 					toEncode[x] = i + k;
 					checkPackets[x] = new Buffer(realBuffer, (x + k) * stripeSize, stripeSize);
-					if(stripeSize != blockLength)
+					checkRandomAccess[x] = getRandomAccess(buckets[i + k]);
+					if(checkRandomAccess[x] == null && stripeSize != blockLength)
 						writers[x] = buckets[i + k].getOutputStream();
 					x++;
 				}
@@ -361,7 +400,8 @@ public abstract class FECCodec {
 				if(sz < blockLength) {
 					throw new IllegalArgumentException("All buckets must be the full size: caller must pad the last one if needed");
 				}
-				if(stripeSize != blockLength)
+				dataRandomAccess[i] = getRandomAccess(buckets[i]);
+				if(dataRandomAccess[i] == null && stripeSize != blockLength)
 					readers[i] = new DataInputStream(buckets[i].getInputStream());
 			}
 
@@ -389,6 +429,10 @@ public abstract class FECCodec {
 					}
 					// Read the data in first
 					for(int i = 0; i < k; i++) {
+						if(dataRandomAccess[i] != null) {
+							dataRandomAccess[i].pread(offset, realBuffer, i * stripeSize, stripeSize);
+							continue;
+						}
 						DataInputStream dis;
 						if(stripeSize == blockLength)
 							dis = new DataInputStream(buckets[i].getInputStream());
@@ -410,7 +454,7 @@ public abstract class FECCodec {
 						long memUsedBeforeStripe = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
 						Logger.minor(this, "Memory in use before stripe: " + memUsedBeforeStripe);
 					}
-					fec.encode(dataPackets, checkPackets, toEncode);
+					encode(dataPackets, checkPackets, toEncode, striper);
 					if(logMINOR) {
 						long memUsedAfterStripe = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
 						Logger.minor(this, "Memory in use after stripe: " + memUsedAfterStripe);
@@ -420,6 +464,10 @@ public abstract class FECCodec {
 					// packets now contains an array of decoded blocks, in order
 					// Write the data out
 					for(int i = 0; i < writers.length; i++) {
+						if(checkRandomAccess[i] != null) {
+							checkRandomAccess[i].pwrite(offset, realBuffer, (i + k) * stripeSize, stripeSize);
+							continue;
+						}
 						OutputStream os;
 						if(stripeSize == blockLength)
 							os = buckets[toEncode[i]].getOutputStream();
@@ -436,11 +484,15 @@ public abstract class FECCodec {
 
 		}
 		finally {
-			for(int i = 0; i < k; i++)
+			for(int i = 0; i < k; i++) {
 				Closer.close(readers[i]);
+				Closer.close(dataRandomAccess[i]);
+			}
 			if(writers != null) {
-				for(int i = 0; i < writers.length; i++)
+				for(int i = 0; i < writers.length; i++) {
 					Closer.close(writers[i]);
+					Closer.close(checkRandomAccess[i]);
+				}
 			}
 		}
 		// Set new buckets only after have a successful decode.
@@ -452,6 +504,28 @@ public abstract class FECCodec {
 		}
 	}
 
+	/**
+	 * Decode one stripe.
+	 * @param packets k packets. Data blocks we have are in their own slot, and the rest contain
+	 * check blocks. When this returns, they contain the data blocks in order.
+	 * @param indexes The block in each slot. May be changed.
+	 * @param striper Splits the work between threads, if the codec supports it. May be null.
+	 */
+	protected void decode(Buffer[] packets, int[] indexes, FECStriper striper) {
+		fec.decode(packets, indexes);
+	}
+
+	/**
+	 * Encode one stripe.
+	 * @param dataPackets The k data blocks.
+	 * @param checkPackets The blocks to encode.
+	 * @param indexes The index of each block to encode.
+	 * @param striper Splits the work between threads, if the codec supports it. May be null.
+	 */
+	protected void encode(Buffer[] dataPackets, Buffer[] checkPackets, int[] indexes, FECStriper striper) {
+		fec.encode(dataPackets, checkPackets, indexes);
+	}
+
 	/**
 	 * The method used to submit {@link FECJob}s to the pool
 	 * 
@@ -41,6 +41,8 @@ public class FECJob {
 	// A persistent hash code helps with debugging.
 	private final int hashCode;
 	transient boolean running;
+	/** When the job was put on the in-RAM queue, or 0. */
+	transient long queuedTime;
 	
 	@Override
 	public int hashCode() {
@@ -26,6 +26,8 @@ import freenet.support.OOMHook;
 import freenet.support.Logger.LogLevel;
 import freenet.support.api.Bucket;
 import freenet.support.io.NativeThread;
+import freenet.support.math.RunningAverage;
+import freenet.support.math.SimpleRunningAverage;
 
 /**
  * The FEC queue. Uses a limited number of threads (at most one per core), a non-persistent queue,
@@ -55,6 +57,15 @@ public class FECQueue implements OOMHook {
 	 * a FECQueue. Therefore when we load the real one, we will point it to the old FECQueue. */
 	private transient FECQueue proxy;
 	private transient FECQueue proxiedFor;
+	/** Statistics, protected by this. */
+	private transient int runningJobs;
+	private transient long completedJobs;
+	/** Size of the segments encoded or decoded, in bytes. */
+	private transient long bytesProcessed;
+	/** Time spent running jobs, in milliseconds. */
+	private transient long timeRunning;
+	/** Time jobs wait in the in-RAM queue before they start, in milliseconds. */
+	private transient RunningAverage queueLatency;
 
         private static volatile boolean logMINOR;
 	static {
@@ -120,6 +131,7 @@ public class FECQueue implements OOMHook {
 			persistentQueueCache[i] = new LinkedList<FECJob>();
 		}
 		maxRunningFECThreads = getMaxRunningFECThreads();
+		queueLatency = new SimpleRunningAverage(100, 0);
 		OOMHandler.addOOMHook(this);
 		initRunner();
 		initCacheFillerJob();
@@ -150,6 +162,7 @@ public class FECQueue implements OOMHook {
 			container.store(job);
 		}
 		synchronized(this) {
+			job.queuedTime = System.currentTimeMillis();
 			if(!job.persistent) {
 				transientQueue[job.priority].addLast(job);
 			} else {
@@ -216,17 +229,22 @@ public class FECQueue implements OOMHook {
 							continue;
 						}
 						job.running = true;
+						if(job.queuedTime != 0)
+							queueLatency.report(System.currentTimeMillis() - job.queuedTime);
+						runningJobs++;
 					}
 
 					if(logMINOR)
 						Logger.minor(this, "Running job "+job);
+					long startTime = System.currentTimeMillis();
+					FECStriper striper = getStriper();
 					// Encode it
 					try {
 						if (job.isADecodingJob)
 							job.getCodec().realDecode(job.dataBlockStatus, job.checkBlockStatus, job.blockLength,
-							        job.bucketFactory);
+							        job.bucketFactory, striper);
 						else {
-							job.getCodec().realEncode(job.dataBlocks, job.checkBlocks, job.blockLength, job.bucketFactory);
+							job.getCodec().realEncode(job.dataBlocks, job.checkBlocks, job.blockLength, job.bucketFactory, striper);
 							// Update SplitFileBlocks from buckets if necessary
 							if ((job.dataBlockStatus != null) || (job.checkBlockStatus != null)) {
 								for (int i = 0; i < job.dataBlocks.length; i++) {
@@ -247,6 +265,9 @@ public class FECQueue implements OOMHook {
 						}
 					} catch (final Throwable t) {
 						Logger.error(this, "Caught: "+t, t);
+						synchronized(FECQueue.this) {
+							runningJobs--;
+						}
 						if(job.persistent) {
 							if(logMINOR)
 								Logger.minor(this, "Scheduling callback for "+job+" after "+t, t);
@@ -297,6 +318,14 @@ public class FECQueue implements OOMHook {
 						continue; // Try the next one.
 					}
 
+					synchronized(FECQueue.this) {
+						runningJobs--;
+						completedJobs++;
+						int blocks = job.isADecodingJob ? job.dataBlockStatus.length + job.checkBlockStatus.length : job.dataBlocks.length + job.checkBlocks.length;
+						bytesProcessed += (long) blocks * job.blockLength;
+						timeRunning += System.currentTimeMillis() - startTime;
+					}
+
 					// Call the callback
 					try {
 						if(!job.persistent) {
@@ -484,6 +513,7 @@ public class FECQueue implements OOMHook {
 									}
 								}
 								if(!added) persistentQueueCache[prio].addLast(job);
+								if(job.queuedTime == 0) job.queuedTime = System.currentTimeMillis();
 								if(logMINOR) Logger.minor(this, "Added "+job);
 								addedAny = true;
 							}
@@ -549,6 +579,19 @@ public class FECQueue implements OOMHook {
 		return maxRunningFECThreads;
 	}
 
+	/**
+	 * Split each job between the cores which the other FEC threads aren't using, so that a
+	 * single large segment doesn't run on one core. Not if we are limited to one FEC thread,
+	 * because of weak thread priorities or low memory.
+	 * @return null if jobs should run on one thread.
+	 */
+	private synchronized FECStriper getStriper() {
+		if(getMaxRunningFECThreads() <= 1) return null;
+		int threads = Runtime.getRuntime().availableProcessors() / Math.max(1, runningJobs);
+		if(threads <= 1) return null;
+		return new FECStriper(executor, threads);
+	}
+
 	/**
 	 * Find a FEC job to run.
 	 * @return null only if there are too many FEC threads running.
@@ -572,6 +615,42 @@ public class FECQueue implements OOMHook {
 		}
 	}
 
+	/** @return The number of FEC jobs running now. */
+	public synchronized int getRunningJobs() {
+		if(proxy != null) return proxy.getRunningJobs();
+		return runningJobs;
+	}
+
+	/** @return The number of FEC jobs waiting in RAM. There may be more persistent jobs in the
+	 * database. */
+	public synchronized int getQueuedJobs() {
+		if(proxy != null) return proxy.getQueuedJobs();
+		int queued = 0;
+		for(int i=0;i<priorities;i++)
+			queued += transientQueue[i].size() + persistentQueueCache[i].size();
+		return queued;
+	}
+
+	/** @return The number of FEC jobs completed successfully since startup. */
+	public synchronized long getCompletedJobs() {
+		if(proxy != null) return proxy.getCompletedJobs();
+		return completedJobs;
+	}
+
+	/** @return The average size of the segments encoded or decoded per second of running a job,
+	 * in bytes. */
+	public synchronized double getThroughputPerJob() {
+		if(proxy != null) return proxy.getThroughputPerJob();
+		if(timeRunning == 0) return 0;
+		return bytesProcessed * 1000.0 / timeRunning;
+	}
+
+	/** @return The average time jobs wait in the in-RAM queue before starting, in milliseconds. */
+	public synchronized double getAverageQueueLatency() {
+		if(proxy != null) return proxy.getAverageQueueLatency();
+		return queueLatency.currentValue();
+	}
+
 	@Override
 	public synchronized void handleLowMemory() throws Exception {
 		maxRunningFECThreads = Math.max(1, maxRunningFECThreads - 1);
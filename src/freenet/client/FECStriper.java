@@ -0,0 +1,138 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
+import freenet.support.io.NativeThread;
+
+/**
+ * Splits the work on one FEC stripe into chunks which are processed by several threads. The
+ * calling thread always takes part, and helper threads take whichever chunks are left when they
+ * start, so a helper which starts late, or not at all, only means less parallelism.
+ */
+final class FECStriper {
+
+	private final Executor executor;
+	private final int threads;
+
+	/**
+	 * @param executor Runs the helper threads.
+	 * @param threads The maximum number of threads to use, including the caller's.
+	 */
+	FECStriper(Executor executor, int threads) {
+		this.executor = executor;
+		this.threads = threads;
+	}
+
+	/** A job which can be split into independent chunks. */
+	static abstract class Job {
+
+		/** Called once on each thread which takes part.
+		 * @return Per-thread state, e.g. scratch buffers, passed to processChunk(). */
+		Object startThread() {
+			return null;
+		}
+
+		abstract void processChunk(int chunk, Object threadState);
+
+	}
+
+	/** Run a job on the calling thread only. */
+	static void runSingleThreaded(Job job, int chunks) {
+		Object state = job.startThread();
+		for(int i = 0; i < chunks; i++)
+			job.processChunk(i, state);
+	}
+
+	/** Process every chunk of the job, returning when they are all done.
+	 * @param striper May be null, in which case the job runs on the calling thread only. */
+	static void run(FECStriper striper, Job job, int chunks) {
+		if(striper == null || striper.threads <= 1 || chunks <= 1)
+			runSingleThreaded(job, chunks);
+		else
+			striper.runParallel(job, chunks);
+	}
+
+	private void runParallel(final Job job, final int chunks) {
+		final Progress progress = new Progress(chunks);
+		PrioRunnable helper = new PrioRunnable() {
+
+			@Override
+			public void run() {
+				progress.work(job);
+			}
+
+			@Override
+			public int getPriority() {
+				return NativeThread.LOW_PRIORITY;
+			}
+
+		};
+		int helpers = Math.min(threads, chunks) - 1;
+		for(int i = 0; i < helpers; i++)
+			executor.execute(helper, "FEC striping helper");
+		progress.work(job);
+		progress.waitForCompletion();
+	}
+
+	private static class Progress {
+
+		private final int chunks;
+		private final AtomicInteger nextChunk = new AtomicInteger();
+		/** Protected by this. */
+		private int completed;
+		/** Protected by this. */
+		private Throwable failure;
+
+		Progress(int chunks) {
+			this.chunks = chunks;
+		}
+
+		void work(Job job) {
+			Object state = null;
+			boolean started = false;
+			while(true) {
+				int chunk = nextChunk.getAndIncrement();
+				if(chunk >= chunks) return;
+				try {
+					if(!started) {
+						state = job.startThread();
+						started = true;
+					}
+					job.processChunk(chunk, state);
+				} catch (Throwable t) {
+					synchronized(this) {
+						if(failure == null) failure = t;
+					}
+				} finally {
+					synchronized(this) {
+						completed++;
+						if(completed == chunks) notifyAll();
+					}
+				}
+			}
+		}
+
+		synchronized void waitForCompletion() {
+			boolean interrupted = false;
+			while(completed < chunks) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// The helpers are still writing to our buffers.
+					interrupted = true;
+				}
+			}
+			if(interrupted) Thread.currentThread().interrupt();
+			if(failure instanceof RuntimeException) throw (RuntimeException) failure;
+			if(failure instanceof Error) throw (Error) failure;
+			if(failure != null) throw new RuntimeException(failure);
+		}
+
+	}
+
+}
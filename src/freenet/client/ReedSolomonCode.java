@@ -0,0 +1,284 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.util.Arrays;
+
+/**
+ * Systematic Reed-Solomon erasure code over GF(2^8), producing exactly the same check blocks as
+ * the onion PureCode (Rizzo's construction: field polynomial x^8+x^4+x^3+x^2+1, and the encoding
+ * matrix is a Vandermonde matrix multiplied by the inverse of its top k rows). So blocks encoded
+ * by either can be decoded by the other.
+ *
+ * Unlike PureCode, the inner loops work on one coefficient at a time: each coefficient has its own
+ * 256 byte row of the multiplication table, which stays in the L1 cache, coefficients of 0 are
+ * skipped, coefficients of 1 are plain XORs, and the blocks are processed in chunks so that the
+ * output stays in the cache while all the inputs are added to it.
+ */
+final class ReedSolomonCode {
+
+	/** Maximum number of blocks, data plus check. */
+	static final int MAX_BLOCKS = 256;
+
+	/** Bytes of each block processed at a time. Small enough that the output chunks stay in the
+	 * cache while we go through the inputs. */
+	private static final int CHUNK_SIZE = 4096;
+
+	private static final int FIELD_SIZE = 256;
+	private static final int PRIMITIVE_POLYNOMIAL = 0x11D;
+
+	/** EXP[i] = alpha^i, doubled so that EXP[LOG[a] + LOG[b]] needs no modulo. */
+	private static final int[] EXP = new int[2 * FIELD_SIZE];
+	private static final int[] LOG = new int[FIELD_SIZE];
+	/** MUL[a][b] = a * b. */
+	private static final byte[][] MUL = new byte[FIELD_SIZE][FIELD_SIZE];
+
+	static {
+		int x = 1;
+		for(int i = 0; i < FIELD_SIZE - 1; i++) {
+			EXP[i] = x;
+			LOG[x] = i;
+			x <<= 1;
+			if(x >= FIELD_SIZE) x ^= PRIMITIVE_POLYNOMIAL;
+		}
+		for(int i = FIELD_SIZE - 1; i < EXP.length; i++)
+			EXP[i] = EXP[i - (FIELD_SIZE - 1)];
+		for(int a = 1; a < FIELD_SIZE; a++)
+			for(int b = 1; b < FIELD_SIZE; b++)
+				MUL[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+	}
+
+	private static int mul(int a, int b) {
+		return MUL[a][b] & 0xFF;
+	}
+
+	private static int inverse(int a) {
+		if(a == 0) throw new ArithmeticException("Zero has no inverse");
+		return EXP[FIELD_SIZE - 1 - LOG[a]];
+	}
+
+	private final int k;
+	private final int n;
+	/** Rows k to n-1 of the encoding matrix, i.e. the coefficients of each check block. The top
+	 * k rows are the identity. */
+	private final int[][] checkMatrix;
+
+	ReedSolomonCode(int k, int n) {
+		if(k <= 0 || n <= k || n > MAX_BLOCKS)
+			throw new IllegalArgumentException("Invalid: k="+k+" n="+n);
+		this.k = k;
+		this.n = n;
+		// Row 0 is (1, 0, 0, ...), row r is (alpha^(r-1))^c. Any k rows are independent.
+		int[][] vandermonde = new int[n][k];
+		vandermonde[0][0] = 1;
+		for(int r = 1; r < n; r++)
+			for(int c = 0; c < k; c++)
+				vandermonde[r][c] = EXP[((r - 1) * c) % (FIELD_SIZE - 1)];
+		int[][] top = new int[k][];
+		for(int r = 0; r < k; r++)
+			top[r] = vandermonde[r].clone();
+		int[][] topInverse = invert(top);
+		checkMatrix = new int[n - k][k];
+		for(int r = k; r < n; r++) {
+			int[] row = checkMatrix[r - k];
+			for(int c = 0; c < k; c++) {
+				int sum = 0;
+				for(int i = 0; i < k; i++)
+					sum ^= mul(vandermonde[r][i], topInverse[i][c]);
+				row[c] = sum;
+			}
+		}
+	}
+
+	/** @return The coefficients of block index in terms of the data blocks. */
+	private int[] encodingRow(int index) {
+		if(index < k) {
+			int[] row = new int[k];
+			row[index] = 1;
+			return row;
+		}
+		return checkMatrix[index - k];
+	}
+
+	/**
+	 * Invert a square matrix by Gauss-Jordan elimination.
+	 * @param matrix The matrix, which is destroyed.
+	 * @throws IllegalArgumentException If the matrix is singular.
+	 */
+	private static int[][] invert(int[][] matrix) {
+		int size = matrix.length;
+		int[][] inverse = new int[size][size];
+		for(int i = 0; i < size; i++)
+			inverse[i][i] = 1;
+		for(int col = 0; col < size; col++) {
+			int pivot = col;
+			while(pivot < size && matrix[pivot][col] == 0) pivot++;
+			if(pivot == size) throw new IllegalArgumentException("Singular matrix");
+			if(pivot != col) {
+				int[] t = matrix[pivot]; matrix[pivot] = matrix[col]; matrix[col] = t;
+				t = inverse[pivot]; inverse[pivot] = inverse[col]; inverse[col] = t;
+			}
+			int scale = inverse(matrix[col][col]);
+			int[] m = matrix[col];
+			int[] inv = inverse[col];
+			for(int i = 0; i < size; i++) {
+				m[i] = mul(m[i], scale);
+				inv[i] = mul(inv[i], scale);
+			}
+			for(int row = 0; row < size; row++) {
+				if(row == col) continue;
+				int factor = matrix[row][col];
+				if(factor == 0) continue;
+				int[] r = matrix[row];
+				int[] rInv = inverse[row];
+				for(int i = 0; i < size; i++) {
+					r[i] ^= mul(factor, m[i]);
+					rInv[i] ^= mul(factor, inv[i]);
+				}
+			}
+		}
+		return inverse;
+	}
+
+	/**
+	 * Encode blocks.
+	 * @param data The k data blocks.
+	 * @param dataOffsets Where each data block starts.
+	 * @param output The blocks to encode.
+	 * @param outputOffsets Where each output block starts.
+	 * @param indexes The index of each block to encode. Indexes below k are copies of data blocks.
+	 * @param length The length of every block.
+	 * @param striper Splits the work between threads. May be null.
+	 */
+	void encode(final byte[][] data, final int[] dataOffsets, final byte[][] output, final int[] outputOffsets, int[] indexes, final int length, FECStriper striper) {
+		if(data.length != k) throw new IllegalArgumentException("Need "+k+" data blocks, got "+data.length);
+		final int[][] coefficients = new int[indexes.length][];
+		for(int i = 0; i < indexes.length; i++) {
+			if(indexes[i] < 0 || indexes[i] >= n)
+				throw new IllegalArgumentException("Invalid index "+indexes[i]+" for n="+n);
+			coefficients[i] = encodingRow(indexes[i]);
+		}
+		FECStriper.run(striper, new FECStriper.Job() {
+
+			@Override
+			void processChunk(int chunk, Object threadState) {
+				int offset = chunk * CHUNK_SIZE;
+				int chunkLength = Math.min(CHUNK_SIZE, length - offset);
+				for(int i = 0; i < output.length; i++)
+					combine(coefficients[i], data, dataOffsets, offset, output[i], outputOffsets[i] + offset, chunkLength);
+			}
+
+		}, chunks(length));
+	}
+
+	void encode(byte[][] data, int[] dataOffsets, byte[][] output, int[] outputOffsets, int[] indexes, int length) {
+		encode(data, dataOffsets, output, outputOffsets, indexes, length, null);
+	}
+
+	private static int chunks(int length) {
+		return (length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+	}
+
+	/**
+	 * Recover the missing data blocks, in place.
+	 * @param blocks k blocks. If data block i was received, it must be in blocks[i]. The rest
+	 * contain check blocks, which are replaced with the missing data blocks.
+	 * @param offsets Where each block starts.
+	 * @param indexes The index of the block in each slot, i.e. i for data block i, or the index of
+	 * the check block.
+	 * @param length The length of every block.
+	 * @param striper Splits the work between threads. May be null.
+	 */
+	void decode(final byte[][] blocks, final int[] offsets, int[] indexes, final int length, FECStriper striper) {
+		if(blocks.length != k || indexes.length != k)
+			throw new IllegalArgumentException("Need "+k+" blocks, got "+blocks.length);
+		int missing = 0;
+		boolean[] seen = new boolean[n];
+		int[][] matrix = new int[k][];
+		for(int i = 0; i < k; i++) {
+			int index = indexes[i];
+			if(index < 0 || index >= n || (index < k && index != i) || seen[index])
+				throw new IllegalArgumentException("Invalid index "+index+" in slot "+i+" for k="+k+" n="+n);
+			seen[index] = true;
+			if(index >= k) missing++;
+			matrix[i] = encodingRow(index).clone();
+		}
+		if(missing == 0) return;
+		int[][] decodeMatrix = invert(matrix);
+		final int[] missingSlots = new int[missing];
+		final int[][] coefficients = new int[missing][];
+		for(int i = 0, x = 0; i < k; i++) {
+			if(indexes[i] >= k) {
+				missingSlots[x] = i;
+				coefficients[x++] = decodeMatrix[i];
+			}
+		}
+		// Each chunk is computed from the received blocks before it is written over them.
+		final int scratchSize = Math.min(CHUNK_SIZE, length);
+		FECStriper.run(striper, new FECStriper.Job() {
+
+			@Override
+			Object startThread() {
+				return new byte[missingSlots.length][scratchSize];
+			}
+
+			@Override
+			void processChunk(int chunk, Object threadState) {
+				byte[][] scratch = (byte[][]) threadState;
+				int offset = chunk * CHUNK_SIZE;
+				int chunkLength = Math.min(CHUNK_SIZE, length - offset);
+				for(int i = 0; i < missingSlots.length; i++)
+					combine(coefficients[i], blocks, offsets, offset, scratch[i], 0, chunkLength);
+				for(int i = 0; i < missingSlots.length; i++) {
+					int slot = missingSlots[i];
+					System.arraycopy(scratch[i], 0, blocks[slot], offsets[slot] + offset, chunkLength);
+				}
+			}
+
+		}, chunks(length));
+	}
+
+	void decode(byte[][] blocks, int[] offsets, int[] indexes, int length) {
+		decode(blocks, offsets, indexes, length, null);
+	}
+
+	/** Set out to the sum of coefficients[i] * in[i], for one chunk. */
+	private static void combine(int[] coefficients, byte[][] in, int[] inOffsets, int offset, byte[] out, int outOffset, int length) {
+		boolean first = true;
+		for(int i = 0; i < coefficients.length; i++) {
+			int c = coefficients[i];
+			if(c == 0) continue;
+			int inOffset = inOffsets[i] + offset;
+			if(first) {
+				if(c == 1)
+					System.arraycopy(in[i], inOffset, out, outOffset, length);
+				else
+					multiply(MUL[c], in[i], inOffset, out, outOffset, length);
+				first = false;
+			} else if(c == 1) {
+				xor(in[i], inOffset, out, outOffset, length);
+			} else {
+				multiplyAdd(MUL[c], in[i], inOffset, out, outOffset, length);
+			}
+		}
+		if(first)
+			Arrays.fill(out, outOffset, outOffset + length, (byte) 0);
+	}
+
+	private static void multiply(byte[] table, byte[] in, int inOffset, byte[] out, int outOffset, int length) {
+		for(int i = 0; i < length; i++)
+			out[outOffset + i] = table[in[inOffset + i] & 0xFF];
+	}
+
+	private static void multiplyAdd(byte[] table, byte[] in, int inOffset, byte[] out, int outOffset, int length) {
+		for(int i = 0; i < length; i++)
+			out[outOffset + i] ^= table[in[inOffset + i] & 0xFF];
+	}
+
+	private static void xor(byte[] in, int inOffset, byte[] out, int outOffset, int length) {
+		for(int i = 0; i < length; i++)
+			out[outOffset + i] ^= in[inOffset + i];
+	}
+
+}
@@ -0,0 +1,68 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import com.onionnetworks.util.Buffer;
+
+/**
+ * Onion-compatible FECCodec using our own Reed-Solomon code rather than the onion PureCode. The
+ * check blocks are identical, so this is used for SPLITFILE_ONION_STANDARD whenever there are no
+ * more than 256 blocks.
+ */
+public class ReedSolomonFECCodec extends StandardOnionFECCodec {
+
+	private transient ReedSolomonCode code;
+
+	ReedSolomonFECCodec(int k, int n) {
+		super(k, n);
+	}
+
+	static boolean canHandle(int k, int n) {
+		return n <= ReedSolomonCode.MAX_BLOCKS;
+	}
+
+	@Override
+	protected void loadFEC() {
+		synchronized(this) {
+			if(code != null) return;
+		}
+		ReedSolomonCode code2 = new ReedSolomonCode(k, n);
+		synchronized(this) {
+			code = code2;
+		}
+	}
+
+	private synchronized ReedSolomonCode getCode() {
+		return code;
+	}
+
+	@Override
+	protected void decode(Buffer[] packets, int[] indexes, FECStriper striper) {
+		byte[][] blocks = new byte[packets.length][];
+		int[] offsets = new int[packets.length];
+		for(int i = 0; i < packets.length; i++) {
+			blocks[i] = packets[i].b;
+			offsets[i] = packets[i].off;
+		}
+		getCode().decode(blocks, offsets, indexes, packets[0].len, striper);
+	}
+
+	@Override
+	protected void encode(Buffer[] dataPackets, Buffer[] checkPackets, int[] indexes, FECStriper striper) {
+		byte[][] data = new byte[dataPackets.length][];
+		int[] dataOffsets = new int[dataPackets.length];
+		for(int i = 0; i < dataPackets.length; i++) {
+			data[i] = dataPackets[i].b;
+			dataOffsets[i] = dataPackets[i].off;
+		}
+		byte[][] check = new byte[checkPackets.length][];
+		int[] checkOffsets = new int[checkPackets.length];
+		for(int i = 0; i < checkPackets.length; i++) {
+			check[i] = checkPackets[i].b;
+			checkOffsets[i] = checkPackets[i].off;
+		}
+		getCode().encode(data, dataOffsets, check, checkOffsets, indexes, dataPackets[0].len, striper);
+	}
+
+}
@@ -63,7 +63,10 @@ public class StandardOnionFECCodec extends FECCodec {
 			recentlyUsedCodecs.push(key, codec);
 			return codec;
 		}
-		codec = new StandardOnionFECCodec(dataBlocks, checkBlocks + dataBlocks);
+		if(ReedSolomonFECCodec.canHandle(dataBlocks, checkBlocks + dataBlocks))
+			codec = new ReedSolomonFECCodec(dataBlocks, checkBlocks + dataBlocks);
+		else
+			codec = new StandardOnionFECCodec(dataBlocks, checkBlocks + dataBlocks);
 		recentlyUsedCodecs.push(key, codec);
 		while(recentlyUsedCodecs.size() > MAX_CACHED_CODECS) {
 			recentlyUsedCodecs.popKey();
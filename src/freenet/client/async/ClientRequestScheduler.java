@@ -8,6 +8,7 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.ListIterator;
 
 import com.db4o.ObjectContainer;
@@ -83,13 +84,13 @@ public class ClientRequestScheduler implements RequestScheduler {
 	public static final String PRIORITY_HARD = "HARD";
 	private String choosenPriorityScheduler; 
 	
-	public ClientRequestScheduler(boolean forInserts, boolean forSSKs, boolean forRT, RandomSource random, RequestStarter starter, Node node, NodeClientCore core, String name, ClientContext context) {
+	public ClientRequestScheduler(boolean forInserts, boolean forSSKs, boolean forRT, RandomSource random, RequestStarter starter, Node node, PrioritizedSerialExecutor databaseExecutor, DatastoreChecker datastoreChecker, String name, ClientContext context) {
 		this.isInsertScheduler = forInserts;
 		this.isSSKScheduler = forSSKs;
 		this.isRTScheduler = forRT;
 		schedTransient = new ClientRequestSchedulerNonPersistent(this, forInserts, forSSKs, forRT, random);
-		this.databaseExecutor = core.clientDatabaseExecutor;
-		this.datastoreChecker = core.storeChecker;
+		this.databaseExecutor = databaseExecutor;
+		this.datastoreChecker = datastoreChecker;
 		this.starter = starter;
 		this.random = random;
 		this.node = node;
@@ -100,7 +101,7 @@ public class ClientRequestScheduler implements RequestScheduler {
 		
 		this.choosenPriorityScheduler = PRIORITY_HARD; // Will be reset later.
 		if(!forInserts) {
-			offeredKeys = new OfferedKeysList(core, random, (short)0, forSSKs, forRT);
+			offeredKeys = new OfferedKeysList(random, (short)0, forSSKs, forRT);
 		} else {
 			offeredKeys = null;
 		}
@@ -372,22 +373,29 @@ public class ClientRequestScheduler implements RequestScheduler {
 	}
 
 	/**
-	 * Return a better non-persistent request, if one exists. If the best request
+	 * Choose up to max better non-persistent requests, if any exist. If the best request
 	 * is at the same priority as the priority passed in, 50% chance of accepting
-	 * it.
+	 * it. The coin is tossed once for the whole batch, not once per block, so a batch
+	 * either includes transient requests at that priority or leaves them all for the
+	 * persistent requests.
 	 * @param prio The priority of the persistent request we want to beat.
+	 * @return The number of blocks added.
 	 */
-	public ChosenBlock getBetterNonPersistentRequest(short prio) {
+	private int getBetterNonPersistentRequests(short prio, int max, List<ChosenBlock> blocks) {
 		// removeFirstTransient() will return anything of the priority given or better.
 		// We want to be fair on persistent vs transient, so we give it a 50% chance of wanting it to be *better* than the current priority, and a 50% chance of wanting it to be *at least as good as* the current priority.
-		prio -= node.fastWeakRandom.nextBoolean() ? 1 : 0;
-		if(prio < 0) return null;
+		prio -= clientContext.fastWeakRandom.nextBoolean() ? 1 : 0;
+		if(prio < 0) return 0;
+		return selector.removeFirstTransient(priorityFuzz(), random, offeredKeys, starter, schedTransient, prio, isRTScheduler, clientContext, max, blocks);
+	}
+
+	private short priorityFuzz() {
 		short fuzz = -1;
 		if(PRIORITY_SOFT.equals(choosenPriorityScheduler))
 			fuzz = -1;
 		else if(PRIORITY_HARD.equals(choosenPriorityScheduler))
 			fuzz = 0;
-		return selector.removeFirstTransient(fuzz, random, offeredKeys, starter, schedTransient, prio, isRTScheduler, clientContext, null);
+		return fuzz;
 	}
 	
 	/**
@@ -441,74 +449,75 @@ public class ClientRequestScheduler implements RequestScheduler {
 	private final transient LinkedList<PersistentChosenRequest> starterQueue = new LinkedList<PersistentChosenRequest>();
 	
 	/**
-	 * Called by RequestStarter to find a request to run.
+	 * Called by RequestStarter to find requests to run. Choose up to max blocks, taking the
+	 * locks once for the whole batch rather than once for each block, so a starter which is
+	 * sending a lot of requests doesn't spend its time waiting for them. Transient requests
+	 * which are better than the best persistent request come first, then blocks from the
+	 * persistent requests at that priority.
 	 */
 	@Override
-	public ChosenBlock grabRequest() {
-		boolean needsRefill = true;
-		while(true) {
-			PersistentChosenRequest reqGroup = null;
-			synchronized(starterQueue) {
-				short bestPriority = Short.MAX_VALUE;
-				for(PersistentChosenRequest req : starterQueue) {
-					if(req.prio == RequestStarter.MINIMUM_PRIORITY_CLASS) {
-					    if(logDEBUG) Logger.debug(this, "Ignoring paused persistent request: "+req+" prio: "+req.prio);
-					     continue; //Ignore paused requests
-					}
-					if(req.prio < bestPriority) {
-						bestPriority = req.prio;
-						reqGroup = req;
-					}
+	public int grabRequests(int max, List<ChosenBlock> blocks) {
+		short bestPriority = bestPersistentPriority();
+		int found = getBetterNonPersistentRequests(bestPriority, max, blocks);
+		if(bestPriority == Short.MAX_VALUE) {
+			queueFillRequestStarterQueue();
+			return found;
+		}
+		if(found < max)
+			found += grabPersistentBlocks(bestPriority, max - found, blocks);
+		if(logMINOR)
+			Logger.minor(this, "grabRequests() returning "+found+" blocks");
+		return found;
+	}
+
+	/** @return The best priority of the persistent requests on the starter queue, ignoring
+	 * paused requests, or Short.MAX_VALUE if there are none. */
+	private short bestPersistentPriority() {
+		short bestPriority = Short.MAX_VALUE;
+		synchronized(starterQueue) {
+			for(PersistentChosenRequest req : starterQueue) {
+				if(req.prio == RequestStarter.MINIMUM_PRIORITY_CLASS) {
+					if(logDEBUG) Logger.debug(this, "Ignoring paused persistent request: "+req+" prio: "+req.prio);
+					continue;
 				}
+				if(req.prio < bestPriority)
+					bestPriority = req.prio;
 			}
-			if(reqGroup != null) {
-				// Try to find a better non-persistent request
-				if(logMINOR) Logger.minor(this, "Persistent request: "+reqGroup+" prio "+reqGroup.prio);
-				ChosenBlock better = getBetterNonPersistentRequest(reqGroup.prio);
-				if(better != null) {
-					if(better.getPriority() > reqGroup.prio) {
-						Logger.error(this, "Selected "+better+" as better than "+reqGroup+" but isn't better!");
+		}
+		return bestPriority;
+	}
+
+	/** Take up to max blocks from the persistent requests on the starter queue at the given
+	 * priority, removing those which have no more blocks.
+	 * @return The number of blocks added. */
+	private int grabPersistentBlocks(short prio, int max, List<ChosenBlock> blocks) {
+		int found = 0;
+		synchronized(starterQueue) {
+			while(found < max) {
+				PersistentChosenRequest reqGroup = null;
+				for(PersistentChosenRequest req : starterQueue) {
+					if(req.prio == prio) {
+						reqGroup = req;
+						break;
 					}
-					if(logMINOR) Logger.minor(this, "Returning better: "+better);
-					return better;
 				}
-			}
-			if(reqGroup == null) {
-				queueFillRequestStarterQueue();
-				return getBetterNonPersistentRequest(Short.MAX_VALUE);
-			}
-			ChosenBlock block;
-			synchronized(starterQueue) {
-				block = reqGroup.grabNotStarted(clientContext.fastWeakRandom, this);
+				if(reqGroup == null) break;
+				ChosenBlock block = reqGroup.grabNotStarted(clientContext.fastWeakRandom, this);
 				if(block == null) {
 					if(logMINOR) Logger.minor(this, "No block found on "+reqGroup);
-					int finalLength = 0;
-					Iterator<PersistentChosenRequest> it = starterQueue.iterator();
-					while(it.hasNext()) {
-						PersistentChosenRequest req = it.next();
-						if(req == reqGroup) {
-							it.remove();
-							if(logMINOR)
-								Logger.minor(this, "Removed "+reqGroup+" from starter queue because is empty");
-						} else {
-							finalLength += req.sizeNotStarted();
-						}
-					}
-					needsRefill = finalLength < MAX_STARTER_QUEUE_SIZE;
+					starterQueue.remove(reqGroup);
 					continue;
-				} else {
-					// Prevent this request being selected, even though we may remove the PCR from the starter queue
-					// in the very near future. When the PCR finishes, the requests will be un-blocked.
-					if(!runningPersistentRequests.contains(reqGroup.request))
-						runningPersistentRequests.add(reqGroup.request);
 				}
+				// Prevent this request being selected, even though we may remove the PCR from the starter queue
+				// in the very near future. When the PCR finishes, the requests will be un-blocked.
+				if(!runningPersistentRequests.contains(reqGroup.request))
+					runningPersistentRequests.add(reqGroup.request);
+				blocks.add(block);
+				found++;
 			}
-			if(needsRefill)
-				queueFillRequestStarterQueue();
-			if(logMINOR)
-				Logger.minor(this, "grabRequest() returning "+block+" for "+reqGroup);
-			return block;
 		}
+		queueFillRequestStarterQueue();
+		return found;
 	}
 	
 	@Override
@@ -1190,6 +1199,17 @@ public class ClientRequestScheduler implements RequestScheduler {
 		schedCore.addPendingKeys(listener);
 	}
 	
+	/** Remove a transient request from the queue of requests to choose from.
+	 * @return True if it was queued. */
+	public boolean removeTransientRequest(SendableRequest req) {
+		return schedTransient.selector.remove(req);
+	}
+
+	/** @return True if the transient request is queued to be chosen from. */
+	public boolean isQueuedTransientRequest(SendableRequest req) {
+		return schedTransient.selector.isRegistered(req);
+	}
+
 	public boolean objectCanNew(ObjectContainer container) {
 		Logger.error(this, "Not storing ClientRequestScheduler in database", new Exception("error"));
 		return false;
@@ -10,6 +10,8 @@ import com.db4o.ObjectContainer;
 
 import freenet.crypt.RandomSource;
 import freenet.node.BaseSendableGet;
+import freenet.node.RequestClient;
+import freenet.node.SendableRequest;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 
@@ -23,6 +25,9 @@ class ClientRequestSchedulerNonPersistent extends ClientRequestSchedulerBase {
 	
 	protected final Deque<BaseSendableGet>recentSuccesses;
 	
+	/** Transient requests are chosen from here rather than from newPriorities. */
+	final TransientRequestSelector selector;
+	
 	ClientRequestSchedulerNonPersistent(ClientRequestScheduler sched, boolean forInserts, boolean forSSKs, boolean forRT, RandomSource random) {
 		super(forInserts, forSSKs, forRT, random);
 		this.sched = sched;
@@ -30,6 +35,7 @@ class ClientRequestSchedulerNonPersistent extends ClientRequestSchedulerBase {
 			recentSuccesses = new ArrayDeque<BaseSendableGet>();
 		else
 			recentSuccesses = null;
+		selector = new TransientRequestSelector();
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 	}
 
@@ -42,6 +48,22 @@ class ClientRequestSchedulerNonPersistent extends ClientRequestSchedulerBase {
 		return null;
 	}
 
+	@Override
+	void addToGrabArray(short priorityClass, RequestClient client, ClientRequester cr, SendableRequest req, ObjectContainer container, ClientContext context) {
+		// As RandomGrabArray.add(): if it was in cooldown, it may not be now.
+		context.cooldownTracker.clearCachedWakeup(req, false, null);
+		selector.add(req, priorityClass, client, cr);
+		sched.wakeStarter();
+	}
+
+	@Override
+	public long countQueuedRequests(ObjectContainer container, ClientContext context) {
+		long total = 0;
+		for(SendableRequest req : selector.getRegistered())
+			total += req.countAllKeys(null, context);
+		return total;
+	}
+
 	@Override
 	public void succeeded(BaseSendableGet succeeded, ObjectContainer container) {
 		// Do nothing.
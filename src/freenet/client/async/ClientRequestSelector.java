@@ -2,10 +2,12 @@ package freenet.client.async;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 
 import com.db4o.ObjectContainer;
 
@@ -22,10 +24,12 @@ import freenet.node.SendableInsert;
 import freenet.node.SendableRequest;
 import freenet.node.SendableRequestItem;
 import freenet.node.SendableRequestItemKey;
+import freenet.support.IdentityHashSet;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.RandomGrabArray;
+import freenet.support.RandomGrabArrayItemExclusionList;
 import freenet.support.RemoveRandom.RemoveRandomReturn;
 import freenet.support.SectoredRandomGrabArray;
 import freenet.support.SectoredRandomGrabArrayWithObject;
@@ -111,7 +115,7 @@ class ClientRequestSelector implements KeysFetchingLocally {
 	// We pass in the schedTransient to the next two methods so that we can select between either of them.
 	
 	private long removeFirstAccordingToPriorities(int fuzz, RandomSource random, ClientRequestSchedulerCore schedCore, ClientRequestSchedulerNonPersistent schedTransient, boolean transientOnly, short maxPrio, ObjectContainer container, ClientContext context, long now){
-		SectoredRandomGrabArray result = null;
+		SectoredRandomGrabArray result;
 		
 		long wakeupTime = Long.MAX_VALUE;
 		
@@ -121,11 +125,9 @@ class ClientRequestSelector implements KeysFetchingLocally {
 		// PRIO will do 0,1,2,3,4,5,6,0
 		// TWEAKED will do rand%6,0,1,2,3,4,5,6
 		while(iteration++ < RequestStarter.NUMBER_OF_PRIORITY_CLASSES + 1){
-			boolean persistent = false;
+			boolean found = false;
 			priority = fuzz<0 ? tweakedPrioritySelector[random.nextInt(tweakedPrioritySelector.length)] : prioritySelector[Math.abs(fuzz % prioritySelector.length)];
-			if(transientOnly || schedCore == null)
-				result = null;
-			else {
+			if(!(transientOnly || schedCore == null)) {
 				result = schedCore.newPriorities[priority];
 				if(result != null) {
 					long cooldownTime = context.cooldownTracker.getCachedWakeup(result, true, container, now);
@@ -137,34 +139,27 @@ class ClientRequestSelector implements KeysFetchingLocally {
 							else
 								Logger.minor(this, "Priority "+priority+" (persistent) is in cooldown for another "+(cooldownTime - now)+" "+TimeUtil.formatTime(cooldownTime - now));
 						}
-						result = null;
 					} else {
 						container.activate(result, 1);
-						persistent = true;
+						found = !result.isEmpty(container);
 					}
 				}
 			}
-			if(result == null) {
-				result = schedTransient.newPriorities[priority];
-				if(result != null) {
-					long cooldownTime = context.cooldownTracker.getCachedWakeup(result, false, container, now);
-					if(cooldownTime > 0) {
-						if(cooldownTime < wakeupTime) wakeupTime = cooldownTime;
-						if(logMINOR) {
-							if(cooldownTime == Long.MAX_VALUE)
-								Logger.minor(this, "Priority "+priority+" (transient) is waiting until a request finishes or is empty");
-							else
-								Logger.minor(this, "Priority "+priority+" (transient) is in cooldown for another "+(cooldownTime - now)+" "+TimeUtil.formatTime(cooldownTime - now));
-						}
-						result = null;
-					}
+			if(!found) {
+				long cooldownTime = schedTransient.selector.getWakeupTime(priority, now);
+				if(cooldownTime > 0) {
+					if(cooldownTime < wakeupTime) wakeupTime = cooldownTime;
+					if(logMINOR)
+						Logger.minor(this, "Priority "+priority+" (transient) is in cooldown for another "+(cooldownTime - now)+" "+TimeUtil.formatTime(cooldownTime - now));
+				} else if(cooldownTime == 0) {
+					found = true;
 				}
 			}
 			if(priority > maxPrio) {
 				fuzz++;
 				continue; // Don't return because first round may be higher with soft scheduling
 			}
-			if(((result != null) && (!result.isEmpty(persistent ? container : null)))) {
+			if(found) {
 				if(logMINOR) Logger.minor(this, "using priority : "+priority);
 				return priority;
 			}
@@ -177,31 +172,56 @@ class ClientRequestSelector implements KeysFetchingLocally {
 		return wakeupTime;
 	}
 	
-	// LOCKING: ClientRequestScheduler locks on (this) before calling. 
-	// We prevent a number of race conditions (e.g. adding a retry count and then another 
-	// thread removes it cos its empty) ... and in addToGrabArray etc we already sync on this.
-	// The worry is ... is there any nested locking outside of the hierarchy?
-	ChosenBlock removeFirstTransient(int fuzz, RandomSource random, OfferedKeysList offeredKeys, RequestStarter starter, ClientRequestSchedulerNonPersistent schedTransient, short maxPrio, boolean realTime, ClientContext context, ObjectContainer container) {
-		// If a block is already running it will return null. Try to find a valid block in that case.
+	/**
+	 * Choose up to max transient blocks, holding the scheduler lock once while we choose the
+	 * requests, rather than once per block. The blocks are made outside the lock. Each request
+	 * is used at most once per batch; if two requests give us the same key, the duplicate is
+	 * dumped.
+	 * @return The number of blocks added.
+	 */
+	int removeFirstTransient(int fuzz, RandomSource random, OfferedKeysList offeredKeys, RandomGrabArrayItemExclusionList excluding, ClientRequestSchedulerNonPersistent schedTransient, short maxPrio, boolean realTime, ClientContext context, int max, List<ChosenBlock> blocks) {
 		long now = System.currentTimeMillis();
-		for(int i=0;i<5;i++) {
-			// Must synchronize on scheduler to avoid problems with cooldown queue. See notes on CooldownTracker.clearCachedWakeup, which also applies to other cooldown operations.
-			SelectorReturn r;
+		ArrayList<SendableRequest> reqs = new ArrayList<SendableRequest>(max);
+		IdentityHashSet<SendableRequest> chosen = new IdentityHashSet<SendableRequest>();
+		HashSet<Key> keys = new HashSet<Key>();
+		int found = 0;
+		// If a block is already running we won't get a block for it. Allow for a few of those.
+		for(int i = 0; i < 5 && found < max; i++) {
+			boolean exhausted = false;
 			synchronized(sched) {
-				r = removeFirstInner(fuzz, random, offeredKeys, starter, null, schedTransient, true, false, maxPrio, realTime, context, container, now);
+				// Requests are chosen at random, so we may get one we already have. Give up
+				// after as many tries as we need requests, rather than looping forever.
+				for(int tries = 0; tries < max - found && reqs.size() < max - found; tries++) {
+					SelectorReturn r = removeFirstInner(fuzz, random, offeredKeys, excluding, null, schedTransient, true, false, maxPrio, realTime, context, null, now);
+					if(r == null || r.req == null) {
+						exhausted = true;
+						break;
+					}
+					if(chosen.add(r.req))
+						reqs.add(r.req);
+				}
 			}
-			SendableRequest req = null;
-			if(r != null && r.req != null) req = r.req;
-			if(req == null) continue;
-			if(isInsertScheduler && req instanceof SendableGet) {
-				IllegalStateException e = new IllegalStateException("removeFirstInner returned a SendableGet on an insert scheduler!!");
-				req.internalError(e, sched, container, context, req.persistent());
-				throw e;
+			if(reqs.isEmpty()) continue;
+			for(SendableRequest req : reqs) {
+				if(isInsertScheduler && req instanceof SendableGet) {
+					IllegalStateException e = new IllegalStateException("removeFirstInner returned a SendableGet on an insert scheduler!!");
+					req.internalError(e, sched, null, context, req.persistent());
+					throw e;
+				}
+				ChosenBlock block = maybeMakeChosenRequest(req, null, context, now);
+				if(block == null) continue;
+				if(block.key != null && !keys.add(block.key)) {
+					block.onDumped();
+					continue;
+				}
+				blocks.add(block);
+				found++;
 			}
-			ChosenBlock block = maybeMakeChosenRequest(req, container, context, now);
-			if(block != null) return block;
+			reqs.clear();
+			// Choosing again would only give us the same requests.
+			if(exhausted) break;
 		}
-		return null;
+		return found;
 	}
 	
 	public ChosenBlock maybeMakeChosenRequest(SendableRequest req, ObjectContainer container, ClientContext context, long now) {
@@ -282,7 +302,7 @@ class ClientRequestSelector implements KeysFetchingLocally {
 		}
 	}
 	
-	SelectorReturn removeFirstInner(int fuzz, RandomSource random, OfferedKeysList offeredKeys, RequestStarter starter, ClientRequestSchedulerCore schedCore, ClientRequestSchedulerNonPersistent schedTransient, boolean transientOnly, boolean notTransient, short maxPrio, boolean realTime, ClientContext context, ObjectContainer container, long now) {
+	SelectorReturn removeFirstInner(int fuzz, RandomSource random, OfferedKeysList offeredKeys, RandomGrabArrayItemExclusionList excluding, ClientRequestSchedulerCore schedCore, ClientRequestSchedulerNonPersistent schedTransient, boolean transientOnly, boolean notTransient, short maxPrio, boolean realTime, ClientContext context, ObjectContainer container, long now) {
 		// Priorities start at 0
 		if(logMINOR) Logger.minor(this, "removeFirst()");
 		if(schedCore == null) transientOnly = true;
@@ -318,9 +338,9 @@ outer:	for(;choosenPriorityClass <= maxPrio;choosenPriorityClass++) {
 			SectoredRandomGrabArray perm = null;
 			if(!transientOnly)
 				perm = schedCore.newPriorities[choosenPriorityClass];
-			SectoredRandomGrabArray trans = null;
+			TransientRequestSelector trans = null;
 			if(!notTransient)
-				trans = schedTransient.newPriorities[choosenPriorityClass];
+				trans = schedTransient.selector;
 			if(perm == null && trans == null) {
 				if(logMINOR) Logger.minor(this, "No requests to run: chosen priority empty");
 				continue; // Try next priority
@@ -335,14 +355,7 @@ outer:	for(;choosenPriorityClass <= maxPrio;choosenPriorityClass++) {
 				if(triedPerm) perm = null;
 				if(perm == null && trans == null) continue outer;
 				else if(perm == null && trans != null) {
-					chosenTracker = trans;
 					triedTrans = true;
-					long cooldownTime = context.cooldownTracker.getCachedWakeup(trans, false, container, now);
-					if(cooldownTime > 0) {
-						if(cooldownTime < wakeupTime) wakeupTime = cooldownTime;
-						Logger.normal(this, "Priority "+choosenPriorityClass+" (transient) is in cooldown for another "+(cooldownTime - now)+" "+TimeUtil.formatTime(cooldownTime - now));
-						continue outer;
-					}
 					persistent = false;
 				} else if(perm != null && trans == null) {
 					chosenTracker = perm;
@@ -358,76 +371,89 @@ outer:	for(;choosenPriorityClass <= maxPrio;choosenPriorityClass++) {
 				} else {
 					container.activate(perm, 1);
 					int permSize = perm.size();
-					int transSize = trans.size();
-					boolean choosePerm = random.nextInt(permSize + transSize) < permSize;
+					int transSize = trans.countClients(choosenPriorityClass, now);
+					boolean choosePerm = transSize == 0 || random.nextInt(permSize + transSize) < permSize;
 					if(choosePerm) {
 						chosenTracker = perm;
 						triedPerm = true;
 						persistent = true;
+						long cooldownTime = context.cooldownTracker.getCachedWakeup(perm, true, container, now);
+						if(cooldownTime > 0) {
+							if(cooldownTime < wakeupTime) wakeupTime = cooldownTime;
+							Logger.normal(this, "Priority "+choosenPriorityClass+" (persistent) is in cooldown for another "+(cooldownTime - now)+" "+TimeUtil.formatTime(cooldownTime - now));
+							continue;
+						}
 					} else {
-						chosenTracker = trans;
 						triedTrans = true;
 						persistent = false;
 					}
-					long cooldownTime = context.cooldownTracker.getCachedWakeup(trans, choosePerm, container, now);
-					if(cooldownTime > 0) {
-						if(cooldownTime < wakeupTime) wakeupTime = cooldownTime;
-						Logger.normal(this, "Priority "+choosenPriorityClass+" (perm="+choosePerm+") is in cooldown for another "+(cooldownTime - now)+" "+TimeUtil.formatTime(cooldownTime - now));
-						continue outer;
-					}
 				}
 				
-				if(logMINOR)
-					Logger.minor(this, "Got priority tracker "+chosenTracker);
-				RemoveRandomReturn val = chosenTracker.removeRandom(starter, persistent ? container : null, context, now);
+				RemoveRandomReturn val;
 				SendableRequest req;
-				if(val == null) {
-					Logger.normal(this, "Priority "+choosenPriorityClass+" returned null - nothing to schedule, should remove priority");
-					continue;
-				} else if(val.item == null) {
-					if(val.wakeupTime == -1)
-						Logger.normal(this, "Priority "+choosenPriorityClass+" returned cooldown time of -1 - nothing to schedule, should remove priority");
-					else {
-						Logger.normal(this, "Priority "+choosenPriorityClass+" returned cooldown time of "+(val.wakeupTime - now)+" = "+TimeUtil.formatTime(val.wakeupTime - now));
-						if(val.wakeupTime > 0 && val.wakeupTime < wakeupTime)
-							wakeupTime = val.wakeupTime;
+				if(!persistent) {
+					// Only returns requests which can be sent now, parking the rest.
+					req = trans.chooseRequest(choosenPriorityClass, excluding, context, now);
+					if(req == null) {
+						long cooldownTime = trans.getWakeupTime(choosenPriorityClass, now);
+						if(cooldownTime > 0 && cooldownTime < wakeupTime)
+							wakeupTime = cooldownTime;
+						if(logMINOR) Logger.minor(this, "Priority "+choosenPriorityClass+" (transient) has nothing to send, wakeup time "+cooldownTime);
+						continue;
 					}
-					continue;
 				} else {
-					req = (SendableRequest) val.item;
-				}
-				if(persistent)
+					if(logMINOR)
+						Logger.minor(this, "Got priority tracker "+chosenTracker);
+					val = chosenTracker.removeRandom(excluding, container, context, now);
+					if(val == null) {
+						Logger.normal(this, "Priority "+choosenPriorityClass+" returned null - nothing to schedule, should remove priority");
+						continue;
+					} else if(val.item == null) {
+						if(val.wakeupTime == -1)
+							Logger.normal(this, "Priority "+choosenPriorityClass+" returned cooldown time of -1 - nothing to schedule, should remove priority");
+						else {
+							Logger.normal(this, "Priority "+choosenPriorityClass+" returned cooldown time of "+(val.wakeupTime - now)+" = "+TimeUtil.formatTime(val.wakeupTime - now));
+							if(val.wakeupTime > 0 && val.wakeupTime < wakeupTime)
+								wakeupTime = val.wakeupTime;
+						}
+						continue;
+					} else {
+						req = (SendableRequest) val.item;
+					}
 					container.activate(req, 1); // FIXME
-				if(chosenTracker.persistent() != persistent) {
+				}
+				if(chosenTracker != null && chosenTracker.persistent() != persistent) {
 					Logger.error(this, "Tracker.persistent()="+chosenTracker.persistent()+" but is in the queue for persistent="+persistent+" for "+chosenTracker);
 					// FIXME fix it
 				}
 				if(req.persistent() != persistent) {
-					Logger.error(this, "Request.persistent()="+req.persistent()+" but is in the queue for persistent="+chosenTracker.persistent()+" for "+req);
+					Logger.error(this, "Request.persistent()="+req.persistent()+" but is in the queue for persistent="+persistent+" for "+req);
 					// FIXME fix it
 				}
 				if(req.getPriorityClass(container) != choosenPriorityClass) {
 					// Reinsert it : shouldn't happen if we are calling reregisterAll,
 					// maybe we should ask people to report that error if seen
 					Logger.normal(this, "In wrong priority class: "+req+" (req.prio="+req.getPriorityClass(container)+" but chosen="+choosenPriorityClass+ ')');
-					// Remove it.
-					SectoredRandomGrabArrayWithObject clientGrabber = (SectoredRandomGrabArrayWithObject) chosenTracker.getGrabber(req.getClient(container));
-					if(clientGrabber != null) {
-						if(chosenTracker.persistent())
-							container.activate(clientGrabber, 1);
-						RandomGrabArray baseRGA = (RandomGrabArray) clientGrabber.getGrabber(req.getClientRequest());
-						if(baseRGA != null) {
+					// Remove it. Re-registering a transient request replaces it on the selector.
+					if(persistent) {
+						SectoredRandomGrabArrayWithObject clientGrabber = (SectoredRandomGrabArrayWithObject) chosenTracker.getGrabber(req.getClient(container));
+						if(clientGrabber != null) {
 							if(chosenTracker.persistent())
-								container.activate(baseRGA, 1);
-							// Must synchronize on scheduler to avoid nasty race conditions with cooldown.
-							synchronized(sched) {
-								baseRGA.remove(req, container, context);
+								container.activate(clientGrabber, 1);
+							RandomGrabArray baseRGA = (RandomGrabArray) clientGrabber.getGrabber(req.getClientRequest());
+							if(baseRGA != null) {
+								if(chosenTracker.persistent())
+									container.activate(baseRGA, 1);
+								// Must synchronize on scheduler to avoid nasty race conditions with cooldown.
+								synchronized(sched) {
+									baseRGA.remove(req, container, context);
+								}
+							} else {
+								// Okay, it's been removed already. Cool.
 							}
 						} else {
-							// Okay, it's been removed already. Cool.
+							Logger.error(this, "Could not find client grabber for client "+req.getClient(container)+" from "+chosenTracker);
 						}
-					} else {
-						Logger.error(this, "Could not find client grabber for client "+req.getClient(container)+" from "+chosenTracker);
 					}
 					if(req.persistent())
 						schedCore.innerRegister(req, container, context, null);
@@ -498,7 +524,7 @@ outer:	for(;choosenPriorityClass <= maxPrio;choosenPriorityClass++) {
 						if(container.ext().isStored(altRGA) && !altRGA.isEmpty(container)) {
 							if(logMINOR)
 								Logger.minor(this, "Maybe using recently succeeded item from "+altRGA);
-							val = altRGA.removeRandom(starter, container, context, now);
+							val = altRGA.removeRandom(excluding, container, context, now);
 							if(val != null) {
 								if(val.item == null) {
 									if(logMINOR) Logger.minor(this, "Ignoring recently succeeded item, removeRandom returned cooldown time "+val.wakeupTime+((val.wakeupTime > 0) ? " ("+TimeUtil.formatTime(val.wakeupTime - now)+")" : ""));
@@ -69,6 +69,27 @@ public class CooldownTracker {
 		}
 	}
 	
+	/** Called when a transient item's cached wakeup time is cleared. */
+	public interface WakeupCallback {
+
+		/** LOCKING: Called with no locks held by the CooldownTracker, but the caller of
+		 * clearCachedWakeup() may hold the ClientRequestScheduler lock. */
+		public void onWakeup(HasCooldownCacheItem item);
+
+	}
+
+	/** Callbacks for transient items which are waiting for clearCachedWakeup() */
+	private final WeakHashMap<HasCooldownCacheItem, WakeupCallback> wakeupCallbacksTransient = new WeakHashMap<HasCooldownCacheItem, WakeupCallback>();
+
+	/** Call the callback the next time the cached wakeup of a transient item is cleared, i.e.
+	 * when it becomes fetchable unexpectedly. Used by TransientRequestSelector, which keeps
+	 * requests in cooldown out of its selection structure until they wake up.
+	 * LOCKING: Caller should hold the ClientRequestScheduler lock, as for clearCachedWakeup(),
+	 * otherwise we could miss a wakeup between checking the cooldown and calling this. */
+	public synchronized void setWakeupCallback(HasCooldownCacheItem item, WakeupCallback callback) {
+		wakeupCallbacksTransient.put(item, callback);
+	}
+
 	/** Persistent CooldownCacheItem's by Db4o ID */
 	private final HashMap<Long, PersistentCooldownCacheItem> cacheItemsPersistent = new HashMap<Long, PersistentCooldownCacheItem>();
 	/** Transient CooldownCacheItem's by object */
@@ -245,7 +266,10 @@ public class CooldownTracker {
 			} else return false;
 		} else {
 			boolean ret = false;
+			WakeupCallback callback;
+			HasCooldownCacheItem woken = toCheck;
 			synchronized(this) {
+				callback = wakeupCallbacksTransient.remove(toCheck);
 				while(true) {
 					TransientCooldownCacheItem item = cacheItemsTransient.get(toCheck);
 					if(item == null) break;
@@ -257,6 +281,8 @@ public class CooldownTracker {
 					if(logMINOR) Logger.minor(this, "Parent is "+toCheck);
 				}
 			}
+			if(callback != null)
+				callback.onWakeup(woken);
 			if(toCheck instanceof RemoveRandomWithObject) {
 				Object client = ((RemoveRandomWithObject)toCheck).getObject();
 				if(client instanceof WantsCooldownCallback) {
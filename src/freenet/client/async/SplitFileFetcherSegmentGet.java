@@ -216,6 +216,10 @@ public class SplitFileFetcherSegmentGet extends SendableGet implements SupportsB
 			if(logMINOR) Logger.minor(this, "Not rescheduling as already scheduled on "+getParentGrabArray());
 			return;
 		}
+		if(!persistent && getScheduler(container, context).isQueuedTransientRequest(this)) {
+			if(logMINOR) Logger.minor(this, "Not rescheduling as already scheduled");
+			return;
+		}
 		if(isCancelled(container)) return;
 		try {
 			getScheduler(container, context).register(null, new SendableGet[] { this }, persistent, container, getContextBlocks(container), true);
@@ -0,0 +1,371 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.node.RequestClient;
+import freenet.node.RequestStarter;
+import freenet.node.SendableRequest;
+import freenet.support.Logger;
+import freenet.support.RandomGrabArrayItemExclusionList;
+import freenet.support.WeightedRandomTree;
+
+/**
+ * Chooses transient requests to send. Replaces the SectoredRandomGrabArray trees for
+ * ClientRequestSchedulerNonPersistent, while keeping the same round robin: for each priority,
+ * choose a RequestClient at random, then one of its ClientRequester's, then one of its
+ * SendableRequest's. Each level is a WeightedRandomTree, so choosing is O(log n).
+ *
+ * Only requests which can be sent now are in the trees. When we find a request in cooldown,
+ * we park it until its wakeup time, or until the CooldownTracker tells us that its cooldown
+ * has been cleared, so we don't keep probing requests which we can't send, which is what
+ * makes RandomGrabArray slow when it is full of requests in cooldown.
+ *
+ * Registering and unregistering requests is lock-free: we update a ConcurrentHashMap, and
+ * queue the change for the trees, which are only touched by the thread choosing a request,
+ * under the lock on this object.
+ */
+final class TransientRequestSelector implements CooldownTracker.WakeupCallback {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(TransientRequestSelector.class);
+	}
+
+	/** Maximum time a request is parked without being looked at again. Requests which are
+	 * waiting for another request to finish have a wakeup time of Long.MAX_VALUE and rely on
+	 * the CooldownTracker to wake them up, so this is a safety net. */
+	static final long MAX_PARK_TIME = MINUTES.toMillis(10);
+
+	/** A registered request. LOCKING: The state and the tree fields are protected by the
+	 * selector. */
+	private static final class Entry {
+		final SendableRequest req;
+		final short priority;
+		final RequestClient client;
+		final ClientRequester requester;
+		/** Orders parked entries with the same wakeup time. */
+		final long id;
+		int state = NEW;
+		long wakeupTime;
+		Group group;
+
+		Entry(SendableRequest req, short priority, RequestClient client, ClientRequester requester, long id) {
+			this.req = req;
+			this.priority = priority;
+			this.client = client;
+			this.requester = requester;
+			this.id = id;
+		}
+
+		@Override
+		public String toString() {
+			return super.toString()+":"+req+":prio="+priority;
+		}
+	}
+
+	private static final int NEW = 0;
+	private static final int RUNNABLE = 1;
+	private static final int PARKED = 2;
+	private static final int REMOVED = 3;
+
+	/** A RequestClient, or a ClientRequester within a RequestClient. */
+	private static final class Group {
+		final Object key;
+		/** The RequestClient, or null if this is a RequestClient. */
+		final Group parent;
+		/** Groups or Entry's with requests which can be sent now. */
+		final WeightedRandomTree<Object> runnable = new WeightedRandomTree<Object>();
+		/** ClientRequester groups, if this is a RequestClient. */
+		final HashMap<Object, Group> children;
+		/** Number of registered Entry's or child Group's, runnable or not. */
+		int members;
+
+		Group(Object key, Group parent) {
+			this.key = key;
+			this.parent = parent;
+			this.children = parent == null ? new HashMap<Object, Group>() : null;
+		}
+	}
+
+	private static final Comparator<Entry> WAKEUP_ORDER = new Comparator<Entry>() {
+
+		@Override
+		public int compare(Entry e1, Entry e2) {
+			if(e1.wakeupTime != e2.wakeupTime)
+				return e1.wakeupTime < e2.wakeupTime ? -1 : 1;
+			if(e1.id != e2.id)
+				return e1.id < e2.id ? -1 : 1;
+			return 0;
+		}
+
+	};
+
+	/** The requests in one priority class. */
+	private static final class PriorityLevel {
+		/** RequestClient's with requests which can be sent now. */
+		final WeightedRandomTree<Group> clients = new WeightedRandomTree<Group>();
+		final HashMap<RequestClient, Group> clientGroups = new HashMap<RequestClient, Group>();
+		final TreeSet<Entry> parked = new TreeSet<Entry>(WAKEUP_ORDER);
+	}
+
+	private static final int OP_ADD = 0;
+	private static final int OP_REMOVE = 1;
+	private static final int OP_WAKE = 2;
+
+	private static final class Op {
+		final Entry entry;
+		final int type;
+
+		Op(Entry entry, int type) {
+			this.entry = entry;
+			this.type = type;
+		}
+	}
+
+	private final ConcurrentHashMap<SendableRequest, Entry> registered = new ConcurrentHashMap<SendableRequest, Entry>();
+	private final ConcurrentLinkedQueue<Op> pending = new ConcurrentLinkedQueue<Op>();
+	private final AtomicLong nextID = new AtomicLong();
+	/** LOCKING: Protected by this. */
+	private final PriorityLevel[] priorities;
+	/** LOCKING: Protected by this. */
+	private int parkedCount;
+
+	TransientRequestSelector() {
+		priorities = new PriorityLevel[RequestStarter.NUMBER_OF_PRIORITY_CLASSES];
+		for(int i = 0; i < priorities.length; i++)
+			priorities[i] = new PriorityLevel();
+	}
+
+	/** Register a request, or re-register it, e.g. at a new priority. Any cooldown it was
+	 * parked for is forgotten, as with RandomGrabArray.add(). Lock-free. */
+	void add(SendableRequest req, short priority, RequestClient client, ClientRequester requester) {
+		if(req.persistent()) throw new IllegalArgumentException("Persistent request "+req+" on the transient selector");
+		if(priority < RequestStarter.MAXIMUM_PRIORITY_CLASS || priority > RequestStarter.MINIMUM_PRIORITY_CLASS)
+			throw new IllegalArgumentException("Invalid priority "+priority);
+		Entry entry = new Entry(req, priority, client, requester, nextID.getAndIncrement());
+		Entry old = registered.put(req, entry);
+		if(old != null)
+			pending.add(new Op(old, OP_REMOVE));
+		pending.add(new Op(entry, OP_ADD));
+		if(logMINOR) Logger.minor(this, "Added "+req+" at priority "+priority+(old != null ? " replacing "+old : ""));
+	}
+
+	/** Unregister a request. Lock-free.
+	 * @return True if it was registered. */
+	boolean remove(SendableRequest req) {
+		Entry entry = registered.remove(req);
+		if(entry == null) return false;
+		pending.add(new Op(entry, OP_REMOVE));
+		if(logMINOR) Logger.minor(this, "Removed "+req);
+		return true;
+	}
+
+	boolean isRegistered(SendableRequest req) {
+		return registered.containsKey(req);
+	}
+
+	/** Number of registered requests, including those in cooldown. */
+	int size() {
+		return registered.size();
+	}
+
+	/** Number of requests parked in cooldown. */
+	synchronized int countParked() {
+		processPending();
+		return parkedCount;
+	}
+
+	/** @return All the registered requests. */
+	List<SendableRequest> getRegistered() {
+		return new ArrayList<SendableRequest>(registered.keySet());
+	}
+
+	/** The cooldown of a parked request has been cleared. Lock-free. */
+	@Override
+	public void onWakeup(HasCooldownCacheItem item) {
+		if(!(item instanceof SendableRequest)) return;
+		Entry entry = registered.get(item);
+		if(entry == null) return;
+		pending.add(new Op(entry, OP_WAKE));
+	}
+
+	/**
+	 * @return 0 if there are requests at this priority which may be sendable now, otherwise the
+	 * time at which the first parked request wakes up, or -1 if there are no requests at all.
+	 */
+	synchronized long getWakeupTime(int priority, long now) {
+		PriorityLevel level = priorities[priority];
+		update(level, now);
+		if(!level.clients.isEmpty()) return 0;
+		if(level.parked.isEmpty()) return -1;
+		return level.parked.first().wakeupTime;
+	}
+
+	/** Number of RequestClient's with sendable requests at this priority. */
+	synchronized int countClients(int priority, long now) {
+		PriorityLevel level = priorities[priority];
+		update(level, now);
+		return level.clients.size();
+	}
+
+	/**
+	 * Choose a request which can be sent now. Requests which turn out to be in cooldown are
+	 * parked, and finished requests are removed, so they won't be looked at again until they
+	 * wake up. The request stays registered.
+	 * LOCKING: Caller should hold the ClientRequestScheduler lock, see
+	 * CooldownTracker.clearCachedWakeup().
+	 * @return A request, or null if nothing at this priority can be sent now, in which case
+	 * getWakeupTime() says when something might be.
+	 */
+	synchronized SendableRequest chooseRequest(int priority, RandomGrabArrayItemExclusionList excluding, ClientContext context, long now) {
+		PriorityLevel level = priorities[priority];
+		update(level, now);
+		Random random = context.fastWeakRandom;
+		while(true) {
+			Group client = level.clients.choose(random);
+			if(client == null) return null;
+			Group requester = (Group) client.runnable.choose(random);
+			Entry entry = (Entry) requester.runnable.choose(random);
+			SendableRequest req = entry.req;
+			long wakeupTime = excluding.excludeSummarily(req, null, null, false, now);
+			if(wakeupTime <= 0) {
+				wakeupTime = req.getCooldownTime(null, context, now);
+				if(wakeupTime < 0) {
+					if(logMINOR) Logger.minor(this, "Removing finished request "+req);
+					registered.remove(req, entry);
+					removeEntry(entry);
+					continue;
+				}
+				if(wakeupTime == 0)
+					wakeupTime = excluding.exclude(req, null, context, now);
+			}
+			if(wakeupTime > 0) {
+				park(entry, wakeupTime, context, now);
+				continue;
+			}
+			return req;
+		}
+	}
+
+	/** Apply queued changes, and wake up requests whose cooldown has expired. */
+	private void update(PriorityLevel level, long now) {
+		processPending();
+		while(!level.parked.isEmpty()) {
+			Entry entry = level.parked.first();
+			if(entry.wakeupTime > now) break;
+			wake(entry);
+		}
+	}
+
+	private void processPending() {
+		Op op;
+		while((op = pending.poll()) != null) {
+			switch(op.type) {
+			case OP_ADD:
+				addEntry(op.entry);
+				break;
+			case OP_REMOVE:
+				removeEntry(op.entry);
+				break;
+			case OP_WAKE:
+				if(op.entry.state == PARKED) wake(op.entry);
+				break;
+			}
+		}
+	}
+
+	private void addEntry(Entry entry) {
+		// Removed before we got around to adding it.
+		if(entry.state != NEW) return;
+		PriorityLevel level = priorities[entry.priority];
+		Group client = level.clientGroups.get(entry.client);
+		if(client == null) {
+			client = new Group(entry.client, null);
+			level.clientGroups.put(entry.client, client);
+		}
+		Group requester = client.children.get(entry.requester);
+		if(requester == null) {
+			requester = new Group(entry.requester, client);
+			client.children.put(entry.requester, requester);
+			client.members++;
+		}
+		requester.members++;
+		entry.group = requester;
+		makeRunnable(entry);
+	}
+
+	private void removeEntry(Entry entry) {
+		int oldState = entry.state;
+		entry.state = REMOVED;
+		if(oldState == NEW || oldState == REMOVED) return;
+		if(oldState == RUNNABLE)
+			makeNotRunnable(entry);
+		else if(oldState == PARKED)
+			unpark(entry);
+		PriorityLevel level = priorities[entry.priority];
+		Group requester = entry.group;
+		entry.group = null;
+		if(--requester.members > 0) return;
+		Group client = requester.parent;
+		client.children.remove(requester.key);
+		if(--client.members > 0) return;
+		level.clientGroups.remove(client.key);
+	}
+
+	private void makeRunnable(Entry entry) {
+		entry.state = RUNNABLE;
+		Group requester = entry.group;
+		requester.runnable.add(entry, 1);
+		if(requester.runnable.size() > 1) return;
+		Group client = requester.parent;
+		client.runnable.add(requester, 1);
+		if(client.runnable.size() > 1) return;
+		priorities[entry.priority].clients.add(client, 1);
+	}
+
+	private void makeNotRunnable(Entry entry) {
+		Group requester = entry.group;
+		requester.runnable.remove(entry);
+		if(!requester.runnable.isEmpty()) return;
+		Group client = requester.parent;
+		client.runnable.remove(requester);
+		if(!client.runnable.isEmpty()) return;
+		priorities[entry.priority].clients.remove(client);
+	}
+
+	private void park(Entry entry, long wakeupTime, ClientContext context, long now) {
+		if(logMINOR) Logger.minor(this, "Parking "+entry.req+" until "+wakeupTime);
+		makeNotRunnable(entry);
+		entry.state = PARKED;
+		entry.wakeupTime = Math.min(wakeupTime, now + MAX_PARK_TIME);
+		priorities[entry.priority].parked.add(entry);
+		parkedCount++;
+		context.cooldownTracker.setWakeupCallback(entry.req, this);
+	}
+
+	private void unpark(Entry entry) {
+		priorities[entry.priority].parked.remove(entry);
+		parkedCount--;
+	}
+
+	private void wake(Entry entry) {
+		if(logMINOR) Logger.minor(this, "Waking "+entry.req);
+		unpark(entry);
+		makeRunnable(entry);
+	}
+
+}
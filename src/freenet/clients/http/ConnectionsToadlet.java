@@ -494,6 +494,9 @@ public abstract class ConnectionsToadlet extends Toadlet {
 			}
 			// END PEER TABLE
 
+			if(advancedMode && peerNodeStatuses.length > 0)
+				drawCongestionControlHistory(contentNode, peerNodeStatuses);
+
 			// FOAF locations table.
 			if(advancedMode) {
 				//requires a location-to-list/count in-memory transform
@@ -877,6 +880,43 @@ public abstract class ConnectionsToadlet extends Toadlet {
 
 	protected abstract String getPageTitle(String titleCountString);
 
+	/** Show the recent RTT, window size and goodput of each peer's throttle, so that the
+	 * congestion control algorithms can be compared. */
+	private void drawCongestionControlHistory(HTMLNode contentNode, PeerNodeStatus[] peerNodeStatuses) {
+		DecimalFormat windowFormat = new DecimalFormat("0.0");
+		HTMLNode infobox = contentNode.addChild("div", "class", "infobox infobox-normal");
+		infobox.addChild("div", "class", "infobox-header", l10n("congestionControlTitle"));
+		HTMLNode content = infobox.addChild("div", "class", "infobox-content");
+		content.addChild("p", l10n("congestionControlExplanation", "interval", TimeUtil.formatTime(PacketThrottle.SAMPLE_INTERVAL)));
+		HTMLNode table = content.addChild("table");
+		HTMLNode header = table.addChild("tr");
+		header.addChild("th", l10n("ipAddressTitle"));
+		header.addChild("th", l10n("congestionControlAlgorithm"));
+		header.addChild("th", l10n("congestionControlRTT"));
+		header.addChild("th", l10n("congestionControlWindow"));
+		header.addChild("th", l10n("congestionControlGoodput"));
+		for(PeerNodeStatus peerNodeStatus : peerNodeStatuses) {
+			PacketThrottle t = peerNodeStatus.getThrottle();
+			if(t == null) continue;
+			PacketThrottle.Sample[] samples = t.getSamples();
+			if(samples.length == 0) continue;
+			StringBuilder rtt = new StringBuilder();
+			StringBuilder window = new StringBuilder();
+			StringBuilder goodput = new StringBuilder();
+			for(PacketThrottle.Sample sample : samples) {
+				rtt.append(sample.roundTripTime).append(' ');
+				window.append(windowFormat.format(sample.windowSize)).append(' ');
+				goodput.append(SizeUtil.formatSize((long) sample.goodput)).append(' ');
+			}
+			HTMLNode row = table.addChild("tr");
+			row.addChild("td", (peerNodeStatus.getPeerAddress() != null) ? (peerNodeStatus.getPeerAddress() + ':' + peerNodeStatus.getPeerPort()) : l10n("unknownAddress"));
+			row.addChild("td", t.getAlgorithm().configName());
+			row.addChild("td", rtt.toString().trim());
+			row.addChild("td", window.toString().trim());
+			row.addChild("td", goodput.toString().trim());
+		}
+	}
+
 	/** Draw the add a peer box. This comes immediately after the main peers table and before the noderef box.
 	 * Implementors may skip it by not doing anything in this method. */
 	protected void drawAddPeerBox(HTMLNode contentNode, ToadletContext ctx) {
@@ -1063,7 +1103,7 @@ public abstract class ConnectionsToadlet extends Toadlet {
 			if(t == null)
 				val = "none";
 			else
-				val = (int)t.getBandwidth()+"B/sec delay "+
+				val = t.getAlgorithm().configName()+": "+(int)t.getBandwidth()+"B/sec delay "+
 					t.getDelay()+"ms (RTT "+t.getRoundTripTime()+"ms window "+t.getWindowSize()+')';
 			peerRow.addChild("td", "class", "peer-idle" /* FIXME */).addChild("#", val);
 			// time delta
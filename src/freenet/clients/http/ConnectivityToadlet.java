@@ -17,6 +17,7 @@ package freenet.clients.http;
 
 import java.io.IOException;
 import java.net.URI;
+import java.text.DecimalFormat;
 
 import freenet.client.HighLevelSimpleClient;
 import freenet.io.AddressTracker;
@@ -111,6 +112,32 @@ public class ConnectivityToadlet extends Toadlet {
 		
 		if(ctx.isAdvancedModeEnabled()) {
 		
+		// Receive and decode stages
+		
+		HTMLNode stagesContent = pageMaker.getInfobox("#", l10n("packetProcessingTitle"), contentNode, "connectivity-packet-processing", false);
+		table = stagesContent.addChild("table", "border", "0");
+		HTMLNode header = table.addChild("tr");
+		header.addChild("th", l10n("portTitle"));
+		header.addChild("th", l10n("packetsReceived"));
+		header.addChild("th", l10n("queueFull"));
+		header.addChild("th", l10n("queueTime"));
+		header.addChild("th", l10n("decodeTime"));
+		header.addChild("th", l10n("packetsSent"));
+		header.addChild("th", l10n("sendBatch"));
+		header.addChild("th", l10n("sendQueueFull"));
+		DecimalFormat millis = new DecimalFormat("0.000");
+		for(UdpSocketHandler handler: handlers) {
+			HTMLNode row = table.addChild("tr");
+			row.addChild("td", handler.getTitle());
+			row.addChild("td", Long.toString(handler.packetsReceived()));
+			row.addChild("td", Long.toString(handler.queueFull()));
+			row.addChild("td", millis.format(handler.averageQueueTime())+" / "+millis.format(handler.maxQueueTime()));
+			row.addChild("td", millis.format(handler.averageDecodeTime())+" / "+millis.format(handler.maxDecodeTime()));
+			row.addChild("td", Long.toString(handler.packetsSent()));
+			row.addChild("td", millis.format(handler.averageSendBatch()));
+			row.addChild("td", Long.toString(handler.sendQueueFull()));
+		}
+		
 		// One box per port
 		
 		String noreply = l10n("noreply");
@@ -3,6 +3,7 @@ package freenet.clients.http;
 import static java.util.concurrent.TimeUnit.DAYS;
 import static java.util.concurrent.TimeUnit.HOURS;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.io.IOException;
@@ -18,6 +19,7 @@ import java.util.Map;
 
 import freenet.client.async.ClientRequester;
 import freenet.client.HighLevelSimpleClient;
+import freenet.client.FECQueue;
 import freenet.config.SubConfig;
 import freenet.crypt.ciphers.Rijndael;
 import freenet.io.comm.IncomingPacketFilterImpl;
@@ -456,6 +458,14 @@ public class StatisticsToadlet extends Toadlet {
 			HTMLNode databaseJobsInfobox = nextTableCell.addChild("div", "class", "infobox");
 			drawDatabaseJobsBox(databaseJobsInfobox);
 
+			// FEC jobs box
+			HTMLNode fecQueueInfobox = nextTableCell.addChild("div", "class", "infobox");
+			drawFECQueueBox(fecQueueInfobox);
+
+			// Request starters box
+			HTMLNode requestStartersInfobox = nextTableCell.addChild("div", "class", "infobox");
+			drawRequestStartersBox(requestStartersInfobox);
+
 			OpennetManager om = node.getOpennet();
 			if(om != null) {
 				// opennet stats box
@@ -620,6 +630,8 @@ public class StatisticsToadlet extends Toadlet {
 		jvmStatsList.addChild("li", l10n("osVersion", "version", System.getProperty("os.version")));
 		jvmStatsList.addChild("li", l10n("osArch", "arch", System.getProperty("os.arch")));
 		if(advancedModeEnabled) {
+			jvmStatsList.addChild("li", l10n("tickerJobs", new String[] { "queued", "average", "max" },
+					new String[] { thousandPoint.format(node.ticker.queuedJobs()), fix1p1.format(node.ticker.averageLateness()), Long.toString(node.ticker.maxLateness()) }));
 			if(Rijndael.AesCtrProvider == null)
 				jvmStatsList.addChild("li", l10n("cryptoUsingBuiltin"));
 			else
@@ -692,6 +704,35 @@ public class StatisticsToadlet extends Toadlet {
 		stats.getDatabaseJobQueueStatistics().toTableRows(jobQueueStatistics);
 	}
 
+	private void drawFECQueueBox(HTMLNode node) {
+		node.addChild("div", "class", "infobox-header", l10n("fecQueueTitle"));
+		HTMLNode fecQueueContent = node.addChild("div", "class", "infobox-content");
+		HTMLNode fecQueueList = fecQueueContent.addChild("ul");
+		FECQueue queue = core.fecQueue;
+		fecQueueList.addChild("li", l10n("fecJobs", new String[] { "running", "queued", "completed" },
+				new String[] { Integer.toString(queue.getRunningJobs()), Integer.toString(queue.getQueuedJobs()), Long.toString(queue.getCompletedJobs()) }));
+		fecQueueList.addChild("li", l10n("fecThroughput", "rate", SizeUtil.formatSize((long) queue.getThroughputPerJob())));
+		fecQueueList.addChild("li", l10n("fecQueueLatency", "time", TimeUtil.formatTime((long) queue.getAverageQueueLatency(), 2, true)));
+	}
+
+	private void drawRequestStartersBox(HTMLNode node) {
+		node.addChild("div", "class", "infobox-header", l10n("requestStartersTitle"));
+		HTMLNode requestStartersContent = node.addChild("div", "class", "infobox-content");
+		HTMLNode requestStartersTable = requestStartersContent.addChild("table", "border", "0");
+		HTMLNode row = requestStartersTable.addChild("tr");
+		row.addChild("th", l10n("requestStarter"));
+		row.addChild("th", l10n("requestStarterUtilisation"));
+		row.addChild("th", l10n("requestStarterBlocksPerBatch"));
+		row.addChild("th", l10n("requestStarterSelectionTime"));
+		for(NodeStats.RequestStarterStats entry : stats.getRequestStarterStatistics()) {
+			row = requestStartersTable.addChild("tr");
+			row.addChild("td", entry.name);
+			row.addChild("td", fix3p1pct.format(entry.utilisation()));
+			row.addChild("td", fix1p1.format(entry.averageBlocksPerBatch()));
+			row.addChild("td", fix1p1.format(entry.averageSelectionTimeMicros()));
+		}
+	}
+
 	private void drawOpennetStatsBox(HTMLNode box, OpennetManager om) {
 		box.addChild("div", "class", "infobox-header", l10n("opennetStats"));
 		HTMLNode opennetStatsContent = box.addChild("div", "class", "infobox-content");
@@ -777,6 +818,11 @@ public class StatisticsToadlet extends Toadlet {
 		row.addChild("th", l10n("accessRate"));
 		row.addChild("th", l10n("writeRate"));
 		row.addChild("th", l10n("falsePos"));
+		row.addChild("th", l10n("lockContention"));
+		row.addChild("th", l10n("digestCacheHitRate"));
+		row.addChild("th", l10n("writeCache"));
+		row.addChild("th", l10n("writeBehindQueue"));
+		row.addChild("th", l10n("fastTier"));
 		row.addChild("th", l10n("avgLocation"));
 		row.addChild("th", l10n("avgSuccessLoc"));
 		row.addChild("th", l10n("furthestSuccess"));
@@ -838,6 +884,42 @@ public class StatisticsToadlet extends Toadlet {
 			row.addChild("td", access);
 			row.addChild("td", thousandPoint.format(sessionAccess.falsePos()) +
 					(totalAccess == null ? "" : (" ("+thousandPoint.format(totalAccess.falsePos())+")")));
+			try {
+				// Lock statistics are not persisted, so there is no total.
+				row.addChild("td", thousandPoint.format(sessionAccess.lockContentions()) + " (" +
+						fix3p1pct.format(sessionAccess.lockContentionRate()) + ", " +
+						TimeUtil.formatTime(NANOSECONDS.toMillis(sessionAccess.lockWaitTimeNanos()), 2, true) + ")");
+			} catch (StatsNotAvailableException e) {
+				row.addChild("td", "N/A");
+			}
+			try {
+				row.addChild("td", fix3p1pct.format(sessionAccess.digestCacheHitRate()));
+			} catch (StatsNotAvailableException e) {
+				row.addChild("td", "N/A");
+			}
+			try {
+				row.addChild("td", fix3p1pct.format(sessionAccess.writeCacheHitRate()) + " (" +
+						thousandPoint.format(sessionAccess.writeCacheBlocks()) + ", " +
+						thousandPoint.format(sessionAccess.writeCacheFlushes()) + ", " +
+						TimeUtil.formatTime(NANOSECONDS.toMillis(sessionAccess.writeCacheAverageFlushTimeNanos()), 2, true) + " / " +
+						TimeUtil.formatTime(NANOSECONDS.toMillis(sessionAccess.writeCacheMaxFlushTimeNanos()), 2, true) + ")");
+			} catch (StatsNotAvailableException e) {
+				row.addChild("td", "N/A");
+			}
+			try {
+				row.addChild("td", thousandPoint.format(sessionAccess.writeBehindQueuedBlocks()) + " (" +
+						fix1p2.format(sessionAccess.writeBehindBatchSize()) + ", " +
+						thousandPoint.format(sessionAccess.writeBehindBlockedPuts()) + ")");
+			} catch (StatsNotAvailableException e) {
+				row.addChild("td", "N/A");
+			}
+			try {
+				row.addChild("td", fix3p1pct.format(sessionAccess.fastTierHitRate()) + " (" +
+						thousandPoint.format(sessionAccess.promotions()) + ", " +
+						thousandPoint.format(sessionAccess.droppedPromotions()) + ")");
+			} catch (StatsNotAvailableException e) {
+				row.addChild("td", "N/A");
+			}
 			try {
 				row.addChild("td", fix1p4.format(stats.avgLocation()));
 			} catch (StatsNotAvailableException e) {
@@ -1321,6 +1403,8 @@ public class StatisticsToadlet extends Toadlet {
 		overviewList.addChild("li", "pInstantRejectRequestRT:\u00a0" + fix3p1pct.format(stats.pRejectIncomingInstantlyCHKRequestRT())+" (CHK) "+fix3p1pct.format(stats.pRejectIncomingInstantlySSKRequestRT())+" (SSK)");
 		overviewList.addChild("li", "pInstantRejectInsertRT:\u00a0" + fix3p1pct.format(stats.pRejectIncomingInstantlyCHKInsertRT())+" (CHK) "+fix3p1pct.format(stats.pRejectIncomingInstantlySSKInsertRT())+" (SSK)");
 		overviewList.addChild("li", "unclaimedFIFOSize:\u00a0" + node.getUnclaimedFIFOSize());
+		overviewList.addChild("li", "messageFilters:\u00a0" + node.getUSM().getFilterCount() + "\u00a0(" + node.getUSM().getUnindexedFilterCount() + " unindexed)");
+		overviewList.addChild("li", "messageFilterMatchTime:\u00a0" + fix3p1US.format(node.getUSM().getAverageFilterMatchTime() / 1000.0) + "\u00a0\u00b5s");
 		overviewList.addChild("li", "RAMBucketPoolSize:\u00a0" + SizeUtil.formatSize(core.tempBucketFactory.getRamUsed())+ " / "+ SizeUtil.formatSize(core.tempBucketFactory.getMaxRamUsed()));
 		overviewList.addChild("li", "uptimeAverage:\u00a0" + fix3p1pct.format(node.uptime.getUptime()));
 		
@@ -1328,6 +1412,9 @@ public class StatisticsToadlet extends Toadlet {
 		if(decoded != null) {
 			overviewList.addChild("li", "packetsDecoded:\u00a0"+fix3p1pct.format(((double)decoded[0])/((double)decoded[1]))+"\u00a0("+decoded[1]+")");
 		}
+		long[] trials = IncomingPacketFilterImpl.getTrialDecrypts();
+		overviewList.addChild("li", "packetsMatchedByTag:\u00a0"+trials[0]);
+		overviewList.addChild("li", "trialDecryptPackets:\u00a0"+trials[1]+"\u00a0("+trials[2]+"\u00a0attempts)");
 		
 	}
 
@@ -38,7 +38,25 @@ public class HMAC {
 		return MessageDigest.isEqual(mac, mac2);
 	}
 
+	/**
+	 * Verify a MAC over part of a buffer against a MAC stored in (possibly the same) buffer, 
+	 * without copying either.
+	 */
+	public boolean verify(byte[] K, byte[] text, int offset, int length, byte[] mac, int macOffset, int macLength) {
+		byte[] mac2 = mac(K, text, offset, length, macLength);
+		
+		// this is constant-time; DO NOT 'optimize'
+		int result = 0;
+		for(int i = 0; i < macLength; i++)
+			result |= mac2[i] ^ mac[macOffset + i];
+		return result == 0;
+	}
+
 	public byte[] mac(byte[] K, byte[] text, int macbytes) {
+		return mac(K, text, 0, text.length, macbytes);
+	}
+
+	public byte[] mac(byte[] K, byte[] text, int offset, int length, int macbytes) {
 		byte[] K0 = null;
 
 		if(K.length == B) // Step 1
@@ -59,7 +77,7 @@ public class HMAC {
 
 		// Step 5/6
 		d.update(IS1);
-		d.update(text);
+		d.update(text, offset, length);
 		IS1 = d.digest();
 
 		// Step 7
@@ -129,11 +147,15 @@ public class HMAC {
 	}
 
 	public static byte[] macWithSHA256(byte[] K, byte[] text, int macbytes) {
+		return macWithSHA256(K, text, 0, text.length, macbytes);
+	}
+
+	public static byte[] macWithSHA256(byte[] K, byte[] text, int offset, int length, int macbytes) {
 		MessageDigest sha256 = null;
 		try {
 			sha256 = SHA256.getMessageDigest();
 			HMAC hash = new HMAC(sha256);
-			return hash.mac(K, text, macbytes);
+			return hash.mac(K, text, offset, length, macbytes);
 		} finally {
 			if(sha256 != null)
 				SHA256.returnMessageDigest(sha256);
@@ -151,4 +173,16 @@ public class HMAC {
 				SHA256.returnMessageDigest(sha256);
 		}
 	}
-}	
+
+	public static boolean verifyWithSHA256(byte[] K, byte[] text, int offset, int length, byte[] mac, int macOffset, int macLength) {
+		MessageDigest sha256 = null;
+		try {
+			sha256 = SHA256.getMessageDigest();
+			HMAC hash = new HMAC(sha256);
+			return hash.verify(K, text, offset, length, mac, macOffset, macLength);
+		} finally {
+			if(sha256 != null)
+				SHA256.returnMessageDigest(sha256);
+		}
+	}
+}
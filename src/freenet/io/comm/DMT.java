@@ -188,6 +188,43 @@ public class DMT {
 		return msg;
 	}
 	
+	private static final int PACKET_TRANSMIT_ID = packetTransmit.getName().hashCode();
+
+	/**
+	 * Encode everything in a packetTransmit up to and including the length of the packet data,
+	 * exactly as Message.encodeToPacket() would. The data itself follows immediately, so a relayed
+	 * packet can be sent straight from the PartiallyReceivedBlock's buffer, rather than being
+	 * copied into a new Message for every peer we are sending it to.
+	 * @see PeerContext#sendPacketTransmit(byte[], Buffer, long, boolean, AsyncMessageCallback, ByteCounter)
+	 */
+	public static byte[] encodePacketTransmitHeader(long uid, int packetNo, BitArray sent, int dataLength) {
+		byte[] buf = new byte[4 + 8 + 4 + BitArray.serializedLength(sent.getSize()) + 4];
+		int offset = writeInt(PACKET_TRANSMIT_ID, buf, 0);
+		offset = writeInt((int) (uid >>> 32), buf, offset);
+		offset = writeInt((int) uid, buf, offset);
+		offset = writeInt(packetNo, buf, offset);
+		offset = sent.writeTo(buf, offset);
+		writeInt(dataLength, buf, offset);
+		return buf;
+	}
+
+	/** Big-endian, like DataOutputStream. */
+	private static int writeInt(int x, byte[] buf, int offset) {
+		buf[offset++] = (byte) (x >>> 24);
+		buf[offset++] = (byte) (x >>> 16);
+		buf[offset++] = (byte) (x >>> 8);
+		buf[offset++] = (byte) x;
+		return offset;
+	}
+
+	/** The priority createPacketTransmit() would give the message. */
+	public static short getPacketTransmitPriority(boolean realTime) {
+		short priority = packetTransmit.getDefaultPriority();
+		if(realTime)
+			priority--;
+		return priority;
+	}
+
 	public static int packetTransmitSize(int size, int _packets) {
 		return size + 8 /* uid */ + 4 /* packet# */ + 
 			BitArray.serializedLength(_packets) + 4 /* Message header */;
@@ -0,0 +1,289 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedList;
+
+import freenet.io.WritableToDataOutputStream;
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+import freenet.keys.NodeSSK;
+import freenet.support.BitArray;
+import freenet.support.Buffer;
+import freenet.support.Serializer;
+import freenet.support.ShortBuffer;
+
+/**
+ * Reads and writes one field of a Message, in the same format as Serializer. MessageType
+ * chooses a codec for each field when the field is added, so encoding and decoding a Message
+ * doesn't have to look at the class of every value. Primitive fields are kept unboxed in the
+ * Message, as a long.
+ */
+abstract class FieldCodec {
+
+	/** If true, use readPrimitive() and writePrimitive(), otherwise read() and write(). */
+	final boolean primitive;
+
+	private FieldCodec(boolean primitive) {
+		this.primitive = primitive;
+	}
+
+	long readPrimitive(DataInput dis) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+
+	void writePrimitive(long value, DataOutputStream dos) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+
+	/** Convert a primitive field's value to the boxed value which Message.getObject() returns. */
+	Object box(long value) {
+		throw new UnsupportedOperationException();
+	}
+
+	/** Convert a boxed value of the right type to a primitive field's value. */
+	long unbox(Object value) {
+		throw new UnsupportedOperationException();
+	}
+
+	Object read(DataInput dis) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+
+	void write(Object value, DataOutputStream dos) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+
+	static final FieldCodec BOOLEAN = new FieldCodec(true) {
+		@Override
+		long readPrimitive(DataInput dis) throws IOException {
+			// Only 0 and 1 are written, see Serializer.
+			byte b = dis.readByte();
+			if(b != 0 && b != 1) throw new IOException("Boolean is non boolean value: " + b);
+			return b;
+		}
+		@Override
+		void writePrimitive(long value, DataOutputStream dos) throws IOException {
+			dos.writeBoolean(value != 0);
+		}
+		@Override
+		Object box(long value) {
+			return Boolean.valueOf(value != 0);
+		}
+		@Override
+		long unbox(Object value) {
+			return ((Boolean) value) ? 1 : 0;
+		}
+	};
+
+	static final FieldCodec BYTE = new FieldCodec(true) {
+		@Override
+		long readPrimitive(DataInput dis) throws IOException {
+			return dis.readByte();
+		}
+		@Override
+		void writePrimitive(long value, DataOutputStream dos) throws IOException {
+			dos.writeByte((int) value);
+		}
+		@Override
+		Object box(long value) {
+			return Byte.valueOf((byte) value);
+		}
+		@Override
+		long unbox(Object value) {
+			return (Byte) value;
+		}
+	};
+
+	static final FieldCodec SHORT = new FieldCodec(true) {
+		@Override
+		long readPrimitive(DataInput dis) throws IOException {
+			return dis.readShort();
+		}
+		@Override
+		void writePrimitive(long value, DataOutputStream dos) throws IOException {
+			dos.writeShort((int) value);
+		}
+		@Override
+		Object box(long value) {
+			return Short.valueOf((short) value);
+		}
+		@Override
+		long unbox(Object value) {
+			return (Short) value;
+		}
+	};
+
+	static final FieldCodec INT = new FieldCodec(true) {
+		@Override
+		long readPrimitive(DataInput dis) throws IOException {
+			return dis.readInt();
+		}
+		@Override
+		void writePrimitive(long value, DataOutputStream dos) throws IOException {
+			dos.writeInt((int) value);
+		}
+		@Override
+		Object box(long value) {
+			return Integer.valueOf((int) value);
+		}
+		@Override
+		long unbox(Object value) {
+			return (Integer) value;
+		}
+	};
+
+	static final FieldCodec LONG = new FieldCodec(true) {
+		@Override
+		long readPrimitive(DataInput dis) throws IOException {
+			return dis.readLong();
+		}
+		@Override
+		void writePrimitive(long value, DataOutputStream dos) throws IOException {
+			dos.writeLong(value);
+		}
+		@Override
+		Object box(long value) {
+			return Long.valueOf(value);
+		}
+		@Override
+		long unbox(Object value) {
+			return (Long) value;
+		}
+	};
+
+	/** Stored as the bits of the float, so NaNs survive a round trip. */
+	static final FieldCodec FLOAT = new FieldCodec(true) {
+		@Override
+		long readPrimitive(DataInput dis) throws IOException {
+			return dis.readInt();
+		}
+		@Override
+		void writePrimitive(long value, DataOutputStream dos) throws IOException {
+			dos.writeInt((int) value);
+		}
+		@Override
+		Object box(long value) {
+			return Float.valueOf(Float.intBitsToFloat((int) value));
+		}
+		@Override
+		long unbox(Object value) {
+			return Float.floatToRawIntBits((Float) value);
+		}
+	};
+
+	/** Stored as the bits of the double, so NaNs survive a round trip. */
+	static final FieldCodec DOUBLE = new FieldCodec(true) {
+		@Override
+		long readPrimitive(DataInput dis) throws IOException {
+			return dis.readLong();
+		}
+		@Override
+		void writePrimitive(long value, DataOutputStream dos) throws IOException {
+			dos.writeLong(value);
+		}
+		@Override
+		Object box(long value) {
+			return Double.valueOf(Double.longBitsToDouble(value));
+		}
+		@Override
+		long unbox(Object value) {
+			return Double.doubleToRawLongBits((Double) value);
+		}
+	};
+
+	/** Fields which write themselves and have a constructor or factory to read them. */
+	private static abstract class WritableCodec extends FieldCodec {
+		WritableCodec() {
+			super(false);
+		}
+		@Override
+		void write(Object value, DataOutputStream dos) throws IOException {
+			((WritableToDataOutputStream) value).writeToDataOutputStream(dos);
+		}
+	}
+
+	static final FieldCodec BUFFER = new WritableCodec() {
+		@Override
+		Object read(DataInput dis) throws IOException {
+			return new Buffer(dis);
+		}
+	};
+
+	static final FieldCodec SHORT_BUFFER = new WritableCodec() {
+		@Override
+		Object read(DataInput dis) throws IOException {
+			return new ShortBuffer(dis);
+		}
+	};
+
+	static final FieldCodec BIT_ARRAY = new WritableCodec() {
+		@Override
+		Object read(DataInput dis) throws IOException {
+			return new BitArray(dis, Serializer.MAX_BITARRAY_SIZE);
+		}
+	};
+
+	/** Key.read() rather than e.g. NodeCHK's own method, because write() writes the type. */
+	static final FieldCodec KEY = new WritableCodec() {
+		@Override
+		Object read(DataInput dis) throws IOException {
+			return Key.read(dis);
+		}
+	};
+
+	/** Anything else: strings, arrays, peers etc. These are rare enough that it's not worth
+	 * duplicating Serializer's code for them. */
+	private static class SerializerCodec extends FieldCodec {
+		private final Class<?> type;
+		SerializerCodec(Class<?> type) {
+			super(false);
+			this.type = type;
+		}
+		@Override
+		Object read(DataInput dis) throws IOException {
+			return Serializer.readFromDataInputStream(type, dis);
+		}
+		@Override
+		void write(Object value, DataOutputStream dos) throws IOException {
+			Serializer.writeToDataOutputStream(value, dos);
+		}
+	}
+
+	private static class ListCodec extends SerializerCodec {
+		private final Class<?> elementType;
+		ListCodec(Class<?> elementType) {
+			super(LinkedList.class);
+			this.elementType = elementType;
+		}
+		@Override
+		Object read(DataInput dis) throws IOException {
+			return Serializer.readListFromDataInputStream(elementType, dis);
+		}
+	}
+
+	/**
+	 * @param type The declared type of the field.
+	 * @param listElementType The element type if the field is a LinkedList.
+	 */
+	static FieldCodec forType(Class<?> type, Class<?> listElementType) {
+		if(type == Boolean.class) return BOOLEAN;
+		if(type == Byte.class) return BYTE;
+		if(type == Short.class) return SHORT;
+		if(type == Integer.class) return INT;
+		if(type == Long.class) return LONG;
+		if(type == Float.class) return FLOAT;
+		if(type == Double.class) return DOUBLE;
+		if(type == Buffer.class) return BUFFER;
+		if(type == ShortBuffer.class) return SHORT_BUFFER;
+		if(type == BitArray.class) return BIT_ARRAY;
+		if(type == Key.class || type == NodeCHK.class || type == NodeSSK.class) return KEY;
+		if(type == LinkedList.class) return new ListCodec(listElementType);
+		return new SerializerCodec(type);
+	}
+
+}
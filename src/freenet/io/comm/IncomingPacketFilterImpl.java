@@ -6,6 +6,7 @@ package freenet.io.comm;
 import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.crypt.EntropySource;
+import freenet.node.BasePeerNode;
 import freenet.node.FNPPacketMangler;
 import freenet.node.Node;
 import freenet.node.NodeCrypto;
@@ -53,6 +54,19 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 		long failed = failedDecodePackets.get();
 		return new long[] { decoded, decoded+failed };
 	}
+	
+	private static final AtomicLong taggedPackets = new AtomicLong();
+	private static final AtomicLong trialDecryptPackets = new AtomicLong();
+	private static final AtomicLong trialDecrypts = new AtomicLong();
+	
+	/**
+	 * @return The number of packets matched to a peer by their tag rather than their address,
+	 * the number of packets which had to be tried against every peer, and the number of peers
+	 * they were tried against in total.
+	 */
+	public static long[] getTrialDecrypts() {
+		return new long[] { taggedPackets.get(), trialDecryptPackets.get(), trialDecrypts.get() };
+	}
 
 	@Override
 	public DECODED process(byte[] buf, int offset, int length, Peer peer, long now) {
@@ -68,13 +82,24 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 		} else {
 			Logger.normal(this, "Got packet from unknown address");
 		}
+		// Maybe a data packet from a peer whose address has changed.
+		BasePeerNode tagged = crypto.getPacketTagIndex().get(buf, offset, length);
+		if(tagged != opn && tagged instanceof PeerNode) {
+			if(((PeerNode) tagged).handleReceivedPacket(buf, offset, length, now, peer)) {
+				taggedPackets.incrementAndGet();
+				if(logMINOR) successfullyDecodedPackets.incrementAndGet();
+				return DECODED.DECODED;
+			}
+		}
 		DECODED decoded = mangler.process(buf, offset, length, peer, opn, now);
 		if(decoded == DECODED.DECODED) {
 			if(logMINOR) successfullyDecodedPackets.incrementAndGet();
 		} else if(decoded == DECODED.NOT_DECODED) {
 			
+			trialDecryptPackets.incrementAndGet();
 			for(PeerNode pn : crypto.getPeerNodes()) {
-				if(pn == opn) continue;
+				if(pn == opn || pn == tagged) continue;
+				trialDecrypts.incrementAndGet();
 				if(pn.handleReceivedPacket(buf, offset, length, now, peer)) {
 					if(logMINOR) successfullyDecodedPackets.incrementAndGet();
 					return DECODED.DECODED;
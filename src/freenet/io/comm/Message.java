@@ -25,15 +25,12 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 
 import freenet.support.ByteBufferInputStream;
 import freenet.support.Fields;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
-import freenet.support.Serializer;
 import freenet.support.ShortBuffer;
 import freenet.support.Logger.LogLevel;
 
@@ -49,6 +46,9 @@ import freenet.support.Logger.LogLevel;
  * 
  * FIXME we should get rid of sub-messages.
  *
+ * Fields are stored by their position in the MessageType rather than by name, primitive
+ * fields unboxed, and each is read and written by the codec the MessageType chose for it.
+ *
  * @author ian
  */
 public class Message {
@@ -70,10 +70,17 @@ public class Message {
 	private final MessageType _spec;
 	private final WeakReference<? extends PeerContext> _sourceRef;
 	private final boolean _internal;
-	private final HashMap<String, Object> _payload = new HashMap<String, Object>(8);
+	/** Values of primitive fields, see FieldCodec. */
+	private final long[] _primitives;
+	/** Values of other fields. */
+	private final Object[] _objects;
+	/** Bit i is set if the field at index i is set. */
+	private long _set;
 	private List<Message> _subMessages;
 	public final long localInstantiationTime;
 	final int _receivedByteCount;
+	/** Set by MessageCore while the message is unclaimed, to keep unclaimed messages in order. */
+	long _unclaimedSeq;
 	short priority;
 	private boolean needsLoadRT;
 	private boolean needsLoadBulk;
@@ -107,14 +114,17 @@ public class Message {
 		}
 		Message m = new Message(mspec, peer, recvByteCount);
 		try {
-			for (String name : mspec.getOrderedFields()) {
-				Class<?> type = mspec.getFields().get(name);
-				if (type.equals(LinkedList.class)) { // Special handling for LinkedList to deal with element type
-					m.set(name, Serializer
-					      .readListFromDataInputStream(mspec.getLinkedListTypes().get(name), bb));
+			for (MessageType.Field field : mspec.getFieldArray()) {
+				if (field.codec.primitive) {
+					m._primitives[field.slot] = field.codec.readPrimitive(bb);
 				} else {
-					m.set(name, Serializer.readFromDataInputStream(type, bb));
+					Object value = field.codec.read(bb);
+					// E.g. a NodeSSK where we expect a NodeCHK.
+					if (!field.type.isInstance(value))
+						throw new IncorrectTypeException("Got " + value.getClass() + ", expected " + field.type);
+					m._objects[field.slot] = value;
 				}
+				m._set |= 1L << field.index;
 			}
 			if (mayHaveSubMessages) {
 				while (bb.remaining() > 2) { // sizeof(unsigned short) == 2
@@ -167,14 +177,21 @@ public class Message {
 		}
 		_receivedByteCount = recvByteCount;
 		priority = spec.getDefaultPriority();
+		_primitives = spec.getPrimitiveCount() == 0 ? NO_PRIMITIVES : new long[spec.getPrimitiveCount()];
+		_objects = spec.getObjectCount() == 0 ? NO_OBJECTS : new Object[spec.getObjectCount()];
 	}
 
+	private static final long[] NO_PRIMITIVES = new long[0];
+	private static final Object[] NO_OBJECTS = new Object[0];
+
 	/** Drops sub-messages, and makes it locally originated */
 	private Message(Message m) {
 		_spec = m._spec;
 		_sourceRef = null;
 		_internal = m._internal;
-		_payload.putAll(m._payload);
+		_primitives = m._primitives.length == 0 ? NO_PRIMITIVES : m._primitives.clone();
+		_objects = m._objects.length == 0 ? NO_OBJECTS : m._objects.clone();
+		_set = m._set;
 		_subMessages = null;
 		localInstantiationTime = System.currentTimeMillis();
 		_receivedByteCount = 0;
@@ -183,48 +200,79 @@ public class Message {
 		needsLoadBulk = m.needsLoadBulk;
 	}
 
+	/** @return The field, if it is set and is a primitive field of the given type, otherwise null.
+	 * The getters fall back to getObject() in that case, so they fail the same way they always have. */
+	private MessageType.Field getPrimitiveField(String key, FieldCodec codec) {
+		MessageType.Field field = _spec.getField(key);
+		if (field == null || field.codec != codec || !isSet(field)) return null;
+		return field;
+	}
+
 	public boolean getBoolean(String key) {
-		return (Boolean) _payload.get(key);
+		MessageType.Field field = getPrimitiveField(key, FieldCodec.BOOLEAN);
+		if (field == null) return (Boolean) getObject(key);
+		return _primitives[field.slot] != 0;
 	}
 
 	public byte getByte(String key) {
-		return (Byte) _payload.get(key);
+		MessageType.Field field = getPrimitiveField(key, FieldCodec.BYTE);
+		if (field == null) return (Byte) getObject(key);
+		return (byte) _primitives[field.slot];
 	}
 
 	public short getShort(String key) {
-		return (Short) _payload.get(key);
+		MessageType.Field field = getPrimitiveField(key, FieldCodec.SHORT);
+		if (field == null) return (Short) getObject(key);
+		return (short) _primitives[field.slot];
 	}
 
 	public int getInt(String key) {
-		return (Integer) _payload.get(key);
+		MessageType.Field field = getPrimitiveField(key, FieldCodec.INT);
+		if (field == null) return (Integer) getObject(key);
+		return (int) _primitives[field.slot];
 	}
 
 	public long getLong(String key) {
-		return (Long) _payload.get(key);
+		MessageType.Field field = getPrimitiveField(key, FieldCodec.LONG);
+		if (field == null) return (Long) getObject(key);
+		return _primitives[field.slot];
 	}
 
 	public double getDouble(String key) {
-		return (Double) _payload.get(key);
+		MessageType.Field field = getPrimitiveField(key, FieldCodec.DOUBLE);
+		if (field == null) return (Double) getObject(key);
+		return Double.longBitsToDouble(_primitives[field.slot]);
 	}
 
 	public float getFloat(String key) {
-		return (Float) _payload.get(key);
+		MessageType.Field field = getPrimitiveField(key, FieldCodec.FLOAT);
+		if (field == null) return (Float) getObject(key);
+		return Float.intBitsToFloat((int) _primitives[field.slot]);
 	}
 
 	public double[] getDoubleArray(String key) {
-		return ((double[]) _payload.get(key));
+		return ((double[]) getObject(key));
 	}
 
 	public float[] getFloatArray(String key) {
-		return (float[]) _payload.get(key);
+		return (float[]) getObject(key);
 	}
 
 	public String getString(String key) {
-		return (String)_payload.get(key);
+		return (String)getObject(key);
 	}
 
+	/** @return The value of the field, boxed if it is primitive, or null if it is not set. */
 	public Object getObject(String key) {
-		return _payload.get(key);
+		MessageType.Field field = _spec.getField(key);
+		if (field == null || !isSet(field)) return null;
+		if (field.codec.primitive)
+			return field.codec.box(_primitives[field.slot]);
+		return _objects[field.slot];
+	}
+
+	private boolean isSet(MessageType.Field field) {
+		return (_set & (1L << field.index)) != 0;
 	}
 	
 	public byte[] getShortBufferBytes(String key) {
@@ -232,32 +280,49 @@ public class Message {
 		return buffer.getData();
 	}
 
+	/** Set a primitive field without boxing, if it has the given type.
+	 * @return False if it doesn't; the caller falls back to set(String, Object) to fail the usual way. */
+	private boolean setPrimitive(String key, FieldCodec codec, long value) {
+		MessageType.Field field = _spec.getField(key);
+		if (field == null || field.codec != codec) return false;
+		_primitives[field.slot] = value;
+		_set |= 1L << field.index;
+		return true;
+	}
+
 	public void set(String key, boolean b) {
-		set(key, Boolean.valueOf(b));
+		if (!setPrimitive(key, FieldCodec.BOOLEAN, b ? 1 : 0))
+			set(key, Boolean.valueOf(b));
 	}
 
 	public void set(String key, byte b) {
-		set(key, Byte.valueOf(b));
+		if (!setPrimitive(key, FieldCodec.BYTE, b))
+			set(key, Byte.valueOf(b));
 	}
 
 	public void set(String key, short s) {
-		set(key, Short.valueOf(s));
+		if (!setPrimitive(key, FieldCodec.SHORT, s))
+			set(key, Short.valueOf(s));
 	}
 
 	public void set(String key, int i) {
-		set(key, Integer.valueOf(i));
+		if (!setPrimitive(key, FieldCodec.INT, i))
+			set(key, Integer.valueOf(i));
 	}
 
 	public void set(String key, long l) {
-		set(key, Long.valueOf(l));
+		if (!setPrimitive(key, FieldCodec.LONG, l))
+			set(key, Long.valueOf(l));
 	}
 
 	public void set(String key, double d) {
-		set(key, Double.valueOf(d));
+		if (!setPrimitive(key, FieldCodec.DOUBLE, Double.doubleToRawLongBits(d)))
+			set(key, Double.valueOf(d));
 	}
 
 	public void set(String key, float f) {
-		set(key, Float.valueOf(f));
+		if (!setPrimitive(key, FieldCodec.FLOAT, Float.floatToRawIntBits(f)))
+			set(key, Float.valueOf(f));
 	}
 
 	public void set(String key, Object value) {
@@ -267,7 +332,12 @@ public class Message {
 			}
 			throw new IncorrectTypeException("Got " + value.getClass() + ", expected " + _spec.typeOf(key));
 		}
-		_payload.put(key, value);
+		MessageType.Field field = _spec.getField(key);
+		if (field.codec.primitive)
+			_primitives[field.slot] = field.codec.unbox(value);
+		else
+			_objects[field.slot] = value;
+		_set |= 1L << field.index;
 	}
 
 	public byte[] encodeToPacket() {
@@ -277,12 +347,17 @@ public class Message {
 	private byte[] encodeToPacket(boolean includeSubMessages, boolean isSubMessage) {
 
 		if (logDEBUG) Logger.debug(this, "My spec code: "+_spec.getName().hashCode()+" for "+_spec.getName());
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(_spec.getEncodedSizeHint());
 		DataOutputStream dos = new DataOutputStream(baos);
 		try {
 			dos.writeInt(_spec.getName().hashCode());
-			for (String name : _spec.getOrderedFields()) {
-				Serializer.writeToDataOutputStream(_payload.get(name), dos);
+			for (MessageType.Field field : _spec.getFieldArray()) {
+				if (!isSet(field))
+					throw new FieldNotSetException(field.name+" not set in "+_spec.getName());
+				if (field.codec.primitive)
+					field.codec.writePrimitive(_primitives[field.slot], dos);
+				else
+					field.codec.write(_objects[field.slot], dos);
 			}
 			dos.flush();
 		} catch (IOException e) {
@@ -304,6 +379,7 @@ public class Message {
 		}
 
 		byte[] buf = baos.toByteArray();
+		_spec.reportEncodedSize(buf.length);
 		if (logDEBUG) Logger.debug(this, "Length: "+buf.length+", hash: "+Fields.hashCode(buf));
 		return buf;
 	}
@@ -315,7 +391,7 @@ public class Message {
 		ret.append(_spec.getName()).append(" {");
 		for (String name : _spec.getFields().keySet()) {
 			ret.append(comma);
-			ret.append(name).append('=').append(_payload.get(name));
+			ret.append(name).append('=').append(getObject(name));
 			comma = ", ";
 		}
 		ret.append('}');
@@ -335,11 +411,12 @@ public class Message {
 	}
 
 	public boolean isSet(String fieldName) {
-		return _payload.containsKey(fieldName);
+		MessageType.Field field = _spec.getField(fieldName);
+		return field != null && isSet(field);
 	}
 
 	public Object getFromPayload(String fieldName) throws FieldNotSetException {
-		Object r =  _payload.get(fieldName);
+		Object r =  getObject(fieldName);
 		if (r == null) {
 			throw new FieldNotSetException(fieldName+" not set");
 		}
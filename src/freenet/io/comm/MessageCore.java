@@ -23,11 +23,11 @@ import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.ListIterator;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.TreeSet;
 
 import freenet.io.comm.MessageFilter.MATCHED;
 import freenet.node.PeerNode;
@@ -37,6 +37,8 @@ import freenet.support.Logger;
 import freenet.support.Ticker;
 import freenet.support.TimeUtil;
 import freenet.support.Logger.LogLevel;
+import freenet.support.math.RunningAverage;
+import freenet.support.math.SimpleRunningAverage;
 
 public class MessageCore {
 
@@ -56,9 +58,23 @@ public class MessageCore {
 
 	private Dispatcher _dispatcher;
 	private Executor _executor;
-	/** _filters serves as lock for both */
-	private final LinkedList<MessageFilter> _filters = new LinkedList<MessageFilter>();
-	private final LinkedList<Message> _unclaimed = new LinkedList<Message>();
+	/** All waiting filters, in the order they are matched: by timeout, and then by when they
+	 * were added. _filters serves as lock for all the filter and unclaimed message structures. */
+	private final TreeSet<MessageFilter> _filters = new TreeSet<MessageFilter>(FILTER_ORDER);
+	/** Filters by the type, source and UID of the messages they can match. A filter which is
+	 * or()ed with others is indexed under the key of each of them. */
+	private final HashMap<FilterKey, TreeSet<MessageFilter>> _filtersByKey = new HashMap<FilterKey, TreeSet<MessageFilter>>();
+	/** Filters which can't be indexed because they, or a filter or()ed with them, have no type. */
+	private final TreeSet<MessageFilter> _unindexedFilters = new TreeSet<MessageFilter>(FILTER_ORDER);
+	private long _filterSeq;
+	/** Filters found to have timed out while matching. Only used with the lock held. */
+	private final ArrayList<MessageFilter> _timedOutScratch = new ArrayList<MessageFilter>();
+	private final LinkedHashSet<Message> _unclaimed = new LinkedHashSet<Message>();
+	/** Unclaimed messages by type and UID, and by type alone. Sources aren't indexed. */
+	private final HashMap<FilterKey, LinkedHashSet<Message>> _unclaimedByKey = new HashMap<FilterKey, LinkedHashSet<Message>>();
+	private long _unclaimedSeq;
+	/** Time taken to match incoming messages against the filters, in nanoseconds. */
+	private final RunningAverage _matchTime = new SimpleRunningAverage(1000, 0);
 	private static final int MAX_UNMATCHED_FIFO_SIZE = 50000;
 	private static final long MAX_UNCLAIMED_FIFO_ITEM_LIFETIME = MINUTES.toMillis(10);  // maybe this should be per message type??
 	// FIXME do we need MIN_FILTER_REMOVE_TIME? Can we make this more efficient?
@@ -75,6 +91,247 @@ public class MessageCore {
 		_executor = executor;
 	}
 
+	private static final Comparator<MessageFilter> FILTER_ORDER = new Comparator<MessageFilter>() {
+
+		@Override
+		public int compare(MessageFilter a, MessageFilter b) {
+			if(a._addedTimeout != b._addedTimeout)
+				return a._addedTimeout < b._addedTimeout ? -1 : 1;
+			if(a._addedSeq != b._addedSeq)
+				return a._addedSeq < b._addedSeq ? -1 : 1;
+			return 0;
+		}
+
+	};
+
+	/** The type, source and UID of a message, any of which but the type may be unspecified. */
+	static final class FilterKey {
+		private final MessageType type;
+		private final PeerContext source;
+		private final boolean hasUID;
+		private final long uid;
+		private final int hashCode;
+
+		FilterKey(MessageType type, PeerContext source, boolean hasUID, long uid) {
+			this.type = type;
+			this.source = source;
+			this.hasUID = hasUID;
+			this.uid = hasUID ? uid : 0;
+			this.hashCode = type.hashCode() ^ (source == null ? 0 : source.hashCode()) ^ (int) (this.uid ^ (this.uid >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(this == o) return true;
+			if(!(o instanceof FilterKey)) return false;
+			FilterKey k = (FilterKey) o;
+			if(hasUID != k.hasUID || uid != k.uid) return false;
+			if(!type.equals(k.type)) return false;
+			// Same as MessageFilter.match().
+			if(source == null) return k.source == null;
+			return source.equals(k.source);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+
+	/**
+	 * @return The keys to index the filter under, one for it and one for each filter or()ed with it,
+	 * or null if any of them has no type.
+	 */
+	private static FilterKey[] getIndexKeys(MessageFilter filter) {
+		int count = 0;
+		for(MessageFilter f = filter; f != null; f = f.getOr()) {
+			if(f.getType() == null) return null;
+			count++;
+		}
+		FilterKey[] keys = new FilterKey[count];
+		int i = 0;
+		for(MessageFilter f = filter; f != null; f = f.getOr()) {
+			Long uid = f.getUID();
+			keys[i++] = new FilterKey(f.getType(), f.getSource(), uid != null, uid == null ? 0 : uid);
+		}
+		return keys;
+	}
+
+	/** Add a filter to _filters and the index. Caller must hold _filters. */
+	private void addFilter(MessageFilter filter) {
+		// In case it is somehow still there from the last time it was used.
+		removeFilter(filter);
+		filter._addedTimeout = filter.getTimeout();
+		filter._addedSeq = _filterSeq++;
+		filter._indexKeys = getIndexKeys(filter);
+		_filters.add(filter);
+		if(filter._indexKeys == null) {
+			_unindexedFilters.add(filter);
+		} else {
+			for(FilterKey key : filter._indexKeys) {
+				TreeSet<MessageFilter> filters = _filtersByKey.get(key);
+				if(filters == null) {
+					filters = new TreeSet<MessageFilter>(FILTER_ORDER);
+					_filtersByKey.put(key, filters);
+				}
+				filters.add(filter);
+			}
+		}
+	}
+
+	/** Remove a filter from _filters and the index. Caller must hold _filters.
+	 * @return False if it wasn't there. */
+	private boolean removeFilter(MessageFilter filter) {
+		if(!_filters.remove(filter)) return false;
+		if(filter._indexKeys == null) {
+			_unindexedFilters.remove(filter);
+		} else {
+			for(FilterKey key : filter._indexKeys) {
+				TreeSet<MessageFilter> filters = _filtersByKey.get(key);
+				if(filters == null) continue;
+				filters.remove(filter);
+				if(filters.isEmpty())
+					_filtersByKey.remove(key);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Find the first filter, in the order of _filters, which matches the message. Filters found to
+	 * have timed out are removed and added to timedOut. Caller must hold _filters.
+	 * @return The matching filter, which has been removed, or null.
+	 */
+	private MessageFilter matchFilters(Message m, long now, ArrayList<MessageFilter> timedOut) {
+		MessageType type = m.getSpec();
+		PeerContext source = m.getSource();
+		boolean hasUID = m.isSet(DMT.UID) && type.typeOf(DMT.UID) == Long.class;
+		long uid = hasUID ? m.getLong(DMT.UID) : 0;
+		MessageFilter match = null;
+		if(hasUID) {
+			if(source != null)
+				match = matchFilters(_filtersByKey.get(new FilterKey(type, source, true, uid)), m, now, match);
+			match = matchFilters(_filtersByKey.get(new FilterKey(type, null, true, uid)), m, now, match);
+		}
+		if(source != null)
+			match = matchFilters(_filtersByKey.get(new FilterKey(type, source, false, 0)), m, now, match);
+		match = matchFilters(_filtersByKey.get(new FilterKey(type, null, false, 0)), m, now, match);
+		match = matchFilters(_unindexedFilters, m, now, match);
+		// Filters or()ed together may have been found more than once.
+		for(MessageFilter f : _timedOutScratch) {
+			if(f != match && removeFilter(f))
+				timedOut.add(f);
+		}
+		_timedOutScratch.clear();
+		if(match != null)
+			removeFilter(match);
+		return match;
+	}
+
+	private MessageFilter matchFilters(TreeSet<MessageFilter> filters, Message m, long now, MessageFilter match) {
+		if(filters == null) return match;
+		for(MessageFilter f : filters) {
+			// Only the first match counts.
+			if(match != null && FILTER_ORDER.compare(f, match) > 0) break;
+			if (f.matched()) {
+				Logger.error(this, "removed pre-matched message filter found in _filters: "+f);
+				_timedOutScratch.add(f);
+				continue;
+			}
+			MATCHED status = f.match(m, now);
+			if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
+				_timedOutScratch.add(f);
+			} else if(status == MATCHED.MATCHED) {
+				return f;
+			} else if(logDEBUG) Logger.minor(this, "Did not match "+f);
+		}
+		return match;
+	}
+
+	/** Add a message to _unclaimed and its index. Caller must hold _filters. */
+	private void addUnclaimed(Message m) {
+		m._unclaimedSeq = _unclaimedSeq++;
+		_unclaimed.add(m);
+		MessageType type = m.getSpec();
+		if(m.isSet(DMT.UID) && type.typeOf(DMT.UID) == Long.class)
+			addUnclaimed(new FilterKey(type, null, true, m.getLong(DMT.UID)), m);
+		addUnclaimed(new FilterKey(type, null, false, 0), m);
+	}
+
+	private void addUnclaimed(FilterKey key, Message m) {
+		LinkedHashSet<Message> messages = _unclaimedByKey.get(key);
+		if(messages == null) {
+			messages = new LinkedHashSet<Message>();
+			_unclaimedByKey.put(key, messages);
+		}
+		messages.add(m);
+	}
+
+	/** Remove a message from _unclaimed and its index. Caller must hold _filters. */
+	private void removeUnclaimed(Message m) {
+		_unclaimed.remove(m);
+		MessageType type = m.getSpec();
+		if(m.isSet(DMT.UID) && type.typeOf(DMT.UID) == Long.class)
+			removeUnclaimed(new FilterKey(type, null, true, m.getLong(DMT.UID)), m);
+		removeUnclaimed(new FilterKey(type, null, false, 0), m);
+	}
+
+	private void removeUnclaimed(FilterKey key, Message m) {
+		LinkedHashSet<Message> messages = _unclaimedByKey.get(key);
+		if(messages == null) return;
+		messages.remove(m);
+		if(messages.isEmpty())
+			_unclaimedByKey.remove(key);
+	}
+
+	/**
+	 * Find the oldest unclaimed message which matches the filter and remove it. Also drop any
+	 * unclaimed messages older than MAX_UNCLAIMED_FIFO_ITEM_LIFETIME. Caller must hold _filters.
+	 * @return The matching message, or null.
+	 */
+	private Message claimUnclaimed(MessageFilter filter, long now) {
+		Message ret = null;
+		FilterKey[] keys = getIndexKeys(filter);
+		if(keys == null) {
+			ret = claimUnclaimed(_unclaimed, filter, now, null);
+		} else {
+			for(FilterKey key : keys) {
+				// Sources aren't indexed, the filter checks them.
+				FilterKey unclaimedKey = new FilterKey(key.type, null, key.hasUID, key.uid);
+				ret = claimUnclaimed(_unclaimedByKey.get(unclaimedKey), filter, now, ret);
+			}
+		}
+		if(ret != null) {
+			removeUnclaimed(ret);
+			if(logMINOR) Logger.minor(this, "Matching from _unclaimed");
+		}
+		long messageDropTime = now - MAX_UNCLAIMED_FIFO_ITEM_LIFETIME;
+		while(!_unclaimed.isEmpty()) {
+			Message m = _unclaimed.iterator().next();
+			if(m.localInstantiationTime >= messageDropTime) break;
+			removeUnclaimed(m);
+			long messageLifeTime = now - m.localInstantiationTime;
+			if ((m.getSource()) instanceof PeerNode) {
+				Logger.normal(this, "Dropping unclaimed from "+m.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
+			} else {
+				Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
+			}
+		}
+		return ret;
+	}
+
+	private Message claimUnclaimed(LinkedHashSet<Message> messages, MessageFilter filter, long now, Message ret) {
+		if(messages == null) return ret;
+		for(Message m : messages) {
+			// Only the oldest match counts.
+			if(ret != null && m._unclaimedSeq > ret._unclaimedSeq) break;
+			// These messages have already arrived, so we can match against them even if we are timed out.
+			if(filter.match(m, true, now) == MATCHED.MATCHED)
+				return m;
+		}
+		return ret;
+	}
+
 	/**
 	 * Decode a packet from data and a peer.
 	 * Can be called by IncomingPacketFilter's.
@@ -107,7 +364,7 @@ public class MessageCore {
 				} catch (Throwable t) {
 					Logger.error(this, "Failed to remove timed out filters: "+t, t);
 				} finally {
-					ticker.queueTimedJob(this, Math.max(MIN_FILTER_REMOVE_TIME, System.currentTimeMillis() - nextRun));
+					ticker.queueTimedJob(this, Math.max(MIN_FILTER_REMOVE_TIME, nextRun - System.currentTimeMillis()));
 				}
 			}
     		
@@ -123,21 +380,17 @@ public class MessageCore {
 		// Avoids exhaustive and unsuccessful search in waitFor() removal of a timed out filter.
 		if(logMINOR)
 			Logger.minor(this, "Removing timed out filters");
-		HashSet<MessageFilter> timedOutFilters = null;
+		ArrayList<MessageFilter> timedOutFilters = null;
 		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
+			for (MessageFilter f : _filters) {
 				if (f.timedOut(tStart)) {
 					if(logMINOR)
 						Logger.minor(this, "Removing "+f);
-					i.remove();
 					if(timedOutFilters == null) 
-						timedOutFilters = new HashSet<MessageFilter>();
-					if(!timedOutFilters.add(f))
-						Logger.error(this, "Filter "+f+" is in filter list twice!");
+						timedOutFilters = new ArrayList<MessageFilter>();
+					timedOutFilters.add(f);
 					if(logMINOR) {
-						for (ListIterator<Message> it = _unclaimed.listIterator(); it.hasNext();) {
-							Message m = it.next();
+						for (Message m : _unclaimed) {
 							MATCHED status = f.match(m, true, tStart);
 							if (status == MATCHED.MATCHED) {
 								// Don't match it, we timed out; two-level timeouts etc may want it for the next filter.
@@ -156,6 +409,10 @@ public class MessageCore {
 				
 				// See also the end of waitFor() for another weird case.
 			}
+			if(timedOutFilters != null) {
+				for(MessageFilter f : timedOutFilters)
+					removeFilter(f);
+			}
 		}
 		
 		if(timedOutFilters != null) {
@@ -194,40 +451,23 @@ public class MessageCore {
 			Logger.minor(this, "" + (System.currentTimeMillis() % 60000) + ' ' + from + " <- "
 					+ m.getSource() + " : " + m);
 		}
-		MessageFilter match = null;
-		ArrayList<MessageFilter> timedOut = null;
+		MessageFilter match;
+		ArrayList<MessageFilter> timedOut = new ArrayList<MessageFilter>(0);
+		long matchStart = System.nanoTime();
 		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
-				if (f.matched()) {
-					Logger.error(this, "removed pre-matched message filter found in _filters: "+f);
-					i.remove();
-					continue;
-				}
-				MATCHED status = f.match(m, tStart);
-				if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
-					if(timedOut == null)
-						timedOut = new ArrayList<MessageFilter>();
-					timedOut.add(f);
-					i.remove();
-					continue;
-				} else if(status == MATCHED.MATCHED) {
-					matched = true;
-					i.remove();
-					match = f;
-					// We must setMessage() inside the lock to ensure that waitFor() sees it even if it times out.
-					f.setMessage(m);
-					if(logMINOR) Logger.minor(this, "Matched (1): "+f);
-					break; // Only one match permitted per message
-				} else if(logDEBUG) Logger.minor(this, "Did not match "+f);
+			match = matchFilters(m, tStart, timedOut);
+			if(match != null) {
+				matched = true;
+				// We must setMessage() inside the lock to ensure that waitFor() sees it even if it times out.
+				match.setMessage(m);
+				if(logMINOR) Logger.minor(this, "Matched (1): "+match);
 			}
 		}
-		if(timedOut != null) {
-			for(MessageFilter f : timedOut) {
-				if(logMINOR) Logger.minor(this, "Timed out "+f);
-				f.setMessage(null);
-				f.onTimedOut(_executor);
-			}
+		_matchTime.report(System.nanoTime() - matchStart);
+		for(MessageFilter f : timedOut) {
+			if(logMINOR) Logger.minor(this, "Timed out "+f);
+			f.setMessage(null);
+			f.onTimedOut(_executor);
 		}
 		if(match != null) {
 			match.onMatched(_executor);
@@ -241,7 +481,7 @@ public class MessageCore {
 		        Logger.error(this, "Dispatcher threw "+t, t);
 		    }
 		}
-		if(timedOut != null) timedOut.clear();
+		timedOut.clear();
 		// Keep the last few _unclaimed messages around in case the intended receiver isn't receiving yet
 		if (!matched) {
 			if(logMINOR) Logger.minor(this, "Unclaimed: "+m);
@@ -268,27 +508,16 @@ public class MessageCore {
 		     */
 			synchronized (_filters) {
 				if(logMINOR) Logger.minor(this, "Rechecking filters and adding message");
-				for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-					MessageFilter f = i.next();
-					MATCHED status = f.match(m, tStart);
-					if(status == MATCHED.MATCHED) {
-						matched = true;
-						match = f;
-						i.remove();
-						if(logMINOR) Logger.minor(this, "Matched (2): "+f);
-						match.setMessage(m);
-						break; // Only one match permitted per message
-					} else if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
-						if(timedOut == null)
-							timedOut = new ArrayList<MessageFilter>();
-						timedOut.add(f);
-						i.remove();
-						continue;
-					}
+				match = matchFilters(m, tStart, timedOut);
+				if(match != null) {
+					matched = true;
+					if(logMINOR) Logger.minor(this, "Matched (2): "+match);
+					match.setMessage(m);
 				}
 				if(!matched) {
 				    while (_unclaimed.size() > MAX_UNMATCHED_FIFO_SIZE) {
-				        Message removed = _unclaimed.removeFirst();
+				        Message removed = _unclaimed.iterator().next();
+				        removeUnclaimed(removed);
 				        long messageLifeTime = System.currentTimeMillis() - removed.localInstantiationTime;
 				        if ((removed.getSource()) instanceof PeerNode) {
 				            Logger.normal(this, "Dropping unclaimed from "+removed.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (quantity)"+": "+removed);
@@ -296,18 +525,16 @@ public class MessageCore {
 				            Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (quantity)"+": "+removed);
 				        }
 				    }
-				    _unclaimed.addLast(m);
+				    addUnclaimed(m);
 				    if(logMINOR) Logger.minor(this, "Done");
 				}
 			}
 			if(match != null) {
 				match.onMatched(_executor);
 			}
-			if(timedOut != null) {
-				for(MessageFilter f : timedOut) {
-					f.setMessage(null);
-					f.onTimedOut(_executor);
-				}
+			for(MessageFilter f : timedOut) {
+				f.setMessage(null);
+				f.onTimedOut(_executor);
 			}
 		}
 		long tEnd = System.currentTimeMillis();
@@ -324,16 +551,17 @@ public class MessageCore {
 	public void onDisconnect(PeerContext ctx) {
 		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
 	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
+			for (MessageFilter f : _filters) {
 			    if(f.matchesDroppedConnection(ctx)) {
 			    	if(droppedFilters == null)
 			    		droppedFilters = new ArrayList<MessageFilter>();
 			    	droppedFilters.add(f);
-			    	i.remove();
 			    }
 			}
+			if(droppedFilters != null) {
+				for(MessageFilter f : droppedFilters)
+					removeFilter(f);
+			}
 	    }
 	    if(droppedFilters != null) {
 	    	for(MessageFilter mf : droppedFilters) {
@@ -346,16 +574,17 @@ public class MessageCore {
 	public void onRestart(PeerContext ctx) {
 		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
 	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
+			for (MessageFilter f : _filters) {
 			    if(f.matchesRestartedConnection(ctx)) {
 			    	if(droppedFilters == null)
 			    		droppedFilters = new ArrayList<MessageFilter>();
 			    	droppedFilters.add(f);
-			    	i.remove();
 			    }
 			}
+			if(droppedFilters != null) {
+				for(MessageFilter f : droppedFilters)
+					removeFilter(f);
+			}
 	    }
 	    if(droppedFilters != null) {
 	    	for(MessageFilter mf : droppedFilters) {
@@ -378,10 +607,8 @@ public class MessageCore {
 			//or... filter.onDroppedConnection(filter.droppedConnection());
 		}
 		// Check to see whether the filter matches any of the recently _unclaimed messages
-		// Drop any _unclaimed messages that the filter doesn't match that are also older than MAX_UNCLAIMED_FIFO_ITEM_LIFETIME
+		// Drop any _unclaimed messages that are older than MAX_UNCLAIMED_FIFO_ITEM_LIFETIME
 		long now = System.currentTimeMillis();
-		long messageDropTime = now - MAX_UNCLAIMED_FIFO_ITEM_LIFETIME;
-		long messageLifeTime = 0;
 		long timeout = filter.getTimeout();
 		synchronized (_filters) {
 			//Once in the list, it is up to the callback system to trigger the disconnection, however, we may
@@ -392,43 +619,13 @@ public class MessageCore {
 				//but we are holding the _filters lock!
 			}
 			if(logMINOR) Logger.minor(this, "Checking _unclaimed");
-			for (ListIterator<Message> i = _unclaimed.listIterator(); i.hasNext();) {
-				Message m = i.next();
-				// These messages have already arrived, so we can match against them even if we are timed out.
-				MATCHED status = filter.match(m, true, now);
-				if (status == MATCHED.MATCHED) {
-					i.remove();
-					ret = m;
-					if(logMINOR) Logger.minor(this, "Matching from _unclaimed");
-					break;
-				} else if (m.localInstantiationTime < messageDropTime) {
-					i.remove();
-					messageLifeTime = now - m.localInstantiationTime;
-					if ((m.getSource()) instanceof PeerNode) {
-						Logger.normal(this, "Dropping unclaimed from "+m.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					} else {
-						Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					}
-				}
-			}
+			ret = claimUnclaimed(filter, now);
 			if (ret == null && timeout >= System.currentTimeMillis()) {
 				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end");
-						return;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > timeout) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout());
-						return;
-					}
-				}
+				// Filters are matched in order of timeout
+				addFilter(filter);
+				if(logMINOR) Logger.minor(this, "Added filter - my timeout="+filter.getTimeout());
+				return;
 			}
 		}
 		if(ret != null) {
@@ -470,48 +667,16 @@ public class MessageCore {
 			throw new DisconnectedException();
 		}
 		// Check to see whether the filter matches any of the recently _unclaimed messages
-		// Drop any _unclaimed messages that the filter doesn't match that are also older than MAX_UNCLAIMED_FIFO_ITEM_LIFETIME
+		// Drop any _unclaimed messages that are older than MAX_UNCLAIMED_FIFO_ITEM_LIFETIME
 		long now = System.currentTimeMillis();
-		long messageDropTime = now - MAX_UNCLAIMED_FIFO_ITEM_LIFETIME;
-		long messageLifeTime = 0;
 		synchronized (_filters) {
 			if(logMINOR) Logger.minor(this, "Checking _unclaimed");
-			for (ListIterator<Message> i = _unclaimed.listIterator(); i.hasNext();) {
-				Message m = i.next();
-				MATCHED status = filter.match(m, true, startTime);
-				if(status == MATCHED.MATCHED) {
-					i.remove();
-					ret = m;
-					if(logMINOR) Logger.minor(this, "Matching from _unclaimed");
-					break;
-				} else if (m.localInstantiationTime < messageDropTime) {
-					i.remove();
-					messageLifeTime = now - m.localInstantiationTime;
-					if ((m.getSource()) instanceof PeerNode) {
-						Logger.normal(this, "Dropping unclaimed from "+m.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					} else {
-						Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					}
-				}
-			}
+			ret = claimUnclaimed(filter, startTime);
 			if (ret == null) {
 				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end "+filter);
-						break;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > filter.getTimeout()) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout()+" filter "+filter);
-						break;
-					}
-				}
+				// Filters are matched in order of timeout
+				addFilter(filter);
+				if(logMINOR) Logger.minor(this, "Added filter - my timeout="+filter.getTimeout()+" filter "+filter);
 			}
 		}
 		long tEnd = System.currentTimeMillis();
@@ -564,10 +729,7 @@ public class MessageCore {
 			filter.clearMatched();
 			// We must remove it from _filters before we return, or when it is re-added,
 			// it will be in the list twice, and potentially many more times than twice!
-			// Fortunately, it will be close to the beginning of the filters list, having
-			// just timed out. That is assuming it hasn't already been removed; in that
-			// case, this will be slower.
-			_filters.remove(filter);
+			removeFilter(filter);
 			// A filter being waitFor()'ed cannot have any callbacks, so we don't need to call onMatched().
 		}
 		
@@ -612,8 +774,7 @@ public class MessageCore {
 	public Map<String, Integer> getUnclaimedFIFOMessageCounts() {
 		Map<String, Integer> messageCounts = new HashMap<String, Integer>();
 		synchronized(_filters) {
-			for (ListIterator<Message> i = _unclaimed.listIterator(); i.hasNext();) {
-				Message m = i.next();
+			for (Message m : _unclaimed) {
 				String messageName = m.getSpec().getName();
 				Integer messageCount = messageCounts.get(messageName);
 				if (messageCount == null) {
@@ -627,6 +788,33 @@ public class MessageCore {
 		return messageCounts;
 	}
 
+	/**
+	 * @return The number of filters waiting for messages.
+	 */
+	public int getFilterCount() {
+		synchronized (_filters) {
+			return _filters.size();
+		}
+	}
+
+	/**
+	 * @return The number of waiting filters which can't be indexed, and so are checked against
+	 * every message.
+	 */
+	public int getUnindexedFilterCount() {
+		synchronized (_filters) {
+			return _unindexedFilters.size();
+		}
+	}
+
+	/**
+	 * @return The average time taken to match an incoming message against the waiting filters,
+	 * in nanoseconds.
+	 */
+	public double getAverageFilterMatchTime() {
+		return _matchTime.currentValue();
+	}
+
 	public Executor getExecutor() {
 		return _executor;
 	}
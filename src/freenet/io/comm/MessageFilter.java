@@ -60,6 +60,12 @@ public final class MessageFilter {
     private AsyncMessageFilterCallback _callback;
     private ByteCounter _ctr;
     private boolean _setTimeout = false;
+    /** The timeout when MessageCore added the filter. Filters are matched in order of this and
+     * _addedSeq; _timeout itself may change while the filter is waiting. */
+    long _addedTimeout;
+    long _addedSeq;
+    /** The keys MessageCore indexed the filter under, or null if it isn't indexed. */
+    MessageCore.FilterKey[] _indexKeys;
 
     private MessageFilter() {
         _timeoutFromWait = true;
@@ -173,6 +179,8 @@ public final class MessageFilter {
 	/**
 	 * Modifies the filter so that it returns true if either it or the filter in the argument returns true.
 	 * Multiple combinations must be nested: such as filter1.or(filter2.or(filter3))).
+	 * Must not be called while the filter is waiting, because MessageCore indexes the filters
+	 * or()ed together when the filter is added.
 	 * @return reference to this, the modified filter.
 	 */
 	public MessageFilter or(MessageFilter or) {
@@ -248,6 +256,22 @@ public final class MessageFilter {
 		return _matched;
 	}
 
+	MessageType getType() {
+		return _type;
+	}
+
+	MessageFilter getOr() {
+		return _or;
+	}
+
+	/** @return The UID this filter requires, or null if it doesn't require one. */
+	Long getUID() {
+		synchronized (_fields) {
+			Object uid = _fields.get(DMT.UID);
+			return uid instanceof Long ? (Long) uid : null;
+		}
+	}
+
 	/**
 	 * Which connection dropped or was restarted?
 	 */
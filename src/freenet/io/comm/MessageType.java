@@ -19,6 +19,7 @@
 
 package freenet.io.comm;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
@@ -37,6 +38,14 @@ public class MessageType {
 	private final LinkedList<String> _orderedFields = new LinkedList<String>();
 	private final HashMap<String, Class<?>> _fields = new HashMap<String, Class<?>>();
 	private final HashMap<String, Class<?>> _linkedListTypes = new HashMap<String, Class<?>>();
+	private final HashMap<String, Field> _fieldsByName = new HashMap<String, Field>();
+	private final ArrayList<Field> _fieldList = new ArrayList<Field>();
+	/** The same as _fieldList, in the order they are written. */
+	private Field[] _fieldArray = new Field[0];
+	private int _primitiveCount;
+	private int _objectCount;
+	/** The size of the largest message of this type we have encoded, see Message.encodeToPacket(). */
+	private volatile int _encodedSizeHint = 32;
 	private final boolean internalOnly;
 	private final short priority;
 	private final boolean isLossyPacketMessage;
@@ -68,8 +77,66 @@ public class MessageType {
 	}
 
 	public void addField(String name, Class<?> type) {
+		if(_fieldsByName.containsKey(name))
+			throw new IllegalArgumentException("Field \"" + name + "\" already exists in " + _name);
+		if(_fieldList.size() == MAX_FIELDS)
+			throw new IllegalStateException("Too many fields in " + _name);
 		_fields.put(name, type);
 		_orderedFields.addLast(name);
+		FieldCodec codec = FieldCodec.forType(type, _linkedListTypes.get(name));
+		Field field = new Field(name, type, codec, _fieldList.size(), codec.primitive ? _primitiveCount++ : _objectCount++);
+		_fieldsByName.put(name, field);
+		_fieldList.add(field);
+		_fieldArray = _fieldList.toArray(new Field[_fieldList.size()]);
+	}
+
+	/** Message keeps track of which fields are set in a long. */
+	static final int MAX_FIELDS = 64;
+
+	/** A field, and where a Message keeps its value. */
+	static final class Field {
+		final String name;
+		final Class<?> type;
+		final FieldCodec codec;
+		/** The position of the field in the message. */
+		final int index;
+		/** The index of the field's value in Message's primitive or object array. */
+		final int slot;
+
+		Field(String name, Class<?> type, FieldCodec codec, int index, int slot) {
+			this.name = name;
+			this.type = type;
+			this.codec = codec;
+			this.index = index;
+			this.slot = slot;
+		}
+	}
+
+	/** @return The field, or null if there is no such field. */
+	Field getField(String name) {
+		return _fieldsByName.get(name);
+	}
+
+	/** @return The fields in the order they are written. Do not modify. */
+	Field[] getFieldArray() {
+		return _fieldArray;
+	}
+
+	int getPrimitiveCount() {
+		return _primitiveCount;
+	}
+
+	int getObjectCount() {
+		return _objectCount;
+	}
+
+	int getEncodedSizeHint() {
+		return _encodedSizeHint;
+	}
+
+	void reportEncodedSize(int size) {
+		if(size > _encodedSizeHint)
+			_encodedSizeHint = size;
 	}
 	
 	public void addRoutedToNodeMessageFields() {
@@ -8,6 +8,7 @@ import java.lang.ref.WeakReference;
 import freenet.io.xfer.PacketThrottle;
 import freenet.node.MessageItem;
 import freenet.node.OutgoingPacketMangler;
+import freenet.support.Buffer;
 
 /**
  * @author amphibian
@@ -35,6 +36,15 @@ public interface PeerContext {
 	 * @return */
 	public MessageItem sendAsync(Message msg, AsyncMessageCallback cb, ByteCounter ctr) throws NotConnectedException;
 
+	/** Send a packetTransmit for a block transfer without creating a Message. Only the header
+	 * is specific to this peer; the packet data is shared with the caller's buffer, so it must
+	 * not change until the message has been sent.
+	 * @param header The header, from DMT.encodePacketTransmitHeader().
+	 * @param data The packet data, typically a view of a PartiallyReceivedBlock.
+	 * @param uid The transfer's UID, used for fairness between transfers.
+	 * @return */
+	public MessageItem sendPacketTransmit(byte[] header, Buffer data, long uid, boolean realTime, AsyncMessageCallback cb, ByteCounter ctr) throws NotConnectedException;
+
 	/** Get the current boot ID. This is a random number that changes every time the node starts up. */
 	public long getBootID();
 
@@ -1,13 +1,18 @@
 package freenet.io.comm;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
 import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.io.AddressTracker;
 import freenet.io.comm.Peer.LocalAddressException;
@@ -18,9 +23,35 @@ import freenet.support.OOMHandler;
 import freenet.support.io.NativeThread;
 import freenet.support.transport.ip.IPUtil;
 
+/**
+ * UDP transport. Packets are received by RECEIVER_THREADS threads into a pool of direct
+ * buffers, and handed over to a single decoder thread which feeds them to the low level filter.
+ * Decoding stays on one thread because decrypting a packet updates the peer's sequence number
+ * state without locking, and a packet from an unknown address is tried against every peer.
+ * Receiving is decoupled from decoding though, so the kernel buffer is drained while a packet is
+ * being decrypted, and the time spent in each stage is recorded.
+ *
+ * Outgoing packets are copied into pooled direct buffers and queued. A dedicated sender thread
+ * writes everything queued each time it wakes up, so the caller (usually PacketSender, which is
+ * also the node's ticker) never blocks on the socket. If the queue is full the packet is dropped,
+ * as the kernel would; the packet format resends lost data.
+ *
+ * If the channel is closed unexpectedly while we are still active, e.g. because a thread using it
+ * was interrupted, it is reopened on the same port.
+ */
 public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, PortForwardSensitiveSocketHandler {
 
-	private final DatagramSocket _sock;
+	/** Number of threads receiving packets. Receiving from a channel is serialized by the JVM, so
+	 * more than two only adds threads waiting for the same lock. */
+	static final int RECEIVER_THREADS = 2;
+	/** Number of packets which can be waiting to be decoded. If they are all in use, the
+	 * receivers wait, and the kernel buffers or drops further packets. */
+	static final int RECEIVE_BUFFERS = 256;
+	/** Number of packets which can be waiting to be sent. */
+	static final int SEND_BUFFERS = 256;
+
+	private volatile DatagramChannel _channel;
+	private final InetSocketAddress bindAddress;
 	private final InetAddress _bindTo;
 	private final AddressTracker tracker;
 	private IncomingPacketFilter lowLevelFilter;
@@ -34,18 +65,54 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	private final Node node;
         private static volatile boolean logMINOR;
 	private static volatile boolean logDEBUG;
-	private boolean _isDone;
+	/** Number of receiver, decoder and sender threads which are still running. */
+	private int runningThreads;
 	private volatile boolean _active = true;
 	private final int listenPort;
 	private final String title;
 	private boolean _started;
 	private long startTime;
 	private final IOStatisticCollector collector;
+	/** Packets which have been received and not decoded yet. */
+	private final ArrayBlockingQueue<ReceivedPacket> receivedPackets = new ArrayBlockingQueue<ReceivedPacket>(RECEIVE_BUFFERS);
+	/** Buffers which are not in use. */
+	private final ArrayBlockingQueue<ReceivedPacket> freePackets = new ArrayBlockingQueue<ReceivedPacket>(RECEIVE_BUFFERS);
+	/** Packets which are waiting to be sent. */
+	private final ArrayBlockingQueue<OutgoingPacket> outgoingPackets = new ArrayBlockingQueue<OutgoingPacket>(SEND_BUFFERS);
+	/** Send buffers which are not in use. */
+	private final ArrayBlockingQueue<OutgoingPacket> freeOutgoingPackets = new ArrayBlockingQueue<OutgoingPacket>(SEND_BUFFERS);
+
+	// Statistics
+	private final AtomicLong packetsReceived = new AtomicLong();
+	private final AtomicLong queueFull = new AtomicLong();
+	private final AtomicLong queueTime = new AtomicLong();
+	private final AtomicLong maxQueueTime = new AtomicLong();
+	private final AtomicLong decodeTime = new AtomicLong();
+	private final AtomicLong maxDecodeTime = new AtomicLong();
+	private final AtomicLong reopened = new AtomicLong();
+	private final AtomicLong packetsSent = new AtomicLong();
+	private final AtomicLong sendBatches = new AtomicLong();
+	private final AtomicLong sendQueueFull = new AtomicLong();
 
         static {
             Logger.registerClass(UdpSocketHandler.class);
         }
 
+	/** A receive buffer, and what we know about the packet in it. */
+	private static final class ReceivedPacket {
+		final ByteBuffer buf = ByteBuffer.allocateDirect(MAX_RECEIVE_SIZE);
+		InetSocketAddress from;
+		long receivedTime;
+		long receivedNanos;
+	}
+
+	/** A send buffer, and where it is going. */
+	private static final class OutgoingPacket {
+		final ByteBuffer buf = ByteBuffer.allocateDirect(MAX_RECEIVE_SIZE);
+		InetSocketAddress to;
+		Peer destination;
+	}
+
 	public UdpSocketHandler(int listenPort, InetAddress bindto, Node node, long startupTime, String title, IOStatisticCollector collector) throws SocketException {
 		this.node = node;
 		this.collector = collector;
@@ -57,24 +124,71 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 //			_sock = (DatagramSocket) Updater.getResource();
 //		} else {
 		this.listenPort = listenPort;
-		_sock = new DatagramSocket(listenPort, bindto);
-		int sz = _sock.getReceiveBufferSize();
-		if(sz < 65536) {
-			_sock.setReceiveBufferSize(65536);
-		}
-		try {
-			// Exit reasonably quickly
-			_sock.setReuseAddress(true);
-		} catch (SocketException e) {
-			throw new RuntimeException(e);
-		}
+		bindAddress = new InetSocketAddress(bindto, listenPort);
+		_channel = openChannel();
 //		}
+		for(int i=0;i<RECEIVE_BUFFERS;i++)
+			freePackets.add(new ReceivedPacket());
+		for(int i=0;i<SEND_BUFFERS;i++)
+			freeOutgoingPackets.add(new OutgoingPacket());
 		// Only used for debugging, no need to seed from Yarrow
 		dropRandom = node.fastWeakRandom;
 		tracker = AddressTracker.create(node.lastBootID, node.runDir(), listenPort);
 		tracker.startSend(startupTime);
 	}
 
+	private DatagramChannel openChannel() throws SocketException {
+		DatagramChannel channel = null;
+		try {
+			channel = DatagramChannel.open();
+			// Exit reasonably quickly
+			channel.socket().setReuseAddress(true);
+			channel.socket().bind(bindAddress);
+			int sz = channel.socket().getReceiveBufferSize();
+			if(sz < 65536) {
+				channel.socket().setReceiveBufferSize(65536);
+			}
+			return channel;
+		} catch (SocketException e) {
+			closeQuietly(channel);
+			throw e;
+		} catch (IOException e) {
+			closeQuietly(channel);
+			SocketException se = new SocketException("Unable to open channel: "+e);
+			se.initCause(e);
+			throw se;
+		}
+	}
+
+	private static void closeQuietly(DatagramChannel channel) {
+		if(channel == null) return;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Ignore
+		}
+	}
+
+	/**
+	 * Replace the channel if it has been closed even though we are still active.
+	 * @param closed The channel which was found to be closed.
+	 * @return The channel to use, or null if we are shutting down.
+	 */
+	private synchronized DatagramChannel reopen(DatagramChannel closed) {
+		if(!_active) return null;
+		if(_channel != closed) return _channel;
+		closeQuietly(closed);
+		try {
+			_channel = openChannel();
+			reopened.incrementAndGet();
+			Logger.error(this, "Reopened UDP channel on "+bindAddress+" after it was closed unexpectedly");
+			return _channel;
+		} catch (SocketException e) {
+			Logger.error(this, "Unable to reopen UDP channel on "+bindAddress+": "+e, e);
+			return null;
+		}
+	}
+
 	/** Must be called, or we will NPE in run() */
 	@Override
 	public void setLowLevelFilter(IncomingPacketFilter f) {
@@ -89,9 +203,9 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		return title;
 	}
 
+	/** Decode the packets which have been received. */
 	@Override
-	public void run() { // Listen for packets
-		tracker.startReceive(System.currentTimeMillis());
+	public void run() {
 		try {
 			runLoop();
 		} catch (Throwable t) {
@@ -122,21 +236,28 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 				t.printStackTrace();
 			} catch (Throwable tt) {};
 		} finally {
-			System.err.println("run() exiting for UdpSocketHandler on port "+_sock.getLocalPort());
-			Logger.error(this, "run() exiting for UdpSocketHandler on port "+_sock.getLocalPort());
-			synchronized (this) {
-				_isDone = true;
-				notifyAll();
-			}
+			System.err.println("run() exiting for UdpSocketHandler on port "+listenPort);
+			Logger.error(this, "run() exiting for UdpSocketHandler on port "+listenPort);
+			threadExited();
+		}
+	}
+
+	private void threadExited() {
+		synchronized (this) {
+			runningThreads--;
+			notifyAll();
 		}
 	}
 
 	private void runLoop() {
 		byte[] buf = new byte[MAX_RECEIVE_SIZE];
-		DatagramPacket packet = new DatagramPacket(buf, buf.length);
 		while (_active) {
 			try {
-				realRun(packet);
+				ReceivedPacket packet = receivedPackets.poll(1, TimeUnit.SECONDS);
+				if(packet == null) continue;
+				decode(packet, buf);
+			} catch (InterruptedException e) {
+				// Check _active.
 			} catch (OutOfMemoryError e) {
 				OOMHandler.handleOOM(e);
 				System.err.println("Will retry above failed operation...");
@@ -148,58 +269,123 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		}
 	}
 
-	private void realRun(DatagramPacket packet) {
-		// Single receiving thread
-		boolean gotPacket = getPacket(packet);
-		long now = System.currentTimeMillis();
-		if (gotPacket) {
-			long startTime = System.currentTimeMillis();
-			Peer peer = new Peer(packet.getAddress(), packet.getPort());
-			tracker.receivedPacketFrom(peer);
-			long endTime = System.currentTimeMillis();
-			if(endTime - startTime > 50) {
-				if(endTime-startTime > 3000) {
-					Logger.error(this, "packet creation took "+(endTime-startTime)+"ms");
-				} else {
-					if(logMINOR) Logger.minor(this, "packet creation took "+(endTime-startTime)+"ms");
+	/** Copy the packet out of its direct buffer, recycle the buffer, and process the packet. */
+	private void decode(ReceivedPacket packet, byte[] buf) {
+		long startTime = System.nanoTime();
+		recordTime(queueTime, maxQueueTime, startTime - packet.receivedNanos);
+		ByteBuffer data = packet.buf;
+		data.flip();
+		int length = data.remaining();
+		data.get(buf, 0, length);
+		InetSocketAddress from = packet.from;
+		long now = packet.receivedTime;
+		data.clear();
+		packet.from = null;
+		freePackets.offer(packet);
+
+		Peer peer = new Peer(from.getAddress(), from.getPort());
+		tracker.receivedPacketFrom(peer);
+		try {
+			if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
+			lowLevelFilter.process(buf, 0, length, peer, now);
+			if(logMINOR) Logger.minor(this,
+					"Successfully handled packet length " + length);
+		} catch (Throwable t) {
+			Logger.error(this, "Caught " + t + " from "
+					+ lowLevelFilter, t);
+		}
+		long time = System.nanoTime() - startTime;
+		recordTime(decodeTime, maxDecodeTime, time);
+		if(time > TimeUnit.SECONDS.toNanos(3))
+			Logger.error(this, "processing packet took "+TimeUnit.NANOSECONDS.toMillis(time)+"ms");
+	}
+
+	private static void recordTime(AtomicLong total, AtomicLong max, long time) {
+		total.addAndGet(time);
+		long m;
+		while(time > (m = max.get()) && !max.compareAndSet(m, time));
+	}
+
+	/** Receives packets and queues them for the decoder. */
+	private class Receiver implements PrioRunnable {
+
+		@Override
+		public void run() {
+			try {
+				while(_active) {
+					try {
+						receive();
+					} catch (InterruptedException e) {
+						// Check _active.
+					} catch (OutOfMemoryError e) {
+						OOMHandler.handleOOM(e);
+						System.err.println("Will retry above failed operation...");
+					} catch (Throwable t) {
+						System.err.println("Caught "+t);
+						t.printStackTrace(System.err);
+						Logger.error(this, "Caught " + t, t);
+					}
 				}
+			} finally {
+				threadExited();
+			}
+		}
+
+		private void receive() throws InterruptedException {
+			ReceivedPacket packet = freePackets.poll();
+			if(packet == null) {
+				// The decoder is behind.
+				queueFull.incrementAndGet();
+				packet = freePackets.poll(1, TimeUnit.SECONDS);
+				if(packet == null) return;
 			}
-			byte[] data = packet.getData();
-			int offset = packet.getOffset();
-			int length = packet.getLength();
 			try {
-				if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
-				startTime = System.currentTimeMillis();
-				lowLevelFilter.process(data, offset, length, peer, now);
-				endTime = System.currentTimeMillis();
-				if(endTime - startTime > 50) {
-					if(endTime-startTime > 3000) {
-						Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
-					} else {
-						if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
-					}
+				if(!getPacket(packet)) return;
+				packet.receivedNanos = System.nanoTime();
+				packet.receivedTime = System.currentTimeMillis();
+				packetsReceived.incrementAndGet();
+				// Never blocks, there are only as many packets as the queue can hold.
+				receivedPackets.put(packet);
+				packet = null;
+			} finally {
+				if(packet != null) {
+					packet.buf.clear();
+					freePackets.offer(packet);
 				}
-				if(logMINOR) Logger.minor(this,
-						"Successfully handled packet length " + length);
-			} catch (Throwable t) {
-				Logger.error(this, "Caught " + t + " from "
-						+ lowLevelFilter, t);
 			}
-		} else {
-			if(logDEBUG) Logger.debug(this, "No packet received");
 		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.MAX_PRIORITY;
+		}
+
 	}
 
 	private static final int MAX_RECEIVE_SIZE = 1500;
 
-	private boolean getPacket(DatagramPacket packet) {
+	private boolean getPacket(ReceivedPacket packet) {
+		DatagramChannel channel = _channel;
 		try {
-			_sock.receive(packet);
-			InetAddress address = packet.getAddress();
+			InetSocketAddress from = (InetSocketAddress) channel.receive(packet.buf);
+			if(from == null) return false;
+			packet.from = from;
+			InetAddress address = from.getAddress();
 			boolean isLocal = !IPUtil.isValidAddress(address, false);
-			collector.addInfo(address, packet.getPort(),
-					getHeadersLength(address) + packet.getLength(), 0, isLocal);
-		} catch (SocketTimeoutException e1) {
+			collector.addInfo(address, from.getPort(),
+					getHeadersLength(address) + packet.buf.position(), 0, isLocal);
+		} catch (ClosedChannelException e) {
+			if (!_active) { // closed, just return silently
+				return false;
+			}
+			if(reopen(channel) == null && _active) {
+				// Don't spin.
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException e1) {
+					// Ignore
+				}
+			}
 			return false;
 		} catch (IOException e2) {
 			if (!_active) { // closed, just return silently
@@ -237,30 +423,103 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		}
 		if (_dropProbability > 0) {
 			if (dropRandom.nextInt() % _dropProbability == 0) {
-				Logger.normal(this, "DROPPED: " + _sock.getLocalPort() + " -> " + destination.getPort());
+				Logger.normal(this, "DROPPED: " + getPortNumber() + " -> " + destination.getPort());
 				return;
 			}
 		}
 		InetAddress address = destination.getAddress(false, allowLocalAddresses);
 		assert(address != null);
 		int port = destination.getPort();
-		DatagramPacket packet = new DatagramPacket(blockToSend, blockToSend.length);
-		packet.setAddress(address);
-		packet.setPort(port);
+		if(blockToSend.length > MAX_RECEIVE_SIZE) {
+			Logger.error(this, "Not sending packet of "+blockToSend.length+" bytes to "+destination+": too big", new Exception("error"));
+			return;
+		}
+		OutgoingPacket packet = freeOutgoingPackets.poll();
+		if(packet == null) {
+			// The sender is behind, drop the packet as the kernel would.
+			sendQueueFull.incrementAndGet();
+			if(logMINOR) Logger.minor(this, "Send queue full, dropping packet to "+destination);
+			return;
+		}
+		packet.buf.put(blockToSend);
+		packet.buf.flip();
+		packet.to = new InetSocketAddress(address, port);
+		packet.destination = destination;
+		// Never blocks, there are only as many packets as the queue can hold.
+		outgoingPackets.offer(packet);
+	}
 
-		try {
-			_sock.send(packet);
-			tracker.sentPacketTo(destination);
-			boolean isLocal = (!IPUtil.isValidAddress(address, false)) && (IPUtil.isValidAddress(address, true));
-			collector.addInfo(address, port, 0, getHeadersLength(address) + blockToSend.length, isLocal);
-			if(logMINOR) Logger.minor(this, "Sent packet length "+blockToSend.length+" to "+address+':'+port);
-		} catch (IOException e) {
-			if(packet.getAddress() instanceof Inet6Address) {
-				Logger.normal(this, "Error while sending packet to IPv6 address: "+destination+": "+e);
-			} else {
-				Logger.error(this, "Error while sending packet to " + destination+": "+e, e);
+	/** Writes queued packets to the channel. */
+	private class Sender implements PrioRunnable {
+
+		@Override
+		public void run() {
+			ArrayList<OutgoingPacket> batch = new ArrayList<OutgoingPacket>(SEND_BUFFERS);
+			try {
+				while(_active) {
+					try {
+						OutgoingPacket packet = outgoingPackets.poll(1, TimeUnit.SECONDS);
+						if(packet == null) continue;
+						batch.add(packet);
+						outgoingPackets.drainTo(batch);
+						sendBatches.incrementAndGet();
+						for(OutgoingPacket p : batch)
+							send(p);
+					} catch (InterruptedException e) {
+						// Check _active.
+					} catch (OutOfMemoryError e) {
+						OOMHandler.handleOOM(e);
+						System.err.println("Will retry above failed operation...");
+					} catch (Throwable t) {
+						System.err.println("Caught "+t);
+						t.printStackTrace(System.err);
+						Logger.error(this, "Caught " + t, t);
+					} finally {
+						for(OutgoingPacket p : batch) {
+							p.buf.clear();
+							p.to = null;
+							p.destination = null;
+							freeOutgoingPackets.offer(p);
+						}
+						batch.clear();
+					}
+				}
+			} finally {
+				threadExited();
+			}
+		}
+
+		private void send(OutgoingPacket packet) {
+			InetAddress address = packet.to.getAddress();
+			int length = packet.buf.remaining();
+			DatagramChannel channel = _channel;
+			try {
+				try {
+					channel.send(packet.buf, packet.to);
+				} catch (ClosedChannelException e) {
+					channel = reopen(channel);
+					if(channel == null) return;
+					channel.send(packet.buf, packet.to);
+				}
+				tracker.sentPacketTo(packet.destination);
+				boolean isLocal = (!IPUtil.isValidAddress(address, false)) && (IPUtil.isValidAddress(address, true));
+				collector.addInfo(address, packet.to.getPort(), 0, getHeadersLength(address) + length, isLocal);
+				packetsSent.incrementAndGet();
+				if(logMINOR) Logger.minor(this, "Sent packet length "+length+" to "+packet.to);
+			} catch (IOException e) {
+				if(address instanceof Inet6Address) {
+					Logger.normal(this, "Error while sending packet to IPv6 address: "+packet.destination+": "+e);
+				} else {
+					Logger.error(this, "Error while sending packet to " + packet.destination+": "+e, e);
+				}
 			}
 		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.MAX_PRIORITY;
+		}
+
 	}
 
 	// CompuServe use 1400 MTU; AOL claim 1450; DFN@home use 1448.
@@ -315,18 +574,23 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		synchronized(this) {
 			_started = true;
 			startTime = System.currentTimeMillis();
+			runningThreads = RECEIVER_THREADS + 2;
 		}
-		node.executor.execute(this, "UdpSocketHandler for port "+listenPort);
+		tracker.startReceive(System.currentTimeMillis());
+		node.executor.execute(this, "UdpSocketHandler decoder for port "+listenPort);
+		for(int i=0;i<RECEIVER_THREADS;i++)
+			node.executor.execute(new Receiver(), "UdpSocketHandler receiver "+i+" for port "+listenPort);
+		node.executor.execute(new Sender(), "UdpSocketHandler sender for port "+listenPort);
 	}
 
 	public void close() {
 		Logger.normal(this, "Closing.", new Exception("error"));
 		synchronized (this) {
 			_active = false;
-			_sock.close();
+			closeQuietly(_channel);
 
 			if(!_started) return;
-			while (!_isDone) {
+			while (runningThreads > 0) {
 				try {
 					wait(2000);
 				} catch (InterruptedException e) {
@@ -346,12 +610,12 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	}
 
 	public int getPortNumber() {
-		return _sock.getLocalPort();
+		return _channel.socket().getLocalPort();
 	}
 
 	@Override
 	public String toString() {
-		return _sock.getLocalAddress() + ":" + _sock.getLocalPort();
+		return _channel.socket().getLocalAddress() + ":" + getPortNumber();
 	}
 
 	@Override
@@ -391,4 +655,63 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		return startTime;
 	}
 
+	/** @return The number of packets received. */
+	public long packetsReceived() {
+		return packetsReceived.get();
+	}
+
+	/** @return The number of times a receiver had to wait because all the receive buffers were
+	 * waiting to be decoded. */
+	public long queueFull() {
+		return queueFull.get();
+	}
+
+	/** @return The average time a packet waited to be decoded, in milliseconds. */
+	public double averageQueueTime() {
+		return average(queueTime);
+	}
+
+	/** @return The longest time a packet waited to be decoded, in milliseconds. */
+	public double maxQueueTime() {
+		return maxQueueTime.get() / (1000.0 * 1000.0);
+	}
+
+	/** @return The average time taken to decode and dispatch a packet, in milliseconds. */
+	public double averageDecodeTime() {
+		return average(decodeTime);
+	}
+
+	/** @return The longest time taken to decode and dispatch a packet, in milliseconds. */
+	public double maxDecodeTime() {
+		return maxDecodeTime.get() / (1000.0 * 1000.0);
+	}
+
+	/** @return The number of times the channel was reopened after being closed unexpectedly. */
+	public long reopened() {
+		return reopened.get();
+	}
+
+	/** @return The number of packets sent. */
+	public long packetsSent() {
+		return packetsSent.get();
+	}
+
+	/** @return The average number of packets written each time the sender woke up. */
+	public double averageSendBatch() {
+		long batches = sendBatches.get();
+		if(batches == 0) return 0;
+		return packetsSent.get() / (double) batches;
+	}
+
+	/** @return The number of packets dropped because the send queue was full. */
+	public long sendQueueFull() {
+		return sendQueueFull.get();
+	}
+
+	private double average(AtomicLong total) {
+		long count = packetsReceived.get();
+		if(count == 0) return 0;
+		return total.get() / (count * 1000.0 * 1000.0);
+	}
+
 }
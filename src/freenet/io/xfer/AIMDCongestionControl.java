@@ -0,0 +1,60 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.xfer;
+
+/**
+ * The original PacketThrottle algorithm. The window grows by a third per ack in slow start, and
+ * then by a constant divided by the window per ack, and shrinks by 1/8th per lost packet.
+ */
+public class AIMDCongestionControl implements CongestionControl {
+
+	protected static final double PACKET_DROP_DECREASE_MULTIPLE = 0.875;
+	protected static final double PACKET_TRANSMIT_INCREMENT = (4 * (1 - (PACKET_DROP_DECREASE_MULTIPLE * PACKET_DROP_DECREASE_MULTIPLE))) / 3;
+	protected static final double SLOW_START_DIVISOR = 3.0;
+
+	/** The size of the window, in packets.
+	 * Window size must not drop below 1.0. Partly this is because we need to be able to send one packet, so it is a logical lower bound.
+	 * But mostly it is because of the non-slow-start division by _windowSize! */
+	private float _windowSize = 2;
+	private boolean slowStart = true;
+
+	@Override
+	public Algorithm getAlgorithm() {
+		return Algorithm.AIMD;
+	}
+
+	@Override
+	public void onLoss(long now) {
+		_windowSize *= PACKET_DROP_DECREASE_MULTIPLE;
+		if(_windowSize < 1.0F) _windowSize = 1.0F;
+		slowStart = false;
+	}
+
+	@Override
+	public void onAck(long now, long rtt, double maxWindowSize) {
+		if(slowStart) {
+			_windowSize += _windowSize / SLOW_START_DIVISOR;
+			// Avoid craziness if there is lag in detecting packet loss.
+			if(_windowSize > maxWindowSize) slowStart = false;
+			if(_windowSize < 1.0F) _windowSize = 1.0F;
+		} else {
+			_windowSize += (PACKET_TRANSMIT_INCREMENT / _windowSize);
+		}
+		// Ensure that we the window size does not grow dramatically larger than the largest window
+		// that has actually been in flight at one time.
+		if(_windowSize > maxWindowSize)
+			_windowSize = (float) maxWindowSize;
+	}
+
+	@Override
+	public double getWindowSize() {
+		return Math.max(1.0, _windowSize);
+	}
+
+	@Override
+	public String toString() {
+		return "AIMD: w: "+_windowSize+(slowStart ? " (slow start)" : "");
+	}
+
+}
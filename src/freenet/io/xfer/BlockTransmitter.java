@@ -124,7 +124,7 @@ public class BlockTransmitter {
 			try {
 				while(true) {
 					int packetNo = -1;
-					BitArray copy;
+					byte[] header;
 					synchronized(_senderThread) {
 						if(_failed || _receivedSendCompletion || _completed) return;
 						if(_unsent.size() == 0) {
@@ -138,10 +138,11 @@ public class BlockTransmitter {
 								continue;
 							}
 						}
-						copy = _sentPackets.copy();
+						// The header includes the packets sent so far, so encode it now rather than copying them.
+						header = DMT.encodePacketTransmitHeader(_uid, packetNo, _sentPackets, _prb._packetSize);
 						_sentPackets.setBit(packetNo, true);
 					}
-					if(!innerRun(packetNo, copy)) return;
+					if(!innerRun(packetNo, header)) return;
 				}
 			} finally {
 				synchronized(this) {
@@ -160,13 +161,14 @@ public class BlockTransmitter {
 		}
 
 		/** @return True . */
-		private boolean innerRun(int packetNo, BitArray copied) {
+		private boolean innerRun(int packetNo, byte[] header) {
 			try {
-				Message msg = DMT.createPacketTransmit(_uid, packetNo, copied, _prb.getPacket(packetNo), realTime);
 				MyAsyncMessageCallback cb = new MyAsyncMessageCallback();
 				MessageItem item;
 				// Everything is throttled.
-				item = _destination.sendAsync(msg, cb, _ctr);
+				// The packet data is a view of the PRB's buffer, shared with any other transmitters
+				// relaying the same block. It is only copied when it is packed into a packet.
+				item = _destination.sendPacketTransmit(header, _prb.getPacket(packetNo), _uid, realTime, cb, _ctr);
 				synchronized(itemsPending) {
 					itemsPending.add(item);
 				}
@@ -0,0 +1,70 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.xfer;
+
+/**
+ * Decides how many packets a PacketThrottle lets us have in flight to a peer. Only called by 
+ * the PacketThrottle, with its lock held, so implementations don't need to be thread-safe.
+ */
+public interface CongestionControl {
+
+	/** The algorithms which can be selected in the config. */
+	public enum Algorithm {
+		/** Additive increase, multiplicative decrease, with a slow start. What we have always used. */
+		AIMD,
+		/** CUBIC window growth, as used by Linux TCP. Recovers faster on high bandwidth-delay links. */
+		CUBIC,
+		/** Sizes the window from the measured bandwidth and minimum round-trip time, like BBR. */
+		DELAY;
+
+		public CongestionControl create() {
+			switch(this) {
+			case CUBIC:
+				return new CubicCongestionControl();
+			case DELAY:
+				return new DelayBasedCongestionControl();
+			default:
+				return new AIMDCongestionControl();
+			}
+		}
+
+		/** @return The name used in the config. */
+		public String configName() {
+			return name().toLowerCase();
+		}
+
+		/** @return The algorithm with the given config name, or null. */
+		public static Algorithm fromConfigName(String name) {
+			for(Algorithm a : values())
+				if(a.configName().equals(name)) return a;
+			return null;
+		}
+
+		public static String[] configNames() {
+			Algorithm[] values = values();
+			String[] names = new String[values.length];
+			for(int i = 0; i < values.length; i++)
+				names[i] = values[i].configName();
+			return names;
+		}
+	}
+
+	public Algorithm getAlgorithm();
+
+	/**
+	 * A packet has been acknowledged.
+	 * @param now The current time.
+	 * @param rtt The round-trip time measured for this packet.
+	 * @param maxWindowSize The window must not grow beyond this. See 
+	 * PacketThrottle.notifyOfPacketAcknowledged().
+	 */
+	public void onAck(long now, long rtt, double maxWindowSize);
+
+	/** A packet has been lost. */
+	public void onLoss(long now);
+
+	/** @return The window size in packets. Must be at least 1. */
+	public double getWindowSize();
+
+}
@@ -0,0 +1,97 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.xfer;
+
+/**
+ * CUBIC congestion control, after RFC 8312. After a loss the window grows along a cubic curve,
+ * quickly at first, flattening out near the window at which we last lost packets, and then 
+ * probing beyond it. Unlike AIMD the growth depends on the time since the loss rather than on
+ * the number of acks, so it recovers quickly on links with a large bandwidth-delay product.
+ */
+public class CubicCongestionControl implements CongestionControl {
+
+	/** Scaling constant for the cubic function, in packets per second cubed. */
+	static final double C = 0.4;
+	/** Multiplicative decrease on loss. */
+	static final double BETA = 0.7;
+	private static final double MIN_WINDOW = 1.0;
+
+	private double window = 2;
+	private double slowStartThreshold = Double.MAX_VALUE;
+	/** The window just before the last reduction. */
+	private double maxWindow;
+	/** The start of the current growth epoch, or -1 if we haven't started one since the last loss. */
+	private long epochStart = -1;
+	/** Time, in seconds after epochStart, at which the curve reaches maxWindow. */
+	private double k;
+	/** Estimate of the window standard TCP would have, so we are never slower than it. */
+	private double tcpWindow;
+	private long lastReduction = -1;
+	private long lastRtt = 500;
+	private long minRtt = Long.MAX_VALUE;
+
+	@Override
+	public Algorithm getAlgorithm() {
+		return Algorithm.CUBIC;
+	}
+
+	@Override
+	public void onLoss(long now) {
+		// Lost packets are usually reported in bursts. Only reduce the window once per round trip.
+		if(lastReduction > 0 && now - lastReduction < lastRtt) return;
+		lastReduction = now;
+		// Fast convergence: if we lost packets before reaching the last maximum, another flow
+		// probably needs the bandwidth, so release some more.
+		if(window < maxWindow)
+			maxWindow = window * (1 + BETA) / 2;
+		else
+			maxWindow = window;
+		window = Math.max(MIN_WINDOW, window * BETA);
+		slowStartThreshold = window;
+		epochStart = -1;
+	}
+
+	@Override
+	public void onAck(long now, long rtt, double maxWindowSize) {
+		lastRtt = Math.max(rtt, 1);
+		if(rtt > 0 && rtt < minRtt) minRtt = rtt;
+		if(window < slowStartThreshold) {
+			window += 1;
+			if(window >= maxWindowSize) slowStartThreshold = window;
+		} else {
+			if(epochStart < 0) {
+				epochStart = now;
+				if(window < maxWindow) {
+					k = Math.cbrt((maxWindow - window) / C);
+				} else {
+					k = 0;
+					maxWindow = window;
+				}
+				tcpWindow = window;
+			}
+			double t = (now - epochStart + (minRtt == Long.MAX_VALUE ? lastRtt : minRtt)) / 1000.0;
+			double target = C * (t - k) * (t - k) * (t - k) + maxWindow;
+			if(target > window)
+				window += (target - window) / window;
+			else
+				window += 0.01 / window;
+			// TCP friendly region: grow at least as fast as AIMD with the same decrease would.
+			tcpWindow += (3 * (1 - BETA) / (1 + BETA)) / window;
+			if(tcpWindow > window) window = tcpWindow;
+		}
+		if(window > maxWindowSize) window = maxWindowSize;
+		if(window < MIN_WINDOW) window = MIN_WINDOW;
+	}
+
+	@Override
+	public double getWindowSize() {
+		return window;
+	}
+
+	@Override
+	public String toString() {
+		return "CUBIC: w: "+window+" wmax: "+maxWindow+" ssthresh: "+slowStartThreshold;
+	}
+
+}
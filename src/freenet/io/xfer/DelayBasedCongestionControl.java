@@ -0,0 +1,110 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.xfer;
+
+/**
+ * Delay-based congestion control, loosely after BBR. Rather than reacting to losses, we measure 
+ * the rate at which packets are acknowledged and the minimum round-trip time, and keep a small 
+ * multiple of their product (the bandwidth-delay product) in flight. The window is cycled 
+ * slightly above and below that each round trip, to probe for more bandwidth and to drain any 
+ * queue we have built up.
+ */
+public class DelayBasedCongestionControl implements CongestionControl {
+
+	/** How long a minimum RTT sample is valid for. */
+	static final long MIN_RTT_WINDOW = 10*1000;
+	/** Number of rounds over which we take the maximum delivery rate. */
+	static final int BANDWIDTH_ROUNDS = 10;
+	/** Multiple of the bandwidth-delay product to allow in flight, to cover delayed acks. */
+	static final double WINDOW_GAIN = 2.0;
+	/** Per-round multipliers once we have found the bandwidth: probe, drain, then cruise. */
+	private static final double[] CYCLE_GAINS = { 1.25, 0.75, 1, 1, 1, 1, 1, 1 };
+	/** Leave startup if the bandwidth hasn't grown by this factor ... */
+	private static final double STARTUP_GROWTH = 1.25;
+	/** ... for this many rounds. */
+	private static final int STARTUP_ROUNDS = 3;
+	private static final double MIN_WINDOW = 2.0;
+
+	private double window = MIN_WINDOW;
+	private boolean startup = true;
+	private long minRtt = -1;
+	private long minRttTime;
+	/** Start of the current round, or -1 before the first ack. */
+	private long roundStart = -1;
+	private int ackedThisRound;
+	/** Delivery rates of recent rounds, in packets per millisecond. */
+	private final double[] rates = new double[BANDWIDTH_ROUNDS];
+	private int rounds;
+	private double fullBandwidth;
+	private int roundsWithoutGrowth;
+
+	@Override
+	public Algorithm getAlgorithm() {
+		return Algorithm.DELAY;
+	}
+
+	@Override
+	public void onLoss(long now) {
+		// Losses don't tell us much about the bottleneck, except that we have overshot in startup.
+		startup = false;
+	}
+
+	@Override
+	public void onAck(long now, long rtt, double maxWindowSize) {
+		rtt = Math.max(rtt, 1);
+		if(minRtt < 0 || rtt <= minRtt || now - minRttTime > MIN_RTT_WINDOW) {
+			minRtt = rtt;
+			minRttTime = now;
+		}
+		if(roundStart < 0) roundStart = now;
+		ackedThisRound++;
+		if(now - roundStart >= minRtt) {
+			endRound(now);
+		}
+		if(startup) {
+			// Double the window every round trip, like slow start.
+			window += 1;
+		} else {
+			double gain = CYCLE_GAINS[rounds % CYCLE_GAINS.length];
+			window = WINDOW_GAIN * gain * getBandwidth() * minRtt;
+		}
+		if(window > maxWindowSize) window = maxWindowSize;
+		if(window < MIN_WINDOW) window = MIN_WINDOW;
+	}
+
+	private void endRound(long now) {
+		rates[rounds % rates.length] = ((double) ackedThisRound) / (now - roundStart);
+		rounds++;
+		roundStart = now;
+		ackedThisRound = 0;
+		if(startup) {
+			double bandwidth = getBandwidth();
+			if(bandwidth >= fullBandwidth * STARTUP_GROWTH) {
+				fullBandwidth = bandwidth;
+				roundsWithoutGrowth = 0;
+			} else if(++roundsWithoutGrowth >= STARTUP_ROUNDS) {
+				startup = false;
+			}
+		}
+	}
+
+	/** @return The estimated bottleneck bandwidth, in packets per millisecond. */
+	double getBandwidth() {
+		double max = 0;
+		for(double rate : rates)
+			max = Math.max(max, rate);
+		return max;
+	}
+
+	@Override
+	public double getWindowSize() {
+		return window;
+	}
+
+	@Override
+	public String toString() {
+		return "Delay: w: "+window+" bw: "+getBandwidth()+"/ms min rtt: "+minRtt+(startup ? " (startup)" : "");
+	}
+
+}
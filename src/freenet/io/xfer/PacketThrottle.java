@@ -35,23 +35,60 @@ public class PacketThrottle {
 		});
 	}
 
-	protected static final double PACKET_DROP_DECREASE_MULTIPLE = 0.875;
-	protected static final double PACKET_TRANSMIT_INCREMENT = (4 * (1 - (PACKET_DROP_DECREASE_MULTIPLE * PACKET_DROP_DECREASE_MULTIPLE))) / 3;
-	protected static final double SLOW_START_DIVISOR = 3.0;
 	protected static final long MAX_DELAY = 1000;
 	protected static final long MIN_DELAY = 1;
 	public static final String VERSION = "$Id: PacketThrottle.java,v 1.3 2005/08/25 17:28:19 amphibian Exp $";
 	public static final long DEFAULT_DELAY = 200;
+	/** Interval between samples of the RTT, window and goodput. */
+	public static final long SAMPLE_INTERVAL = 10*1000;
+	/** Number of samples kept. */
+	public static final int SAMPLES = 30;
 	private long _roundTripTime = 500, _totalPackets, _droppedPackets;
-	/** The size of the window, in packets.
-	 * Window size must not drop below 1.0. Partly this is because we need to be able to send one packet, so it is a logical lower bound.
-	 * But mostly it is because of the non-slow-start division by _windowSize! */
-	private float _windowSize = 2;
+	/** Decides the window size. */
+	private CongestionControl congestionControl;
 	private final int PACKET_SIZE;
-	private boolean slowStart = true;
+	
+	/** Ring buffer of samples. */
+	private final Sample[] samples = new Sample[SAMPLES];
+	private int sampleCount;
+	private long lastSampleTime = -1;
+	private long ackedSinceSample;
+	
+	/** A snapshot of the throttle, taken every SAMPLE_INTERVAL while packets are being acked or lost. */
+	public static class Sample {
+		public final long time;
+		public final long roundTripTime;
+		public final double windowSize;
+		/** Bytes acknowledged per second since the previous sample. */
+		public final double goodput;
+		
+		Sample(long time, long roundTripTime, double windowSize, double goodput) {
+			this.time = time;
+			this.roundTripTime = roundTripTime;
+			this.windowSize = windowSize;
+			this.goodput = goodput;
+		}
+	}
 	
 	public PacketThrottle(int packetSize) {
+		this(packetSize, CongestionControl.Algorithm.AIMD);
+	}
+
+	public PacketThrottle(int packetSize, CongestionControl.Algorithm algorithm) {
 		PACKET_SIZE = packetSize;
+		congestionControl = algorithm.create();
+	}
+
+	/** Switch to a different congestion control algorithm. It starts from scratch, in slow start
+	 * or equivalent. */
+	public synchronized void setAlgorithm(CongestionControl.Algorithm algorithm) {
+		if(congestionControl.getAlgorithm() == algorithm) return;
+		congestionControl = algorithm.create();
+		notifyAll();
+	}
+
+	public synchronized CongestionControl.Algorithm getAlgorithm() {
+		return congestionControl.getAlgorithm();
 	}
 
 	public synchronized void setRoundTripTime(long rtt) {
@@ -62,9 +99,9 @@ public class PacketThrottle {
     public synchronized void notifyOfPacketLost() {
 		_droppedPackets++;
 		_totalPackets++;
-		_windowSize *= PACKET_DROP_DECREASE_MULTIPLE;
-		if(_windowSize < 1.0F) _windowSize = 1.0F;
-		slowStart = false;
+		long now = System.currentTimeMillis();
+		congestionControl.onLoss(now);
+		maybeSample(now);
 		if(logMINOR)
 			Logger.minor(this, "notifyOfPacketLost(): "+this);
     }
@@ -75,46 +112,59 @@ public class PacketThrottle {
      * size actually seen in flight at any time so far. We will ensure that the throttle's window size
      * does not get bigger than this. This works even for new packet format, and solves some of the 
      * problems that RFC 2861 does.
+     * @param rtt The round-trip time measured for this packet. Unlike the round-trip time used
+     * for the send delay, this isn't clamped, so delay based congestion control sees the real
+     * base RTT.
      */
-    public synchronized void notifyOfPacketAcknowledged(double maxWindowSize) {
+    public synchronized void notifyOfPacketAcknowledged(double maxWindowSize, long rtt) {
         _totalPackets++;
+        ackedSinceSample++;
 		// If we didn't use the whole window, shrink the window a bit.
 		// This is similar but not identical to RFC2861
 		// See [freenet-dev] Major weakness in our current link-level congestion control
         int windowSize = (int)getWindowSize();
-
-    	if(slowStart) {
-    		if(logMINOR) Logger.minor(this, "Still in slow start");
-    		_windowSize += _windowSize / SLOW_START_DIVISOR;
-    		// Avoid craziness if there is lag in detecting packet loss.
-    		if(_windowSize > maxWindowSize) slowStart = false;
-    		// Window size must not drop below 1.0. Partly this is because we need to be able to send one packet, so it is a logical lower bound.
-    		// But mostly it is because of the non-slow-start division by _windowSize!
-    		if(_windowSize < 1.0F) _windowSize = 1.0F;
-    	} else {
-    		_windowSize += (PACKET_TRANSMIT_INCREMENT / _windowSize);
-    	}
-    	// Ensure that we the window size does not grow dramatically larger than the largest window
-    	// that has actually been in flight at one time.
-    	if(_windowSize > maxWindowSize)
-    		_windowSize = (float) maxWindowSize;
-    	if(_windowSize > (windowSize + 1))
+        long now = System.currentTimeMillis();
+        congestionControl.onAck(now, rtt, maxWindowSize);
+    	if(congestionControl.getWindowSize() > (windowSize + 1))
     		notifyAll();
+    	maybeSample(now);
     	if(logMINOR)
     		Logger.minor(this, "notifyOfPacketAcked(): "+this);
     }
     
+    private void maybeSample(long now) {
+    	if(lastSampleTime < 0) {
+    		lastSampleTime = now;
+    		return;
+    	}
+    	long elapsed = now - lastSampleTime;
+    	if(elapsed < SAMPLE_INTERVAL) return;
+    	double goodput = ackedSinceSample * PACKET_SIZE * 1000.0 / elapsed;
+    	samples[sampleCount++ % SAMPLES] = new Sample(now, _roundTripTime, getWindowSize(), goodput);
+    	lastSampleTime = now;
+    	ackedSinceSample = 0;
+    }
+    
+    /** @return The samples we have, oldest first. */
+    public synchronized Sample[] getSamples() {
+    	int count = Math.min(sampleCount, SAMPLES);
+    	Sample[] ret = new Sample[count];
+    	for(int i = 0; i < count; i++)
+    		ret[i] = samples[(sampleCount - count + i) % SAMPLES];
+    	return ret;
+    }
+    
     /** Only used for diagnostics. We actually maintain a real window size. So we don't
      * need lots of sanity checking here. */
 	public synchronized long getDelay() {
 		// return (long) (_roundTripTime / _simulatedWindowSize);
-		return Math.max(MIN_DELAY, (long) (_roundTripTime / _windowSize));
+		return Math.max(MIN_DELAY, (long) (_roundTripTime / getWindowSize()));
 	}
 
 	@Override
 	public synchronized String toString() {
-		return Double.toString(getBandwidth()) + " k/sec, (w: "
-				+ _windowSize + ", r:" + _roundTripTime + ", d:"
+		return Double.toString(getBandwidth()) + " k/sec, (" + congestionControl
+				+ ", r:" + _roundTripTime + ", d:"
 				+ (((float) _droppedPackets / (float) _totalPackets)) + ") total="+_totalPackets+" : "+super.toString();
 	}
 
@@ -123,7 +173,7 @@ public class PacketThrottle {
 	}
 
 	public synchronized double getWindowSize() {
-		return Math.max(1.0, _windowSize);
+		return Math.max(1.0, congestionControl.getWindowSize());
 	}
 
 	/**
@@ -7,15 +7,23 @@ import freenet.io.comm.AsyncMessageCallback;
 import freenet.io.comm.ByteCounter;
 import freenet.io.comm.DMT;
 import freenet.io.comm.Message;
+import freenet.support.Buffer;
 import freenet.support.Logger;
 
 /** A queued byte[], maybe including a Message, and a callback, which may be null.
  * Note that we always create the byte[] on construction, as almost everywhere
- * which uses a MessageItem needs to know its length immediately. */
+ * which uses a MessageItem needs to know its length immediately. The byte[] may
+ * be followed by shared data, which is not copied until it is sent: see
+ * PeerContext.sendPacketTransmit(). */
 public class MessageItem {
 
 	final Message msg;
+	/** The encoded message, or the part of it before sharedData. */
 	final byte[] buf;
+	/** The rest of the message, shared with other messages (e.g. a block packet being
+	 * relayed to several peers), or null. Must not change while the message is queued. */
+	private final Buffer sharedData;
+	private final int length;
 	final AsyncMessageCallback[] cb;
 	final long submitted;
 	/** If true, the buffer may contain several messages, and is formatted
@@ -43,6 +51,8 @@ public class MessageItem {
 		this.sendLoadRT = msg2.needsLoadRT();
 		this.sendLoadBulk = msg2.needsLoadBulk();
 		buf = msg.encodeToPacket();
+		sharedData = null;
+		length = buf.length;
 		if(buf.length > NewPacketFormat.MAX_MESSAGE_SIZE) {
 			// This is bad because fairness between UID's happens at the level of message queueing,
 			// and the window size is frequently very small, so if we have really big messages they
@@ -60,6 +70,8 @@ public class MessageItem {
 		this.cb = cb2;
 		this.msg = null;
 		this.buf = data;
+		this.sharedData = null;
+		this.length = data == null ? 0 : data.length;
 		this.formatted = formatted;
 		if(formatted && buf == null)
 			throw new NullPointerException();
@@ -70,15 +82,54 @@ public class MessageItem {
 		this.sendLoadBulk = sendLoadBulk;
 	}
 
+	/**
+	 * Create a message from a header which is specific to it and data which is shared.
+	 * @param header The start of the encoded message.
+	 * @param data The rest of the encoded message. Not copied, so must not change while
+	 * the message is queued.
+	 * @param id The ID for fairness between transfers, see getID().
+	 */
+	public MessageItem(byte[] header, Buffer data, long id, AsyncMessageCallback[] cb2, ByteCounter ctr, short priority) {
+		this.cb = cb2;
+		this.msg = null;
+		this.buf = header;
+		this.sharedData = data;
+		this.length = header.length + data.getLength();
+		this.formatted = false;
+		this.ctrCallback = ctr;
+		this.submitted = System.currentTimeMillis();
+		this.priority = priority;
+		this.sendLoadRT = false;
+		this.sendLoadBulk = false;
+		this.cachedID = id;
+		this.hasCachedID = true;
+	}
+
 	/**
 	 * Return the data contents of this MessageItem.
 	 */
 	public byte[] getData() {
-		return buf;
+		if(sharedData == null) return buf;
+		return getData(0, length);
+	}
+
+	/**
+	 * Copy part of the data contents of this MessageItem, without copying the rest of it.
+	 */
+	public byte[] getData(int start, int len) {
+		byte[] data = new byte[len];
+		int fromHeader = 0;
+		if(start < buf.length) {
+			fromHeader = Math.min(len, buf.length - start);
+			System.arraycopy(buf, start, data, 0, fromHeader);
+		}
+		if(fromHeader < len)
+			sharedData.copyTo(start + fromHeader - buf.length, data, fromHeader, len - fromHeader);
+		return data;
 	}
 
 	public int getLength() {
-		return buf.length;
+		return length;
 	}
 
 	/**
@@ -3,8 +3,6 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node;
 
-import java.util.Arrays;
-
 import freenet.io.comm.AsyncMessageCallback;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
@@ -38,7 +36,7 @@ public class MessageWrapper {
 
 	public MessageWrapper(MessageItem item, int messageID) {
 		this.item = item;
-		isShortMessage = item.buf.length <= 255;
+		isShortMessage = item.getLength() <= 255;
 		this.messageID = messageID;
 		created = System.currentTimeMillis();
 	}
@@ -59,7 +57,7 @@ public class MessageWrapper {
 	public boolean ack(int start, int end, BasePeerNode pn) {
 		synchronized(acks) {
 			acks.add(start, end);
-			if(acks.contains(0, item.buf.length - 1)) {
+			if(acks.contains(0, item.getLength() - 1)) {
 				if(!alreadyAcked) {
 					if(item.cb != null) {
 						for(AsyncMessageCallback cb : item.cb) {
@@ -115,11 +113,11 @@ public class MessageWrapper {
 	}
 
 	public int getLength() {
-		return item.buf.length;
+		return item.getLength();
 	}
 
 	public boolean isFragmented(int length) {
-		if(length < item.buf.length) {
+		if(length < item.getLength()) {
 			//Can't send everything, so we have to fragment
 			return true;
 		}
@@ -132,7 +130,7 @@ public class MessageWrapper {
 				}
 			}
 
-			if(sent.contains(0, item.buf.length - 1)) {
+			if(sent.contains(0, item.getLength() - 1)) {
 				//It can be sent in one go, and we have already sent everything
 				return false;
 			}
@@ -162,7 +160,7 @@ public class MessageWrapper {
 	 */
 	public MessageFragment getMessageFragment(int maxLength) {
 		int start = 0;
-		int end = item.buf.length - 1;
+		int end = item.getLength() - 1;
 
 		int dataLength;
 		byte[] fragmentData;
@@ -175,7 +173,7 @@ public class MessageWrapper {
 				}
 			}
 
-			if(start >= item.buf.length) {
+			if(start >= item.getLength()) {
 				return null;
 			}
 
@@ -190,15 +188,15 @@ public class MessageWrapper {
 			dataLength = Math.min(end - start + 1, dataLength);
 			if(dataLength <= 0) return null;
 
-			fragmentData = Arrays.copyOfRange(item.buf, start, start+dataLength);
+			fragmentData = item.getData(start, dataLength);
 
 			sent.add(start, start + dataLength - 1);
 			if(logDEBUG) Logger.debug(this, "Using range "+start+" to "+(start+dataLength-1)+" gives "+sent+" on "+messageID);
 		}
 
-		boolean isFragmented = !((start == 0) && (dataLength == item.buf.length));
+		boolean isFragmented = !((start == 0) && (dataLength == item.getLength()));
 		return new MessageFragment(isShortMessage, isFragmented, start == 0, messageID, dataLength,
-		                item.buf.length, start, fragmentData, this);
+		                item.getLength(), start, fragmentData, this);
 	}
 
 	public void onDisconnect() {
@@ -215,7 +213,7 @@ public class MessageWrapper {
 	 */
 	public boolean allSent() {
 		synchronized(sent) {
-			return sent.contains(0, item.buf.length-1);
+			return sent.contains(0, item.getLength()-1);
 		}
 	}
 
@@ -246,7 +244,7 @@ public class MessageWrapper {
 				}
 			}
 			everSent.add(start, end);
-			if(everSent.contains(0, item.buf.length-1)) {
+			if(everSent.contains(0, item.getLength()-1)) {
 				// Maybe completed
 				if(reportedSent)
 					completed = false;
@@ -7,9 +7,9 @@ import static java.util.concurrent.TimeUnit.MINUTES;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 
 import freenet.crypt.BlockCipher;
@@ -34,6 +34,14 @@ public class NewPacketFormat implements PacketFormat {
 	// FIXME Use a more efficient structure - int[] or maybe just a big byte[].
 	// FIXME increase this significantly to let it ride over network interruptions.
 	private static final int NUM_SEQNUMS_TO_WATCH_FOR = 1024;
+	/** Number of sequence numbers per key to put in the PacketTagIndex, starting a little below
+	 * the highest received. */
+	static final int TAG_INDEX_WINDOW = 128;
+	/** Number of sequence numbers below the highest received to keep in the PacketTagIndex, for
+	 * resent packets. */
+	private static final int TAG_INDEX_BEHIND = 32;
+	/** Move the PacketTagIndex window when it is this far behind. */
+	private static final int TAG_INDEX_MOVE = 32;
 	// FIXME This should be globally allocated according to available memory etc. For links with
 	// high bandwidth and high latency, and lots of memory, a much bigger buffer would be helpful.
 	static final int MAX_RECEIVE_BUFFER_SIZE = 256 * 1024;
@@ -57,6 +65,11 @@ public class NewPacketFormat implements PacketFormat {
 	}
 
 	private final BasePeerNode pn;
+	/** May be null. */
+	private final PacketTagIndex tagIndex;
+	/** The keys which have tags in tagIndex. Only changed on the thread receiving packets, and
+	 * in onDisconnect(). */
+	private final ArrayList<NewPacketFormatKeyContext> indexedKeys = new ArrayList<NewPacketFormatKeyContext>(3);
 
 	/** The actual buffer of outgoing messages that have not yet been acked.
 	 * LOCKING: Protected by sendBufferLock. */
@@ -101,7 +114,16 @@ public class NewPacketFormat implements PacketFormat {
 	private long timeLastSentPayload;
 
 	public NewPacketFormat(BasePeerNode pn, int ourInitialMsgID, int theirInitialMsgID) {
+		this(pn, ourInitialMsgID, theirInitialMsgID, null);
+	}
+
+	/**
+	 * @param tagIndex If not null, the sequence numbers we expect to receive next are kept in this
+	 * index, so packets can be matched to the peer even if they come from an unknown address.
+	 */
+	public NewPacketFormat(BasePeerNode pn, int ourInitialMsgID, int theirInitialMsgID, PacketTagIndex tagIndex) {
 		this.pn = pn;
+		this.tagIndex = tagIndex;
 
 		startedByPrio = new ArrayList<HashMap<Integer, MessageWrapper>>(DMT.NUM_PRIORITIES);
 		for(int i = 0; i < DMT.NUM_PRIORITIES; i++) {
@@ -160,7 +182,8 @@ public class NewPacketFormat implements PacketFormat {
 	}
 
 	List<byte[]> handleDecryptedPacket(NPFPacket packet, SessionKey sessionKey) {
-		List<byte[]> fullyReceived = new LinkedList<byte[]>();
+		// Most packets don't complete a message, so only allocate the list when one does.
+		List<byte[]> fullyReceived = null;
 
 		NewPacketFormatKeyContext keyContext = sessionKey.packetContext;
 		for(int ack : packet.getAcks()) {
@@ -283,6 +306,7 @@ public class NewPacketFormat implements PacketFormat {
 					if(logDEBUG) Logger.debug(this, "Removed " + recvBuffer.messageLength + " from buffer. Total is now " + receiveBufferUsed);
 				}
 
+				if(fullyReceived == null) fullyReceived = new ArrayList<byte[]>(2);
 				fullyReceived.add(recvBuffer.buffer);
 				
 				if(logMINOR) Logger.minor(this, "Message id " + fragment.messageID + ": Completed");
@@ -309,7 +333,7 @@ public class NewPacketFormat implements PacketFormat {
 			}
 		}
 
-
+		if(fullyReceived == null) return Collections.emptyList();
 		return fullyReceived;
 	}
 
@@ -362,6 +386,8 @@ public class NewPacketFormat implements PacketFormat {
 			keyContext.watchListOffset = (int) ((0l + keyContext.watchListOffset + moveBy) % NUM_SEQNUMS);
 		}
 
+		if(tagIndex != null) maybeIndexTags(keyContext, highestReceivedSeqNum);
+
 		for(int i = 0; i < keyContext.seqNumWatchList.length; i++) {
 			int index = (keyContext.watchListPointer + i) % keyContext.seqNumWatchList.length;
 			if (!Fields.byteArrayEqual(
@@ -382,8 +408,83 @@ public class NewPacketFormat implements PacketFormat {
 		return null;
 	}
 
+	/**
+	 * Put the tags for the sequence numbers around the highest received in the PacketTagIndex,
+	 * if they have moved far enough since we last did so. Also remove the tags for keys which are
+	 * no longer in use.
+	 */
+	private void maybeIndexTags(NewPacketFormatKeyContext keyContext, int highestReceivedSeqNum) {
+		byte[][] watchList = keyContext.seqNumWatchList;
+		// Position of the highest received sequence number in the watch list, -1 if below it.
+		long pos = (0l + highestReceivedSeqNum - keyContext.watchListOffset + NUM_SEQNUMS) % NUM_SEQNUMS;
+		if(pos >= watchList.length) pos = -1;
+		int start = (int) Math.max(0, Math.min(pos - TAG_INDEX_BEHIND, watchList.length - TAG_INDEX_WINDOW));
+		int firstSeqNum = (int) ((0l + keyContext.watchListOffset + start) % NUM_SEQNUMS);
+		synchronized(indexedKeys) {
+			if(keyContext.indexedTags != null) {
+				long moved = (0l + firstSeqNum - keyContext.indexedSeqNum + NUM_SEQNUMS) % NUM_SEQNUMS;
+				if(moved < TAG_INDEX_MOVE) return;
+				unindexTags(keyContext);
+			} else {
+				removeUnusedKeys();
+				indexedKeys.add(keyContext);
+			}
+			int[] tags = new int[TAG_INDEX_WINDOW];
+			for(int i = 0; i < tags.length; i++) {
+				tags[i] = Fields.bytesToInt(watchList[(keyContext.watchListPointer + start + i) % watchList.length], 0);
+				tagIndex.add(tags[i], pn);
+			}
+			keyContext.indexedTags = tags;
+			keyContext.indexedSeqNum = firstSeqNum;
+		}
+	}
+
+	/** Remove the tags for keys which the peer no longer uses. Caller must hold indexedKeys. */
+	private void removeUnusedKeys() {
+		Iterator<NewPacketFormatKeyContext> it = indexedKeys.iterator();
+		while(it.hasNext()) {
+			NewPacketFormatKeyContext keyContext = it.next();
+			if(isInUse(keyContext, pn.getCurrentKeyTracker()) ||
+					isInUse(keyContext, pn.getPreviousKeyTracker()) ||
+					isInUse(keyContext, pn.getUnverifiedKeyTracker()))
+				continue;
+			unindexTags(keyContext);
+			it.remove();
+		}
+	}
+
+	private static boolean isInUse(NewPacketFormatKeyContext keyContext, SessionKey key) {
+		return key != null && key.packetContext == keyContext;
+	}
+
+	/** Caller must hold indexedKeys. */
+	private void unindexTags(NewPacketFormatKeyContext keyContext) {
+		int[] tags = keyContext.indexedTags;
+		if(tags == null) return;
+		for(int tag : tags)
+			tagIndex.remove(tag, pn);
+		keyContext.indexedTags = null;
+	}
+
+	/** @return True if a packet of this length is long enough to have a tag. */
+	static boolean hasTag(int length) {
+		return length >= HMAC_LENGTH + 4;
+	}
+
+	/**
+	 * @return The encrypted sequence number of the packet starting at offset, which is what
+	 * PacketTagIndex is keyed on. Packets are recognised by this in tryDecipherPacket() too.
+	 */
+	static int getTag(byte[] buf, int offset) {
+		return Fields.bytesToInt(buf, offset + HMAC_LENGTH);
+	}
+
 	/** Must NOT modify buf contents. */
 	private NPFPacket decipherFromSeqnum(byte[] buf, int offset, int length, SessionKey sessionKey, int sequenceNumber) {
+		// Check the MAC in place, so a packet which isn't for this key costs no copying.
+		if(!HMAC.verifyWithSHA256(sessionKey.hmacKey, buf, offset + hmacLength, length - hmacLength, buf, offset, hmacLength))
+			return null;
+
 		BlockCipher ivCipher = sessionKey.ivCipher;
 
 		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
@@ -396,9 +497,6 @@ public class NewPacketFormat implements PacketFormat {
 		ivCipher.encipher(IV, IV);
 
 		byte[] payload = Arrays.copyOfRange(buf, offset + hmacLength, offset + length);
-		byte[] hash = Arrays.copyOfRange(buf, offset, offset + hmacLength);
-
-		if(!HMAC.verifyWithSHA256(sessionKey.hmacKey, payload, hash)) return null;
 
 		PCFBMode payloadCipher = PCFBMode.create(sessionKey.incommingCipher, IV);
 		payloadCipher.blockDecipher(payload, 0, payload.length);
@@ -504,10 +602,7 @@ public class NewPacketFormat implements PacketFormat {
 		payloadCipher.blockEncipher(data, hmacLength, paddedLen - hmacLength);
 
 		//Add hash
-		byte[] text = new byte[paddedLen - hmacLength];
-		System.arraycopy(data, hmacLength, text, 0, text.length);
-
-		byte[] hash = HMAC.macWithSHA256(sessionKey.hmacKey, text, hmacLength);
+		byte[] hash = HMAC.macWithSHA256(sessionKey.hmacKey, data, hmacLength, paddedLen - hmacLength, hmacLength);
 
 		System.arraycopy(hash, 0, data, 0, hmacLength);
 
@@ -833,8 +928,8 @@ addOldLoop:			for(int i = 0; i < startedByPrio.size(); i++) {
 							HashMap<Integer, MessageWrapper> queue = startedByPrio.get(item.getPriority());
 							synchronized(sendBufferLock) {
 								// CONCURRENCY: This could go over the limit if we allow createPacket() for the same node on two threads in parallel. That's probably a bad idea anyway.
-								sendBufferUsed += item.buf.length;
-								if(logDEBUG) Logger.debug(this, "Added " + item.buf.length + " to remote buffer. Total is now " + sendBufferUsed + " for "+pn.shortToString());
+								sendBufferUsed += item.getLength();
+								if(logDEBUG) Logger.debug(this, "Added " + item.getLength() + " to remote buffer. Total is now " + sendBufferUsed + " for "+pn.shortToString());
 								queue.put(messageID, wrapper);
 							}
 							
@@ -963,6 +1058,13 @@ addOldLoop:			for(int i = 0; i < startedByPrio.size(); i++) {
 
 	@Override
 	public List<MessageItem> onDisconnect() {
+		if(tagIndex != null) {
+			synchronized(indexedKeys) {
+				for(NewPacketFormatKeyContext keyContext : indexedKeys)
+					unindexTags(keyContext);
+				indexedKeys.clear();
+			}
+		}
 		int messageSize = 0;
 		List<MessageItem> items = null;
 		// LOCKING: No packet may be sent while connected = false.
@@ -1132,33 +1234,59 @@ addOldLoop:			for(int i = 0; i < startedByPrio.size(); i++) {
 	static class SentPacket {
 		final SessionKey sessionKey;
 		NewPacketFormat npf;
-		List<MessageWrapper> messages = new ArrayList<MessageWrapper>();
-		List<int[]> ranges = new ArrayList<int[]>();
+		/** The messages which fragments in this packet belong to, in parallel with ranges. */
+		private MessageWrapper[] messages = NO_MESSAGES;
+		/** The range of each fragment, packed by packRange(). */
+		private long[] ranges = NO_RANGES;
+		private int fragments;
 		long sentTime;
 		int packetLength;
 
+		private static final MessageWrapper[] NO_MESSAGES = new MessageWrapper[0];
+		private static final long[] NO_RANGES = new long[0];
+
 		public SentPacket(NewPacketFormat npf, SessionKey key) {
 			this.npf = npf;
 			this.sessionKey = key;
 		}
 
 		public void addFragment(MessageFragment frag) {
-			messages.add(frag.wrapper);
-			ranges.add(new int[] { frag.fragmentOffset, frag.fragmentOffset + frag.fragmentLength - 1 });
+			if(fragments == messages.length) {
+				int newLength = Math.max(4, fragments * 2);
+				messages = Arrays.copyOf(messages, newLength);
+				ranges = Arrays.copyOf(ranges, newLength);
+			}
+			messages[fragments] = frag.wrapper;
+			ranges[fragments] = packRange(frag.fragmentOffset, frag.fragmentOffset + frag.fragmentLength - 1);
+			fragments++;
 		}
 
-		public long acked(SessionKey key) {
-			Iterator<MessageWrapper> msgIt = messages.iterator();
-			Iterator<int[]> rangeIt = ranges.iterator();
+		boolean isEmpty() {
+			return fragments == 0;
+		}
+
+		static long packRange(int start, int end) {
+			return ((long) start << 32) | (end & 0xFFFFFFFFL);
+		}
+
+		static int rangeStart(long range) {
+			return (int) (range >>> 32);
+		}
+
+		static int rangeEnd(long range) {
+			return (int) range;
+		}
 
-			while(msgIt.hasNext()) {
-				MessageWrapper wrapper = msgIt.next();
-				int[] range = rangeIt.next();
+		public long acked(SessionKey key) {
+			for(int i = 0; i < fragments; i++) {
+				MessageWrapper wrapper = messages[i];
+				int start = rangeStart(ranges[i]);
+				int end = rangeEnd(ranges[i]);
 				
 				if(logDEBUG)
-					Logger.debug(this, "Acknowledging "+range[0]+" to "+range[1]+" on "+wrapper.getMessageID());
+					Logger.debug(this, "Acknowledging "+start+" to "+end+" on "+wrapper.getMessageID());
 
-				if(wrapper.ack(range[0], range[1], npf.pn)) {
+				if(wrapper.ack(start, end, npf.pn)) {
 					HashMap<Integer, MessageWrapper> started = npf.startedByPrio.get(wrapper.getPriority());
 					MessageWrapper removed = null;
 					synchronized(npf.sendBufferLock) {
@@ -1207,15 +1335,8 @@ addOldLoop:			for(int i = 0; i < startedByPrio.size(); i++) {
 		}
 
 		public void lost() {
-			Iterator<MessageWrapper> msgIt = messages.iterator();
-			Iterator<int[]> rangeIt = ranges.iterator();
-
-			while(msgIt.hasNext()) {
-				MessageWrapper wrapper = msgIt.next();
-				int[] range = rangeIt.next();
-
-				wrapper.lost(range[0], range[1]);
-			}
+			for(int i = 0; i < fragments; i++)
+				messages[i].lost(rangeStart(ranges[i]), rangeEnd(ranges[i]));
 		}
 
 		public void sent(int length) {
@@ -1231,18 +1352,28 @@ addOldLoop:			for(int i = 0; i < startedByPrio.size(); i++) {
 	private static class PartiallyReceivedBuffer {
 		private int messageLength;
 		private byte[] buffer;
+		/** The end of the furthest fragment received. Less than buffer.length if we are growing it. */
+		private int dataLength;
 		private NewPacketFormat npf;
 
+		private static final byte[] EMPTY = new byte[0];
+
 		private PartiallyReceivedBuffer(NewPacketFormat npf) {
 			messageLength = -1;
-			buffer = new byte[0];
+			buffer = EMPTY;
 			this.npf = npf;
 		}
 
 		private boolean add(byte[] data, int dataOffset) {
-			if(buffer.length < (dataOffset + data.length)) {
-				if(!resize(dataOffset + data.length)) return false;
+			int needed = dataOffset + data.length;
+			if(buffer.length < needed) {
+				int newLength = needed;
+				// Until we know the length, grow geometrically so that a message received out of
+				// order isn't copied once per fragment. setMessageLength() trims it.
+				if(messageLength == -1) newLength = Math.max(needed, buffer.length * 2);
+				if(!resize(newLength) && (newLength == needed || !resize(needed))) return false;
 			}
+			if(needed > dataLength) dataLength = needed;
 
 			System.arraycopy(data, 0, buffer, dataOffset, data.length);
 			return true;
@@ -1255,14 +1386,15 @@ addOldLoop:			for(int i = 0; i < startedByPrio.size(); i++) {
 
 			this.messageLength = messageLength;
 
-			if(buffer.length > messageLength) {
-				Logger.warning(this, "Buffer is larger than set message length! (" + buffer.length + ">" + messageLength + ")");
+			if(dataLength > messageLength) {
+				Logger.warning(this, "Buffer is larger than set message length! (" + dataLength + ">" + messageLength + ")");
 			}
 
 			return resize(messageLength);
 		}
 
 		private boolean resize(int length) {
+			if(length == buffer.length) return true;
 			if(logDEBUG) Logger.debug(this, "Resizing from " + buffer.length + " to " + length);
 
 			synchronized(npf.receiveBufferSizeLock) {
@@ -28,6 +28,10 @@ public class NewPacketFormatKeyContext {
 	/** Index of the packet with the lowest sequence number */
 	public int watchListPointer = 0;
 	public int watchListOffset = 0;
+	/** The tags in the PacketTagIndex for this key, or null. Protected by the NewPacketFormat. */
+	int[] indexedTags;
+	/** The sequence number of indexedTags[0]. */
+	int indexedSeqNum;
 	
 	private final TreeMap<Integer, Long> acks = new TreeMap<Integer, Long>();
 	private final HashMap<Integer, SentPacket> sentPackets = new HashMap<Integer, SentPacket>();
@@ -144,7 +148,7 @@ public class NewPacketFormatKeyContext {
 		if(throttle != null) {
 			throttle.setRoundTripTime(rt);
 			if(!lostBeforeAcked)
-				throttle.notifyOfPacketAcknowledged(maxSize);
+				throttle.notifyOfPacketAcknowledged(maxSize, rt);
 		}
 	}
 
@@ -227,7 +231,7 @@ public class NewPacketFormatKeyContext {
 
 	public void sent(SentPacket sentPacket, int seqNum, int length) {
 		synchronized(sentPackets) {
-			if(!sentPacket.messages.isEmpty()) {
+			if(!sentPacket.isEmpty()) {
 				sentTimes.add(seqNum, System.currentTimeMillis());
 			}
 			sentPacket.sent(length);
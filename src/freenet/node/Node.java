@@ -30,6 +30,7 @@ import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -86,6 +87,7 @@ import freenet.io.comm.Peer;
 import freenet.io.comm.PeerParseException;
 import freenet.io.comm.ReferenceSignatureVerificationException;
 import freenet.io.comm.UdpSocketHandler;
+import freenet.io.xfer.CongestionControl;
 import freenet.io.xfer.PartiallyReceivedBlock;
 import freenet.keys.CHKBlock;
 import freenet.keys.CHKVerifyException;
@@ -142,18 +144,20 @@ import freenet.store.SSKStore;
 import freenet.store.SlashdotStore;
 import freenet.store.StorableBlock;
 import freenet.store.StoreCallback;
+import freenet.store.TieredFreenetStore;
 import freenet.store.saltedhash.ResizablePersistentIntBuffer;
+import freenet.store.saltedhash.MultiVolumeFreenetStore;
 import freenet.store.saltedhash.SaltedHashFreenetStore;
 import freenet.support.Executor;
 import freenet.support.Fields;
 import freenet.support.HTMLNode;
+import freenet.support.HashedWheelTicker;
 import freenet.support.HexUtil;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.OOMHandler;
 import freenet.support.PooledExecutor;
-import freenet.support.PrioritizedTicker;
 import freenet.support.ShortBuffer;
 import freenet.support.SimpleFieldSet;
 import freenet.support.SizeUtil;
@@ -260,7 +264,7 @@ public class Node implements TimeSkewDetectorCallback {
 				Logger.error(this, "Caught migrating old store: "+e, e);
 			}
 			ramstore.clear();
-		} else if(store instanceof SaltedHashFreenetStore) {
+		} else if(store instanceof SaltedHashFreenetStore || store instanceof MultiVolumeFreenetStore) {
 			Logger.error(this, "Migrating from from a saltedhashstore not fully supported yet: will not keep old keys");
 		}
 	}
@@ -272,6 +276,10 @@ public class Node implements TimeSkewDetectorCallback {
 			SaltedHashFreenetStore<T> saltstore = (SaltedHashFreenetStore<T>) store;
 			saltstore.close();
 			saltstore.destruct();
+		} else if(store instanceof MultiVolumeFreenetStore) {
+			MultiVolumeFreenetStore<T> multistore = (MultiVolumeFreenetStore<T>) store;
+			multistore.close();
+			multistore.destruct();
 		}
 	}
 
@@ -452,6 +460,35 @@ public class Node implements TimeSkewDetectorCallback {
 		}
 	}
 
+	private class CongestionControlCallback extends StringCallback implements EnumerableOptionCallback {
+
+		@Override
+		public String get() {
+			return congestionControl.configName();
+		}
+
+		@Override
+		public void set(String val) throws InvalidConfigValueException {
+			CongestionControl.Algorithm algorithm = CongestionControl.Algorithm.fromConfigName(val);
+			if(algorithm == null)
+				throw new InvalidConfigValueException("Invalid congestion control algorithm");
+			congestionControl = algorithm;
+			if(peers == null) return;
+			for(PeerNode pn : peers.myPeers())
+				pn.getThrottle().setAlgorithm(algorithm);
+		}
+
+		@Override
+		public String[] getPossibleValues() {
+			return CongestionControl.Algorithm.configNames();
+		}
+	}
+
+	/** @return The congestion control algorithm new throttles should use. */
+	public CongestionControl.Algorithm getCongestionControl() {
+		return congestionControl;
+	}
+
 	private static class L10nCallback extends StringCallback implements EnumerableOptionCallback {
 		@Override
 		public String get() {
@@ -547,6 +584,17 @@ public class Node implements TimeSkewDetectorCallback {
 	private String storeType;
 	private boolean storeUseSlotFilters;
 	private boolean storeSaltHashResizeOnStart;
+	private boolean storeSaltHashMmapMetadata;
+	private boolean storeSaltHashMmapData;
+	private long storeSaltHashWriteBehindSize;
+	/** Directories of the datastore volumes after the first, which is in storeDir. */
+	private File[] storeSaltHashVolumes;
+	/** Directory of the hot tier of the datastore, or null if there isn't one. */
+	private File storeHotTierDir;
+	/** Total size of the hot tier of the datastore, in bytes. */
+	private long storeHotTierSize;
+	/** Whether the salt-hash stores are multi-volume stores. Null until they are created. */
+	private Boolean useStoreVolumes;
 
 	/** The number of bytes per key total in all the different datastores. All the datastores
 	 * are always the same size in number of keys. */
@@ -692,7 +740,7 @@ public class Node implements TimeSkewDetectorCallback {
 
 	public final Executor executor;
 	public final PacketSender ps;
-	public final PrioritizedTicker ticker;
+	public final HashedWheelTicker ticker;
 	final DNSRequester dnsr;
 	final NodeDispatcher dispatcher;
 	public final UptimeEstimator uptime;
@@ -709,6 +757,8 @@ public class Node implements TimeSkewDetectorCallback {
 	private volatile boolean routeAccordingToOurPeersLocation;
 	boolean enableSwapQueueing;
 	boolean enablePacketCoalescing;
+	/** The congestion control algorithm used by our peers' throttles. */
+	private volatile CongestionControl.Algorithm congestionControl;
 	public static final short DEFAULT_MAX_HTL = (short)18;
 	private short maxHTL;
 	private boolean skipWrapperWarning;
@@ -1564,6 +1614,13 @@ public class Node implements TimeSkewDetectorCallback {
 		});
 		enablePacketCoalescing = nodeConfig.getBoolean("enablePacketCoalescing");
 
+		nodeConfig.register("congestionControl", CongestionControl.Algorithm.AIMD.configName(), sortOrder++, true, false, "Node.congestionControl", "Node.congestionControlLong", new CongestionControlCallback());
+		congestionControl = CongestionControl.Algorithm.fromConfigName(nodeConfig.getString("congestionControl"));
+		if(congestionControl == null) {
+			Logger.error(this, "Invalid congestion control algorithm "+nodeConfig.getString("congestionControl")+", using "+CongestionControl.Algorithm.AIMD.configName());
+			congestionControl = CongestionControl.Algorithm.AIMD;
+		}
+
 		// Determine the port number
 		// @see #191
 		if(oldConfig != null && "-1".equals(oldConfig.get("node.listenPort")))
@@ -1583,7 +1640,7 @@ public class Node implements TimeSkewDetectorCallback {
 		// Must be created after darknetCrypto
 		dnsr = new DNSRequester(this);
 		ps = new PacketSender(this);
-		ticker = new PrioritizedTicker(executor, getDarknetPortNumber());
+		ticker = new HashedWheelTicker(executor, getDarknetPortNumber());
 		if(executor instanceof PooledExecutor)
 			((PooledExecutor)executor).setTicker(ticker);
 
@@ -2071,6 +2128,186 @@ public class Node implements TimeSkewDetectorCallback {
 		});
 		storeSaltHashResizeOnStart = nodeConfig.getBoolean("storeSaltHashResizeOnStart");
 
+		nodeConfig.register("storeSaltHashMmapMetadata", false, sortOrder++, true, false,
+				"Node.storeSaltHashMmapMetadata", "Node.storeSaltHashMmapMetadataLong", new BooleanCallback() {
+			@Override
+			public Boolean get() {
+				synchronized(Node.this) {
+					return storeSaltHashMmapMetadata;
+				}
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				synchronized(Node.this) {
+					storeSaltHashMmapMetadata = val;
+				}
+				throw new NodeNeedRestartException("Need to restart to change storeSaltHashMmapMetadata");
+			}
+		});
+		storeSaltHashMmapMetadata = nodeConfig.getBoolean("storeSaltHashMmapMetadata");
+
+		nodeConfig.register("storeSaltHashMmapData", false, sortOrder++, true, false,
+				"Node.storeSaltHashMmapData", "Node.storeSaltHashMmapDataLong", new BooleanCallback() {
+			@Override
+			public Boolean get() {
+				synchronized(Node.this) {
+					return storeSaltHashMmapData;
+				}
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				synchronized(Node.this) {
+					storeSaltHashMmapData = val;
+				}
+				throw new NodeNeedRestartException("Need to restart to change storeSaltHashMmapData");
+			}
+		});
+		storeSaltHashMmapData = nodeConfig.getBoolean("storeSaltHashMmapData");
+
+		nodeConfig.register("storeSaltHashWriteBehindSize", "0", sortOrder++, true, false,
+				"Node.storeSaltHashWriteBehindSize", "Node.storeSaltHashWriteBehindSizeLong", new LongCallback() {
+			@Override
+			public Long get() {
+				synchronized(Node.this) {
+					return storeSaltHashWriteBehindSize;
+				}
+			}
+
+			@Override
+			public void set(Long val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if(val < 0) throw new InvalidConfigValueException(l10n("invalidWriteBehindSize"));
+				synchronized(Node.this) {
+					storeSaltHashWriteBehindSize = val;
+				}
+				throw new NodeNeedRestartException("Need to restart to change storeSaltHashWriteBehindSize");
+			}
+		}, true);
+		storeSaltHashWriteBehindSize = nodeConfig.getLong("storeSaltHashWriteBehindSize");
+		if(storeSaltHashWriteBehindSize < 0)
+			throw new NodeInitException(NodeInitException.EXIT_BAD_CONFIG, l10n("invalidWriteBehindSize"));
+
+		nodeConfig.register("storeSaltHashCleanerThreads", 2, sortOrder++, true, false,
+				"Node.storeSaltHashCleanerThreads", "Node.storeSaltHashCleanerThreadsLong", new IntCallback() {
+			@Override
+			public Integer get() {
+				return SaltedHashFreenetStore.getCleanerThreads();
+			}
+
+			@Override
+			public void set(Integer val) throws InvalidConfigValueException {
+				if(val < 1) throw new InvalidConfigValueException(l10n("mustBePositive"));
+				SaltedHashFreenetStore.setCleanerThreads(val);
+			}
+		}, false);
+		if(nodeConfig.getInt("storeSaltHashCleanerThreads") < 1)
+			throw new NodeInitException(NodeInitException.EXIT_BAD_CONFIG, l10n("mustBePositive"));
+		SaltedHashFreenetStore.setCleanerThreads(nodeConfig.getInt("storeSaltHashCleanerThreads"));
+
+		nodeConfig.register("storeSaltHashVolumes", "", sortOrder++, true, false,
+				"Node.storeSaltHashVolumes", "Node.storeSaltHashVolumesLong", new StringCallback() {
+			@Override
+			public String get() {
+				synchronized(Node.this) {
+					StringBuilder sb = new StringBuilder();
+					for(File dir : storeSaltHashVolumes) {
+						if(sb.length() > 0) sb.append(File.pathSeparatorChar);
+						sb.append(dir.getPath());
+					}
+					return sb.toString();
+				}
+			}
+
+			@Override
+			public void set(String val) throws InvalidConfigValueException, NodeNeedRestartException {
+				File[] dirs = parseStoreVolumes(val);
+				File[] old;
+				synchronized(Node.this) {
+					old = storeSaltHashVolumes;
+					if(dirs.length < old.length)
+						throw new InvalidConfigValueException(l10n("storeSaltHashVolumesCannotRemove"));
+					for(int i=0;i<old.length;i++) {
+						if(!dirs[i].equals(old[i]))
+							throw new InvalidConfigValueException(l10n("storeSaltHashVolumesCannotRemove"));
+					}
+					storeSaltHashVolumes = dirs;
+				}
+				if(!storeType.equals("salt-hash")) return;
+				boolean needRestart = false;
+				for(int i=old.length;i<dirs.length;i++) {
+					needRestart |= !addStoreVolume(chkDatastore, dirs[i]);
+					needRestart |= !addStoreVolume(chkDatacache, dirs[i]);
+					needRestart |= !addStoreVolume(pubKeyDatastore, dirs[i]);
+					needRestart |= !addStoreVolume(pubKeyDatacache, dirs[i]);
+					needRestart |= !addStoreVolume(sskDatastore, dirs[i]);
+					needRestart |= !addStoreVolume(sskDatacache, dirs[i]);
+				}
+				if(needRestart)
+					throw new NodeNeedRestartException("Need to restart to spread the datastore over several volumes");
+			}
+
+			/** @return False if the store only has one volume, so can't add one until we restart. */
+			private boolean addStoreVolume(StoreCallback<?> datastore, File dir) {
+				if(datastore == null) return true;
+				FreenetStore<?> store = datastore.getStore();
+				if(store == null) return true;
+				store = store.getUnderlyingStore();
+				if(store instanceof MultiVolumeFreenetStore) {
+					((MultiVolumeFreenetStore<?>)store).addVolume(dir);
+					return true;
+				}
+				return !(store instanceof SaltedHashFreenetStore);
+			}
+		});
+		storeSaltHashVolumes = parseStoreVolumes(nodeConfig.getString("storeSaltHashVolumes"));
+
+		nodeConfig.register("storeHotTierDir", "", sortOrder++, true, false,
+				"Node.storeHotTierDir", "Node.storeHotTierDirLong", new StringCallback() {
+			@Override
+			public String get() {
+				synchronized(Node.this) {
+					return storeHotTierDir == null ? "" : storeHotTierDir.getPath();
+				}
+			}
+
+			@Override
+			public void set(String val) throws InvalidConfigValueException, NodeNeedRestartException {
+				File[] dirs = parseStoreVolumes(val);
+				if(dirs.length > 1) throw new InvalidConfigValueException(l10n("storeHotTierOneDir"));
+				synchronized(Node.this) {
+					storeHotTierDir = dirs.length == 0 ? null : dirs[0];
+				}
+				throw new NodeNeedRestartException("Need to restart to change storeHotTierDir");
+			}
+		});
+		File[] hotTierDirs = parseStoreVolumes(nodeConfig.getString("storeHotTierDir"));
+		if(hotTierDirs.length > 1)
+			throw new NodeInitException(NodeInitException.EXIT_BAD_CONFIG, l10n("storeHotTierOneDir"));
+		storeHotTierDir = hotTierDirs.length == 0 ? null : hotTierDirs[0];
+
+		nodeConfig.register("storeHotTierSize", "0", sortOrder++, true, false,
+				"Node.storeHotTierSize", "Node.storeHotTierSizeLong", new LongCallback() {
+			@Override
+			public Long get() {
+				synchronized(Node.this) {
+					return storeHotTierSize;
+				}
+			}
+
+			@Override
+			public void set(Long val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if(val < 0) throw new InvalidConfigValueException(l10n("invalidStoreSize"));
+				synchronized(Node.this) {
+					storeHotTierSize = val;
+				}
+				throw new NodeNeedRestartException("Need to restart to change storeHotTierSize");
+			}
+		}, true);
+		storeHotTierSize = nodeConfig.getLong("storeHotTierSize");
+		if(storeHotTierSize < 0)
+			throw new NodeInitException(NodeInitException.EXIT_BAD_CONFIG, l10n("invalidStoreSize"));
+
 		this.storeDir = setupProgramDir(installConfig, "storeDir", userDir().file("datastore").getPath(), "Node.storeDirectory", "Node.storeDirectoryLong", nodeConfig);
 		installConfig.finishedInitialization();
 
@@ -2113,8 +2350,12 @@ public class Node implements TimeSkewDetectorCallback {
 							boolean val) {
 						// Avoid race conditions by checking first.
 						FreenetStore<?> store = datastore.getStore();
+						if(store != null)
+							store = store.getUnderlyingStore();
 						if(store instanceof SaltedHashFreenetStore)
 							((SaltedHashFreenetStore<?>)store).setPreallocate(val);
+						else if(store instanceof MultiVolumeFreenetStore)
+							((MultiVolumeFreenetStore<?>)store).setPreallocate(val);
 					}}
 		);
 		storePreallocate = nodeConfig.getBoolean("storePreallocate");
@@ -3437,17 +3678,17 @@ public class Node implements TimeSkewDetectorCallback {
 			final FreenetStore<CHKBlock> chkDataFS = makeStore("CHK", true, chkDatastore, dontResizeOnStart, masterKey);
 			final CHKStore chkDatacache = new CHKStore();
 			final FreenetStore<CHKBlock> chkCacheFS = makeStore("CHK", false, chkDatacache, dontResizeOnStart, masterKey);
-			((SaltedHashFreenetStore<CHKBlock>) chkCacheFS.getUnderlyingStore()).setAltStore(((SaltedHashFreenetStore<CHKBlock>) chkDataFS.getUnderlyingStore()));
+			setAltStore(chkCacheFS, chkDataFS);
 			final PubkeyStore pubKeyDatastore = new PubkeyStore();
 			final FreenetStore<DSAPublicKey> pubkeyDataFS = makeStore("PUBKEY", true, pubKeyDatastore, dontResizeOnStart, masterKey);
 			final PubkeyStore pubKeyDatacache = new PubkeyStore();
 			final FreenetStore<DSAPublicKey> pubkeyCacheFS = makeStore("PUBKEY", false, pubKeyDatacache, dontResizeOnStart, masterKey);
-			((SaltedHashFreenetStore<DSAPublicKey>) pubkeyCacheFS.getUnderlyingStore()).setAltStore(((SaltedHashFreenetStore<DSAPublicKey>) pubkeyDataFS.getUnderlyingStore()));
+			setAltStore(pubkeyCacheFS, pubkeyDataFS);
 			final SSKStore sskDatastore = new SSKStore(getPubKey);
 			final FreenetStore<SSKBlock> sskDataFS = makeStore("SSK", true, sskDatastore, dontResizeOnStart, masterKey);
 			final SSKStore sskDatacache = new SSKStore(getPubKey);
 			final FreenetStore<SSKBlock> sskCacheFS = makeStore("SSK", false, sskDatacache, dontResizeOnStart, masterKey);
-			((SaltedHashFreenetStore<SSKBlock>) sskCacheFS.getUnderlyingStore()).setAltStore(((SaltedHashFreenetStore<SSKBlock>) sskDataFS.getUnderlyingStore()));
+			setAltStore(sskCacheFS, sskDataFS);
 			
 			boolean delay =
 				chkDataFS.start(ticker, false) |
@@ -3596,23 +3837,74 @@ public class Node implements TimeSkewDetectorCallback {
 		}
     }
 
+	/** Write blocks the cache has no room for to the store, with the wrong store flag. */
+	private <T extends StorableBlock> void setAltStore(FreenetStore<T> cacheFS, FreenetStore<T> storeFS) {
+		FreenetStore<T> cache = cacheFS.getUnderlyingStore();
+		FreenetStore<T> store = storeFS.getUnderlyingStore();
+		if(cache instanceof SaltedHashFreenetStore && store instanceof SaltedHashFreenetStore)
+			((SaltedHashFreenetStore<T>) cache).setAltStore((SaltedHashFreenetStore<T>) store);
+		else if(cache instanceof MultiVolumeFreenetStore && store instanceof MultiVolumeFreenetStore)
+			((MultiVolumeFreenetStore<T>) cache).setAltStore((MultiVolumeFreenetStore<T>) store);
+		else
+			Logger.error(this, "Store "+store+" and cache "+cache+" have different types, not writing blocks the cache has no room for to the store");
+	}
+
+	/** @return True if the datastore is spread over several volumes, or has been in the past
+	 * and still has to be opened as a multi-volume store to notice the missing ones. Decided once,
+	 * so that every store and cache has the same type. */
+	private synchronized boolean useStoreVolumes() {
+		if(useStoreVolumes == null)
+			useStoreVolumes = storeSaltHashVolumes.length > 0 || MultiVolumeFreenetStore.hasVolumes(getStoreDir());
+		return useStoreVolumes;
+	}
+
 	private <T extends StorableBlock> FreenetStore<T> makeClientcache(String type, boolean isStore, StoreCallback<T> cb, boolean dontResizeOnStart, byte[] clientCacheMasterKey) throws IOException {
-		FreenetStore<T> store = makeStore(type, "clientcache", maxClientCacheKeys, cb, dontResizeOnStart, clientCacheMasterKey);
+		// The client cache stays in the store directory: other volumes may be less secure.
+		FreenetStore<T> store = makeStore(type, "clientcache", maxClientCacheKeys, cb, dontResizeOnStart, clientCacheMasterKey, false);
 		return store;
 	}
 
 	private <T extends StorableBlock> FreenetStore<T> makeStore(String type, boolean isStore, StoreCallback<T> cb, boolean dontResizeOnStart, byte[] clientCacheMasterKey) throws IOException {
 		String store = isStore ? "store" : "cache";
 		long maxKeys = isStore ? maxStoreKeys : maxCacheKeys;
-		return makeStore(type, store, maxKeys, cb, dontResizeOnStart, clientCacheMasterKey);
+		return makeStore(type, store, maxKeys, cb, dontResizeOnStart, clientCacheMasterKey, true);
 	}
 
-	private <T extends StorableBlock> FreenetStore<T> makeStore(String type, String store, long maxKeys, StoreCallback<T> cb, boolean lateStart, byte[] clientCacheMasterKey) throws IOException {
+	/**
+	 * @param useExtraDirs If true, the store may be spread over the extra volumes, and have a
+	 * hot tier. False for the client cache, which must stay in the store directory.
+	 */
+	private <T extends StorableBlock> FreenetStore<T> makeStore(String type, String store, long maxKeys, StoreCallback<T> cb, boolean lateStart, byte[] clientCacheMasterKey, boolean useExtraDirs) throws IOException {
 		Logger.normal(this, "Initializing "+type+" Data"+store);
 		System.out.println("Initializing "+type+" Data"+store+" (" + maxStoreKeys + " keys)");
 
-		SaltedHashFreenetStore<T> fs = SaltedHashFreenetStore.<T>construct(getStoreDir(), type+"-"+store, cb,
-		        random, maxKeys, storeUseSlotFilters, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ticker : null, clientCacheMasterKey);
+		FreenetStore<T> fs;
+		if(useExtraDirs && useStoreVolumes()) {
+			File[] volumes;
+			synchronized(this) {
+				volumes = new File[storeSaltHashVolumes.length + 1];
+				System.arraycopy(storeSaltHashVolumes, 0, volumes, 1, storeSaltHashVolumes.length);
+			}
+			volumes[0] = getStoreDir();
+			fs = MultiVolumeFreenetStore.<T>construct(volumes, type+"-"+store, cb,
+			        random, maxKeys, storeUseSlotFilters, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, clientCacheMasterKey,
+			        storeSaltHashMmapMetadata, storeSaltHashMmapData, storeSaltHashWriteBehindSize);
+		} else {
+			SaltedHashFreenetStore<T> saltStore = SaltedHashFreenetStore.<T>construct(getStoreDir(), type+"-"+store, cb,
+			        random, maxKeys, storeUseSlotFilters, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ticker : null, clientCacheMasterKey,
+			        storeSaltHashMmapMetadata, storeSaltHashMmapData);
+			if(storeSaltHashWriteBehindSize > 0)
+				saltStore.setWriteBehindSize(storeSaltHashWriteBehindSize);
+			fs = saltStore;
+		}
+		long hotTierKeys = storeHotTierSize / sizePerKey / 2;
+		if(useExtraDirs && storeHotTierDir != null && hotTierKeys > 0) {
+			// Different file names, in case it is the same directory as one of the volumes.
+			SaltedHashFreenetStore<T> hotStore = SaltedHashFreenetStore.<T>construct(storeHotTierDir, type+"-"+store+"-hot", cb,
+			        random, hotTierKeys, storeUseSlotFilters, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ticker : null, clientCacheMasterKey,
+			        storeSaltHashMmapMetadata, storeSaltHashMmapData);
+			fs = new TieredFreenetStore<T>(cb, hotStore, fs, ticker, random);
+		}
 		cb.setStore(fs);
 		if(cachingFreenetStoreMaxSize > 0)
 			return new CachingFreenetStore<T>(cb, cachingFreenetStoreMaxSize, cachingFreenetStorePeriod, fs, ticker);
@@ -3809,6 +4101,21 @@ public class Node implements TimeSkewDetectorCallback {
 		return jvmHasGCJCharConversionBug; // should be initialized on early startup
 	}
 
+	/** Parse a list of datastore volume directories. Relative paths are relative to the user
+	 * directory. */
+	private File[] parseStoreVolumes(String val) {
+		ArrayList<File> dirs = new ArrayList<File>();
+		for(String path : val.split(File.pathSeparator)) {
+			path = path.trim();
+			if(path.length() == 0) continue;
+			File dir = new File(path);
+			if(!dir.isAbsolute())
+				dir = userDir().file(path);
+			dirs.add(dir);
+		}
+		return dirs.toArray(new File[dirs.size()]);
+	}
+
 	private String l10n(String key) {
 		return NodeL10n.getBase().getString("Node."+key);
 	}
@@ -63,6 +63,8 @@ public class NodeCrypto {
 	/** The object which handles our specific UDP port, pulls messages from it, feeds them to the packet mangler for decryption etc */
 	final UdpSocketHandler socket;
 	public FNPPacketMangler packetMangler;
+	/** Finds the peer for a data packet from an unknown address. */
+	final PacketTagIndex packetTags = new PacketTagIndex();
 	// FIXME: abstract out address stuff? Possibly to something like NodeReference?
 	final int portNumber;
 	byte[] myIdentity; // FIXME: simple identity block; should be unique
@@ -551,6 +553,10 @@ public class NodeCrypto {
 		socket.close();
 	}
 
+	public PacketTagIndex getPacketTagIndex() {
+		return packetTags;
+	}
+
 	public PeerNode[] getPeerNodes() {
 		if(node.peers == null) return null;
 		if(isOpennet)
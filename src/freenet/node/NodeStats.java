@@ -45,6 +45,7 @@ import freenet.support.io.NativeThread;
 import freenet.support.math.BootstrappingDecayingRunningAverage;
 import freenet.support.math.DecayingKeyspaceAverage;
 import freenet.support.math.RunningAverage;
+import freenet.support.math.SimpleRunningAverage;
 import freenet.support.math.TimeDecayingRunningAverage;
 import freenet.support.math.TrivialRunningAverage;
 
@@ -283,6 +284,9 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 
 	// Database stats
 	final Hashtable<String, TrivialRunningAverage> avgDatabaseJobExecutionTimes;
+
+	// Request starter stats, by starter name
+	private final Hashtable<String, RequestStarterStats> requestStarterStats;
 	public final DecayingKeyspaceAverage avgClientCacheCHKLocation;
 	public final DecayingKeyspaceAverage avgCacheCHKSuccess;
 	public final DecayingKeyspaceAverage avgSlashdotCacheCHKSucess;
@@ -626,6 +630,8 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		avgTransferBackoffTimesBulk = new Hashtable<String, TrivialRunningAverage>();
 
 		avgDatabaseJobExecutionTimes = new Hashtable<String, TrivialRunningAverage>();
+
+		requestStarterStats = new Hashtable<String, RequestStarterStats>();
 		
 		if(!NodeStarter.isTestingVM()) {
 			// Normal mode
@@ -2017,6 +2023,9 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		fs.put("backedOffPercent", backedOffPercent.currentValue());
 		fs.put("pInstantReject", pRejectIncomingInstantly());
 		fs.put("unclaimedFIFOSize", node.usm.getUnclaimedFIFOSize());
+		fs.put("messageFilters", node.usm.getFilterCount());
+		fs.put("messageFiltersUnindexed", node.usm.getUnindexedFilterCount());
+		fs.put("messageFilterMatchTimeNanos", node.usm.getAverageFilterMatchTime());
 		fs.put("RAMBucketPoolSize", node.clientCore.tempBucketFactory.getRamUsed());
 
 		/* gather connection statistics */
@@ -3668,6 +3677,71 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		return entries;
 	}
 
+	/** Statistics for one RequestStarter: how long it takes to choose blocks, and how much of
+	 * the time its thread is busy rather than waiting for requests or for the throttle. */
+	public static class RequestStarterStats implements Comparable<RequestStarterStats> {
+		public final String name;
+		/** Microseconds taken to choose each batch of blocks. */
+		private final TrivialRunningAverage selectionTime = new TrivialRunningAverage();
+		private final TrivialRunningAverage blocksPerBatch = new TrivialRunningAverage();
+		/** Fraction of the time busy, over the last few reporting periods. */
+		private final SimpleRunningAverage utilisation = new SimpleRunningAverage(6, 0.0);
+
+		RequestStarterStats(String name) {
+			this.name = name;
+		}
+
+		void reportSelection(long nanos, int blocks) {
+			selectionTime.report(nanos / 1000.0);
+			blocksPerBatch.report(blocks);
+		}
+
+		void reportUtilisation(double busyFraction) {
+			utilisation.report(busyFraction);
+		}
+
+		public long countBatches() {
+			return selectionTime.countReports();
+		}
+
+		public double averageSelectionTimeMicros() {
+			return selectionTime.currentValue();
+		}
+
+		public double averageBlocksPerBatch() {
+			return blocksPerBatch.currentValue();
+		}
+
+		public double utilisation() {
+			return utilisation.currentValue();
+		}
+
+		@Override
+		public int compareTo(RequestStarterStats o) {
+			return name.compareTo(o.name);
+		}
+	}
+
+	RequestStarterStats getRequestStarterStats(String starterName) {
+		synchronized(requestStarterStats) {
+			RequestStarterStats ret = requestStarterStats.get(starterName);
+			if(ret == null) {
+				ret = new RequestStarterStats(starterName);
+				requestStarterStats.put(starterName, ret);
+			}
+			return ret;
+		}
+	}
+
+	public RequestStarterStats[] getRequestStarterStatistics() {
+		RequestStarterStats[] entries;
+		synchronized(requestStarterStats) {
+			entries = requestStarterStats.values().toArray(new RequestStarterStats[requestStarterStats.size()]);
+		}
+		Arrays.sort(entries);
+		return entries;
+	}
+
 	public StringCounter getDatabaseJobQueueStatistics() {
 		final StringCounter result = new StringCounter();
 
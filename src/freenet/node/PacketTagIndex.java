@@ -0,0 +1,39 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps the encrypted sequence numbers which NewPacketFormat expects to receive next to the peers
+ * which expect them. This lets us find the peer for a data packet from an address we don't know,
+ * e.g. after the peer's IP address has changed, without trying to decrypt it with every peer's
+ * keys. An entry is only a hint: the peer still authenticates the packet, and if two peers happen
+ * to expect the same tag only one of them is found.
+ */
+public class PacketTagIndex {
+
+	private final ConcurrentHashMap<Integer, BasePeerNode> tags = new ConcurrentHashMap<Integer, BasePeerNode>();
+
+	void add(int tag, BasePeerNode pn) {
+		tags.put(tag, pn);
+	}
+
+	void remove(int tag, BasePeerNode pn) {
+		tags.remove(tag, pn);
+	}
+
+	/**
+	 * @return The peer which is expecting a packet with the same tag as this one, or null.
+	 */
+	public BasePeerNode get(byte[] buf, int offset, int length) {
+		if(!NewPacketFormat.hasTag(length)) return null;
+		return tags.get(NewPacketFormat.getTag(buf, offset));
+	}
+
+	public int size() {
+		return tags.size();
+	}
+
+}
@@ -16,12 +16,16 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import freenet.io.comm.AsyncMessageCallback;
 import freenet.io.comm.ByteCounter;
@@ -65,6 +69,13 @@ public class PeerManager {
 	private PeerNode[] myPeers;
 	/** All the peers we are actually connected to */
 	private PeerNode[] connectedPeers;
+	/** myPeers indexed by address, for getByPeer(). Null if it needs to be rebuilt. */
+	private volatile PeerAddressIndex addressIndex;
+	/** Incremented whenever the address index becomes out of date. */
+	private final AtomicInteger addressIndexVersion = new AtomicInteger();
+	/** Rebuild the address index at least this often, as a peer's hostname may have been looked
+	 * up without it telling us. */
+	static final long MAX_ADDRESS_INDEX_AGE = SECONDS.toMillis(30);
 	private String darkFilename;
         private String openFilename;
         private String oldOpennetPeersFilename;
@@ -328,6 +339,7 @@ public class PeerManager {
 			}
 			myPeers = Arrays.copyOf(myPeers, myPeers.length + 1);
 			myPeers[myPeers.length - 1] = pn;
+			peerAddressChanged();
 			Logger.normal(this, "Added " + pn);
 		}
 		if(pn.recordStatus())
@@ -410,6 +422,7 @@ public class PeerManager {
 					}
 				}
 				myPeers = newMyPeers;
+				peerAddressChanged();
 
 				Logger.normal(this, "Removed " + pn);
 			}
@@ -429,6 +442,7 @@ public class PeerManager {
 			oldPeers = myPeers;
 			myPeers = new PeerNode[0];
 			connectedPeers = new PeerNode[0];
+			peerAddressChanged();
 		}
 		for(PeerNode oldPeer: oldPeers)
 			oldPeer.onRemove();
@@ -536,46 +550,116 @@ public class PeerManager {
 	 * non-isRealConnection()'s since they can also be connected.
 	 */
 	public PeerNode getByPeer(Peer peer) {
-		PeerNode[] peerList = myPeers();
-		for(PeerNode pn : peerList) {
-			if(pn.isDisabled()) continue;
-			if(pn.matchesPeerAndPort(peer))
-				return pn;
-		}
-		// Try a match by IP address if we can't match exactly by IP:port.
-		FreenetInetAddress addr = peer.getFreenetAddress();
-		for(PeerNode pn : peerList) {
-			if(pn.isDisabled()) continue;
-			if(pn.matchesIP(addr, false))
-				return pn;
-		}
-		return null;
+		return getByPeer(peer, null);
 	}
 	
 	/**
 	 * Find the node with the given Peer address, or IP address. Checks the outgoing
 	 * packet mangler as well.
 	 * @param peer
-	 * @param mangler
+	 * @param mangler If not null, only return a node using this packet mangler.
 	 * @return
 	 */
 	public PeerNode getByPeer(Peer peer, FNPPacketMangler mangler) {
+		InetAddress address = peer.getAddress(false);
+		if(address == null) return scanByPeer(peer, mangler);
+		PeerAddressIndex index = getAddressIndex();
+		PeerNode[] candidates = index.byAddressAndPort.get(new InetSocketAddress(address, peer.getPort()));
+		if(candidates != null) {
+			for(PeerNode pn : candidates) {
+				if(pn.isDisabled()) continue;
+				if(pn.matchesPeerAndPort(peer) && (mangler == null || pn.getOutgoingMangler() == mangler))
+					return pn;
+			}
+		}
+		// Try a match by IP address if we can't match exactly by IP:port.
+		candidates = index.byAddress.get(address);
+		if(candidates != null) {
+			FreenetInetAddress addr = peer.getFreenetAddress();
+			for(PeerNode pn : candidates) {
+				if(pn.isDisabled()) continue;
+				if(pn.matchesIP(addr, false) && (mangler == null || pn.getOutgoingMangler() == mangler))
+					return pn;
+			}
+		}
+		return null;
+	}
+
+	/** Find the node with the given Peer address by checking every node. */
+	private PeerNode scanByPeer(Peer peer, FNPPacketMangler mangler) {
 		PeerNode[] peerList = myPeers();
 		for(PeerNode pn : peerList) {
 			if(pn.isDisabled()) continue;
-			if(pn.matchesPeerAndPort(peer) && pn.getOutgoingMangler() == mangler)
+			if(pn.matchesPeerAndPort(peer) && (mangler == null || pn.getOutgoingMangler() == mangler))
 				return pn;
 		}
 		// Try a match by IP address if we can't match exactly by IP:port.
 		FreenetInetAddress addr = peer.getFreenetAddress();
 		for(PeerNode pn : peerList) {
 			if(pn.isDisabled()) continue;
-			if(pn.matchesIP(addr, false) && pn.getOutgoingMangler() == mangler)
+			if(pn.matchesIP(addr, false) && (mangler == null || pn.getOutgoingMangler() == mangler))
 				return pn;
 		}
 		return null;
 	}
 
+	/** Called when a peer is added or removed, or its addresses have changed. */
+	void peerAddressChanged() {
+		addressIndexVersion.incrementAndGet();
+		addressIndex = null;
+	}
+
+	private PeerAddressIndex getAddressIndex() {
+		PeerAddressIndex index = addressIndex;
+		long now = System.currentTimeMillis();
+		if(index != null && now - index.created < MAX_ADDRESS_INDEX_AGE)
+			return index;
+		int version = addressIndexVersion.get();
+		index = new PeerAddressIndex(myPeers(), now);
+		// Don't keep it if something changed while we were building it.
+		if(addressIndexVersion.get() == version)
+			addressIndex = index;
+		return index;
+	}
+
+	/**
+	 * The peers which match each address in matchesPeerAndPort() and matchesIP(), in the same
+	 * order as myPeers. Only resolved addresses are indexed, an address which has not been
+	 * looked up never matches a packet's address.
+	 */
+	private static final class PeerAddressIndex {
+
+		final HashMap<InetSocketAddress, PeerNode[]> byAddressAndPort = new HashMap<InetSocketAddress, PeerNode[]>();
+		final HashMap<InetAddress, PeerNode[]> byAddress = new HashMap<InetAddress, PeerNode[]>();
+		final long created;
+
+		PeerAddressIndex(PeerNode[] peers, long now) {
+			created = now;
+			for(PeerNode pn : peers) {
+				for(Peer p : pn.getMatchablePeers()) {
+					InetAddress address = p.getAddress(false);
+					if(address == null) continue;
+					add(byAddressAndPort, new InetSocketAddress(address, p.getPort()), pn);
+					add(byAddress, address, pn);
+				}
+			}
+		}
+
+		private static <K> void add(HashMap<K, PeerNode[]> map, K key, PeerNode pn) {
+			PeerNode[] list = map.get(key);
+			if(list == null) {
+				map.put(key, new PeerNode[] { pn });
+				return;
+			}
+			for(PeerNode p : list)
+				if(p == pn) return;
+			list = Arrays.copyOf(list, list.length + 1);
+			list[list.length - 1] = pn;
+			map.put(key, list);
+		}
+
+	}
+
 	/**
 	 * Find nodes with a given IP address.
 	 */
@@ -2042,6 +2126,7 @@ public class PeerManager {
 					conn.add(pn);
 			}
 			myPeers = keep.toArray(new PeerNode[keep.size()]);
+			peerAddressChanged();
 			connectedPeers = keep.toArray(new PeerNode[conn.size()]);
 		}
 		updatePMUserAlert();
@@ -2,11 +2,17 @@ package freenet.node;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
 
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.io.comm.DMT;
 import freenet.support.DoublyLinkedList;
@@ -19,6 +25,12 @@ import freenet.support.MutableBoolean;
 /**
  * Queue of messages to send to a node. Ordered first by priority then by time.
  * Will soon be round-robin between different transfers/UIDs/clients too.
+ * 
+ * LOCKING: Each priority has its own lock, which protects the round-robin structures and is
+ * taken by the thread sending messages. Threads queueing messages don't take any lock: they add 
+ * the message to a concurrent queue for its priority, which is moved into the round-robin 
+ * structures by whoever next takes the lock. The byte counts and the next urgent time are 
+ * maintained atomically, so the packet sender can decide whether to send without locking.
  * @author Matthew Toseland <toad@amphibian.dyndns.org> (0xE43DA450)
  */
 public class PeerMessageQueue {
@@ -38,8 +50,8 @@ public class PeerMessageQueue {
 
 	private final PrioQueue[] queuesByPriority;
 	
-	private boolean mustSendLoadRT;
-	private boolean mustSendLoadBulk;
+	private final AtomicBoolean mustSendLoadRT = new AtomicBoolean();
+	private final AtomicBoolean mustSendLoadBulk = new AtomicBoolean();
 	
 	private class PrioQueue {
 		
@@ -55,6 +67,20 @@ public class PeerMessageQueue {
 		 * to the last send. Block transfers need this - both realtime and bulk. */
 		final boolean roundRobinBetweenUIDs;
 		
+		/** Messages which have been queued but not yet added to the structures below. */
+		private final ConcurrentLinkedQueue<MessageItem> incoming = new ConcurrentLinkedQueue<MessageItem>();
+		/** Number of messages queued, including incoming. */
+		private final AtomicInteger queuedMessages = new AtomicInteger();
+		/** Total length of the messages queued, including incoming. */
+		private final AtomicLong queuedBytes = new AtomicLong();
+		/** Total length of the messages in nonEmptyItemsWithID, plus 2 bytes each. */
+		private final AtomicLong urgentBytes = new AtomicLong();
+		/** The time at which the next message must be sent. Recomputed whenever we change the
+		 * structures below, and lowered by threads queueing messages when they know the new 
+		 * message's deadline, i.e. when we are not doing round-robin. Can be too low for a short
+		 * period, but never too high. */
+		private final AtomicLong nextUrgentTime = new AtomicLong(Long.MAX_VALUE);
+		
 		private class Items extends DoublyLinkedListImpl.Item<Items> {
 			/** List of messages to send. Stuff to send first is at the beginning. */
 			final LinkedList<MessageItem> items;
@@ -67,12 +93,21 @@ public class PeerMessageQueue {
 			}
 			public void addLast(MessageItem item) {
 				items.addLast(item);
+				urgentBytes.addAndGet(item.getLength() + 2);
 			}
 			public void addFirst(MessageItem item) {
 				items.addFirst(item);
+				urgentBytes.addAndGet(item.getLength() + 2);
 			}
 			public boolean remove(MessageItem item) {
-				return items.remove(item);
+				if(!items.remove(item)) return false;
+				urgentBytes.addAndGet(-(item.getLength() + 2));
+				return true;
+			}
+			public MessageItem removeFirst() {
+				MessageItem item = items.removeFirst();
+				urgentBytes.addAndGet(-(item.getLength() + 2));
+				return item;
 			}
 			@Override
 			public String toString() {
@@ -99,14 +134,61 @@ public class PeerMessageQueue {
 		/** Non-urgent messages. Same order as in Items, so stuff to send first is at
 		 * the beginning. */
 		LinkedList<MessageItem> itemsNonUrgent;
-		// Construct structures lazily, we're protected by the overall synchronized.
+		// Construct structures lazily, we're protected by the lock on the PrioQueue.
+
+		/** Queue a new message. Does not take the lock: the message is added to the queue 
+		 * proper by addLast() the next time somebody takes it. */
+		void offer(MessageItem item) {
+			queuedMessages.incrementAndGet();
+			queuedBytes.addAndGet(item.getLength());
+			incoming.offer(item);
+			// Without round-robin, the deadline only depends on when it was submitted.
+			// Otherwise getNextUrgentTime() will take the lock and work it out.
+			if(!roundRobinBetweenUIDs)
+				lowerNextUrgentTime(item.submitted + timeout);
+		}
+
+		private void lowerNextUrgentTime(long time) {
+			while(true) {
+				long old = nextUrgentTime.get();
+				if(old <= time || nextUrgentTime.compareAndSet(old, time)) return;
+			}
+		}
+
+		/** Move messages queued by offer() into the round-robin structures.
+		 * LOCKING: Caller must synchronize on the PrioQueue. */
+		private void drain() {
+			MessageItem item;
+			while((item = incoming.poll()) != null)
+				addLast(item);
+		}
+
+		/** Recompute the next urgent time after changing the structures. Messages which are
+		 * queued while we do this either lower it themselves after we have set it, or are still
+		 * in incoming when we check, and we go around again.
+		 * LOCKING: Caller must synchronize on the PrioQueue. */
+		private void summarize() {
+			while(true) {
+				drain();
+				nextUrgentTime.set(computeNextUrgentTime(Long.MAX_VALUE, Long.MIN_VALUE));
+				if(incoming.isEmpty()) return;
+			}
+		}
+
+		/** Called when a message leaves the queue, either because it is sent or because it is
+		 * removed. */
+		private void removed(MessageItem item) {
+			queuedMessages.decrementAndGet();
+			queuedBytes.addAndGet(-item.getLength());
+		}
 
 		/** Add a new message. For a normal priority level, we just add it to the end of the list.
 		 * It will be sent after the messages that are already queued, and its deadline is effectively
 		 * the time it was submitted plus the timeout. For a priority level using round robin between
 		 * peers, it is the same unless we have recently sent a message with the same UID. If we have,
-		 * the timeout is relative to the last send. */
-		public void addLast(MessageItem item) {
+		 * the timeout is relative to the last send.
+		 * LOCKING: Caller must synchronize on the PrioQueue. */
+		private void addLast(MessageItem item) {
 			// Clear the deadline for the item.
 			item.clearDeadline();
 			if(logMINOR) checkOrder();
@@ -282,7 +364,14 @@ public class PeerMessageQueue {
 
 		/** Add a new message to the beginning i.e. send it as soon as possible (e.g. if
 		 * we tried to send it and failed); it is assumed to already be urgent. */
-		public void addFirst(MessageItem item) {
+		public synchronized void addFirst(MessageItem item) {
+			queuedMessages.incrementAndGet();
+			queuedBytes.addAndGet(item.getLength());
+			addFirstInner(item);
+			summarize();
+		}
+
+		private void addFirstInner(MessageItem item) {
 			// Keep the old deadline for the item.
 			if(!roundRobinBetweenUIDs) {
 				addToNonUrgent(item);
@@ -320,29 +409,19 @@ public class PeerMessageQueue {
 			if(logMINOR) checkOrder();
 		}
 
-		public int size() {
-			int size = 0;
-			if(nonEmptyItemsWithID != null)
-				for(Items items : nonEmptyItemsWithID)
-					size += items.items.size();
-			if(itemsNonUrgent != null)
-				size += itemsNonUrgent.size();
-			return size;
-		}
-
-		public int addTo(MessageItem[] output, int ptr) {
+		/** Remove all the messages, adding them to <code>output</code>. */
+		public synchronized void grabAll(List<MessageItem> output) {
+			drain();
 			if(nonEmptyItemsWithID != null)
 				for(Items list : nonEmptyItemsWithID)
-					for(MessageItem item : list.items)
-						output[ptr++] = item;
+					output.addAll(list.items);
 			if(itemsNonUrgent != null)
-				for(MessageItem item : itemsNonUrgent)
-					output[ptr++] = item;
-			return ptr;
+				output.addAll(itemsNonUrgent);
+			clear();
 		}
 		
 		/** Check that nonEmptyItemsWithID is ordered correctly. 
-		 * LOCKING: Caller must synchronize on PeerMessageQueue.this. */
+		 * LOCKING: Caller must synchronize on the PrioQueue. */
 		private void checkOrder() {
 			if(nonEmptyItemsWithID != null) {
 				long prev = -1;
@@ -372,10 +451,25 @@ public class PeerMessageQueue {
 		 * addMessages().
 		 * @param t The initial urgent time. What we return must be less than or 
 		 * equal to this. Convenient for chaining. 
+		 */
+		public long getNextUrgentTime(long t) {
+			if(roundRobinBetweenUIDs && !incoming.isEmpty()) {
+				// The deadline of a new message depends on when we last sent its UID.
+				synchronized(this) {
+					summarize();
+				}
+			}
+			return Math.min(t, nextUrgentTime.get());
+		}
+
+		/** Compute the next urgent time from the round-robin structures.
+		 * LOCKING: Caller must synchronize on the PrioQueue.
+		 * @param t The initial urgent time. What we return must be less than or 
+		 * equal to this. Convenient for chaining. 
 		 * @param stopIfBeforeTime If the next urgent time is <= to this time, 
 		 * return immediately.
 		 */
-		public long getNextUrgentTime(long t, long stopIfBeforeTime) {
+		private long computeNextUrgentTime(long t, long stopIfBeforeTime) {
 			if(!roundRobinBetweenUIDs) {
 				if(itemsNonUrgent != null && !itemsNonUrgent.isEmpty()) {
 					t = Math.min(t, itemsNonUrgent.getFirst().submitted + timeout);
@@ -415,34 +509,27 @@ public class PeerMessageQueue {
 			return t;
 		}
 
-		/**
-		 * Add the size of messages in this queue to <code>length</code> until
-		 * length is larger than <code>maxSize</code>, or all messages have
-		 * been added.
-		 * @param length the starting length
-		 * @param maxSize the size at which to stop
-		 * @return the resulting length after adding messages
-		 */
-		public int addSize(int length, int maxSize) {
-			if(itemsNonUrgent != null) {
-				for(MessageItem item : itemsNonUrgent) {
-					int thisLen = item.getLength();
-					length += thisLen;
-					if(length > maxSize) return length;
-				}
-			}
-			if(nonEmptyItemsWithID != null) {
-				for(Items list : nonEmptyItemsWithID) {
-					for(MessageItem item : list.items) {
-						int thisLen = item.getLength();
-						length += thisLen;
-						if(length > maxSize) return length;
-					}
+		/** @return The total length of the messages in this queue. */
+		public long queuedBytes() {
+			return queuedBytes.get();
+		}
+
+		/** @return An estimate of the number of bytes needed to send the messages in this queue. */
+		public long estimateSize() {
+			return queuedBytes.get() + 2 * queuedMessages.get();
+		}
+
+		/** @return The number of bytes of messages which are already urgent, plus 2 bytes each. */
+		public long urgentBytes() {
+			if(roundRobinBetweenUIDs && !incoming.isEmpty()) {
+				// New messages are only counted once they are in the round-robin structures.
+				synchronized(this) {
+					summarize();
 				}
 			}
-			return length;
+			return urgentBytes.get();
 		}
-		
+
 		private MessageItem addNonUrgentMessages(long now, MutableBoolean addPeerLoadStatsRT, MutableBoolean addPeerLoadStatsBulk) {
 			if(logMINOR) checkOrder();
 			if(itemsNonUrgent == null) return null;
@@ -492,12 +579,10 @@ public class PeerMessageQueue {
 						}
 					}
 				}
-				if(mustSendLoadRT && item.sendLoadRT && !addPeerLoadStatsRT.value) {
+				if(item.sendLoadRT && !addPeerLoadStatsRT.value && mustSendLoadRT.compareAndSet(true, false)) {
 					addPeerLoadStatsRT.value = true;
-					mustSendLoadRT = false;
-				} else if(mustSendLoadBulk && item.sendLoadBulk && !addPeerLoadStatsBulk.value) {
+				} else if(item.sendLoadBulk && !addPeerLoadStatsBulk.value && mustSendLoadBulk.compareAndSet(true, false)) {
 					addPeerLoadStatsBulk.value = true;
-					mustSendLoadBulk = false;
 				}
 				if(logMINOR) checkOrder();
 				
@@ -542,8 +627,7 @@ public class PeerMessageQueue {
 						list = nonEmptyItemsWithID.head();
 						continue;
 					}
-					MessageItem item = list.items.getFirst();
-					list.items.removeFirst();
+					MessageItem item = list.removeFirst();
 					// Move to end of list.
 					Items prev = list.getPrev();
 					nonEmptyItemsWithID.remove(list);
@@ -561,12 +645,10 @@ public class PeerMessageQueue {
 					else
 						list = prev.getNext();
 					ret = item;
-					if(mustSendLoadRT && item.sendLoadRT && !addPeerLoadStatsRT.value) {
+					if(item.sendLoadRT && !addPeerLoadStatsRT.value && mustSendLoadRT.compareAndSet(true, false)) {
 						addPeerLoadStatsRT.value = true;
-						mustSendLoadRT = false;
-					} else if(mustSendLoadBulk && item.sendLoadBulk && !addPeerLoadStatsBulk.value) {
+					} else if(item.sendLoadBulk && !addPeerLoadStatsBulk.value && mustSendLoadBulk.compareAndSet(true, false)) {
 						addPeerLoadStatsBulk.value = true;
-						mustSendLoadBulk = false;
 					}
 					if(logMINOR) checkOrder();
 					if(ret != null) return ret;
@@ -592,7 +674,15 @@ public class PeerMessageQueue {
 		 * not set, we can try another priority.
 		 * @return
 		 */
-		MessageItem addPriorityMessages(long now, MutableBoolean addPeerLoadStatsRT, MutableBoolean addPeerLoadStatsBulk) {
+		synchronized MessageItem addPriorityMessages(long now, MutableBoolean addPeerLoadStatsRT, MutableBoolean addPeerLoadStatsBulk) {
+			drain();
+			MessageItem item = addPriorityMessagesInner(now, addPeerLoadStatsRT, addPeerLoadStatsBulk);
+			if(item != null) removed(item);
+			summarize();
+			return item;
+		}
+
+		private MessageItem addPriorityMessagesInner(long now, MutableBoolean addPeerLoadStatsRT, MutableBoolean addPeerLoadStatsBulk) {
 			// Urgent messages first.
 			if(logMINOR) {
 				int nonEmpty = nonEmptyItemsWithID == null ? 0 : nonEmptyItemsWithID.size();
@@ -649,15 +739,33 @@ public class PeerMessageQueue {
 			}
 		}
 
-		public void clear() {
+		/** LOCKING: Caller must synchronize on the PrioQueue, and must have called drain(). */
+		private void clear() {
+			if(nonEmptyItemsWithID != null)
+				for(Items list : nonEmptyItemsWithID)
+					for(MessageItem item : list.items)
+						removed(item);
+			if(itemsNonUrgent != null)
+				for(MessageItem item : itemsNonUrgent)
+					removed(item);
 			emptyItemsWithID = null;
 			nonEmptyItemsWithID = null;
 			itemsByID = null;
 			itemsNonUrgent = null;
+			urgentBytes.set(0);
 			if(logMINOR) checkOrder();
+			summarize();
 		}
 
-		public boolean removeMessage(MessageItem item) {
+		public synchronized boolean removeMessage(MessageItem item) {
+			drain();
+			boolean removed = removeMessageInner(item);
+			if(removed) removed(item);
+			summarize();
+			return removed;
+		}
+
+		private boolean removeMessageInner(MessageItem item) {
 			if(logMINOR) checkOrder();
 			long id = item.getID();
 			Items list;
@@ -681,7 +789,13 @@ public class PeerMessageQueue {
 				return false;
 		}
 		
-		public void removeUIDs(Long[] list) {
+		public synchronized void removeUIDs(Long[] list) {
+			drain();
+			removeUIDsInner(list);
+			summarize();
+		}
+
+		private void removeUIDsInner(Long[] list) {
 			if(logMINOR) checkOrder();
 			if(itemsByID == null) return;
 			for(Long l : list) {
@@ -698,16 +812,7 @@ public class PeerMessageQueue {
 		}
 
 		public boolean isEmpty() {
-			if(itemsNonUrgent != null && !itemsNonUrgent.isEmpty()) {
-				return false;
-			}
-			if(nonEmptyItemsWithID != null) {
-				for(Items items : nonEmptyItemsWithID) {
-					if(items.items.size() == 0) continue;
-					return false;
-				}
-			}
-			return true;
+			return queuedMessages.get() == 0;
 		}
 
 	}
@@ -730,53 +835,36 @@ public class PeerMessageQueue {
 	/**
 	 * Queue a <code>MessageItem</code> and return an estimate of the size of
 	 * this queue. The value returned is the estimated number of bytes
-	 * needed for sending the all messages in this queue. Note that if the
-	 * returned estimate is higher than 1024, it might not cover all messages.
+	 * needed for sending the all messages in this queue. Does not block.
 	 * @param item the <code>MessageItem</code> to queue
 	 * @return an estimate of the size of this queue
 	 */
-	public synchronized int queueAndEstimateSize(MessageItem item, int maxSize) {
+	public int queueAndEstimateSize(MessageItem item, int maxSize) {
 		enqueuePrioritizedMessageItem(item);
-		int x = 0;
+		long x = 0;
 		for(PrioQueue pq : queuesByPriority) {
-			if(pq.itemsNonUrgent != null) {
-				for(MessageItem it : pq.itemsNonUrgent) {
-					x += it.getLength() + 2;
-					if(x > maxSize)
-						break;
-				}
-			}
-			if(pq.nonEmptyItemsWithID != null) {
-				for(PrioQueue.Items q : pq.nonEmptyItemsWithID)
-					for(MessageItem it : q.items) {
-						x += it.getLength() + 2;
-						if(x > maxSize)
-							break;
-					}
-			}
+			x += pq.estimateSize();
+			if(x > maxSize) break;
 		}
-		return x;
+		return (int) x;
 	}
 
-	public synchronized long getMessageQueueLengthBytes() {
+	/** @return The number of bytes of messages which are already urgent. */
+	public long getMessageQueueLengthBytes() {
 		long x = 0;
-		for(PrioQueue pq : queuesByPriority) {
-			if(pq.nonEmptyItemsWithID != null)
-				for(PrioQueue.Items q : pq.nonEmptyItemsWithID)
-					for(MessageItem it : q.items)
-						x += it.getLength() + 2;
-		}
+		for(PrioQueue pq : queuesByPriority)
+			x += pq.urgentBytes();
 		return x;
 	}
 
-	private synchronized void enqueuePrioritizedMessageItem(MessageItem addMe) {
+	private void enqueuePrioritizedMessageItem(MessageItem addMe) {
 		//Assume it goes on the end, both the common case
 		short prio = addMe.getPriority();
-		queuesByPriority[prio].addLast(addMe);
 		if(addMe.sendLoadRT)
-			mustSendLoadRT = true;
+			mustSendLoadRT.set(true);
 		if(addMe.sendLoadBulk)
-			mustSendLoadBulk = true;
+			mustSendLoadBulk.set(true);
+		queuesByPriority[prio].offer(addMe);
 	}
 
 	/**
@@ -785,27 +873,21 @@ public class PeerMessageQueue {
 	 * WARNING: Pulling a message and then pushing it back will mess up the fairness 
 	 * between UID's send order. Try to avoid it.
 	 */
-	synchronized void pushfrontPrioritizedMessageItem(MessageItem addMe) {
+	void pushfrontPrioritizedMessageItem(MessageItem addMe) {
 		//Assume it goes on the front
 		short prio = addMe.getPriority();
-		queuesByPriority[prio].addFirst(addMe);
 		if(addMe.sendLoadRT)
-			mustSendLoadRT = true;
+			mustSendLoadRT.set(true);
 		if(addMe.sendLoadBulk)
-			mustSendLoadBulk = true;
+			mustSendLoadBulk.set(true);
+		queuesByPriority[prio].addFirst(addMe);
 	}
 
-	public synchronized MessageItem[] grabQueuedMessageItems() {
-		int size = 0;
+	public MessageItem[] grabQueuedMessageItems() {
+		List<MessageItem> output = new ArrayList<MessageItem>();
 		for(PrioQueue queue : queuesByPriority)
-			size += queue.size();
-		MessageItem[] output = new MessageItem[size];
-		int ptr = 0;
-		for(PrioQueue queue : queuesByPriority) {
-			ptr = queue.addTo(output, ptr);
-			queue.clear();
-		}
-		return output;
+			queue.grabAll(output);
+		return output.toArray(new MessageItem[output.size()]);
 	}
 
 	/**
@@ -819,9 +901,9 @@ public class PeerMessageQueue {
 	 * Set to Long.MAX_VALUE if you want an accurate value.
 	 * @return The next urgent time, but can be too high if it is less than now.
 	 */
-	public synchronized long getNextUrgentTime(long t, long returnIfBefore) {
+	public long getNextUrgentTime(long t, long returnIfBefore) {
 		for(PrioQueue queue: queuesByPriority) {
-			t = Math.min(t, queue.getNextUrgentTime(t, returnIfBefore));
+			t = Math.min(t, queue.getNextUrgentTime(t));
 			if(t <= returnIfBefore) return t; // How much in the past doesn't matter, as long as it's in the past.
 		}
 		return t;
@@ -846,10 +928,10 @@ public class PeerMessageQueue {
 	 * @return <code>true</code> if <code>minSize</code> + the length of all
 	 * messages in this queue is greater than <code>maxSize</code>
 	 */
-	public synchronized boolean mustSendSize(int minSize, int maxSize) {
-		int length = minSize;
+	public boolean mustSendSize(int minSize, int maxSize) {
+		long length = minSize;
 		for(PrioQueue items : queuesByPriority) {
-			length = items.addSize(length, maxSize);
+			length += items.queuedBytes();
 			if(length > maxSize) return true;
 		}
 		return false;
@@ -859,7 +941,7 @@ public class PeerMessageQueue {
 	 * it assumes it has been sent for purposes of fairness between UID's. You should try
 	 * not to call this function if you are not going to be able to send the message: 
 	 * check in advance if possible. */
-	public synchronized MessageItem grabQueuedMessageItem(int minPriority) {
+	public MessageItem grabQueuedMessageItem(int minPriority) {
 		long now = System.currentTimeMillis();
 		
 		MutableBoolean addPeerLoadStatsRT = new MutableBoolean();
@@ -887,7 +969,7 @@ public class PeerMessageQueue {
 			tryRealtimeFirst = false;
 		} else if(queuesByPriority[DMT.PRIORITY_BULK_DATA].isEmpty()) {
 			tryRealtimeFirst = true;
-		} else if(queuesByPriority[DMT.PRIORITY_BULK_DATA].getNextUrgentTime(Long.MAX_VALUE, 0) >= queuesByPriority[DMT.PRIORITY_REALTIME_DATA].getNextUrgentTime(Long.MAX_VALUE, 0)) {
+		} else if(queuesByPriority[DMT.PRIORITY_BULK_DATA].getNextUrgentTime(Long.MAX_VALUE) >= queuesByPriority[DMT.PRIORITY_REALTIME_DATA].getNextUrgentTime(Long.MAX_VALUE)) {
 			tryRealtimeFirst = true;
 		} else {
 			tryRealtimeFirst = false;
@@ -922,15 +1004,13 @@ public class PeerMessageQueue {
 	}
 	
 	public boolean removeMessage(MessageItem message) {
-		synchronized(this) {
-			short prio = message.getPriority();
-			if(!queuesByPriority[prio].removeMessage(message)) return false;
-		}
+		short prio = message.getPriority();
+		if(!queuesByPriority[prio].removeMessage(message)) return false;
 		message.onFailed();
 		return true;
 	}
 
-	public synchronized void removeUIDsFromMessageQueues(Long[] list) {
+	public void removeUIDsFromMessageQueues(Long[] list) {
 		for(PrioQueue queue : queuesByPriority) {
 			queue.removeUIDs(list);
 		}
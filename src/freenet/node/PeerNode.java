@@ -58,6 +58,7 @@ import freenet.io.comm.DisconnectedException;
 import freenet.io.comm.FreenetInetAddress;
 import freenet.io.comm.Message;
 import freenet.io.comm.MessageFilter;
+import freenet.io.comm.MessageType;
 import freenet.io.comm.NotConnectedException;
 import freenet.io.comm.Peer;
 import freenet.io.comm.Peer.LocalAddressException;
@@ -76,6 +77,7 @@ import freenet.node.OpennetManager.ConnectionType;
 import freenet.node.PeerManager.PeerStatusChangeListener;
 import freenet.support.Base64;
 import freenet.support.BooleanLastTrueTracker;
+import freenet.support.Buffer;
 import freenet.support.Fields;
 import freenet.support.HexUtil;
 import freenet.support.IllegalBase64Exception;
@@ -461,6 +463,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		this.outgoingMangler = mangler;
 		this.node = node2;
 		this.crypto = crypto;
+		this._lastThrottle = new PacketThrottle(Node.PACKET_SIZE, node2.getCongestionControl());
 		assert(crypto.isOpennet == (isOpennet() || isSeed()));
 		this.peers = peers;
 		this.backedOffPercent = new TimeDecayingRunningAverage(0.0, 180000, 0.0, 1.0, node);
@@ -1004,6 +1007,8 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 				localDetectedPeer = detectedPeer = detectedDuplicate;
 			updateShortToString();
 		}
+		// Hostnames may have been looked up.
+		peers.peerAddressChanged();
 		if(logMINOR) {
 			if(localDetectedPeer != null)
 				Logger.minor(this, "3: detectedPeer = " + localDetectedPeer + " (" + localDetectedPeer.getAddress(false) + ')');
@@ -1128,6 +1133,26 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		}
 		addToLocalNodeSentMessagesToStatistic(msg);
 		MessageItem item = new MessageItem(msg, cb == null ? null : new AsyncMessageCallback[]{cb}, ctr);
+		return queueMessageItem(item);
+	}
+
+	@Override
+	public MessageItem sendPacketTransmit(byte[] header, Buffer data, long uid, boolean realTime, AsyncMessageCallback cb, ByteCounter ctr) throws NotConnectedException {
+		if(ctr == null)
+			Logger.error(this, "ByteCounter null, so bandwidth usage cannot be logged. Refusing to send.", new Exception("debug"));
+		if(logMINOR)
+			Logger.minor(this, "Sending packet async: "+uid+" on "+this+" realtime "+realTime);
+		if(!isConnected()) {
+			if(cb != null)
+				cb.disconnected();
+			throw new NotConnectedException();
+		}
+		addToLocalNodeSentMessagesToStatistic(DMT.packetTransmit);
+		MessageItem item = new MessageItem(header, data, uid, cb == null ? null : new AsyncMessageCallback[]{cb}, ctr, DMT.getPacketTransmitPriority(realTime));
+		return queueMessageItem(item);
+	}
+
+	private MessageItem queueMessageItem(MessageItem item) {
 		long now = System.currentTimeMillis();
 		reportBackoffStatus(now);
 		int maxSize = getMaxPacketSize();
@@ -1890,11 +1915,12 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 				updateShortToString();
 				// IP has changed, it is worth looking up the DNS address again.
 				this.lastAttemptedHandshakeIPUpdateTime = 0;
-				if(!isConnected())
-					return;
 			} else
 				return;
 		}
+		peers.peerAddressChanged();
+		if(!isConnected())
+			return;
 		getThrottle().maybeDisconnected();
 		sendIPAddressMessage();
 	}
@@ -2202,7 +2228,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 				Logger.error(this, "previousTracker key equals unverifiedTracker key: prev "+previousTracker+" unv "+unverifiedTracker);
 			timeLastSentPacket = now;
 			if(packetFormat == null) {
-				packetFormat = new NewPacketFormat(this, ourInitialMsgID, theirInitialMsgID);
+				packetFormat = new NewPacketFormat(this, ourInitialMsgID, theirInitialMsgID, crypto.packetTags);
 			}
 			// Completed setup counts as received data packet, for purposes of avoiding spurious disconnections.
 			timeLastReceivedPacket = now;
@@ -2675,6 +2701,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 					// Clear nonces to prevent leak. Will kill any in-progress connect attempts, but that is okay because
 					// either we got an ARK which changed our peers list, or we just connected.
 					jfkNoncesSent.clear();
+					peers.peerAddressChanged();
 				}
 
 			} else if(forARK || forFullNodeRef) {
@@ -3331,10 +3358,14 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 	}
 
 	public void addToLocalNodeSentMessagesToStatistic(Message m) {
+		addToLocalNodeSentMessagesToStatistic(m.getSpec());
+	}
+
+	private void addToLocalNodeSentMessagesToStatistic(MessageType spec) {
 		String messageSpecName;
 		Long count;
 
-		messageSpecName = m.getSpec().getName();
+		messageSpecName = spec.getName();
 		// Synchronize to make increments atomic.
 		synchronized(localNodeSentMessageTypes) {
 			count = localNodeSentMessageTypes.get(messageSpecName);
@@ -3779,7 +3810,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		return Version.getArbitraryBuildNumber(getVersion(), -1);
 	}
 
-	private final PacketThrottle _lastThrottle = new PacketThrottle(Node.PACKET_SIZE);
+	private final PacketThrottle _lastThrottle;
 
 	@Override
 	public PacketThrottle getThrottle() {
@@ -5531,6 +5562,17 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		return paddingGen;
 	}
 
+	/** @return The addresses which matchesPeerAndPort() and matchesIP() compare against. */
+	synchronized List<Peer> getMatchablePeers() {
+		List<Peer> list = new ArrayList<Peer>(nominalPeer == null ? 1 : nominalPeer.size() + 1);
+		if(detectedPeer != null) list.add(detectedPeer);
+		if(nominalPeer != null) {
+			for(Peer p : nominalPeer)
+				if(p != null) list.add(p);
+		}
+		return list;
+	}
+
 	public synchronized boolean matchesPeerAndPort(Peer peer) {
 		if(detectedPeer != null && detectedPeer.laxEquals(peer)) return true;
 		if(nominalPeer != null) { // FIXME condition necessary???
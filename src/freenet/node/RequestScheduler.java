@@ -5,6 +5,8 @@ package freenet.node;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
 
+import java.util.List;
+
 import com.db4o.ObjectContainer;
 
 import freenet.client.FECQueue;
@@ -48,7 +50,9 @@ public interface RequestScheduler {
 	
 	public boolean addToFetching(Key key);
 
-	public ChosenBlock grabRequest();
+	/** Choose up to max blocks to send, in one go, and add them to blocks.
+	 * @return The number of blocks added. */
+	public int grabRequests(int max, List<ChosenBlock> blocks);
 
 	public void removeRunningRequest(SendableRequest request, ObjectContainer container);
 
@@ -6,6 +6,9 @@ package freenet.node;
 import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
 import com.db4o.ObjectContainer;
 
 import freenet.client.async.ChosenBlock;
@@ -83,6 +86,21 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 	
 	static final int MAX_WAITING_FOR_SLOTS = 50;
 	
+	/** Maximum number of blocks to choose at once. Choosing a batch takes the scheduler locks
+	 * once for the whole batch, so on a fast node the starter thread spends its time starting
+	 * requests rather than waiting for locks. */
+	static final int MAX_BATCH_SIZE = 16;
+	/** The throttle should allow us to start a whole batch within this time, otherwise the
+	 * chosen blocks would sit around for a while before they are sent. */
+	static final long BATCH_PERIOD = 100;
+	/** Maximum number of threads running non-blocking sends for this starter. */
+	static final int MAX_SENDER_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+	/** Maximum number of non-blocking sends waiting for a sender thread. If the queue is full
+	 * the starter waits. */
+	static final int MAX_QUEUED_SENDS = MAX_BATCH_SIZE * 4;
+	/** How often we report how busy the starter thread is. */
+	static final long UTILISATION_PERIOD = SECONDS.toNanos(10);
+	
 	public RequestStarter(NodeClientCore node, BaseRequestThrottle throttle, String name, TokenBucket outputBucket, TokenBucket inputBucket,
 			RunningAverage averageOutputBytesPerRequest, RunningAverage averageInputBytesPerRequest, boolean isInsert, boolean isSSK, boolean realTime) {
 		this.core = node;
@@ -96,6 +114,7 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 		this.isInsert = isInsert;
 		this.isSSK = isSSK;
 		this.realTime = realTime;
+		this.starterStats = stats.getRequestStarterStats(this.name);
 	}
 
 	void setScheduler(RequestScheduler sched) {
@@ -109,6 +128,15 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 	}
 	
 	final String name;
+	private final NodeStats.RequestStarterStats starterStats;
+	private final SenderPool senders = new SenderPool();
+	/** Blocks which have been chosen but not started yet. Only used by the starter thread. */
+	private final ArrayDeque<ChosenBlock> batch = new ArrayDeque<ChosenBlock>();
+	private final ArrayList<ChosenBlock> grabbed = new ArrayList<ChosenBlock>(MAX_BATCH_SIZE);
+	/** Time spent choosing and starting requests since periodStart, and the start of the
+	 * current reporting period, in nanoseconds. Only used by the starter thread. */
+	private long busyTime;
+	private long periodStart = System.nanoTime();
 	
 	@Override
 	public String toString() {
@@ -120,6 +148,7 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 		// The last time at which we sent a request or decided not to
 		long cycleTime = System.currentTimeMillis();
 		while(true) {
+			reportUtilisation();
 			// Allow 5 minutes before we start killing requests due to not connecting.
 			OpennetManager om;
 			if(core.node.peers.countConnectedPeers() < 3 && (om = core.node.getOpennet()) != null &&
@@ -135,7 +164,7 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 				continue;
 			}
 			if(req == null) {
-				req = sched.grabRequest();
+				req = grabBatch(throttle.getDelay());
 			}
 			if(req != null) {
 				if(logMINOR) Logger.minor(this, "Running "+req+" priority "+req.getPriority());
@@ -182,8 +211,10 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 				RejectReason reason;
 				assert(req.realTimeFlag == realTime);
 				if(LOCAL_REQUESTS_COMPETE_FAIRLY && !req.localRequestOnly) {
+					long startTime = System.nanoTime();
 					reason = stats.shouldRejectRequest(true, isInsert, isSSK, true, false, null, false, 
 							Node.PREFER_INSERT_DEFAULT && isInsert, req.realTimeFlag, null);
+					busyTime += System.nanoTime() - startTime;
 					if(reason != null) {
 						if(logMINOR)
 							Logger.minor(this, "Not sending local request: "+reason);
@@ -199,7 +230,7 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 				// Always take the lock on RequestStarter first. AFAICS we don't synchronize on RequestStarter anywhere else.
 				// Nested locks here prevent extra latency when there is a race, and therefore allow us to sleep indefinitely
 				synchronized(this) {
-					req = sched.grabRequest();
+					req = grabBatch(throttle.getDelay());
 					if(req == null) {
 						try {
 							wait(SECONDS.toMillis(1)); // this can happen when most but not all stuff is already running but there is still stuff to fetch, so don't wait *too* long.
@@ -211,17 +242,50 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 				}
 			}
 			if(req == null) continue;
+			long startTime = System.nanoTime();
 			if(!startRequest(req, logMINOR)) {
 				// Don't log if it's a cancelled transient request.
 				if(!((!req.isPersistent()) && req.isCancelled()))
 					Logger.normal(this, "No requests to start on "+req);
 			}
+			busyTime += System.nanoTime() - startTime;
 			if(!req.localRequestOnly)
 				cycleTime = System.currentTimeMillis();
-			req = null;
+			req = batch.poll();
 		}
 	}
 
+	/**
+	 * Choose a batch of blocks. The size of the batch depends on how often the throttle lets
+	 * us send requests, so we don't hold on to chosen blocks for long.
+	 * @param delay The current throttle delay.
+	 * @return The first block, or null if there is nothing to send. The rest are queued in
+	 * the batch.
+	 */
+	private ChosenBlock grabBatch(long delay) {
+		int max = (int) Math.max(1, Math.min(MAX_BATCH_SIZE, BATCH_PERIOD / Math.max(1, delay)));
+		long startTime = System.nanoTime();
+		int found = sched.grabRequests(max, grabbed);
+		long elapsed = System.nanoTime() - startTime;
+		busyTime += elapsed;
+		if(found > 0)
+			starterStats.reportSelection(elapsed, found);
+		if(logMINOR) Logger.minor(this, "Chose "+found+" blocks of "+max+" in "+elapsed+"ns");
+		batch.addAll(grabbed);
+		grabbed.clear();
+		return batch.poll();
+	}
+
+	/** Report the fraction of the time the starter thread has been busy, once per period. */
+	private void reportUtilisation() {
+		long now = System.nanoTime();
+		long elapsed = now - periodStart;
+		if(elapsed < UTILISATION_PERIOD) return;
+		starterStats.reportUtilisation(Math.min(1.0, (double) busyTime / elapsed));
+		busyTime = 0;
+		periodStart = now;
+	}
+
 	private boolean startRequest(ChosenBlock req, boolean logMINOR) {
 		if((!req.isPersistent()) && req.isCancelled()) {
 			req.onDumped();
@@ -239,7 +303,12 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 			}
 		}
 		if(logMINOR) Logger.minor(this, "Running request "+req+" priority "+req.getPriority());
-		core.getExecutor().execute(new SenderThread(req, req.key), "RequestStarter$SenderThread for "+req);
+		if(req.sendIsBlocking()) {
+			// Would tie up a sender thread until the request completes.
+			core.getExecutor().execute(new SenderThread(req, req.key), "RequestStarter$SenderThread for "+req);
+		} else {
+			senders.execute(new SenderThread(req, req.key));
+		}
 		return true;
 	}
 
@@ -254,6 +323,10 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 			} catch (Throwable t) {
 				Logger.error(this, "Caught "+t, t);
 			}
+			// Don't leave the blocks we had chosen marked as running.
+			ChosenBlock req;
+			while((req = batch.poll()) != null)
+				req.onDumped();
 		}
 	}
 	
@@ -296,6 +369,64 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 		
 	}
 
+	/**
+	 * Runs non-blocking sends on at most MAX_SENDER_THREADS threads from the node's executor,
+	 * rather than on a new thread for each request. The threads exit when there is nothing
+	 * left to send.
+	 */
+	private class SenderPool implements Runnable {
+
+		/** LOCKING: Protected by this. */
+		private final ArrayDeque<SenderThread> queue = new ArrayDeque<SenderThread>();
+		/** LOCKING: Protected by this. */
+		private int threads;
+
+		/** Queue a send, waiting if the queue is full. Called by the starter thread. */
+		void execute(SenderThread sender) {
+			boolean startThread = false;
+			synchronized(this) {
+				while(queue.size() >= MAX_QUEUED_SENDS) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+				}
+				queue.add(sender);
+				if(threads == 0 || (queue.size() > 1 && threads < MAX_SENDER_THREADS)) {
+					threads++;
+					startThread = true;
+				}
+			}
+			if(startThread)
+				core.getExecutor().execute(this, "RequestStarter$SenderPool for "+name);
+		}
+
+		@Override
+		public void run() {
+			freenet.support.Logger.OSThread.logPID(this);
+			while(true) {
+				SenderThread sender;
+				synchronized(this) {
+					sender = queue.poll();
+					if(sender == null) {
+						threads--;
+						return;
+					}
+					notifyAll();
+				}
+				try {
+					sender.run();
+				} catch (OutOfMemoryError e) {
+					OOMHandler.handleOOM(e);
+				} catch (Throwable t) {
+					Logger.error(this, "Caught "+t+" sending "+sender.req, t);
+				}
+			}
+		}
+
+	}
+
 	/** LOCKING: Caller must avoid locking while calling this function. In particular,
 	 * if the RequestStarter lock is held we will get a deadlock. */
 	public void wakeUp() {
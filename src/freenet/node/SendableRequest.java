@@ -154,8 +154,10 @@ public abstract class SendableRequest implements RandomGrabArrayItem {
 				arr.remove(this, container, context);
 			}
 		} else {
+			// Transient requests are queued on the ClientRequestScheduler, not on a RandomGrabArray.
+			boolean removed = !persistent && getScheduler(container, context).removeTransientRequest(this);
 			// Should this be a higher priority?
-			if(logMINOR)
+			if(!removed && logMINOR)
 				Logger.minor(this, "Cannot unregister "+this+" : not registered", new Exception("debug"));
 		}
 		ClientRequester cr = getClientRequest();
@@ -6,6 +6,8 @@ package freenet.node.simulator;
 import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
 import java.net.MalformedURLException;
 import java.util.Arrays;
 import java.util.ArrayList;
@@ -62,6 +64,8 @@ public class RealNodeRequestInsertTest extends RealNodeRoutingTest {
     // Set to true to cache everything. This depends on security level.
     static final boolean USE_SLASHDOT_CACHE = false;
     static final boolean REAL_TIME_FLAG = false;
+    // CHKs are relayed as block transfers (BlockReceiver/BlockTransmitter), SSKs are not.
+    static final boolean USE_CHKS = true;
     
     static final int TARGET_SUCCESSES = 20;
     //static final int NUMBER_OF_NODES = 50;
@@ -150,6 +154,8 @@ public class RealNodeRequestInsertTest extends RealNodeRoutingTest {
 	private int insertAttempts = 0;
 	private int fetchSuccesses = 0;
 	private final int targetSuccesses;
+	/** CPU time used by the whole network while inserting and fetching, in nanoseconds. */
+	private long cpuTimeUsed = 0;
 
 	/**
 	 * @param nodes
@@ -175,7 +181,7 @@ public class RealNodeRequestInsertTest extends RealNodeRoutingTest {
         //Logger.error(RealNodeRequestInsertTest.class,"Inserting: \""+dataString+"\" to "+node1);
         
         //boolean isSSK = requestNumber % 2 == 1;
-        boolean isSSK = true;
+        boolean isSSK = !USE_CHKS;
         
         FreenetURI testKey;
         ClientKey insertKey;
@@ -204,6 +210,7 @@ public class RealNodeRequestInsertTest extends RealNodeRoutingTest {
         Logger.minor(RealNodeRequestInsertTest.class, "Decoded: "+new String(block.memoryDecode(), "UTF-8"));
         Logger.normal(RealNodeRequestInsertTest.class,"Insert Key: "+insertKey.getURI());
         Logger.normal(RealNodeRequestInsertTest.class,"Fetch Key: "+fetchKey.getURI());
+		long cpuStart = getProcessCpuTime();
 		try {
 			insertAttempts++;
 			randomNode.clientCore.realPut(block.getBlock(), false, FORK_ON_CACHEABLE, false, false, REAL_TIME_FLAG);
@@ -224,10 +231,15 @@ public class RealNodeRequestInsertTest extends RealNodeRoutingTest {
         } catch (LowLevelGetException e) {
         	block = null;
         }
+        String cpu = "";
+        if(cpuStart != -1) {
+        	cpuTimeUsed += getProcessCpuTime() - cpuStart;
+        	cpu = " (average CPU time "+(cpuTimeUsed / insertAttempts / 1000)+"us per "+(isSSK ? "SSK" : "CHK")+" insert and fetch)";
+        }
         if(block == null) {
 			int percentSuccess=100*fetchSuccesses/insertAttempts;
-            Logger.error(RealNodeRequestInsertTest.class, "Fetch #"+requestNumber+" FAILED ("+percentSuccess+"%); from "+node2);
-            System.err.println("Fetch #"+requestNumber+" FAILED ("+percentSuccess+"%); from "+node2);
+            Logger.error(RealNodeRequestInsertTest.class, "Fetch #"+requestNumber+" FAILED ("+percentSuccess+"%); from "+node2+cpu);
+            System.err.println("Fetch #"+requestNumber+" FAILED ("+percentSuccess+"%); from "+node2+cpu);
             requestsAvg.report(0.0);
         } else {
             byte[] results = block.memoryDecode();
@@ -235,8 +247,8 @@ public class RealNodeRequestInsertTest extends RealNodeRoutingTest {
             if(Arrays.equals(results, data)) {
 				fetchSuccesses++;
 				int percentSuccess=100*fetchSuccesses/insertAttempts;
-                Logger.error(RealNodeRequestInsertTest.class, "Fetch #"+requestNumber+" from node "+node2+" succeeded ("+percentSuccess+"%): "+new String(results));
-                System.err.println("Fetch #"+requestNumber+" succeeded ("+percentSuccess+"%): \""+new String(results)+'\"');
+                Logger.error(RealNodeRequestInsertTest.class, "Fetch #"+requestNumber+" from node "+node2+" succeeded ("+percentSuccess+"%): "+new String(results)+cpu);
+                System.err.println("Fetch #"+requestNumber+" succeeded ("+percentSuccess+"%): \""+new String(results)+'\"'+cpu);
                 if(fetchSuccesses == targetSuccesses) {
                 	System.err.println("Succeeded, "+targetSuccesses+" successful fetches");
                 	return 0;
@@ -268,4 +280,13 @@ public class RealNodeRequestInsertTest extends RealNodeRoutingTest {
         }
         return -1;
 	}
+
+	/** @return The CPU time used by this JVM, i.e. all the simulated nodes, in nanoseconds, or -1 if
+	 * it is not available. */
+	private static long getProcessCpuTime() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if(os instanceof com.sun.management.OperatingSystemMXBean)
+			return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+		return -1;
+	}
 }
@@ -36,7 +36,145 @@ public abstract class StoreAccessStats {
 		return (1.0 * writes() / nodeUptimeSeconds);
 	}
 
+	/** Number of times a slot was locked. Zero if the store doesn't lock individual slots. */
+	public long lockAcquisitions() {
+		return 0;
+	}
+
+	/** Number of times we had to wait for another thread to release a slot lock. */
+	public long lockContentions() {
+		return 0;
+	}
+
+	/** Total time spent waiting for slot locks held by other threads, in nanoseconds. */
+	public long lockWaitTimeNanos() {
+		return 0;
+	}
 
+	/** Fraction of slot locks which had to wait for another thread. */
+	public double lockContentionRate() throws StatsNotAvailableException {
+		if (lockAcquisitions() > 0)
+			return (1.0 * lockContentions() / lockAcquisitions());
+		else
+			throw new StatsNotAvailableException();
+	}
 
+	/** Number of routing key digests found in the store's digest cache. */
+	public long digestCacheHits() {
+		return 0;
+	}
+
+	/** Number of routing key digests which had to be computed. */
+	public long digestCacheMisses() {
+		return 0;
+	}
+
+	/** Fraction of routing key digests found in the digest cache. */
+	public double digestCacheHitRate() throws StatsNotAvailableException {
+		long total = digestCacheHits() + digestCacheMisses();
+		if (total > 0)
+			return (1.0 * digestCacheHits() / total);
+		else
+			throw new StatsNotAvailableException();
+	}
+
+	/** Number of blocks waiting in the store's write-behind queue. */
+	public long writeBehindQueuedBlocks() {
+		return 0;
+	}
+
+	/** Number of blocks written to disk from the write-behind queue. */
+	public long writeBehindWrites() {
+		return 0;
+	}
+
+	/** Number of batches written to disk from the write-behind queue. */
+	public long writeBehindBatches() {
+		return 0;
+	}
+
+	/** Number of puts which had to wait because the write-behind queue was full. */
+	public long writeBehindBlockedPuts() {
+		return 0;
+	}
+
+	/** Number of fetches which found the block in the store's in-memory write cache. */
+	public long writeCacheHits() {
+		return 0;
+	}
+
+	/** Number of fetches which had to go past the in-memory write cache. */
+	public long writeCacheMisses() {
+		return 0;
+	}
+
+	/** Number of blocks currently in the in-memory write cache. */
+	public long writeCacheBlocks() {
+		return 0;
+	}
+
+	/** Number of times the in-memory write cache has been written to disk. */
+	public long writeCacheFlushes() {
+		return 0;
+	}
+
+	/** Total time spent writing the in-memory write cache to disk, in nanoseconds. */
+	public long writeCacheFlushTimeNanos() {
+		return 0;
+	}
+
+	/** Longest time taken to write the in-memory write cache to disk, in nanoseconds. */
+	public long writeCacheMaxFlushTimeNanos() {
+		return 0;
+	}
+
+	/** Fraction of fetches which found the block in the in-memory write cache. */
+	public double writeCacheHitRate() throws StatsNotAvailableException {
+		long total = writeCacheHits() + writeCacheMisses();
+		if (total > 0)
+			return (1.0 * writeCacheHits() / total);
+		else
+			throw new StatsNotAvailableException();
+	}
+
+	/** Average time taken to write the in-memory write cache to disk, in nanoseconds. */
+	public long writeCacheAverageFlushTimeNanos() throws StatsNotAvailableException {
+		if (writeCacheFlushes() > 0)
+			return writeCacheFlushTimeNanos() / writeCacheFlushes();
+		else
+			throw new StatsNotAvailableException();
+	}
+
+	/** Number of hits served by the fast tier of a tiered store. */
+	public long fastTierHits() {
+		return 0;
+	}
+
+	/** Number of blocks copied to the fast tier of a tiered store. */
+	public long promotions() {
+		return 0;
+	}
+
+	/** Number of promotions to the fast tier dropped because too many were queued. */
+	public long droppedPromotions() {
+		return 0;
+	}
+
+	/** Fraction of hits which were served by the fast tier of a tiered store. Not available
+	 * if the fast tier has not been used, e.g. if the store is not tiered. */
+	public double fastTierHitRate() throws StatsNotAvailableException {
+		if (hits() > 0 && (fastTierHits() > 0 || promotions() > 0))
+			return (1.0 * fastTierHits() / hits());
+		else
+			throw new StatsNotAvailableException();
+	}
+
+	/** Average number of blocks in each batch written from the write-behind queue. */
+	public double writeBehindBatchSize() throws StatsNotAvailableException {
+		if (writeBehindBatches() > 0)
+			return (1.0 * writeBehindWrites() / writeBehindBatches());
+		else
+			throw new StatsNotAvailableException();
+	}
 
 }
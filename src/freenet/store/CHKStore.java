@@ -73,4 +73,14 @@ public class CHKStore extends StoreCallback<CHKBlock> {
 		return NodeCHK.routingKeyFromFullKey(keyBuf);
 	}
 
+	@Override
+	public byte[] rawData(CHKBlock block) {
+		return block.getRawData();
+	}
+
+	@Override
+	public byte[] rawHeaders(CHKBlock block) {
+		return block.getRawHeaders();
+	}
+
 }
@@ -1,15 +1,25 @@
 package freenet.store;
 
 import java.io.IOException;
-import java.util.TreeMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import freenet.crypt.DSAPublicKey;
 import freenet.keys.KeyVerifyException;
+import freenet.keys.SSKBlock;
 import freenet.node.SemiOrderedShutdownHook;
 import freenet.node.stats.StoreAccessStats;
 import freenet.node.useralerts.UserAlertManager;
-import freenet.support.ByteArrayWrapper;
+import freenet.store.saltedhash.MultiVolumeFreenetStore;
+import freenet.store.saltedhash.SaltedHashFreenetStore;
+import freenet.support.Fields;
 import freenet.support.Logger;
 import freenet.support.Ticker;
 import freenet.support.io.NativeThread;
@@ -17,34 +27,67 @@ import freenet.support.io.NativeThread;
 /**
  * CachingFreenetStore
  * 
+ * In-memory write cache in front of another store. Blocks are kept in an
+ * {@link OffHeapBlockCache}, outside the Java heap, and written to the underlying store by a
+ * flusher job, either after the caching period or as soon as the cache is three quarters full.
+ * The flusher writes in the order of the underlying store's slots if it is a salted hash store,
+ * so the disk sees mostly sequential writes. Fetches don't lock.
+ * 
  * @author Simon Vocella <voxsim@gmail.com>
  * 
  */
 public class CachingFreenetStore<T extends StorableBlock> implements FreenetStore<T> {
     private static volatile boolean logMINOR;
     
-	private long size;
-	private boolean startJob;
-	private boolean shuttingDown; /* If this flag is true, we don't accept puts anymore */
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	private final AtomicBoolean urgentFlushScheduled = new AtomicBoolean();
+	private volatile boolean shuttingDown; /* If this flag is true, we don't accept puts anymore */
+	/** Puts into the cache hold the read lock, setting shuttingDown takes the write lock. */
+	private final ReadWriteLock shutdownLock = new ReentrantReadWriteLock();
 	
 	private final long maxSize;
 	private final long period;
-	private final TreeMap<ByteArrayWrapper, Block<T>> blocksByRoutingKey;
+	/** Null if maxSize is too small for even one block */
+	private final OffHeapBlockCache cache;
 	private final StoreCallback<T> callback;
 	private final FreenetStore<T> backDatastore;
 	private final Ticker ticker;
 	private final boolean collisionPossible;
-	private final ReadWriteLock configLock = new ReentrantReadWriteLock();
+	/** Only one flush at a time */
+	private final ReentrantLock flushLock = new ReentrantLock();
+	/** Flushes to try on shutdown before giving up on blocks which won't flush. */
+	private static final int MAX_SHUTDOWN_FLUSHES = 3;
+	
+	// Statistics
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong flushedBlocks = new AtomicLong();
+	private final AtomicLong flushTime = new AtomicLong();
+	private final AtomicLong maxFlushTime = new AtomicLong();
+	private final AtomicLong bypassedPuts = new AtomicLong();
 	
     static { Logger.registerClass(CachingFreenetStore.class); }
     
-	private final static class Block<T> {
-		T block;
-		byte[] data;
-		byte[] header;
-		boolean overwrite;
-		boolean isOldBlock;
-	}
+	private final Runnable flushJob = new Runnable() {
+		@Override
+		public void run() {
+			flushScheduled.set(false);
+			flush();
+			// Anything put while we were flushing is written after another period.
+			if(cache.size() > 0)
+				scheduleFlush(false);
+		}
+	};
+
+	private final Runnable urgentFlushJob = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				flush();
+			} finally {
+				urgentFlushScheduled.set(false);
+			}
+		}
+	};
 
 	public CachingFreenetStore(StoreCallback<T> callback, long maxSize, long period, FreenetStore<T> backDatastore, Ticker ticker) {
 		if(ticker == null)
@@ -54,10 +97,8 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
 		this.period = period;
 		this.backDatastore = backDatastore;
 		SemiOrderedShutdownHook shutdownHook = SemiOrderedShutdownHook.get();
-		this.blocksByRoutingKey = new TreeMap<ByteArrayWrapper, Block<T>>(ByteArrayWrapper.FAST_COMPARATOR);
+		this.cache = OffHeapBlockCache.create(maxSize, callback.routingKeyLength(), callback.fullKeyLength(), callback.headerLength(), callback.dataLength());
 		this.ticker = ticker;
-		this.size = 0;
-		this.startJob = false;
 		this.collisionPossible = callback.collisionPossible();
 		this.shuttingDown = false;
 		
@@ -76,20 +117,11 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
 			boolean dontPromote, boolean canReadClientCache,
 			boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) 
 			throws IOException {
-		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
+		OffHeapBlockCache.Entry entry = cache == null ? null : cache.get(routingKey);
 		
-		Block<T> block = null;
-		
-		configLock.readLock().lock();
-		try {
-			block = blocksByRoutingKey.get(key);
-		} finally {
-			configLock.readLock().unlock();
-		}
-		
-		if(block != null) {
+		if(entry != null) {
 			try {
-				return this.callback.construct(block.data, block.header, routingKey, block.block.getFullKey(), canReadClientCache, canReadSlashdotCache, meta, null);
+				return this.callback.construct(entry.data, entry.header, routingKey, entry.fullKey, canReadClientCache, canReadSlashdotCache, meta, null);
 			} catch (KeyVerifyException e) {
 				Logger.error(this, "Error in fetching for CachingFreenetStore: "+e, e);
 			}
@@ -125,17 +157,7 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
 
 	@Override
 	public boolean probablyInStore(byte[] routingKey) {
-		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
-		Block<T> block = null;
-		
-		configLock.readLock().lock();
-		try {
-			block = blocksByRoutingKey.get(key);
-		} finally {
-			configLock.readLock().unlock();
-		}
-		
-		return block != null || backDatastore.probablyInStore(routingKey);
+		return (cache != null && cache.contains(routingKey)) || backDatastore.probablyInStore(routingKey);
 	}
 
 	@Override
@@ -143,103 +165,171 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
 			boolean overwrite, boolean isOldBlock) throws IOException,
 			KeyCollisionException {
 		byte[] routingKey = block.getRoutingKey();
-		final ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
-		
-		Block<T> storeBlock = new Block<T>();
-		storeBlock.block = block;
-		storeBlock.data = data;
-		storeBlock.header = header;
-		storeBlock.overwrite = overwrite;
-		storeBlock.isOldBlock = isOldBlock;
+		byte[] fullKey = block.getFullKey();
 		
-		long sizeBlock = data.length+header.length+block.getFullKey().length+routingKey.length;	
-		boolean cacheIt = true;
+		long sizeBlock = data.length+header.length+fullKey.length+routingKey.length;
 		
-		//Case cache it
-		configLock.writeLock().lock();
+		//Case don't cache it
+		if(cache == null || sizeBlock >= maxSize || !cache.fits(routingKey, fullKey, header, data)) {
+			backDatastore.put(block, data, header, overwrite, isOldBlock);
+			return;
+		}
 		
+		// Shutdown waits for puts which are already caching blocks, so they are all flushed.
+		shutdownLock.readLock().lock();
 		try {
-			if(sizeBlock < maxSize && !shuttingDown) {
-				Block<T> previousBlock = blocksByRoutingKey.get(key);
-			
-				if(!collisionPossible || overwrite) {
-					blocksByRoutingKey.put(key, storeBlock);
-					
-					if(previousBlock == null) {
-						size += sizeBlock;
-					}
-				} else {
-					//Case cache it but is it in blocksByRoutingKey? If so, throw a KCE
-					if(previousBlock != null) {
-						if(block.equals(previousBlock.block))
-							return;
-						throw new KeyCollisionException();
-					}
-					
-					//Is probablyInStore()? If so, remove it from blocksByRoutingKey, and set a flag so we don't call put()
-					if(backDatastore.probablyInStore(routingKey)) {
-						cacheIt = false;
-					} else {
-						blocksByRoutingKey.put(key, storeBlock);
-						size += sizeBlock;
-					}
+			if(shuttingDown) {
+				backDatastore.put(block, data, header, overwrite, isOldBlock);
+				return;
+			}
+			putCached(block, data, header, overwrite, isOldBlock, routingKey, fullKey);
+		} finally {
+			shutdownLock.readLock().unlock();
+		}
+	}
+	
+	private void putCached(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock,
+			byte[] routingKey, byte[] fullKey) throws IOException, KeyCollisionException {
+		DSAPublicKey pubKey = (block instanceof SSKBlock) ? ((SSKBlock)block).getPubKey() : null;
+		int flags = (overwrite ? OffHeapBlockCache.FLAG_OVERWRITE : 0) | (isOldBlock ? OffHeapBlockCache.FLAG_OLD_BLOCK : 0);
+		OffHeapBlockCache.PutResult result;
+		
+		if(!collisionPossible || overwrite) {
+			result = cache.put(routingKey, fullKey, header, data, flags, pubKey, false);
+		} else {
+			while(true) {
+				//Case cache it but is it in the cache? If so, throw a KCE
+				OffHeapBlockCache.Entry previous = cache.peek(routingKey);
+				if(previous != null) {
+					if(sameBlock(block, previous))
+						return;
+					throw new KeyCollisionException();
 				}
 				
-				//Check max size
-				if(size > maxSize) {
-					pushAll();
-				} else {
-					//Check period
-					if(!blocksByRoutingKey.isEmpty() && !startJob) {
-						startJob = true;
-						this.ticker.queueTimedJob(new Runnable() {
-							@Override
-							public void run() {
-								configLock.writeLock().lock();
-								try {
-									pushAll();
-								} finally {
-									startJob = false;
-									configLock.writeLock().unlock();
-								}
-							}
-						}, period);
-					}
+				//Is probablyInStore()? If so, write it directly so the underlying store can check for a collision
+				if(backDatastore.probablyInStore(routingKey)) {
+					backDatastore.put(block, data, header, overwrite, isOldBlock);
+					return;
 				}
-			} else {
-				cacheIt = false;
+				
+				result = cache.put(routingKey, fullKey, header, data, flags, pubKey, true);
+				// Another thread cached the same key in the meantime: compare against that.
+				if(result != OffHeapBlockCache.PutResult.EXISTS) break;
 			}
-		} finally {
-			configLock.writeLock().unlock();
 		}
 		
-		//Case don't cache it
-		if(!cacheIt) {
+		if(result == OffHeapBlockCache.PutResult.FULL) {
+			bypassedPuts.incrementAndGet();
+			scheduleFlush(true);
 			backDatastore.put(block, data, header, overwrite, isOldBlock);
 			return;
 		}
+		
+		//Check max size, otherwise check period
+		scheduleFlush(cache.size() * 4 >= cache.capacity() * 3);
+	}
+	
+	/** Compare a block with a cached one, the same way the underlying store would. */
+	private boolean sameBlock(T block, OffHeapBlockCache.Entry previous) {
+		try {
+			T previousBlock = callback.construct(previous.data, previous.header, previous.routingKey, previous.fullKey, true, true, null, previous.pubKey);
+			return block.equals(previousBlock);
+		} catch (KeyVerifyException e) {
+			Logger.error(this, "Cached block does not verify: "+e, e);
+			return false;
+		}
 	}
 	
-	private void pushAll() {
-		configLock.writeLock().lock();
-		try
-		{
-			for(Block<T> block : blocksByRoutingKey.values()) {
-					try {
-						backDatastore.put(block.block, block.data, block.header, block.overwrite, block.isOldBlock);
-					} catch (IOException e) {
-						Logger.error(this, "Error in pushAll for CachingFreenetStore: "+e, e);
-					} catch (KeyCollisionException e) {
-						if(logMINOR) Logger.minor(this, "KeyCollisionException in pushAll for CachingFreenetStore: "+e, e);
-					}
+	/**
+	 * Make sure a flush job is queued.
+	 * @param now If true, flush as soon as possible rather than after the caching period.
+	 */
+	private void scheduleFlush(boolean now) {
+		if(now) {
+			if(urgentFlushScheduled.compareAndSet(false, true))
+				ticker.queueTimedJob(urgentFlushJob, 0);
+		} else if(flushScheduled.compareAndSet(false, true)) {
+			ticker.queueTimedJob(flushJob, period);
+		}
+	}
+	
+	/** Write everything that is cached to the underlying store. */
+	private void flush() {
+		if(cache == null) return;
+		flushLock.lock();
+		try {
+			long startTime = System.nanoTime();
+			ArrayList<OffHeapBlockCache.Entry> entries = cache.entries();
+			if(entries.isEmpty()) return;
+			sortForWriting(entries);
+			int written = 0;
+			for(OffHeapBlockCache.Entry entry : entries) {
+				try {
+					T block = callback.construct(entry.data, entry.header, entry.routingKey, entry.fullKey, true, true, null, entry.pubKey);
+					backDatastore.put(block, entry.data, entry.header, entry.overwrite(), entry.isOldBlock());
+					written++;
+				} catch (IOException e) {
+					Logger.error(this, "Error in flush for CachingFreenetStore: "+e, e);
+				} catch (KeyCollisionException e) {
+					if(logMINOR) Logger.minor(this, "KeyCollisionException in flush for CachingFreenetStore: "+e, e);
+				} catch (KeyVerifyException e) {
+					Logger.error(this, "Cached block does not verify in flush for CachingFreenetStore: "+e, e);
 				}
-			blocksByRoutingKey.clear();
-			size = 0;
+				// If it has been replaced meanwhile, the new version will be written next time.
+				cache.remove(entry);
+			}
+			long time = System.nanoTime() - startTime;
+			flushes.incrementAndGet();
+			flushedBlocks.addAndGet(written);
+			flushTime.addAndGet(time);
+			long max;
+			while(time > (max = maxFlushTime.get()) && !maxFlushTime.compareAndSet(max, time));
+			if(logMINOR) Logger.minor(this, "Flushed "+written+" blocks in "+TimeUnit.NANOSECONDS.toMillis(time)+"ms: "+this);
 		} finally {
-			configLock.writeLock().unlock();
+			flushLock.unlock();
+		}
+	}
+	
+	/** Sort by the slot each block will probably be written to, or else by routing key. */
+	private void sortForWriting(ArrayList<OffHeapBlockCache.Entry> entries) {
+		// If it's tiered, the blocks are written to the slow tier.
+		FreenetStore<T> store = backDatastore.getUnderlyingStore();
+		if(store instanceof SaltedHashFreenetStore || store instanceof MultiVolumeFreenetStore) {
+			for(OffHeapBlockCache.Entry entry : entries) {
+				if(store instanceof SaltedHashFreenetStore)
+					entry.sortKey = ((SaltedHashFreenetStore<T>) store).getFirstOffset(entry.routingKey);
+				else
+					entry.sortKey = ((MultiVolumeFreenetStore<T>) store).getFirstOffset(entry.routingKey);
+			}
+			Collections.sort(entries, new Comparator<OffHeapBlockCache.Entry>() {
+				@Override
+				public int compare(OffHeapBlockCache.Entry e1, OffHeapBlockCache.Entry e2) {
+					if(e1.sortKey < e2.sortKey) return -1;
+					if(e1.sortKey > e2.sortKey) return 1;
+					return 0;
+				}
+			});
+		} else {
+			Collections.sort(entries, new Comparator<OffHeapBlockCache.Entry>() {
+				@Override
+				public int compare(OffHeapBlockCache.Entry e1, OffHeapBlockCache.Entry e2) {
+					return Fields.compareBytes(e1.routingKey, e2.routingKey);
+				}
+			});
 		}
 	}
 
+	@Override
+	public String toString() {
+		if(cache == null) return super.toString() + ": no cache";
+		long count = flushes.get();
+		return super.toString() + ": " + cache.size() + "/" + cache.capacity() + " blocks (" + cache.allocatedBytes() +
+			" bytes off heap), " + cache.hits() + " hits, " + cache.misses() + " misses, " + flushedBlocks.get() +
+			" blocks flushed in " + count + " flushes, average " + (count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(flushTime.get() / count)) +
+			"ms, max " + TimeUnit.NANOSECONDS.toMillis(maxFlushTime.get()) + "ms, " + bypassedPuts.get() +
+			" puts bypassed the cache, " + cache.readRetries() + " read retries";
+	}
+
 	@Override
 	public void setMaxKeys(long maxStoreKeys, boolean shrinkNow)
 			throws IOException {
@@ -253,7 +343,121 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
 
 	@Override
 	public StoreAccessStats getSessionAccessStats() {
-		return backDatastore.getSessionAccessStats();
+		final StoreAccessStats stats = backDatastore.getSessionAccessStats();
+		if(cache == null) return stats;
+		return new StoreAccessStats() {
+
+			@Override
+			public long hits() {
+				return stats.hits();
+			}
+
+			@Override
+			public long misses() {
+				return stats.misses();
+			}
+
+			@Override
+			public long falsePos() {
+				return stats.falsePos();
+			}
+
+			@Override
+			public long writes() {
+				return stats.writes();
+			}
+
+			@Override
+			public long lockAcquisitions() {
+				return stats.lockAcquisitions();
+			}
+
+			@Override
+			public long lockContentions() {
+				return stats.lockContentions();
+			}
+
+			@Override
+			public long lockWaitTimeNanos() {
+				return stats.lockWaitTimeNanos();
+			}
+
+			@Override
+			public long digestCacheHits() {
+				return stats.digestCacheHits();
+			}
+
+			@Override
+			public long digestCacheMisses() {
+				return stats.digestCacheMisses();
+			}
+
+			@Override
+			public long writeBehindQueuedBlocks() {
+				return stats.writeBehindQueuedBlocks();
+			}
+
+			@Override
+			public long writeBehindWrites() {
+				return stats.writeBehindWrites();
+			}
+
+			@Override
+			public long writeBehindBatches() {
+				return stats.writeBehindBatches();
+			}
+
+			@Override
+			public long writeBehindBlockedPuts() {
+				return stats.writeBehindBlockedPuts();
+			}
+
+			@Override
+			public long fastTierHits() {
+				return stats.fastTierHits();
+			}
+
+			@Override
+			public long promotions() {
+				return stats.promotions();
+			}
+
+			@Override
+			public long droppedPromotions() {
+				return stats.droppedPromotions();
+			}
+
+			@Override
+			public long writeCacheHits() {
+				return cache.hits();
+			}
+
+			@Override
+			public long writeCacheMisses() {
+				return cache.misses();
+			}
+
+			@Override
+			public long writeCacheBlocks() {
+				return cache.size();
+			}
+
+			@Override
+			public long writeCacheFlushes() {
+				return flushes.get();
+			}
+
+			@Override
+			public long writeCacheFlushTimeNanos() {
+				return flushTime.get();
+			}
+
+			@Override
+			public long writeCacheMaxFlushTimeNanos() {
+				return maxFlushTime.get();
+			}
+
+		};
 	}
 
 	@Override
@@ -273,7 +477,7 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
 	
 	@Override
 	public FreenetStore<T> getUnderlyingStore() {
-		return this.backDatastore;
+		return this.backDatastore.getUnderlyingStore();
 	}
 
 	@Override
@@ -284,12 +488,17 @@ public class CachingFreenetStore<T extends StorableBlock> implements FreenetStor
 
 	/** Close this store but not the underlying store. */
 	private void innerClose() {
-		configLock.writeLock().lock();
+		shutdownLock.writeLock().lock();
 		try {
 			shuttingDown = true;
-			pushAll();
 		} finally {
-			configLock.writeLock().unlock();
+			shutdownLock.writeLock().unlock();
 		}
+		// No more blocks can be cached now. A flush leaves blocks which were replaced while it
+		// was running, so keep going until the cache is empty.
+		for(int i = 0; i < MAX_SHUTDOWN_FLUSHES && cache != null && cache.size() > 0; i++)
+			flush();
+		if(cache != null && cache.size() > 0)
+			Logger.error(this, "Unable to flush "+cache.size()+" blocks on shutdown: "+this);
 	}
 }
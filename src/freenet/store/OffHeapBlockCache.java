@@ -0,0 +1,568 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import freenet.crypt.DSAPublicKey;
+import freenet.support.Fields;
+import freenet.support.Logger;
+import freenet.support.SizeUtil;
+
+/**
+ * Fixed size block table for {@link CachingFreenetStore}, kept outside the Java heap.
+ *
+ * Blocks are copied into fixed length entries in direct ByteBuffers, so a burst of inserts doesn't
+ * fill the heap with data and header arrays. The entries are split into segments which are only
+ * allocated when the first entry in them is used, so a large cache doesn't take its whole budget
+ * of direct memory at startup. Entries are found through an open addressed hash table of entry
+ * numbers, keyed by routing key.
+ *
+ * Readers never take a lock. Each entry has a version number which is odd while the entry is
+ * being written (a seqlock): a reader copies the entry and then checks that the version hasn't
+ * changed, and retries if it has. The check after the copy is a compareAndSet() rather than a
+ * volatile read, because a volatile read doesn't stop the reads of the buffer before it from being
+ * moved after it; likewise the writer makes the version odd with an atomic increment, so its
+ * writes to the buffer can't be moved before it. Writers (puts, and the flusher removing entries it has written)
+ * are serialized by a lock which is only held while copying a single block, never during disk
+ * I/O. If a reader somehow sees a torn entry anyway, the block fails verification when it is
+ * constructed, and the caller falls back to the underlying store.
+ *
+ * The hash table is replaced as a whole when it fills up with deleted markers, so readers always
+ * see either the old or the new table.
+ */
+final class OffHeapBlockCache {
+
+	/** Flag: overwrite was set when the block was put. */
+	static final int FLAG_OVERWRITE = 1;
+	/** Flag: the block was put as an old block. */
+	static final int FLAG_OLD_BLOCK = 2;
+
+	/** Table value for a slot which has never been used. */
+	private static final int EMPTY = 0;
+	/** Table value for a slot whose entry has been removed. */
+	private static final int DELETED = -1;
+
+	/** Entry layout: flags, full key length, header length, data length, then the content. */
+	private static final int LENGTHS_SIZE = 16;
+
+	/** How often a reader retries an entry which is being modified, before giving up. */
+	private static final int MAX_READ_RETRIES = 16;
+
+	/** Bytes of direct memory allocated at a time. */
+	static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	/** Maximum number of entries, so that the hash table can be indexed by an int. */
+	static final int MAX_CAPACITY = 1 << 29;
+
+	/** Result of a put. */
+	enum PutResult {
+		/** Added a new entry. */
+		ADDED,
+		/** Replaced the entry with the same routing key. */
+		REPLACED,
+		/** There is already an entry with this routing key, and onlyIfAbsent was set. */
+		EXISTS,
+		/** The table is full. */
+		FULL
+	}
+
+	/** A copy of an entry. */
+	static final class Entry {
+		final int index;
+		/** Version at the time of copying, pass to {@link OffHeapBlockCache#remove(Entry)}. */
+		final int version;
+		final int flags;
+		final byte[] routingKey;
+		final byte[] fullKey;
+		final byte[] header;
+		final byte[] data;
+		final DSAPublicKey pubKey;
+		/** For sorting by the caller. */
+		long sortKey;
+
+		Entry(int index, int version, int flags, byte[] routingKey, byte[] fullKey, byte[] header, byte[] data, DSAPublicKey pubKey) {
+			this.index = index;
+			this.version = version;
+			this.flags = flags;
+			this.routingKey = routingKey;
+			this.fullKey = fullKey;
+			this.header = header;
+			this.data = data;
+			this.pubKey = pubKey;
+		}
+
+		boolean overwrite() {
+			return (flags & FLAG_OVERWRITE) != 0;
+		}
+
+		boolean isOldBlock() {
+			return (flags & FLAG_OLD_BLOCK) != 0;
+		}
+	}
+
+	private final int routingKeyLength;
+	private final int maxFullKeyLength;
+	private final int maxHeaderLength;
+	private final int maxDataLength;
+	private final int entrySize;
+	private final int capacity;
+	private final int entriesPerSegment;
+
+	/** The entries, in segments of entriesPerSegment entries, null until first used. Never modify
+	 * position or limit: use absolute access or duplicate(). A segment is set before any entry in
+	 * it is published in the table, so readers never see a null one. */
+	private final AtomicReferenceArray<ByteBuffer> segments;
+	/** Seqlock version of each entry. Odd while the entry is being written. */
+	private final AtomicIntegerArray versions;
+	/** The public key of each SSK entry, needed to reconstruct it. */
+	private final AtomicReferenceArray<DSAPublicKey> pubKeys;
+	/** Open addressed table of entry number + 1, or EMPTY or DELETED. Replaced on rebuild. */
+	private volatile AtomicIntegerArray table;
+
+	/** Serializes all modifications. Readers don't take it. */
+	private final ReentrantLock writeLock = new ReentrantLock();
+	// The following are protected by writeLock
+	/** Table slot of each live entry, or -1 if the entry is free. */
+	private final int[] tableSlots;
+	/** Stack of free entries. */
+	private final int[] freeEntries;
+	private int freeCount;
+	/** Number of DELETED markers in the table. */
+	private int deletedCount;
+	/** Number of segments allocated so far. */
+	private int allocatedSegments;
+
+	// Statistics
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+
+	/**
+	 * @param maxBytes The maximum number of bytes to allocate.
+	 * @return A cache which can hold as many blocks of the given sizes as fit in maxBytes, or
+	 * null if not even one fits.
+	 */
+	static OffHeapBlockCache create(long maxBytes, int routingKeyLength, int fullKeyLength, int headerLength, int dataLength) {
+		long entrySize = (long)LENGTHS_SIZE + routingKeyLength + fullKeyLength + headerLength + dataLength;
+		long capacity = maxBytes / entrySize;
+		if(capacity <= 0) return null;
+		if(capacity > MAX_CAPACITY) {
+			Logger.error(OffHeapBlockCache.class, "Memory cache size "+SizeUtil.formatSize(maxBytes)+
+					" is more than the maximum of "+MAX_CAPACITY+" blocks of "+entrySize+" bytes, only caching "+
+					SizeUtil.formatSize(MAX_CAPACITY * entrySize));
+			capacity = MAX_CAPACITY;
+		}
+		return new OffHeapBlockCache((int) capacity, routingKeyLength, fullKeyLength, headerLength, dataLength);
+	}
+
+	OffHeapBlockCache(int capacity, int routingKeyLength, int fullKeyLength, int headerLength, int dataLength) {
+		this(capacity, 0, routingKeyLength, fullKeyLength, headerLength, dataLength);
+	}
+
+	/**
+	 * @param entriesPerSegment Entries to allocate at a time, or 0 to fit as many as possible in
+	 * {@link #SEGMENT_SIZE}.
+	 */
+	OffHeapBlockCache(int capacity, int entriesPerSegment, int routingKeyLength, int fullKeyLength, int headerLength, int dataLength) {
+		if(capacity <= 0 || capacity > MAX_CAPACITY)
+			throw new IllegalArgumentException("Invalid capacity "+capacity);
+		this.routingKeyLength = routingKeyLength;
+		this.maxFullKeyLength = fullKeyLength;
+		this.maxHeaderLength = headerLength;
+		this.maxDataLength = dataLength;
+		this.entrySize = LENGTHS_SIZE + routingKeyLength + fullKeyLength + headerLength + dataLength;
+		this.capacity = capacity;
+		if(entriesPerSegment <= 0)
+			entriesPerSegment = Math.max(1, SEGMENT_SIZE / entrySize);
+		this.entriesPerSegment = Math.min(capacity, entriesPerSegment);
+		segments = new AtomicReferenceArray<ByteBuffer>((capacity + this.entriesPerSegment - 1) / this.entriesPerSegment);
+		versions = new AtomicIntegerArray(capacity);
+		pubKeys = new AtomicReferenceArray<DSAPublicKey>(capacity);
+		table = new AtomicIntegerArray(tableSizeFor(capacity));
+		tableSlots = new int[capacity];
+		freeEntries = new int[capacity];
+		for(int i=0;i<capacity;i++) {
+			tableSlots[i] = -1;
+			// Hand out low entries first.
+			freeEntries[i] = capacity - 1 - i;
+		}
+		freeCount = capacity;
+	}
+
+	/** Power of 2, at least twice the capacity, so the table is at most half full of live
+	 * entries. */
+	private static int tableSizeFor(int capacity) {
+		int size = 4;
+		while(size < capacity * 2)
+			size <<= 1;
+		return size;
+	}
+
+	/** @return The segment containing an entry. */
+	private ByteBuffer segment(int index) {
+		return segments.get(index / entriesPerSegment);
+	}
+
+	/** @return The offset of an entry in its segment. */
+	private int offset(int index) {
+		return (index % entriesPerSegment) * entrySize;
+	}
+
+	/** Make sure the segment containing an entry is allocated. Called with the lock held. */
+	private void allocateSegment(int index) {
+		int segment = index / entriesPerSegment;
+		if(segments.get(segment) != null) return;
+		int entries = Math.min(entriesPerSegment, capacity - segment * entriesPerSegment);
+		segments.set(segment, ByteBuffer.allocateDirect(entries * entrySize));
+		allocatedSegments++;
+	}
+
+	private static int hash(byte[] routingKey) {
+		// Routing keys are hashes already, but mix the bits so nearby keys don't cluster.
+		int h = Fields.hashCode(routingKey);
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+		return h;
+	}
+
+	/** @return True if a block with these lengths can be cached. */
+	boolean fits(byte[] routingKey, byte[] fullKey, byte[] header, byte[] data) {
+		return routingKey.length == routingKeyLength && fullKey.length <= maxFullKeyLength &&
+			header.length <= maxHeaderLength && data.length <= maxDataLength;
+	}
+
+	/**
+	 * Look up a block. Doesn't lock.
+	 * @return A copy of the block, or null if it is not cached.
+	 */
+	Entry get(byte[] routingKey) {
+		Entry entry = lookup(routingKey);
+		if(entry == null)
+			misses.incrementAndGet();
+		else
+			hits.incrementAndGet();
+		return entry;
+	}
+
+	/**
+	 * Look up a block without counting it as a hit or a miss, e.g. to check for a collision.
+	 * Doesn't lock.
+	 * @return A copy of the block, or null if it is not cached.
+	 */
+	Entry peek(byte[] routingKey) {
+		return lookup(routingKey);
+	}
+
+	/** @return True if the block is cached. Doesn't lock, doesn't copy the block, doesn't count
+	 * as a hit or a miss. */
+	boolean contains(byte[] routingKey) {
+		return find(routingKey) >= 0;
+	}
+
+	private Entry lookup(byte[] routingKey) {
+		AtomicIntegerArray t = table;
+		int mask = t.length() - 1;
+		int start = hash(routingKey) & mask;
+		for(int i=0;i<=mask;i++) {
+			int value = t.get((start + i) & mask);
+			if(value == EMPTY) return null;
+			if(value == DELETED) continue;
+			Entry entry = read(value - 1, routingKey);
+			if(entry != null) return entry;
+		}
+		return null;
+	}
+
+	/** @return The entry number for the key, or -1. Doesn't lock. */
+	private int find(byte[] routingKey) {
+		AtomicIntegerArray t = table;
+		int mask = t.length() - 1;
+		int start = hash(routingKey) & mask;
+		for(int i=0;i<=mask;i++) {
+			int value = t.get((start + i) & mask);
+			if(value == EMPTY) return -1;
+			if(value == DELETED) continue;
+			int index = value - 1;
+			for(int j=0;j<MAX_READ_RETRIES;j++) {
+				int version = versions.get(index);
+				if((version & 1) != 0) {
+					retries.incrementAndGet();
+					Thread.yield();
+					continue;
+				}
+				boolean match = keyMatches(index, routingKey);
+				if(!validate(index, version)) {
+					retries.incrementAndGet();
+					continue;
+				}
+				if(match) return index;
+				break;
+			}
+		}
+		return -1;
+	}
+
+	private boolean keyMatches(int index, byte[] routingKey) {
+		ByteBuffer arena = segment(index);
+		int offset = offset(index) + LENGTHS_SIZE;
+		for(int i=0;i<routingKeyLength;i++)
+			if(arena.get(offset + i) != routingKey[i]) return false;
+		return true;
+	}
+
+	/**
+	 * Copy an entry if it has the given routing key.
+	 * @param routingKey If null, copy the entry whatever its key is.
+	 * @return The copy, or null if the key doesn't match or the entry kept changing.
+	 */
+	private Entry read(int index, byte[] routingKey) {
+		ByteBuffer arena = segment(index);
+		int offset = offset(index);
+		for(int i=0;i<MAX_READ_RETRIES;i++) {
+			int version = versions.get(index);
+			if((version & 1) != 0) {
+				// Being written.
+				retries.incrementAndGet();
+				Thread.yield();
+				continue;
+			}
+			if(routingKey != null && !keyMatches(index, routingKey)) {
+				if(validate(index, version)) return null;
+				retries.incrementAndGet();
+				continue;
+			}
+			int flags = arena.getInt(offset);
+			int fullKeyLength = arena.getInt(offset + 4);
+			int headerLength = arena.getInt(offset + 8);
+			int dataLength = arena.getInt(offset + 12);
+			if(fullKeyLength < 0 || fullKeyLength > maxFullKeyLength ||
+					headerLength < 0 || headerLength > maxHeaderLength ||
+					dataLength < 0 || dataLength > maxDataLength) {
+				// Torn read.
+				retries.incrementAndGet();
+				continue;
+			}
+			ByteBuffer buf = arena.duplicate();
+			buf.position(offset + LENGTHS_SIZE);
+			byte[] key = new byte[routingKeyLength];
+			buf.get(key);
+			byte[] fullKey = new byte[fullKeyLength];
+			buf.get(fullKey);
+			buf.position(offset + LENGTHS_SIZE + routingKeyLength + maxFullKeyLength);
+			byte[] header = new byte[headerLength];
+			buf.get(header);
+			buf.position(offset + LENGTHS_SIZE + routingKeyLength + maxFullKeyLength + maxHeaderLength);
+			byte[] data = new byte[dataLength];
+			buf.get(data);
+			DSAPublicKey pubKey = pubKeys.get(index);
+			if(!validate(index, version)) {
+				retries.incrementAndGet();
+				continue;
+			}
+			return new Entry(index, version, flags, key, fullKey, header, data, pubKey);
+		}
+		return null;
+	}
+
+	/**
+	 * Add or replace a block.
+	 * @param onlyIfAbsent If true, don't replace an existing block with the same routing key.
+	 * @param pubKey The public key if the block is an SSK, so it can be reconstructed without
+	 * looking it up again.
+	 */
+	PutResult put(byte[] routingKey, byte[] fullKey, byte[] header, byte[] data, int flags, DSAPublicKey pubKey, boolean onlyIfAbsent) {
+		writeLock.lock();
+		try {
+			AtomicIntegerArray t = table;
+			int mask = t.length() - 1;
+			int start = hash(routingKey) & mask;
+			int firstFree = -1;
+			for(int i=0;i<=mask;i++) {
+				int slot = (start + i) & mask;
+				int value = t.get(slot);
+				if(value == EMPTY) {
+					if(firstFree == -1) firstFree = slot;
+					break;
+				}
+				if(value == DELETED) {
+					if(firstFree == -1) firstFree = slot;
+					continue;
+				}
+				int index = value - 1;
+				// We hold the lock so the entry can't change under us.
+				if(keyMatches(index, routingKey)) {
+					if(onlyIfAbsent) return PutResult.EXISTS;
+					write(index, routingKey, fullKey, header, data, flags, pubKey);
+					return PutResult.REPLACED;
+				}
+			}
+			if(freeCount == 0 || firstFree == -1) return PutResult.FULL;
+			int index = freeEntries[--freeCount];
+			allocateSegment(index);
+			write(index, routingKey, fullKey, header, data, flags, pubKey);
+			if(t.get(firstFree) == DELETED) deletedCount--;
+			tableSlots[index] = firstFree;
+			// Publish the entry only after it has been written.
+			t.set(firstFree, index + 1);
+			if(deletedCount > t.length() / 4)
+				rebuild();
+			return PutResult.ADDED;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Check that an entry hasn't changed since we read the given version, after copying it.
+	 * This is a full fence, so the reads of the copy happen before the check.
+	 */
+	private boolean validate(int index, int version) {
+		return versions.compareAndSet(index, version, version);
+	}
+
+	/** Called with the lock held. */
+	private void write(int index, byte[] routingKey, byte[] fullKey, byte[] header, byte[] data, int flags, DSAPublicKey pubKey) {
+		// A full fence, so none of the writes below happen before the version is odd.
+		int version = versions.getAndIncrement(index);
+		ByteBuffer arena = segment(index);
+		int offset = offset(index);
+		arena.putInt(offset, flags);
+		arena.putInt(offset + 4, fullKey.length);
+		arena.putInt(offset + 8, header.length);
+		arena.putInt(offset + 12, data.length);
+		ByteBuffer buf = arena.duplicate();
+		buf.position(offset + LENGTHS_SIZE);
+		buf.put(routingKey);
+		buf.put(fullKey);
+		buf.position(offset + LENGTHS_SIZE + routingKeyLength + maxFullKeyLength);
+		buf.put(header);
+		buf.position(offset + LENGTHS_SIZE + routingKeyLength + maxFullKeyLength + maxHeaderLength);
+		buf.put(data);
+		pubKeys.set(index, pubKey);
+		versions.set(index, version + 2);
+	}
+
+	/**
+	 * Remove an entry, unless it has been replaced since it was copied.
+	 * @return True if the entry was removed.
+	 */
+	boolean remove(Entry entry) {
+		writeLock.lock();
+		try {
+			int index = entry.index;
+			int slot = tableSlots[index];
+			if(slot == -1 || versions.get(index) != entry.version) return false;
+			AtomicIntegerArray t = table;
+			t.set(slot, DELETED);
+			deletedCount++;
+			tableSlots[index] = -1;
+			// Make readers which are still copying it retry.
+			versions.set(index, entry.version + 2);
+			pubKeys.set(index, null);
+			freeEntries[freeCount++] = index;
+			return true;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/** Replace the table with one without DELETED markers. Called with the lock held. */
+	private void rebuild() {
+		AtomicIntegerArray newTable = new AtomicIntegerArray(table.length());
+		int mask = newTable.length() - 1;
+		for(int index=0;index<capacity;index++) {
+			if(tableSlots[index] == -1) continue;
+			byte[] routingKey = new byte[routingKeyLength];
+			ByteBuffer buf = segment(index).duplicate();
+			buf.position(offset(index) + LENGTHS_SIZE);
+			buf.get(routingKey);
+			int slot = hash(routingKey) & mask;
+			while(newTable.get(slot) != EMPTY)
+				slot = (slot + 1) & mask;
+			newTable.set(slot, index + 1);
+			tableSlots[index] = slot;
+		}
+		deletedCount = 0;
+		table = newTable;
+	}
+
+	/**
+	 * Copy all the entries, e.g. for flushing. Doesn't hold the lock while copying, so entries
+	 * may be added or replaced meanwhile; {@link #remove(Entry)} checks for that.
+	 */
+	ArrayList<Entry> entries() {
+		int[] indexes;
+		int count = 0;
+		writeLock.lock();
+		try {
+			indexes = new int[capacity - freeCount];
+			for(int index=0;index<capacity;index++)
+				if(tableSlots[index] != -1)
+					indexes[count++] = index;
+		} finally {
+			writeLock.unlock();
+		}
+		ArrayList<Entry> entries = new ArrayList<Entry>(count);
+		for(int i=0;i<count;i++) {
+			Entry entry = read(indexes[i], null);
+			if(entry != null) entries.add(entry);
+		}
+		return entries;
+	}
+
+	/** @return The number of cached blocks. */
+	int size() {
+		writeLock.lock();
+		try {
+			return capacity - freeCount;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	int capacity() {
+		return capacity;
+	}
+
+	/** @return The number of bytes allocated off heap so far. */
+	long allocatedBytes() {
+		writeLock.lock();
+		try {
+			if(allocatedSegments == 0) return 0;
+			// Only the last segment can be smaller.
+			long bytes = (long)allocatedSegments * entriesPerSegment * entrySize;
+			if(segments.get(segments.length() - 1) != null)
+				bytes -= ((long)segments.length() * entriesPerSegment - capacity) * entrySize;
+			return bytes;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/** @return The maximum number of bytes which will be allocated off heap. */
+	long maxBytes() {
+		return (long)capacity * entrySize;
+	}
+
+	long hits() {
+		return hits.get();
+	}
+
+	long misses() {
+		return misses.get();
+	}
+
+	/** @return The number of times a reader had to retry because an entry was being written. */
+	long readRetries() {
+		return retries.get();
+	}
+
+}
@@ -1,73 +1,418 @@
 package freenet.store;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.keys.KeyVerifyException;
 import freenet.node.stats.StoreAccessStats;
 import freenet.node.useralerts.UserAlertManager;
 import freenet.support.ByteArrayWrapper;
-import freenet.support.LRUMap;
 import freenet.support.Logger;
 import freenet.support.Ticker;
 
 /**
- * LRU in memory store.
- * 
- * For debugging / simulation only
+ * In memory store, for RAM-only nodes and simulations.
+ *
+ * The keys are divided between independently locked segments by hash, so fetches and puts on
+ * different segments don't contend. Each segment is a segmented LRU: new blocks go into a
+ * probationary list, and only move to the protected list if they are fetched again, so a burst
+ * of blocks which are only ever fetched once can't flush out the popular ones. Block contents
+ * can be kept outside the Java heap, in one direct buffer per segment, so a big store doesn't
+ * make garbage collection slow.
  */
 public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T> {
 
+	/** Segments hold at least this many keys, so small stores are a single exact LRU. */
+	static final int MIN_SEGMENT_KEYS = 256;
+	private static final int MAX_SEGMENTS = 256;
+	/** The protected list can use this much of a segment. */
+	private static final double PROTECTED_FRACTION = 0.8;
+	/** Largest direct buffer to allocate for one segment. */
+	private static final long MAX_SEGMENT_BYTES = 1 << 30;
+	/** Rough heap overhead of a block: the wrapper, the map entry and the Block itself. */
+	private static final int BLOCK_OVERHEAD = 128;
+
 	private final static class Block {
+		/** Null if the block is off heap. */
 		byte[] header;
 		byte[] data;
 		byte[] fullKey;
+		/** Slot in the segment's buffer, or -1 if the block is on the heap. */
+		int slot = -1;
+		int headerLength;
+		int dataLength;
+		int fullKeyLength;
 		boolean oldBlock;
 	}
-	
-	private final LRUMap<ByteArrayWrapper, Block> blocksByRoutingKey;
-	
+
+	/** The contents of a block, copied while holding the segment lock. */
+	private final static class Copy {
+		final Block block;
+		final byte[] header;
+		final byte[] data;
+		final byte[] fullKey;
+		final boolean oldBlock;
+
+		Copy(Block block, byte[] header, byte[] data, byte[] fullKey, boolean oldBlock) {
+			this.block = block;
+			this.header = header;
+			this.data = data;
+			this.fullKey = fullKey;
+			this.oldBlock = oldBlock;
+		}
+	}
+
 	private final StoreCallback<T> callback;
-	
-	private int maxKeys;
-	
-	private long hits;
-	private long misses;
-	private long writes;
-	
+	private final boolean storeFullKeys;
+	private final boolean collisionPossible;
+	private final boolean offHeap;
+	/** Size of a slot in an off heap buffer. */
+	private final int slotSize;
+	private final Segment[] segments;
+	private final int segmentMask;
+
+	private long maxKeys;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
+
+	/** One independently locked part of the store. */
+	private final class Segment {
+		/** Blocks which have not been fetched since they were added. Insertion order, oldest
+		 * first. */
+		private final LinkedHashMap<ByteArrayWrapper, Block> probation = new LinkedHashMap<ByteArrayWrapper, Block>();
+		/** Blocks which have been fetched. Least recently used first. */
+		private final LinkedHashMap<ByteArrayWrapper, Block> protectedBlocks = new LinkedHashMap<ByteArrayWrapper, Block>();
+		private int capacity;
+		private long bytes;
+		private ByteBuffer buffer;
+		private int[] freeSlots;
+		private int freeSlotCount;
+
+		Segment(int capacity) {
+			setCapacity(capacity);
+		}
+
+		synchronized int size() {
+			return probation.size() + protectedBlocks.size();
+		}
+
+		synchronized long bytes() {
+			return bytes;
+		}
+
+		private Block find(ByteArrayWrapper key) {
+			Block block = protectedBlocks.get(key);
+			if(block != null) return block;
+			return probation.get(key);
+		}
+
+		synchronized boolean contains(ByteArrayWrapper key) {
+			return find(key) != null;
+		}
+
+		/**
+		 * Find a block and copy its contents.
+		 * @param promote If true, move the block to the most recently used end of the
+		 * protected list.
+		 */
+		synchronized Copy get(ByteArrayWrapper key, boolean promote) {
+			Block block = protectedBlocks.get(key);
+			if(block != null) {
+				if(promote) {
+					protectedBlocks.remove(key);
+					protectedBlocks.put(key, block);
+				}
+			} else {
+				block = probation.get(key);
+				if(block == null) return null;
+				if(promote) {
+					probation.remove(key);
+					protectedBlocks.put(key, block);
+					demoteProtected();
+				}
+			}
+			return copy(block);
+		}
+
+		/** Move the least recently used protected blocks back to probation if there are too
+		 * many. */
+		private void demoteProtected() {
+			int maxProtected = (int) (capacity * PROTECTED_FRACTION);
+			Iterator<Map.Entry<ByteArrayWrapper, Block>> it = protectedBlocks.entrySet().iterator();
+			while(protectedBlocks.size() > maxProtected) {
+				Map.Entry<ByteArrayWrapper, Block> e = it.next();
+				it.remove();
+				probation.put(e.getKey(), e.getValue());
+			}
+		}
+
+		private Copy copy(Block block) {
+			if(block.slot == -1)
+				return new Copy(block, block.header, block.data, block.fullKey, block.oldBlock);
+			ByteBuffer buf = buffer.duplicate();
+			buf.position(block.slot * slotSize);
+			byte[] header = new byte[block.headerLength];
+			buf.get(header);
+			byte[] data = new byte[block.dataLength];
+			buf.get(data);
+			byte[] fullKey = null;
+			if(block.fullKeyLength >= 0) {
+				fullKey = new byte[block.fullKeyLength];
+				buf.get(fullKey);
+			}
+			return new Copy(block, header, data, fullKey, block.oldBlock);
+		}
+
+		private boolean sameContent(Block block, byte[] data, byte[] header, byte[] fullKey) {
+			Copy copy = copy(block);
+			return Arrays.equals(copy.data, data) && Arrays.equals(copy.header, header) &&
+				(storeFullKeys ? Arrays.equals(copy.fullKey, fullKey) : true);
+		}
+
+		synchronized void put(ByteArrayWrapper key, byte[] data, byte[] header, byte[] fullKey, boolean overwrite, boolean isOldBlock) throws KeyCollisionException {
+			Block oldBlock = find(key);
+			if(oldBlock != null) {
+				if(collisionPossible) {
+					if(sameContent(oldBlock, data, header, fullKey)) {
+						if(!isOldBlock)
+							oldBlock.oldBlock = false;
+						return;
+					}
+					if(overwrite) {
+						bytes -= blockBytes(oldBlock);
+						store(oldBlock, data, header, fullKey);
+						bytes += blockBytes(oldBlock);
+						oldBlock.oldBlock = isOldBlock;
+					} else {
+						throw new KeyCollisionException();
+					}
+				} else {
+					if(!isOldBlock)
+						oldBlock.oldBlock = false;
+				}
+				return;
+			}
+			if(capacity == 0) return;
+			if(size() >= capacity)
+				evict(size() - capacity + 1);
+			Block block = new Block();
+			block.slot = allocateSlot();
+			store(block, data, header, fullKey);
+			block.oldBlock = isOldBlock;
+			probation.put(key, block);
+			bytes += blockBytes(block);
+		}
+
+		private void store(Block block, byte[] data, byte[] header, byte[] fullKey) {
+			block.headerLength = header.length;
+			block.dataLength = data.length;
+			block.fullKeyLength = (storeFullKeys && fullKey != null) ? fullKey.length : -1;
+			if(block.slot != -1 && header.length + data.length + Math.max(0, block.fullKeyLength) > slotSize) {
+				// Bigger than it should be. Keep it on the heap.
+				freeSlots[freeSlotCount++] = block.slot;
+				block.slot = -1;
+			}
+			if(block.slot == -1) {
+				block.header = header;
+				block.data = data;
+				block.fullKey = block.fullKeyLength >= 0 ? fullKey : null;
+				return;
+			}
+			ByteBuffer buf = buffer.duplicate();
+			buf.position(block.slot * slotSize);
+			buf.put(header);
+			buf.put(data);
+			if(block.fullKeyLength >= 0)
+				buf.put(fullKey);
+		}
+
+		private int allocateSlot() {
+			if(buffer == null || freeSlotCount == 0) return -1;
+			return freeSlots[--freeSlotCount];
+		}
+
+		private long blockBytes(Block block) {
+			return BLOCK_OVERHEAD + block.headerLength + block.dataLength + Math.max(0, block.fullKeyLength);
+		}
+
+		/** Remove the least valuable blocks: probation first, oldest first. */
+		private void evict(int count) {
+			for(int i=0;i<count;i++) {
+				LinkedHashMap<ByteArrayWrapper, Block> list = probation.isEmpty() ? protectedBlocks : probation;
+				Iterator<Block> it = list.values().iterator();
+				if(!it.hasNext()) return;
+				Block block = it.next();
+				it.remove();
+				release(block);
+			}
+		}
+
+		private void release(Block block) {
+			bytes -= blockBytes(block);
+			if(block.slot != -1) {
+				freeSlots[freeSlotCount++] = block.slot;
+				block.slot = -1;
+			}
+		}
+
+		/** Remove a block if it hasn't been replaced meanwhile. */
+		synchronized void remove(ByteArrayWrapper key, Block expected) {
+			Block block = find(key);
+			if(block != expected) return;
+			if(protectedBlocks.remove(key) == null)
+				probation.remove(key);
+			release(block);
+		}
+
+		synchronized void setCapacity(int newCapacity) {
+			if(size() > newCapacity)
+				evict(size() - newCapacity);
+			capacity = newCapacity;
+			demoteProtected();
+			if(offHeap)
+				reallocate();
+		}
+
+		/** Move the blocks to a buffer the size of the new capacity. */
+		private void reallocate() {
+			ByteBuffer oldBuffer = buffer;
+			buffer = capacity == 0 ? null : ByteBuffer.allocateDirect(capacity * slotSize);
+			freeSlots = new int[capacity];
+			freeSlotCount = 0;
+			int next = 0;
+			for(LinkedHashMap<ByteArrayWrapper, Block> list : lists()) {
+				for(Block block : list.values()) {
+					if(block.slot == -1) continue;
+					ByteBuffer src = oldBuffer.duplicate();
+					src.position(block.slot * slotSize);
+					src.limit(block.slot * slotSize + slotSize);
+					ByteBuffer dst = buffer.duplicate();
+					dst.position(next * slotSize);
+					dst.put(src);
+					block.slot = next++;
+				}
+			}
+			for(int i=capacity-1;i>=next;i--)
+				freeSlots[freeSlotCount++] = i;
+		}
+
+		@SuppressWarnings("unchecked")
+		private LinkedHashMap<ByteArrayWrapper, Block>[] lists() {
+			return new LinkedHashMap[] { probation, protectedBlocks };
+		}
+
+		/** @return Copies of all the blocks and their keys. */
+		synchronized void snapshot(ArrayList<ByteArrayWrapper> keys, ArrayList<Copy> copies) {
+			for(LinkedHashMap<ByteArrayWrapper, Block> list : lists()) {
+				for(Map.Entry<ByteArrayWrapper, Block> e : list.entrySet()) {
+					keys.add(e.getKey());
+					copies.add(copy(e.getValue()));
+				}
+			}
+		}
+
+		synchronized void clear() {
+			probation.clear();
+			protectedBlocks.clear();
+			bytes = 0;
+			freeSlotCount = 0;
+			if(freeSlots != null) {
+				for(int i=freeSlots.length-1;i>=0;i--)
+					freeSlots[freeSlotCount++] = i;
+			}
+		}
+	}
+
 	public RAMFreenetStore(StoreCallback<T> callback, int maxKeys) {
+		this(callback, maxKeys, false);
+	}
+
+	/**
+	 * @param offHeap If true, keep the contents of the blocks in direct buffers rather than on
+	 * the Java heap.
+	 */
+	@SuppressWarnings("unchecked")
+	public RAMFreenetStore(StoreCallback<T> callback, long maxKeys, boolean offHeap) {
 		this.callback = callback;
-		this.blocksByRoutingKey = LRUMap.createSafeMap(ByteArrayWrapper.FAST_COMPARATOR);
+		this.storeFullKeys = callback.storeFullKeys();
+		this.collisionPossible = callback.collisionPossible();
+		this.offHeap = offHeap;
+		this.slotSize = callback.headerLength() + callback.dataLength() + (storeFullKeys ? callback.fullKeyLength() : 0);
+		int count = 1;
+		while(count < MAX_SEGMENTS && (maxKeys / (count * 2) >= MIN_SEGMENT_KEYS ||
+				(offHeap && (maxKeys / count) * slotSize > MAX_SEGMENT_BYTES)))
+			count <<= 1;
+		this.segments = new RAMFreenetStore.Segment[count];
+		this.segmentMask = count - 1;
 		this.maxKeys = maxKeys;
+		for(int i=0;i<count;i++)
+			segments[i] = new Segment(segmentCapacity(i, maxKeys));
 		callback.setStore(this);
 	}
-	
+
+	/**
+	 * Create a store which uses at most a given amount of memory.
+	 * @param maxBytes The memory to use for blocks, including their overhead on the heap.
+	 */
+	public static <T extends StorableBlock> RAMFreenetStore<T> createBySize(StoreCallback<T> callback, long maxBytes, boolean offHeap) {
+		return new RAMFreenetStore<T>(callback, maxBytes / bytesPerBlock(callback), offHeap);
+	}
+
+	/** @return The memory needed for each block, on and off the heap. */
+	public static long bytesPerBlock(StoreCallback<?> callback) {
+		return BLOCK_OVERHEAD + callback.routingKeyLength() + callback.headerLength() + callback.dataLength() +
+			(callback.storeFullKeys() ? callback.fullKeyLength() : 0);
+	}
+
+	private int segmentCapacity(int segment, long keys) {
+		long capacity = keys / segments.length;
+		if(segment < keys % segments.length) capacity++;
+		if(offHeap)
+			capacity = Math.min(capacity, Integer.MAX_VALUE / slotSize);
+		return (int) Math.min(capacity, Integer.MAX_VALUE);
+	}
+
+	private Segment segmentFor(ByteArrayWrapper key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+		return segments[h & segmentMask];
+	}
+
 	@Override
-	public synchronized T fetch(byte[] routingKey, byte[] fullKey,
+	public T fetch(byte[] routingKey, byte[] fullKey,
 			boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException {
 		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
-		Block block = blocksByRoutingKey.get(key);
-		if(block == null) {
-			misses++;
+		Segment segment = segmentFor(key);
+		Copy copy = segment.get(key, !dontPromote);
+		if(copy == null) {
+			misses.incrementAndGet();
 			return null;
 		}
-		if(ignoreOldBlocks && block.oldBlock) {
+		if(ignoreOldBlocks && copy.oldBlock) {
 			Logger.normal(this, "Ignoring old block");
 			return null;
 		}
 		try {
+			// Verify outside the lock.
 			T ret =
-				callback.construct(block.data, block.header, routingKey, block.fullKey, canReadClientCache, canReadSlashdotCache, meta, null);
-			hits++;
-			if(!dontPromote)
-				blocksByRoutingKey.push(key, block);
-			if(meta != null && block.oldBlock)
+				callback.construct(copy.data, copy.header, routingKey, copy.fullKey, canReadClientCache, canReadSlashdotCache, meta, null);
+			hits.incrementAndGet();
+			if(meta != null && copy.oldBlock)
 				meta.setOldBlock();
 			return ret;
 		} catch (KeyVerifyException e) {
-			blocksByRoutingKey.removeKey(key);
-			misses++;
+			segment.remove(key, copy.block);
+			misses.incrementAndGet();
 			return null;
 		}
 	}
@@ -78,131 +423,109 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 	}
 
 	@Override
-	public synchronized long hits() {
-		return hits;
+	public long hits() {
+		return hits.get();
 	}
 
 	@Override
-	public synchronized long keyCount() {
-		return blocksByRoutingKey.size();
+	public long keyCount() {
+		long count = 0;
+		for(Segment segment : segments)
+			count += segment.size();
+		return count;
+	}
+
+	/** @return The memory used by the blocks, on and off the heap, excluding unused off heap
+	 * slots. */
+	public long bytesUsed() {
+		long bytes = 0;
+		for(Segment segment : segments)
+			bytes += segment.bytes();
+		return bytes;
 	}
 
 	@Override
-	public synchronized long misses() {
-		return misses;
+	public long misses() {
+		return misses.get();
 	}
 
 	@Override
-	public synchronized void put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) throws KeyCollisionException {
+	public void put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) throws KeyCollisionException {
 		byte[] routingkey = block.getRoutingKey();
 		byte[] fullKey = block.getFullKey();
-		
-		writes++;
+
+		writes.incrementAndGet();
 		ByteArrayWrapper key = new ByteArrayWrapper(routingkey);
-		Block oldBlock = blocksByRoutingKey.get(key);
-		boolean storeFullKeys = callback.storeFullKeys();
-		if(oldBlock != null) {
-			if(callback.collisionPossible()) {
-				boolean equals = Arrays.equals(oldBlock.data, data) &&
-					Arrays.equals(oldBlock.header, header) &&
-					(storeFullKeys ? Arrays.equals(oldBlock.fullKey, fullKey) : true);
-				if(equals) {
-					if(!isOldBlock)
-						oldBlock.oldBlock = false;
-					return;
-				}
-				if(overwrite) {
-					oldBlock.data = data;
-					oldBlock.header = header;
-					if(storeFullKeys)
-						oldBlock.fullKey = fullKey;
-					oldBlock.oldBlock = isOldBlock;
-				} else {
-					throw new KeyCollisionException();
-				}
-				return;
-			} else {
-				if(!isOldBlock)
-					oldBlock.oldBlock = false;
-				return;
-			}
-		}
-		Block storeBlock = new Block();
-		storeBlock.data = data;
-		storeBlock.header = header;
-		if(storeFullKeys)
-			storeBlock.fullKey = fullKey;
-		storeBlock.oldBlock = isOldBlock;
-		blocksByRoutingKey.push(key, storeBlock);
-		while(blocksByRoutingKey.size() > maxKeys) {
-			blocksByRoutingKey.popKey();
-		}
+		segmentFor(key).put(key, data, header, fullKey, overwrite, isOldBlock);
 	}
 
 	@Override
 	public synchronized void setMaxKeys(long maxStoreKeys, boolean shrinkNow)
 			throws IOException {
-		this.maxKeys = (int)Math.min(Integer.MAX_VALUE, maxStoreKeys);
+		this.maxKeys = maxStoreKeys;
 		// Always shrink now regardless of parameter as we will shrink on the next put() anyway.
-		while(blocksByRoutingKey.size() > maxKeys) {
-			blocksByRoutingKey.popKey();
-		}
+		for(int i=0;i<segments.length;i++)
+			segments[i].setCapacity(segmentCapacity(i, maxStoreKeys));
 	}
 
 	@Override
 	public long writes() {
-		return writes;
+		return writes.get();
 	}
 
 	@Override
 	public long getBloomFalsePositive() {
 		return -1;
 	}
-	
+
 	@Override
 	public boolean probablyInStore(byte[] routingKey) {
 		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
-		return blocksByRoutingKey.get(key) != null;
+		return segmentFor(key).contains(key);
 	}
 
 	public void clear() {
-		blocksByRoutingKey.clear();
+		for(Segment segment : segments)
+			segment.clear();
 	}
 
 	public void migrateTo(StoreCallback<T> target, boolean canReadClientCache) throws IOException {
-		Enumeration<ByteArrayWrapper> keys = blocksByRoutingKey.keys();
-		while(keys.hasMoreElements()) {
-			ByteArrayWrapper routingKeyWrapped = keys.nextElement();
-			byte[] routingKey = routingKeyWrapped.get();
-			Block block = blocksByRoutingKey.get(routingKeyWrapped);
-			
-			T ret;
-			try {
-				ret = callback.construct(block.data, block.header, routingKey, block.fullKey, canReadClientCache, false, null, null);
-			} catch (KeyVerifyException e) {
-				Logger.error(this, "Caught while migrating: "+e, e);
-				continue;
-			}
-			try {
-				target.getStore().put(ret, block.data, block.header, false, block.oldBlock);
-			} catch (KeyCollisionException e) {
-				// Ignore
+		for(Segment segment : segments) {
+			ArrayList<ByteArrayWrapper> keys = new ArrayList<ByteArrayWrapper>();
+			ArrayList<Copy> copies = new ArrayList<Copy>();
+			segment.snapshot(keys, copies);
+			for(int i=0;i<keys.size();i++) {
+				byte[] routingKey = keys.get(i).get();
+				Copy block = copies.get(i);
+
+				T ret;
+				try {
+					ret = callback.construct(block.data, block.header, routingKey, block.fullKey, canReadClientCache, false, null, null);
+				} catch (KeyVerifyException e) {
+					Logger.error(this, "Caught while migrating: "+e, e);
+					continue;
+				}
+				try {
+					target.getStore().put(ret, block.data, block.header, false, block.oldBlock);
+				} catch (KeyCollisionException e) {
+					// Ignore
+				}
 			}
 		}
 	}
-	
+
 	@Override
 	public StoreAccessStats getSessionAccessStats() {
 		return new StoreAccessStats() {
 
 			@Override
 			public long hits() {
-				return hits;
+				return hits.get();
 			}
 
 			@Override
 			public long misses() {
-				return misses;
+				return misses.get();
 			}
 
 			@Override
@@ -212,9 +535,9 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 
 			@Override
 			public long writes() {
-				return writes;
+				return writes.get();
 			}
-			
+
 		};
 	}
 
@@ -232,12 +555,12 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 	public void setUserAlertManager(UserAlertManager userAlertManager) {
 		// Do nothing
 	}
-	
+
 	@Override
 	public FreenetStore<T> getUnderlyingStore() {
 		return this;
 	}
-	
+
 	@Override
 	public void close() {
 		// Do nothing
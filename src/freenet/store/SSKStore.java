@@ -80,4 +80,14 @@ public class SSKStore extends StoreCallback<SSKBlock> {
 		return NodeSSK.routingKeyFromFullKey(keyBuf);
 	}
 
+	@Override
+	public byte[] rawData(SSKBlock block) {
+		return block.getRawData();
+	}
+
+	@Override
+	public byte[] rawHeaders(SSKBlock block) {
+		return block.getRawHeaders();
+	}
+
 }
@@ -86,6 +86,12 @@ public abstract class StoreCallback<T extends StorableBlock> {
 		return store.getBloomFalsePositive();
 	}
 
+	/** The data to pass to FreenetStore.put() for a block, e.g. to copy it to another store. */
+	public abstract byte[] rawData(T block);
+
+	/** The header to pass to FreenetStore.put() for a block. */
+	public abstract byte[] rawHeaders(T block);
+
 	/** Generate a routing key from a full key */
 	public abstract byte[] routingKeyFromFullKey(byte[] keyBuf);
 
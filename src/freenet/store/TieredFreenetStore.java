@@ -0,0 +1,381 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import freenet.node.stats.StoreAccessStats;
+import freenet.node.useralerts.UserAlertManager;
+import freenet.support.Fields;
+import freenet.support.Logger;
+import freenet.support.Ticker;
+
+/**
+ * A small, fast store (e.g. on an SSD) in front of a big, slow one.
+ *
+ * Every block is written to the slow tier. Fetches which find a block in the slow tier count
+ * a hit for it, in a table of counters indexed by a hash of the routing key, and once a block
+ * has been hit often enough it is copied to the fast tier in the background. The counters are
+ * halved periodically, so blocks which are no longer popular stop being promoted and are
+ * eventually overwritten in the fast tier by hotter ones. Since the slow tier has a copy of
+ * everything, a block which leaves the fast tier is not lost.
+ *
+ * The canReadClientCache and canReadSlashdotCache flags are passed to both tiers. Fetches with
+ * dontPromote or canReadClientCache set are local and are not counted, so the fast tier doesn't
+ * reveal what the user has been fetching. Promotion re-reads the block from the slow tier
+ * without either flag, so an SSK whose pubkey is only in the client cache or the slashdot cache
+ * is never promoted.
+ */
+public class TieredFreenetStore<T extends StorableBlock> implements FreenetStore<T> {
+	private static volatile boolean logMINOR;
+
+	static { Logger.registerClass(TieredFreenetStore.class); }
+
+	/** Number of hits in the slow tier which cause a block to be promoted. */
+	static final int PROMOTE_HITS = 3;
+	/** How often the hit counters are halved. */
+	static final long AGING_PERIOD = TimeUnit.MINUTES.toMillis(10);
+	/** Promotions which have not been written yet. If there are more, new ones are dropped. */
+	static final int MAX_PENDING_PROMOTIONS = 1024;
+	private static final int MIN_COUNTERS = 1024;
+	private static final int MAX_COUNTERS = 1 << 22;
+
+	private final StoreCallback<T> callback;
+	private final FreenetStore<T> fastStore;
+	private final FreenetStore<T> slowStore;
+	private final Ticker ticker;
+	private final boolean collisionPossible;
+	/** Hit counters. Collisions only cause a block to be promoted early. */
+	private final AtomicIntegerArray hitCounts;
+	private final int counterMask;
+	/** So that the counters collide differently on every node. */
+	private final int salt;
+	private final ArrayBlockingQueue<Promotion> promotions = new ArrayBlockingQueue<Promotion>(MAX_PENDING_PROMOTIONS);
+	private final AtomicBoolean promotionScheduled = new AtomicBoolean();
+	private final AtomicBoolean agingScheduled = new AtomicBoolean();
+	/** If collisions are possible, a promotion must not overwrite a newer version of a block
+	 * in the fast tier. Puts take the read lock, the promoter takes the write lock. */
+	private final ReadWriteLock promotionLock = new ReentrantReadWriteLock();
+	private volatile boolean closed;
+
+	// Statistics
+	private final AtomicLong promoted = new AtomicLong();
+	private final AtomicLong droppedPromotions = new AtomicLong();
+
+	private static final class Promotion {
+		final byte[] routingKey;
+		final byte[] fullKey;
+
+		Promotion(byte[] routingKey, byte[] fullKey) {
+			this.routingKey = routingKey;
+			this.fullKey = fullKey;
+		}
+	}
+
+	private final Runnable promotionJob = new Runnable() {
+		@Override
+		public void run() {
+			promotionScheduled.set(false);
+			promote();
+		}
+	};
+
+	private final Runnable agingJob = new Runnable() {
+		@Override
+		public void run() {
+			if(closed) return;
+			age();
+			ticker.queueTimedJob(this, AGING_PERIOD);
+		}
+	};
+
+	/**
+	 * @param fastStore The fast tier. Its size determines how many blocks are hot.
+	 * @param slowStore The slow tier. It has a copy of every block.
+	 */
+	public TieredFreenetStore(StoreCallback<T> callback, FreenetStore<T> fastStore, FreenetStore<T> slowStore, Ticker ticker, Random random) {
+		if(ticker == null)
+			throw new IllegalArgumentException();
+		this.callback = callback;
+		this.fastStore = fastStore;
+		this.slowStore = slowStore;
+		this.ticker = ticker;
+		this.collisionPossible = callback.collisionPossible();
+		this.salt = random.nextInt();
+		int counters = MIN_COUNTERS;
+		while(counters < MAX_COUNTERS && counters < fastStore.getMaxKeys() * 2)
+			counters <<= 1;
+		this.hitCounts = new AtomicIntegerArray(counters);
+		this.counterMask = counters - 1;
+		callback.setStore(this);
+	}
+
+	@Override
+	public T fetch(byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache,
+			boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException {
+		T block = fastStore.fetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);
+		if(block != null) return block;
+		block = slowStore.fetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);
+		if(block != null && !dontPromote && !canReadClientCache)
+			countHit(routingKey, fullKey);
+		return block;
+	}
+
+	private void countHit(byte[] routingKey, byte[] fullKey) {
+		int slot = (Fields.hashCode(routingKey) ^ salt) & counterMask;
+		if(hitCounts.incrementAndGet(slot) != PROMOTE_HITS) return;
+		if(!promotions.offer(new Promotion(routingKey.clone(), fullKey == null ? null : fullKey.clone()))) {
+			droppedPromotions.incrementAndGet();
+			return;
+		}
+		if(promotionScheduled.compareAndSet(false, true))
+			ticker.queueTimedJob(promotionJob, 0);
+	}
+
+	/** Copy the blocks which have become hot to the fast tier. */
+	private void promote() {
+		Promotion p;
+		while((p = promotions.poll()) != null) {
+			if(closed) return;
+			// Blocks in the fast tier are not counted, so this is rarely one which is already there.
+			if(collisionPossible) promotionLock.writeLock().lock();
+			try {
+				BlockMetadata meta = new BlockMetadata();
+				T block = slowStore.fetch(p.routingKey, p.fullKey, true, false, false, false, meta);
+				if(block == null) continue;
+				fastStore.put(block, callback.rawData(block), callback.rawHeaders(block), true, meta.isOldBlock());
+				promoted.incrementAndGet();
+			} catch (IOException e) {
+				Logger.error(this, "Unable to promote block to the fast tier: "+e, e);
+			} catch (KeyCollisionException e) {
+				// Impossible with overwrite.
+				Logger.error(this, "Collision promoting block to the fast tier: "+e, e);
+			} finally {
+				if(collisionPossible) promotionLock.writeLock().unlock();
+			}
+		}
+		if(logMINOR) Logger.minor(this, "Promoted blocks: "+this);
+	}
+
+	/** Halve all the hit counters. */
+	private void age() {
+		for(int i=0;i<hitCounts.length();i++) {
+			int count;
+			do {
+				count = hitCounts.get(i);
+			} while(count != 0 && !hitCounts.compareAndSet(i, count, count >> 1));
+		}
+	}
+
+	@Override
+	public void put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock)
+			throws IOException, KeyCollisionException {
+		if(collisionPossible) promotionLock.readLock().lock();
+		try {
+			slowStore.put(block, data, header, overwrite, isOldBlock);
+			// Keep the copy in the fast tier the same as the slow tier.
+			if(collisionPossible && inFastTier(block))
+				fastStore.put(block, data, header, true, isOldBlock);
+		} finally {
+			if(collisionPossible) promotionLock.readLock().unlock();
+		}
+	}
+
+	private boolean inFastTier(T block) throws IOException {
+		byte[] routingKey = block.getRoutingKey();
+		if(!fastStore.probablyInStore(routingKey)) return false;
+		// Nothing is returned to the caller, so it's safe to look for the pubkey anywhere.
+		return fastStore.fetch(routingKey, block.getFullKey(), true, true, true, false, null) != null;
+	}
+
+	@Override
+	public void setMaxKeys(long maxStoreKeys, boolean shrinkNow) throws IOException {
+		slowStore.setMaxKeys(maxStoreKeys, shrinkNow);
+	}
+
+	@Override
+	public long getMaxKeys() {
+		return slowStore.getMaxKeys();
+	}
+
+	@Override
+	public long hits() {
+		return fastStore.hits() + slowStore.hits();
+	}
+
+	/** Fetches which miss the fast tier go on to the slow tier, so only its misses count. */
+	@Override
+	public long misses() {
+		return slowStore.misses();
+	}
+
+	@Override
+	public long writes() {
+		return slowStore.writes();
+	}
+
+	@Override
+	public long keyCount() {
+		return slowStore.keyCount();
+	}
+
+	@Override
+	public long getBloomFalsePositive() {
+		return slowStore.getBloomFalsePositive();
+	}
+
+	@Override
+	public boolean probablyInStore(byte[] routingKey) {
+		return slowStore.probablyInStore(routingKey) || fastStore.probablyInStore(routingKey);
+	}
+
+	@Override
+	public StoreAccessStats getSessionAccessStats() {
+		return combine(fastStore.getSessionAccessStats(), slowStore.getSessionAccessStats());
+	}
+
+	@Override
+	public StoreAccessStats getTotalAccessStats() {
+		return combine(fastStore.getTotalAccessStats(), slowStore.getTotalAccessStats());
+	}
+
+	private StoreAccessStats combine(final StoreAccessStats fast, final StoreAccessStats slow) {
+		if(slow == null) return null;
+		if(fast == null) return slow;
+		return new StoreAccessStats() {
+
+			@Override
+			public long hits() {
+				return fast.hits() + slow.hits();
+			}
+
+			@Override
+			public long misses() {
+				return slow.misses();
+			}
+
+			@Override
+			public long falsePos() {
+				return slow.falsePos();
+			}
+
+			@Override
+			public long writes() {
+				return slow.writes();
+			}
+
+			@Override
+			public long fastTierHits() {
+				return fast.hits();
+			}
+
+			@Override
+			public long promotions() {
+				return promoted.get();
+			}
+
+			@Override
+			public long droppedPromotions() {
+				return droppedPromotions.get();
+			}
+
+			@Override
+			public long lockAcquisitions() {
+				return fast.lockAcquisitions() + slow.lockAcquisitions();
+			}
+
+			@Override
+			public long lockContentions() {
+				return fast.lockContentions() + slow.lockContentions();
+			}
+
+			@Override
+			public long lockWaitTimeNanos() {
+				return fast.lockWaitTimeNanos() + slow.lockWaitTimeNanos();
+			}
+
+			@Override
+			public long digestCacheHits() {
+				return fast.digestCacheHits() + slow.digestCacheHits();
+			}
+
+			@Override
+			public long digestCacheMisses() {
+				return fast.digestCacheMisses() + slow.digestCacheMisses();
+			}
+
+			@Override
+			public long writeBehindQueuedBlocks() {
+				return fast.writeBehindQueuedBlocks() + slow.writeBehindQueuedBlocks();
+			}
+
+			@Override
+			public long writeBehindWrites() {
+				return fast.writeBehindWrites() + slow.writeBehindWrites();
+			}
+
+			@Override
+			public long writeBehindBatches() {
+				return fast.writeBehindBatches() + slow.writeBehindBatches();
+			}
+
+			@Override
+			public long writeBehindBlockedPuts() {
+				return fast.writeBehindBlockedPuts() + slow.writeBehindBlockedPuts();
+			}
+
+		};
+	}
+
+	/** @return The number of blocks copied to the fast tier. */
+	public long promoted() {
+		return promoted.get();
+	}
+
+	public FreenetStore<T> getFastStore() {
+		return fastStore;
+	}
+
+	@Override
+	public boolean start(Ticker ticker, boolean longStart) throws IOException {
+		boolean delay = fastStore.start(ticker, longStart) | slowStore.start(ticker, longStart);
+		if(agingScheduled.compareAndSet(false, true))
+			this.ticker.queueTimedJob(agingJob, AGING_PERIOD);
+		return delay;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		fastStore.close();
+		slowStore.close();
+	}
+
+	@Override
+	public void setUserAlertManager(UserAlertManager userAlertManager) {
+		fastStore.setUserAlertManager(userAlertManager);
+		slowStore.setUserAlertManager(userAlertManager);
+	}
+
+	/** The slow tier is the real store, the fast tier is only a copy. */
+	@Override
+	public FreenetStore<T> getUnderlyingStore() {
+		return slowStore.getUnderlyingStore();
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + ": " + fastStore.hits() + " fast tier hits, " + slowStore.hits() + " slow tier hits, " +
+			promoted.get() + " promoted, " + promotions.size() + " pending, " + droppedPromotions.get() + " dropped";
+	}
+
+}
@@ -0,0 +1,24 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.IOException;
+
+import freenet.store.KeyCollisionException;
+import freenet.store.StorableBlock;
+
+/**
+ * Somewhere a {@link SaltedHashFreenetStore} can write blocks it has no room for, with the
+ * wrong store flag set. Either a single store or all the volumes of a
+ * {@link MultiVolumeFreenetStore}.
+ */
+interface AltStore<T extends StorableBlock> {
+
+	/**
+	 * @return False if the block was not written, e.g. because the store would have had to
+	 * overwrite a block which is in the right store.
+	 */
+	boolean put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock, boolean wrongStore) throws IOException, KeyCollisionException;
+
+}
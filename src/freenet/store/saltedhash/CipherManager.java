@@ -5,8 +5,6 @@ package freenet.store.saltedhash;
 
 import java.security.MessageDigest;
 import java.util.Arrays;
-import java.util.LinkedHashMap;
-import java.util.Map;
 import java.util.Random;
 
 import freenet.crypt.BlockCipher;
@@ -15,7 +13,6 @@ import freenet.crypt.SHA256;
 import freenet.crypt.UnsupportedCipherException;
 import freenet.crypt.ciphers.Rijndael;
 import freenet.node.MasterKeys;
-import freenet.support.ByteArrayWrapper;
 import freenet.support.Logger;
 
 /**
@@ -42,6 +39,13 @@ public class CipherManager {
 		this.diskSalt = diskSalt;
 	}
 
+	/**
+	 * @return A CipherManager with the same salt, for another volume of the same store.
+	 */
+	CipherManager copy() {
+		return new CipherManager(salt.clone(), diskSalt.clone());
+	}
+
 	/**
 	 * Get salt
 	 * 
@@ -52,29 +56,20 @@ public class CipherManager {
 	}
 
 	/**
-	 * Cache for digested keys
+	 * Cache for digested keys. Lock free, since every lookup in the store goes through it.
 	 */
-	@SuppressWarnings("serial")
-	private Map<ByteArrayWrapper, byte[]> digestRoutingKeyCache = new LinkedHashMap<ByteArrayWrapper, byte[]>() {
-		@Override
-		protected boolean removeEldestEntry(Map.Entry<ByteArrayWrapper, byte[]> eldest) {
-			return size() > 128;
-		}
-	};
+	private final DigestCache digestRoutingKeyCache = new DigestCache(256);
 
 	/**
 	 * Get digested routing key
 	 * 
 	 * @param plainKey
-	 * @return
+	 * @return The digested key. The caller must not modify it.
 	 */
 	byte[] getDigestedKey(byte[] plainKey) {
-		ByteArrayWrapper key = new ByteArrayWrapper(plainKey);
-		synchronized (digestRoutingKeyCache) {
-			byte[] dk = digestRoutingKeyCache.get(key);
-			if (dk != null)
-				return dk;
-		}
+		byte[] dk = digestRoutingKeyCache.get(plainKey);
+		if (dk != null)
+			return dk;
 
 		MessageDigest digest = SHA256.getMessageDigest();
 		try {
@@ -84,9 +79,7 @@ public class CipherManager {
 			byte[] hashedRoutingKey = digest.digest();
 			assert hashedRoutingKey.length == 0x20;
 
-			synchronized (digestRoutingKeyCache) {
-				digestRoutingKeyCache.put(key, hashedRoutingKey);
-			}
+			digestRoutingKeyCache.put(plainKey.clone(), hashedRoutingKey);
 
 			return hashedRoutingKey;
 		} finally {
@@ -94,6 +87,14 @@ public class CipherManager {
 		}
 	}
 
+	long digestCacheHits() {
+		return digestRoutingKeyCache.hits();
+	}
+
+	long digestCacheMisses() {
+		return digestRoutingKeyCache.misses();
+	}
+
 	/**
 	 * Encrypt this entry
 	 */
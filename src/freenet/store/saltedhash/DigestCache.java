@@ -0,0 +1,152 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed size cache of digested routing keys for {@link CipherManager}.
+ *
+ * Lookups don't lock and don't allocate. The table is split into sets of {@link #WAYS} slots;
+ * a key can only live in the set picked by its hash. Each slot has a 64-bit tag taken from the
+ * key, compared before the key itself, and a reference bit for clock (second chance) eviction
+ * within the set.
+ *
+ * Slots are replaced as a whole, so a reader sees either the old or the new key and digest,
+ * never a mix. Concurrent inserts may overwrite each other, which only costs a recomputation.
+ */
+class DigestCache {
+
+	/** Slots per set */
+	static final int WAYS = 4;
+	/** Number of counter stripes, so threads counting hits don't fight over one cache line */
+	private static final int COUNTER_STRIPES = 16;
+	/** Distance between counter stripes, in longs: one cache line */
+	private static final int COUNTER_SPACING = 8;
+
+	private static final class Slot {
+		final byte[] key;
+		final byte[] digest;
+
+		Slot(byte[] key, byte[] digest) {
+			this.key = key;
+			this.digest = digest;
+		}
+	}
+
+	private final int setMask;
+	private final AtomicLongArray tags;
+	private final AtomicReferenceArray<Slot> slots;
+	/** Clock reference bit for each slot: 1 if used since the hand last passed it */
+	private final AtomicIntegerArray referenced;
+	/** Clock hand of each set */
+	private final AtomicIntegerArray hands;
+	/** Striped counters: hits at even stripes, misses at odd ones */
+	private final AtomicLongArray counters = new AtomicLongArray(COUNTER_STRIPES * 2 * COUNTER_SPACING);
+
+	/**
+	 * @param size Number of digests to cache. Rounded up to a power of 2, at least WAYS.
+	 */
+	DigestCache(int size) {
+		int sets = 1;
+		while(sets * WAYS < size)
+			sets <<= 1;
+		setMask = sets - 1;
+		tags = new AtomicLongArray(sets * WAYS);
+		slots = new AtomicReferenceArray<Slot>(sets * WAYS);
+		referenced = new AtomicIntegerArray(sets * WAYS);
+		hands = new AtomicIntegerArray(sets);
+	}
+
+	/** Tag for a key. Routing keys are hashes already, so the first bytes will do. */
+	private static long tag(byte[] key) {
+		long tag = 0;
+		int len = Math.min(8, key.length);
+		for(int i=0;i<len;i++)
+			tag = (tag << 8) | (key[i] & 0xff);
+		return tag ^ key.length;
+	}
+
+	private int set(long tag) {
+		int h = (int) (tag ^ (tag >>> 32));
+		h ^= (h >>> 16);
+		return h & setMask;
+	}
+
+	/**
+	 * @return The cached digest, which the caller must not modify, or null.
+	 */
+	byte[] get(byte[] key) {
+		long tag = tag(key);
+		int base = set(tag) * WAYS;
+		for(int i=0;i<WAYS;i++) {
+			int index = base + i;
+			if(tags.get(index) != tag) continue;
+			Slot slot = slots.get(index);
+			if(slot != null && Arrays.equals(slot.key, key)) {
+				if(referenced.get(index) == 0)
+					referenced.set(index, 1);
+				count(0);
+				return slot.digest;
+			}
+		}
+		count(1);
+		return null;
+	}
+
+	/**
+	 * Cache a digest. Evicts a slot of the key's set which hasn't been used recently.
+	 * @param key The caller must not modify it afterwards.
+	 */
+	void put(byte[] key, byte[] digest) {
+		long tag = tag(key);
+		int set = set(tag);
+		int base = set * WAYS;
+		int victim = -1;
+		for(int i=0;i<WAYS;i++) {
+			if(slots.get(base + i) == null) {
+				victim = base + i;
+				break;
+			}
+		}
+		if(victim == -1) {
+			// Clock: skip slots which have been used since we last passed them, but at most
+			// once round the set.
+			for(int i=0;i<=WAYS;i++) {
+				int hand = hands.getAndIncrement(set) & (WAYS - 1);
+				victim = base + hand;
+				if(referenced.getAndSet(victim, 0) == 0) break;
+			}
+		}
+		// Invalidate the tag first so no reader matches the old tag with the new slot.
+		tags.set(victim, ~tag);
+		slots.set(victim, new Slot(key, digest));
+		referenced.set(victim, 0);
+		tags.set(victim, tag);
+	}
+
+	private void count(int which) {
+		int stripe = (int) (Thread.currentThread().getId() & (COUNTER_STRIPES - 1));
+		counters.incrementAndGet((stripe * 2 + which) * COUNTER_SPACING);
+	}
+
+	private long sum(int which) {
+		long total = 0;
+		for(int i=0;i<COUNTER_STRIPES;i++)
+			total += counters.get((i * 2 + which) * COUNTER_SPACING);
+		return total;
+	}
+
+	long hits() {
+		return sum(0);
+	}
+
+	long misses() {
+		return sum(1);
+	}
+
+}
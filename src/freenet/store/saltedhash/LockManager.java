@@ -3,11 +3,9 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.store.saltedhash;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import freenet.support.Logger;
@@ -15,58 +13,122 @@ import freenet.support.Logger.LogLevel;
 
 /**
  * Lock Manager
- * 
+ *
  * Handle locking/unlocking of individual offsets.
- * 
+ *
+ * The offsets are spread over a fixed number of stripes, each with its own lock, so that
+ * requests for unrelated slots don't contend on a single monitor. Each stripe keeps the offsets
+ * currently locked in a small array of primitive longs, so locking doesn't allocate.
+ *
  * @author sdiz
  */
 public class LockManager {
 	private static boolean logDEBUG;
 	private volatile boolean shutdown;
-	private Lock entryLock = new ReentrantLock();
-	private Map<Long, Condition> lockMap = new HashMap<Long, Condition>();
+
+	/** Number of stripes, must be a power of 2 */
+	private static final int STRIPES = 64;
+
+	private final Stripe[] stripes;
+
+	// Statistics
+	private final AtomicLong locked = new AtomicLong();
+	private final AtomicLong contended = new AtomicLong();
+	private final AtomicLong waitTime = new AtomicLong();
+
+	private static class Stripe {
+		final ReentrantLock lock = new ReentrantLock();
+		/** Signalled whenever an offset in this stripe is unlocked. Also used as the token
+		 * returned to the caller. */
+		final Condition unlocked = lock.newCondition();
+		/** The offsets currently locked. Only the first count are valid. */
+		long[] offsets = new long[4];
+		int count;
+
+		boolean isLocked(long offset) {
+			for(int i=0;i<count;i++)
+				if(offsets[i] == offset) return true;
+			return false;
+		}
+
+		void add(long offset) {
+			if(count == offsets.length) {
+				long[] newOffsets = new long[offsets.length * 2];
+				System.arraycopy(offsets, 0, newOffsets, 0, count);
+				offsets = newOffsets;
+			}
+			offsets[count++] = offset;
+		}
+
+		boolean remove(long offset) {
+			for(int i=0;i<count;i++) {
+				if(offsets[i] == offset) {
+					offsets[i] = offsets[--count];
+					return true;
+				}
+			}
+			return false;
+		}
+	}
 
 	LockManager() {
 		logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
+		stripes = new Stripe[STRIPES];
+		for(int i=0;i<STRIPES;i++)
+			stripes[i] = new Stripe();
+	}
+
+	private Stripe getStripe(long offset) {
+		int hash = (int) (offset ^ (offset >>> 32));
+		hash ^= (hash >>> 16);
+		return stripes[hash & (STRIPES - 1)];
 	}
 
 	/**
 	 * Lock the entry
-	 * 
+	 *
 	 * This lock is <strong>not</strong> re-entrance. No threads except Cleaner should hold more
 	 * then one lock at a time (or deadlock may occur).
+	 *
+	 * @return A token to pass to {@link #unlockEntry(long, Condition)}, or null if we are
+	 * shutting down or were interrupted.
 	 */
 	Condition lockEntry(long offset) {
 		if (logDEBUG)
 			Logger.debug(this, "try locking " + offset, new Exception());
 
-		Condition condition;
+		Stripe stripe = getStripe(offset);
 		try {
-			entryLock.lock();
+			stripe.lock.lock();
 			try {
-				do {
-					if (shutdown)
-						return null;
-
-					Condition lockCond = lockMap.get(offset);
-					if (lockCond != null)
-						lockCond.await(10, TimeUnit.SECONDS); // 10s for checking shutdown
-					else
-						break;
-				} while (true);
-				condition = entryLock.newCondition();
-				lockMap.put(offset, condition);
+				if (stripe.isLocked(offset)) {
+					contended.incrementAndGet();
+					long startTime = System.nanoTime();
+					try {
+						do {
+							if (shutdown)
+								return null;
+							stripe.unlocked.await(10, TimeUnit.SECONDS); // 10s for checking shutdown
+						} while (stripe.isLocked(offset));
+					} finally {
+						waitTime.addAndGet(System.nanoTime() - startTime);
+					}
+				}
+				if (shutdown)
+					return null;
+				stripe.add(offset);
 			} finally {
-				entryLock.unlock();
+				stripe.lock.unlock();
 			}
 		} catch (InterruptedException e) {
 			Logger.error(this, "lock interrupted", e);
 			return null;
 		}
+		locked.incrementAndGet();
 
 		if (logDEBUG)
 			Logger.debug(this, "locked " + offset, new Exception());
-		return condition;
+		return stripe.unlocked;
 	}
 
 	/**
@@ -76,13 +138,16 @@ public class LockManager {
 		if (logDEBUG)
 			Logger.debug(this, "unlocking " + offset, new Exception("debug"));
 
-		entryLock.lock();
+		Stripe stripe = getStripe(offset);
+		assert stripe.unlocked == condition;
+		stripe.lock.lock();
 		try {
-			Condition cond = lockMap.remove(offset);
-			assert cond == condition;
-			cond.signal();
+			boolean removed = stripe.remove(offset);
+			assert removed;
+			// Other threads may be waiting for different offsets on the same stripe.
+			stripe.unlocked.signalAll();
 		} finally {
-			entryLock.unlock();
+			stripe.lock.unlock();
 		}
 	}
 
@@ -91,14 +156,30 @@ public class LockManager {
 	 */
 	void shutdown() {
 		shutdown = true;
-		entryLock.lock();
-		try {
-			while (!lockMap.isEmpty()) {
-				Condition cond = lockMap.values().iterator().next();
-				cond.awaitUninterruptibly();
+		for (Stripe stripe : stripes) {
+			stripe.lock.lock();
+			try {
+				while (stripe.count != 0)
+					stripe.unlocked.awaitUninterruptibly();
+			} finally {
+				stripe.lock.unlock();
 			}
-		} finally {
-			entryLock.unlock();
 		}
 	}
+
+	/** @return The number of times an entry has been locked. */
+	long lockCount() {
+		return locked.get();
+	}
+
+	/** @return The number of times we had to wait for another thread to unlock an entry. */
+	long contendedCount() {
+		return contended.get();
+	}
+
+	/** @return The total time spent waiting for other threads to unlock entries, in
+	 * nanoseconds. */
+	long waitTimeNanos() {
+		return waitTime.get();
+	}
 }
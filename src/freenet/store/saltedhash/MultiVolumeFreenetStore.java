@@ -0,0 +1,869 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import freenet.node.SemiOrderedShutdownHook;
+import freenet.node.stats.StoreAccessStats;
+import freenet.node.useralerts.UserAlertManager;
+import freenet.store.BlockMetadata;
+import freenet.store.FreenetStore;
+import freenet.store.KeyCollisionException;
+import freenet.store.StorableBlock;
+import freenet.store.StoreCallback;
+import freenet.support.Fields;
+import freenet.support.Logger;
+import freenet.support.Ticker;
+import freenet.support.io.Closer;
+import freenet.support.io.FileUtil;
+import freenet.support.io.NativeThread;
+
+/**
+ * A salted-hash datastore spread over several directories, usually on different disks. Each
+ * volume is a complete {@link SaltedHashFreenetStore} with its own files, slot locks, cleaner
+ * and write-behind queue, so the volumes do their I/O in parallel.
+ *
+ * All volumes use the same salt, and a key is in the volume chosen by rendezvous hashing of its
+ * digested routing key. When a volume is added, only the keys which now belong in the new
+ * volume have to move, and they are moved in the background, still encrypted, by one thread
+ * per old volume. Until that has finished, a key which isn't found in the volume it belongs in
+ * is looked for in the volume it used to belong in.
+ *
+ * The first volume is in the normal store directory and is an ordinary salted-hash store, so
+ * a single volume store is compatible with a plain SaltedHashFreenetStore. The order of the
+ * volumes matters: new volumes must be added at the end, and removing a volume loses the keys
+ * on it. The number of volumes, and how many of them have been migrated, is kept in a
+ * .volumes file in the first volume's directory.
+ *
+ * The maximum number of keys is divided equally between the volumes.
+ */
+public class MultiVolumeFreenetStore<T extends StorableBlock> implements FreenetStore<T>, AltStore<T> {
+
+	private static volatile boolean logMINOR;
+
+	static { Logger.registerClass(MultiVolumeFreenetStore.class); }
+
+	/** Slots to check at a time while migrating */
+	private static final int MIGRATE_BATCH = 128;
+	/** Delay between batches while migrating, so requests still get some disk I/O. The same
+	 * pace as a resize. */
+	private static final int MIGRATE_DELAY = 100;
+	/** How often to save how far each volume has got while migrating, in the same way as the
+	 * cleaner. */
+	private static final long MIGRATE_CHECKPOINT_INTERVAL = 60 * 1000;
+	/** How long to wait before trying again after migrating failed, rather than spinning on a
+	 * broken disk. */
+	private static final long MIGRATE_RETRY_DELAY = 5 * 60 * 1000;
+	/** Added to the key for each volume before hashing */
+	private static final long VOLUME_SEED = 0x9e3779b97f4a7c15L;
+
+	/** Cleaner locks for volumes other than the first. The same volume of every store is
+	 * usually on the same disk, so shares a lock, and only one store is resized or rebuilt on
+	 * each disk at a time. The first volume uses the global lock, as it is on the same disk as
+	 * any plain store. */
+	private static final List<Lock> volumeCleanerLocks = new ArrayList<Lock>();
+
+	private final String name;
+	private final StoreCallback<T> callback;
+	private final SemiOrderedShutdownHook shutdownHook;
+	private final boolean resizeOnStart;
+	private final long writeBehindSize;
+	private final File volumesFile;
+
+	/** Copy on write. Protected by this. */
+	private volatile SaltedHashFreenetStore<T>[] volumes;
+	/** Directories of the volumes, in the same order. Protected by this. */
+	private final List<File> dirs = new ArrayList<File>();
+	/** Every key is in the volume it would be in if there were only this many volumes.
+	 * Later volumes are still being filled from these. */
+	private volatile int settledVolumes;
+	/** Protected by this */
+	private long maxKeys;
+	/** Volumes to be added by the migration thread. Protected by this. */
+	private final List<File> pendingVolumes = new ArrayList<File>();
+	private MultiVolumeFreenetStore<T> altStore;
+	private UserAlertManager userAlertManager;
+	private Ticker ticker;
+	private boolean started;
+	private volatile boolean shutdown;
+	private NativeThread migrator;
+
+	/**
+	 * Open or create a multi-volume store.
+	 * @param dirs The directories of the volumes. The first one is the normal store directory.
+	 * @param writeBehindSize Write-behind queue size, divided between the volumes. 0 means no
+	 * queue.
+	 */
+	public static <T extends StorableBlock> MultiVolumeFreenetStore<T> construct(File[] dirs, String name, StoreCallback<T> callback, Random random,
+	        long maxKeys, boolean useSlotFilter, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, byte[] masterKey,
+	        boolean mmapMetadata, boolean mmapHD, long writeBehindSize) throws IOException {
+		return new MultiVolumeFreenetStore<T>(dirs, name, callback, random, maxKeys, useSlotFilter, shutdownHook, preallocate,
+		        resizeOnStart, masterKey, mmapMetadata, mmapHD, writeBehindSize);
+	}
+
+	@SuppressWarnings("unchecked")
+	private MultiVolumeFreenetStore(File[] dirs, String name, StoreCallback<T> callback, Random random,
+	        long maxKeys, boolean useSlotFilter, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, byte[] masterKey,
+	        boolean mmapMetadata, boolean mmapHD, long writeBehindSize) throws IOException {
+		if (dirs.length == 0) throw new IllegalArgumentException("No volumes");
+		this.name = name;
+		this.callback = callback;
+		this.shutdownHook = shutdownHook;
+		this.resizeOnStart = resizeOnStart;
+		this.writeBehindSize = writeBehindSize;
+		this.maxKeys = maxKeys;
+		dirs[0].mkdirs();
+		volumesFile = new File(dirs[0], name + ".volumes");
+
+		int knownVolumes = 1;
+		int settled = 1;
+		if (volumesFile.exists()) {
+			RandomAccessFile raf = new RandomAccessFile(volumesFile, "r");
+			try {
+				knownVolumes = raf.readInt();
+				settled = raf.readInt();
+				if (knownVolumes < 1 || settled < 1 || settled > knownVolumes)
+					throw new IOException("Bogus volume count");
+			} catch (IOException e) {
+				Logger.error(this, "Unable to read " + volumesFile + ", assuming only the first volume is complete: " + e, e);
+				knownVolumes = 1;
+				settled = 1;
+			} finally {
+				Closer.close(raf);
+			}
+		}
+		if (dirs.length < knownVolumes) {
+			Logger.error(this, name + " had " + knownVolumes + " volumes but only " + dirs.length + " are configured: keys on the missing volumes are lost");
+			System.err.println(name + " had " + knownVolumes + " volumes but only " + dirs.length + " are configured: keys on the missing volumes are lost");
+		}
+		settledVolumes = Math.min(settled, dirs.length);
+
+		SaltedHashFreenetStore<T>[] stores = new SaltedHashFreenetStore[dirs.length];
+		try {
+			for (int i = 0; i < dirs.length; i++) {
+				// Volumes which may have keys to give away keep their size until they have.
+				long size = volumeSize(maxKeys, i < settledVolumes ? settledVolumes : dirs.length);
+				if (i == 0)
+					stores[i] = SaltedHashFreenetStore.construct(dirs[i], name, callback, random, size, useSlotFilter,
+					        shutdownHook, preallocate, resizeOnStart, null, masterKey, mmapMetadata, mmapHD);
+				else
+					stores[i] = SaltedHashFreenetStore.constructVolume(dirs[i], stores[0], size, shutdownHook, resizeOnStart);
+				initVolume(stores[i], i, dirs.length);
+				this.dirs.add(dirs[i]);
+			}
+		} catch (IOException e) {
+			// Release the file locks.
+			for (SaltedHashFreenetStore<T> store : stores)
+				if (store != null)
+					store.close();
+			throw e;
+		}
+		volumes = stores;
+		callback.setStore(this);
+		writeVolumesFile();
+	}
+
+	/**
+	 * @return True if any store in the directory has been spread over more than one volume, so
+	 * must be opened as a multi-volume store even if no other volumes are configured now, to
+	 * notice that they are missing. Otherwise a plain {@link SaltedHashFreenetStore} can open it.
+	 */
+	public static boolean hasVolumes(File dir) {
+		File[] files = dir.listFiles();
+		if (files == null) return false;
+		for (File f : files) {
+			if (!f.getName().endsWith(".volumes")) continue;
+			RandomAccessFile raf = null;
+			try {
+				raf = new RandomAccessFile(f, "r");
+				if (raf.readInt() > 1) return true;
+			} catch (IOException e) {
+				Logger.error(MultiVolumeFreenetStore.class, "Unable to read " + f + " : " + e, e);
+			} finally {
+				Closer.close(raf);
+			}
+		}
+		return false;
+	}
+
+	private void initVolume(SaltedHashFreenetStore<T> volume, int index, int count) {
+		volume.setMultiVolume(this);
+		if (index > 0)
+			volume.setCleanerLock(volumeCleanerLock(index));
+		if (writeBehindSize > 0)
+			volume.setWriteBehindSize(writeBehindSize / count);
+		if (altStore != null)
+			volume.setAltStore(altStore);
+		if (userAlertManager != null)
+			volume.setUserAlertManager(userAlertManager);
+	}
+
+	private static Lock volumeCleanerLock(int index) {
+		synchronized (volumeCleanerLocks) {
+			while (volumeCleanerLocks.size() < index)
+				volumeCleanerLocks.add(new ReentrantLock());
+			return volumeCleanerLocks.get(index - 1);
+		}
+	}
+
+	private static long volumeSize(long maxKeys, int volumes) {
+		return (maxKeys + volumes - 1) / volumes;
+	}
+
+	private synchronized void writeVolumesFile() {
+		File tempFile = new File(volumesFile.getPath() + ".tmp");
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(tempFile, "rw");
+			raf.setLength(0);
+			raf.writeInt(volumes.length);
+			raf.writeInt(settledVolumes);
+			raf.getFD().sync();
+			raf.close();
+			raf = null;
+			FileUtil.renameTo(tempFile, volumesFile);
+		} catch (IOException e) {
+			Logger.error(this, "Unable to write " + volumesFile + " : " + e, e);
+		} finally {
+			Closer.close(raf);
+		}
+	}
+
+	/**
+	 * Choose the volume for a key: the one with the highest hash of the key and the volume
+	 * number. Adding a volume only moves keys to the new volume.
+	 */
+	static int selectVolume(byte[] digestedKey, int count) {
+		if (count == 1) return 0;
+		// The first 8 bytes choose the slots within the volume.
+		long key = Fields.bytesToLong(digestedKey, 8);
+		int best = 0;
+		long bestScore = 0;
+		for (int i = 0; i < count; i++) {
+			long h = key + VOLUME_SEED * (i + 1);
+			// Finalizer from SplitMix64
+			h ^= h >>> 30;
+			h *= 0xbf58476d1ce4e5b9L;
+			h ^= h >>> 27;
+			h *= 0x94d049bb133111ebL;
+			h ^= h >>> 31;
+			if (i == 0 || h > bestScore) {
+				best = i;
+				bestScore = h;
+			}
+		}
+		return best;
+	}
+
+	/** @return The volume a key belongs in. */
+	private SaltedHashFreenetStore<T> volumeFor(byte[] routingKey) {
+		SaltedHashFreenetStore<T>[] v = volumes;
+		if (v.length == 1) return v[0];
+		return v[selectVolume(v[0].getDigestedKey(routingKey), v.length)];
+	}
+
+	/** @return The volume a key belongs in, given its digested routing key. */
+	SaltedHashFreenetStore<T> volumeForDigestedKey(byte[] digestedKey) {
+		SaltedHashFreenetStore<T>[] v = volumes;
+		return v[selectVolume(digestedKey, v.length)];
+	}
+
+	/**
+	 * @return The volumes a key may still be in, other than the one it belongs in, because
+	 * it hasn't been migrated yet. Usually empty.
+	 */
+	private List<SaltedHashFreenetStore<T>> oldVolumesFor(byte[] routingKey) {
+		SaltedHashFreenetStore<T>[] v = volumes;
+		int settled = settledVolumes;
+		if (settled >= v.length) return null;
+		byte[] digestedKey = v[0].getDigestedKey(routingKey);
+		int owner = selectVolume(digestedKey, v.length);
+		List<SaltedHashFreenetStore<T>> old = null;
+		for (int count = v.length - 1; count >= settled; count--) {
+			int index = selectVolume(digestedKey, count);
+			if (index == owner) continue;
+			if (old == null) old = new ArrayList<SaltedHashFreenetStore<T>>(1);
+			if (!old.contains(v[index])) old.add(v[index]);
+			owner = index;
+		}
+		return old;
+	}
+
+	/**
+	 * Called while migrating, for each entry in a volume which is giving away keys.
+	 * @return The volume the entry should be moved to, or null to leave it where it is.
+	 */
+	SaltedHashFreenetStore<T> migrationTarget(byte[] digestedKey, SaltedHashFreenetStore<T> source) {
+		SaltedHashFreenetStore<T>[] v = volumes;
+		int index = selectVolume(digestedKey, v.length);
+		// Keys only ever move to volumes which are being filled, so we never lock two old
+		// volumes at once.
+		if (index < settledVolumes || v[index] == source) return null;
+		return v[index];
+	}
+
+	@Override
+	public T fetch(byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException {
+		T block = volumeFor(routingKey).fetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);
+		if (block != null) return block;
+		List<SaltedHashFreenetStore<T>> old = oldVolumesFor(routingKey);
+		if (old == null) return null;
+		for (SaltedHashFreenetStore<T> volume : old) {
+			block = volume.fetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);
+			if (block != null) return block;
+		}
+		return null;
+	}
+
+	@Override
+	public void put(T block, byte[] data, byte[] header, boolean overwrite, boolean oldBlock) throws IOException, KeyCollisionException {
+		byte[] routingKey = block.getRoutingKey();
+		if (callback.collisionPossible() && !overwrite && checkOldVolumes(block))
+			return;
+		volumeFor(routingKey).put(block, data, header, overwrite, oldBlock);
+	}
+
+	@Override
+	public boolean put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock, boolean wrongStore) throws IOException, KeyCollisionException {
+		if (callback.collisionPossible() && !overwrite && checkOldVolumes(block))
+			return false;
+		return volumeFor(block.getRoutingKey()).put(block, data, header, overwrite, isOldBlock, wrongStore);
+	}
+
+	/**
+	 * A block which hasn't been migrated yet is not in the volume we will write to, so check
+	 * for collisions with it.
+	 * @return True if the block is already stored.
+	 * @throws KeyCollisionException If a different block with the same key is stored.
+	 */
+	private boolean checkOldVolumes(T block) throws IOException, KeyCollisionException {
+		byte[] routingKey = block.getRoutingKey();
+		List<SaltedHashFreenetStore<T>> old = oldVolumesFor(routingKey);
+		if (old == null) return false;
+		for (SaltedHashFreenetStore<T> volume : old) {
+			if (!volume.probablyInStore(routingKey)) continue;
+			T oldBlock = volume.fetch(routingKey, block.getFullKey(), true, false, false, false, null);
+			if (oldBlock == null) continue;
+			if (block.equals(oldBlock)) return true;
+			throw new KeyCollisionException();
+		}
+		return false;
+	}
+
+	@Override
+	public boolean probablyInStore(byte[] routingKey) {
+		if (volumeFor(routingKey).probablyInStore(routingKey)) return true;
+		List<SaltedHashFreenetStore<T>> old = oldVolumesFor(routingKey);
+		if (old == null) return false;
+		for (SaltedHashFreenetStore<T> volume : old)
+			if (volume.probablyInStore(routingKey)) return true;
+		return false;
+	}
+
+	/** Get the first slot a key would be written to, and its volume, for sorting writes. */
+	public long getFirstOffset(byte[] routingKey) {
+		SaltedHashFreenetStore<T>[] v = volumes;
+		int index = v.length == 1 ? 0 : selectVolume(v[0].getDigestedKey(routingKey), v.length);
+		return ((long) index << 32) + v[index].getFirstOffset(routingKey);
+	}
+
+	/**
+	 * Add a volume in a directory, at the end. Returns immediately: the volume is created,
+	 * and the keys which belong in it moved from the other volumes, by a background thread.
+	 */
+	public synchronized void addVolume(File dir) {
+		if (shutdown) return;
+		if (dirs.contains(dir) || pendingVolumes.contains(dir)) return;
+		Logger.normal(this, "Adding volume " + dir + " to " + name);
+		pendingVolumes.add(dir);
+		startMigrator();
+	}
+
+	/** Start the thread which adds volumes and moves keys, if there is anything to do. */
+	private synchronized void startMigrator() {
+		if (!started || shutdown || migrator != null) return;
+		if (pendingVolumes.isEmpty() && settledVolumes >= volumes.length) return;
+		migrator = new NativeThread("Store-" + name + "-Migrator", NativeThread.LOW_PRIORITY, false) {
+			@Override
+			public void realRun() {
+				runMigrator();
+			}
+		};
+		migrator.setDaemon(true);
+		migrator.start();
+	}
+
+	private void runMigrator() {
+		try {
+			while (true) {
+				File dir = null;
+				int count;
+				synchronized (this) {
+					if (shutdown) return;
+					if (!pendingVolumes.isEmpty())
+						dir = pendingVolumes.get(0);
+					else if (settledVolumes >= volumes.length)
+						return;
+					count = volumes.length;
+				}
+				if (dir != null) {
+					openVolume(dir, count);
+					synchronized (this) {
+						pendingVolumes.remove(dir);
+					}
+				} else if (!migrate(count)) {
+					retryMigrator();
+					return;
+				}
+			}
+		} finally {
+			synchronized (this) {
+				migrator = null;
+			}
+		}
+	}
+
+	/** Try migrating again later, unless we are shutting down. */
+	private void retryMigrator() {
+		Ticker t;
+		synchronized (this) {
+			if (shutdown) return;
+			t = ticker;
+		}
+		if (t == null) return; // Try again when we are restarted.
+		t.queueTimedJob(new Runnable() {
+			@Override
+			public void run() {
+				startMigrator();
+			}
+		}, "Retry moving keys to new volumes of " + name, MIGRATE_RETRY_DELAY, true, true);
+	}
+
+	/** Create and start a new volume, then start using it. */
+	private void openVolume(File dir, int count) {
+		SaltedHashFreenetStore<T> volume;
+		long size;
+		synchronized (this) {
+			size = volumeSize(maxKeys, count + 1);
+		}
+		try {
+			dir.mkdirs();
+			volume = SaltedHashFreenetStore.constructVolume(dir, volumes[0], size, shutdownHook, resizeOnStart);
+		} catch (IOException e) {
+			Logger.error(this, "Unable to add volume " + dir + " to " + name + " : " + e, e);
+			System.err.println("Unable to add volume " + dir + " to " + name + " : " + e);
+			return;
+		}
+		synchronized (this) {
+			initVolume(volume, count, count + 1);
+		}
+		try {
+			// May take a long time if preallocating.
+			volume.start(ticker, true);
+		} catch (IOException e) {
+			Logger.error(this, "Unable to start volume " + dir + " of " + name + " : " + e, e);
+			System.err.println("Unable to start volume " + dir + " of " + name + " : " + e);
+			volume.close();
+			return;
+		}
+		synchronized (this) {
+			if (shutdown) {
+				volume.close();
+				return;
+			}
+			SaltedHashFreenetStore<T>[] v = Arrays.copyOf(volumes, volumes.length + 1);
+			v[v.length - 1] = volume;
+			volumes = v;
+			dirs.add(dir);
+		}
+		writeVolumesFile();
+		System.out.println("Added volume " + dir + " to " + name + ", moving keys to it");
+	}
+
+	/**
+	 * Move the keys which belong in later volumes out of the settled volumes, one thread per
+	 * volume. Each volume saves how far it has got in its config file, so if we are restarted we
+	 * carry on from there.
+	 * @return False if we failed or are shutting down.
+	 */
+	private boolean migrate(final int count) {
+		final SaltedHashFreenetStore<T>[] v = volumes;
+		final int settled = settledVolumes;
+		Logger.normal(this, "Moving keys from " + settled + " volumes to " + (count - settled) + " new volumes of " + name);
+		final long[] moved = new long[1];
+		final boolean[] failed = new boolean[1];
+		NativeThread[] threads = new NativeThread[settled];
+		for (int i = 0; i < settled; i++) {
+			final SaltedHashFreenetStore<T> source = v[i];
+			threads[i] = new NativeThread("Store-" + name + "-Migrator-" + i, NativeThread.LOW_PRIORITY, false) {
+				@Override
+				public void realRun() {
+					long total = 0;
+					try {
+						long slots = source.slotCount();
+						long start = Math.min(source.migrationCheckpoint(count), slots);
+						if (start > 0)
+							Logger.normal(this, "Resuming moving keys from " + source + " to new volumes of " + name + " at " + start + "/" + slots);
+						long lastCheckpoint = System.currentTimeMillis();
+						for (long offset = start; offset < slots; offset += MIGRATE_BATCH) {
+							int m = source.moveEntries(offset, MIGRATE_BATCH, MultiVolumeFreenetStore.this);
+							if (m < 0 || shutdown) {
+								synchronized (failed) {
+									failed[0] = true;
+								}
+								return;
+							}
+							total += m;
+							long now = System.currentTimeMillis();
+							if (now - lastCheckpoint > MIGRATE_CHECKPOINT_INTERVAL) {
+								source.checkpointMigration(count, offset + MIGRATE_BATCH);
+								lastCheckpoint = now;
+							}
+							if (!SaltedHashFreenetStore.NO_CLEANER_SLEEP)
+								Thread.sleep(MIGRATE_DELAY);
+						}
+					} catch (InterruptedException e) {
+						synchronized (failed) {
+							failed[0] = true;
+						}
+					} catch (IOException e) {
+						Logger.error(this, "Unable to move keys from " + source + " : " + e, e);
+						synchronized (failed) {
+							failed[0] = true;
+						}
+					} finally {
+						synchronized (moved) {
+							moved[0] += total;
+						}
+					}
+				}
+			};
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+		for (NativeThread t : threads) {
+			while (true) {
+				try {
+					t.join();
+					break;
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+		}
+		synchronized (failed) {
+			if (failed[0]) return false;
+		}
+		synchronized (this) {
+			settledVolumes = count;
+		}
+		writeVolumesFile();
+		for (int i = 0; i < settled; i++)
+			v[i].checkpointMigration(0, 0);
+		synchronized (moved) {
+			Logger.normal(this, "Moved " + moved[0] + " keys to new volumes of " + name);
+			System.out.println("Moved " + moved[0] + " keys to new volumes of " + name);
+		}
+		try {
+			resizeVolumes();
+		} catch (IOException e) {
+			Logger.error(this, "Unable to resize volumes of " + name + " : " + e, e);
+		}
+		return true;
+	}
+
+	/** Give each volume an equal share of the keys, once they have all been migrated. */
+	private void resizeVolumes() throws IOException {
+		SaltedHashFreenetStore<T>[] v;
+		long size;
+		synchronized (this) {
+			v = volumes;
+			if (settledVolumes < v.length) return; // Done when migration is complete.
+			size = volumeSize(maxKeys, v.length);
+		}
+		for (SaltedHashFreenetStore<T> volume : v)
+			volume.setMaxKeys(size, false);
+	}
+
+	@Override
+	public void setMaxKeys(long maxStoreKeys, boolean shrinkNow) throws IOException {
+		SaltedHashFreenetStore<T>[] v;
+		synchronized (this) {
+			maxKeys = maxStoreKeys;
+			v = volumes;
+			if (settledVolumes < v.length) return; // Done when migration is complete.
+		}
+		long size = volumeSize(maxStoreKeys, v.length);
+		for (SaltedHashFreenetStore<T> volume : v)
+			volume.setMaxKeys(size, shrinkNow);
+	}
+
+	@Override
+	public synchronized long getMaxKeys() {
+		return maxKeys;
+	}
+
+	@Override
+	public long hits() {
+		long total = 0;
+		for (SaltedHashFreenetStore<T> volume : volumes)
+			total += volume.hits();
+		return total;
+	}
+
+	@Override
+	public long misses() {
+		long total = 0;
+		for (SaltedHashFreenetStore<T> volume : volumes)
+			total += volume.misses();
+		return total;
+	}
+
+	@Override
+	public long writes() {
+		long total = 0;
+		for (SaltedHashFreenetStore<T> volume : volumes)
+			total += volume.writes();
+		return total;
+	}
+
+	@Override
+	public long keyCount() {
+		long total = 0;
+		for (SaltedHashFreenetStore<T> volume : volumes)
+			total += volume.keyCount();
+		return total;
+	}
+
+	@Override
+	public long getBloomFalsePositive() {
+		long total = 0;
+		for (SaltedHashFreenetStore<T> volume : volumes)
+			total += volume.getBloomFalsePositive();
+		return total;
+	}
+
+	@Override
+	public StoreAccessStats getSessionAccessStats() {
+		SaltedHashFreenetStore<T>[] v = volumes;
+		StoreAccessStats[] stats = new StoreAccessStats[v.length];
+		for (int i = 0; i < v.length; i++)
+			stats[i] = v[i].getSessionAccessStats();
+		return sum(stats);
+	}
+
+	@Override
+	public StoreAccessStats getTotalAccessStats() {
+		SaltedHashFreenetStore<T>[] v = volumes;
+		StoreAccessStats[] stats = new StoreAccessStats[v.length];
+		for (int i = 0; i < v.length; i++)
+			stats[i] = v[i].getTotalAccessStats();
+		return sum(stats);
+	}
+
+	private static StoreAccessStats sum(final StoreAccessStats[] stats) {
+		return new StoreAccessStats() {
+
+			@Override
+			public long hits() {
+				long total = 0;
+				for (StoreAccessStats s : stats)
+					total += s.hits();
+				return total;
+			}
+
+			@Override
+			public long misses() {
+				long total = 0;
+				for (StoreAccessStats s : stats)
+					total += s.misses();
+				return total;
+			}
+
+			@Override
+			public long falsePos() {
+				long total = 0;
+				for (StoreAccessStats s : stats)
+					total += s.falsePos();
+				return total;
+			}
+
+			@Override
+			public long writes() {
+				long total = 0;
+				for (StoreAccessStats s : stats)
+					total += s.writes();
+				return total;
+			}
+
+			@Override
+			public long lockAcquisitions() {
+				long total = 0;
+				for (StoreAccessStats s : stats)
+					total += s.lockAcquisitions();
+				return total;
+			}
+
+			@Override
+			public long lockContentions() {
+				long total = 0;
+				for (StoreAccessStats s : stats)
+					total += s.lockContentions();
+				return total;
+			}
+
+			@Override
+			public long lockWaitTimeNanos() {
+				long total = 0;
+				for (StoreAccessStats s : stats)
+					total += s.lockWaitTimeNanos();
+				return total;
+			}
+
+			@Override
+			public long digestCacheHits() {
+				long total = 0;
+				for (StoreAccessStats s : stats)
+					total += s.digestCacheHits();
+				return total;
+			}
+
+			@Override
+			public long digestCacheMisses() {
+				long total = 0;
+				for (StoreAccessStats s : stats)
+					total += s.digestCacheMisses();
+				return total;
+			}
+
+			@Override
+			public long writeBehindQueuedBlocks() {
+				long total = 0;
+				for (StoreAccessStats s : stats)
+					total += s.writeBehindQueuedBlocks();
+				return total;
+			}
+
+			@Override
+			public long writeBehindWrites() {
+				long total = 0;
+				for (StoreAccessStats s : stats)
+					total += s.writeBehindWrites();
+				return total;
+			}
+
+			@Override
+			public long writeBehindBatches() {
+				long total = 0;
+				for (StoreAccessStats s : stats)
+					total += s.writeBehindBatches();
+				return total;
+			}
+
+			@Override
+			public long writeBehindBlockedPuts() {
+				long total = 0;
+				for (StoreAccessStats s : stats)
+					total += s.writeBehindBlockedPuts();
+				return total;
+			}
+
+		};
+	}
+
+	@Override
+	public boolean start(Ticker ticker, boolean longStart) throws IOException {
+		boolean delayed = false;
+		synchronized (this) {
+			if (started) return true;
+			this.ticker = ticker;
+		}
+		for (SaltedHashFreenetStore<T> volume : volumes) {
+			if (!volume.isStarted())
+				delayed |= volume.start(ticker, longStart);
+		}
+		if (delayed) return true;
+		synchronized (this) {
+			started = true;
+			startMigrator();
+		}
+		return false;
+	}
+
+	@Override
+	public void close() {
+		NativeThread m;
+		synchronized (this) {
+			shutdown = true;
+			m = migrator;
+		}
+		if (m != null)
+			m.interrupt();
+		for (SaltedHashFreenetStore<T> volume : volumes)
+			volume.close();
+	}
+
+	public void destruct() {
+		for (SaltedHashFreenetStore<T> volume : volumes)
+			volume.destruct();
+		volumesFile.delete();
+	}
+
+	@Override
+	public synchronized void setUserAlertManager(UserAlertManager userAlertManager) {
+		this.userAlertManager = userAlertManager;
+		for (SaltedHashFreenetStore<T> volume : volumes)
+			volume.setUserAlertManager(userAlertManager);
+	}
+
+	/** Write blocks we have no room for to the volumes of another store, with the wrong
+	 * store flag. The other store must not have an altStore itself. */
+	public synchronized void setAltStore(MultiVolumeFreenetStore<T> store) {
+		if (store.altStore != null) throw new IllegalStateException("Target must not have an altStore - deadlock can result");
+		altStore = store;
+		for (SaltedHashFreenetStore<T> volume : volumes)
+			volume.setAltStore(store);
+	}
+
+	public void setPreallocate(boolean preallocate) {
+		for (SaltedHashFreenetStore<T> volume : volumes)
+			volume.setPreallocate(preallocate);
+	}
+
+	/** @return The number of volumes, including those still being filled. */
+	public int volumeCount() {
+		return volumes.length;
+	}
+
+	@Override
+	public FreenetStore<T> getUnderlyingStore() {
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + ":" + name + " (" + volumes.length + " volumes)";
+	}
+
+	/** Only for testing (crude!) */
+	void testingWaitForMigration(int delay, int count) throws InterruptedException {
+		for (int i = 0; i < count; i++) {
+			synchronized (this) {
+				if (pendingVolumes.isEmpty() && settledVolumes >= volumes.length) return;
+			}
+			Thread.sleep(delay);
+		}
+		throw new AssertionError();
+	}
+
+}
@@ -12,10 +12,11 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Deque;
-import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.SortedSet;
@@ -55,6 +56,7 @@ import freenet.support.HexUtil;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.Ticker;
+import freenet.support.TimeUtil;
 import freenet.support.io.Closer;
 import freenet.support.io.FileUtil;
 import freenet.support.io.NativeThread;
@@ -70,7 +72,7 @@ import freenet.support.math.MersenneTwister;
  *
  * @author sdiz
  */
-public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetStore<T> {
+public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetStore<T>, AltStore<T> {
 	/** Option for saving plainkey. 
 	 * SECURITY: This should NEVER be enabled for a client-cache! */
 	private static final boolean OPTION_SAVE_PLAINKEY = false;
@@ -126,6 +128,28 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 	private boolean preallocate = true;
 	public static boolean NO_CLEANER_SLEEP = false;
+	/** Number of threads the cleaner uses to resize a store or rebuild its slot filter. Only
+	 * one store is resized or rebuilt at a time. */
+	private static volatile int cleanerThreads = 2;
+
+	public static int getCleanerThreads() {
+		return cleanerThreads;
+	}
+
+	/** Set the number of threads the cleaner uses. Takes effect the next time it processes the
+	 * whole store. */
+	public static void setCleanerThreads(int threads) {
+		if(threads < 1) throw new IllegalArgumentException();
+		cleanerThreads = threads;
+	}
+
+	/** If true, access the metadata file through a memory mapping rather than positional
+	 * FileChannel I/O. Each probe is then a page cache hit without a syscall or a buffer
+	 * allocation. Costs address space of 128 bytes per slot. */
+	private final boolean mmapMetadata;
+	/** If true, also map the header+data file. This needs a 64-bit JVM for any reasonably
+	 * sized store. */
+	private final boolean mmapHD;
 
 	/** If we have no space in this store, try writing it to the alternate store,
 	 * with the wrong store flag set. Note that we do not *read from* it, the caller
@@ -134,22 +158,73 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 * recursion is also possible). However, fortunately we don't need to do it
 	 * bidirectionally - the cache needs more space from the store, but the store
 	 * grows so slowly it will hardly ever need more space from the cache. */
-	private SaltedHashFreenetStore<T> altStore;
+	private AltStore<T> altStore;
+
+	/** If not null, puts are queued and written in batches by a separate thread. */
+	private WriteBehindQueue<T> writeQueue;
+
+	/** If not null, this store is a volume of this multi-volume store. */
+	private MultiVolumeFreenetStore<T> multiVolume;
+
+	/**
+	 * Queue puts in memory and write them in the background, in batches sorted by slot, rather
+	 * than on the caller's thread. Must be called before start().
+	 * @param maxBytes The maximum amount of block data to queue. Puts block when the queue
+	 * is full.
+	 */
+	public void setWriteBehindSize(long maxBytes) {
+		if(started) throw new IllegalStateException("Already started");
+		if(maxBytes > 0)
+			writeQueue = new WriteBehindQueue<T>(this, collisionPossible, maxBytes);
+		else
+			writeQueue = null;
+	}
 
 	public void setAltStore(SaltedHashFreenetStore<T> store) {
 		if(store.altStore != null) throw new IllegalStateException("Target must not have an altStore - deadlock can result");
 		altStore = store;
 	}
 
+	/** Set the alternate store to a multi-volume store, whose volumes must not have an
+	 * altStore. */
+	void setAltStore(MultiVolumeFreenetStore<T> store) {
+		altStore = store;
+	}
+
 	public static <T extends StorableBlock> SaltedHashFreenetStore<T> construct(File baseDir, String name, StoreCallback<T> callback, Random random,
 	        long maxKeys, boolean useSlotFilter, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, Ticker exec, byte[] masterKey)
 	        throws IOException {
+		return construct(baseDir, name, callback, random, maxKeys, useSlotFilter, shutdownHook, preallocate,
+		        resizeOnStart, exec, masterKey, false, false);
+	}
+
+	public static <T extends StorableBlock> SaltedHashFreenetStore<T> construct(File baseDir, String name, StoreCallback<T> callback, Random random,
+	        long maxKeys, boolean useSlotFilter, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, Ticker exec, byte[] masterKey,
+	        boolean mmapMetadata, boolean mmapHD) throws IOException {
 		return new SaltedHashFreenetStore<T>(baseDir, name, callback, random, maxKeys, useSlotFilter,
-		        shutdownHook, preallocate, resizeOnStart, masterKey);
+		        shutdownHook, preallocate, resizeOnStart, masterKey, mmapMetadata, mmapHD, null);
+	}
+
+	/**
+	 * Open or create another volume of a multi-volume store, in a different directory. It uses
+	 * the same salt and options as the first volume, so entries can be moved between volumes
+	 * without decrypting them. Doesn't register with the callback.
+	 * @throws IOException If the volume exists but belongs to a different store.
+	 */
+	static <T extends StorableBlock> SaltedHashFreenetStore<T> constructVolume(File baseDir, SaltedHashFreenetStore<T> firstVolume,
+	        long maxKeys, SemiOrderedShutdownHook shutdownHook, boolean resizeOnStart) throws IOException {
+		return new SaltedHashFreenetStore<T>(baseDir, firstVolume.name, firstVolume.callback, firstVolume.random, maxKeys,
+		        !firstVolume.slotFilterDisabled, shutdownHook, firstVolume.preallocate, resizeOnStart, null,
+		        firstVolume.mmapMetadata, firstVolume.mmapHD, firstVolume.cipherManager);
 	}
 
+	/**
+	 * @param saltSource If not null, this is another volume of a multi-volume store, and must
+	 * use the same salt as saltSource.
+	 */
 	private SaltedHashFreenetStore(File baseDir, String name, StoreCallback<T> callback, Random random, long maxKeys,
-	        boolean enableSlotFilters, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, byte[] masterKey) throws IOException {
+	        boolean enableSlotFilters, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, byte[] masterKey,
+	        boolean mmapMetadata, boolean mmapHD, CipherManager saltSource) throws IOException {
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 		logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
 
@@ -169,6 +244,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		this.random = random;
 		storeSize = maxKeys;
 		this.preallocate = preallocate;
+		this.mmapMetadata = mmapMetadata;
+		this.mmapHD = mmapHD;
 
 		lockManager = new LockManager();
 
@@ -179,7 +256,13 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			throw new IllegalArgumentException("Store size over MAXINT not supported due to ResizablePersistentIntBuffer limitations.");
 
 		configFile = new File(this.baseDir, name + ".config");
-		boolean newStore = loadConfigFile(masterKey);
+		boolean newStore = loadConfigFile(masterKey, saltSource);
+		if(saltSource != null && !newStore) {
+			if(!Arrays.equals(cipherManager.getDiskSalt(), saltSource.getDiskSalt()))
+				throw new IOException("Datastore volume " + configFile + " belongs to a different store");
+			// The salt on disk is the same, so is the real one.
+			cipherManager = saltSource.copy();
+		}
 		if(storeSize != 0 && storeSize != maxKeys && prevStoreSize == 0) {
 			// If not already resizing, start resizing to the new store size.
 			prevStoreSize = storeSize;
@@ -221,7 +304,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		flags |= FLAG_DIRTY; // datastore is now dirty until flushAndClose()
 		writeConfigFile();
 
-		callback.setStore(this);
+		if(saltSource == null)
+			callback.setStore(this);
 		shutdownHook.addEarlyJob(new NativeThread(new ShutdownDB(), "Shutdown salted hash store", NativeThread.HIGH_PRIORITY, true));
 
 		cleanerThread = new Cleaner();
@@ -286,6 +370,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 		storeFileOffsetReady = Math.min(curStoreFileSize / (headerBlockLength + dataBlockLength + hdPadding), curMetaFileSize / Entry.METADATA_LENGTH);
 
+		if(writeQueue != null)
+			writeQueue.start(name);
+
 		if(ticker == null) {
 			cleanerThread.start();
 		} else
@@ -308,6 +395,25 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		if (logMINOR)
 			Logger.minor(this, "Fetch " + HexUtil.bytesToHex(routingKey) + " for " + callback);
 
+		if (writeQueue != null) {
+			WriteBehindQueue.PendingWrite<T> queued = writeQueue.get(routingKey);
+			if (queued != null) {
+				if (queued.isOldBlock) {
+					if (ignoreOldBlocks)
+						return null;
+					if (meta != null)
+						meta.setOldBlock();
+				}
+				try {
+					T block = callback.construct(queued.data, queued.header, routingKey, queued.block.getFullKey(), canReadClientCache, canReadSlashdotCache, meta, null);
+					hits.incrementAndGet();
+					return block;
+				} catch (KeyVerifyException e) {
+					Logger.error(this, "Queued block does not verify: " + e, e);
+				}
+			}
+		}
+
 		try {
 			int retry = 0;
 			while (!configLock.readLock().tryLock(2, TimeUnit.SECONDS)) {
@@ -408,6 +514,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 	@Override
 	public void put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) throws IOException, KeyCollisionException {
+		if (writeQueue != null && writeQueue.queue(block, data, header, overwrite, isOldBlock))
+			return;
 		put(block, data, header, overwrite, isOldBlock, false);
 	}
 
@@ -569,6 +677,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private RandomAccessFile hdRAF;
 	private FileChannel hdFC;
 	private final int hdPadding;
+	// memory mappings, null unless enabled
+	private SegmentedMappedFile metaMap;
+	private SegmentedMappedFile hdMap;
 
 	/**
 	 * Data entry
@@ -700,7 +811,19 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 		private ByteBuffer toMetaDataBuffer() {
 			ByteBuffer out = ByteBuffer.allocate(METADATA_LENGTH);
+			writeMetaData(out);
+			out.position(0);
+			return out;
+		}
+
+		/**
+		 * Write the whole metadata block, including the reserved areas, to a buffer which may
+		 * contain old data e.g. a slot in a mapped file.
+		 */
+		private void writeMetaData(ByteBuffer out) {
+			assert out.remaining() >= METADATA_LENGTH;
 			cipherManager.encrypt(this, random);
+			int start = out.position();
 
 			out.put(getDigestedRoutingKey());
 			out.put(dataEncryptIV);
@@ -712,27 +835,39 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				out.put(plainRoutingKey);
 			}
 
-			out.position(0x60);
+			while (out.position() < start + 0x60)
+				out.putLong(0);
 			out.putInt(generation);
+			out.putInt(0);
+			while (out.position() < start + METADATA_LENGTH)
+				out.putLong(0);
+		}
+
+		private ByteBuffer toHDBuffer() {
+			if (header == null || data == null)
+				return null;
+
+			ByteBuffer out = ByteBuffer.allocate(headerBlockLength + dataBlockLength + hdPadding);
+			writeHD(out);
 
 			out.position(0);
 			return out;
 		}
 
-		private ByteBuffer toHDBuffer() {
+		/**
+		 * Write the header, data and padding to a buffer which may contain old data e.g. a slot
+		 * in a mapped file.
+		 */
+		private void writeHD(ByteBuffer out) {
 			assert isEncrypted; // should have encrypted to get dataEncryptIV in control buffer
 			assert header.length == headerBlockLength;
 			assert data.length == dataBlockLength;
+			assert out.remaining() >= headerBlockLength + dataBlockLength + hdPadding;
 
-			if (header == null || data == null)
-				return null;
-
-			ByteBuffer out = ByteBuffer.allocate(headerBlockLength + dataBlockLength + hdPadding);
 			out.put(header);
 			out.put(data);
-
-			out.position(0);
-			return out;
+			for (int i = 0; i < hdPadding; i++)
+				out.put((byte) 0);
 		}
 
 		private T getStorableBlock(byte[] routingKey, byte[] fullKey, boolean canReadClientCache, boolean canReadSlashdotCache, BlockMetadata meta, DSAPublicKey knownKey) throws KeyVerifyException {
@@ -839,9 +974,55 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		hdFC = hdRAF.getChannel();
 		hdFC.lock();
 
+		if (mmapMetadata)
+			metaMap = new SegmentedMappedFile(metaFC, Entry.METADATA_LENGTH);
+		if (mmapHD)
+			hdMap = new SegmentedMappedFile(hdFC, headerBlockLength + dataBlockLength + hdPadding);
+		remapStoreFiles();
+
 		return newStore;
 	}
 
+	/**
+	 * Update the memory mappings after the store files have changed length. Falls back to
+	 * FileChannel I/O if the files can't be mapped, e.g. because we have run out of address
+	 * space.
+	 */
+	private void remapStoreFiles() {
+		if (metaMap != null) {
+			try {
+				metaMap.remap();
+			} catch (IOException e) {
+				Logger.error(this, "Unable to map metadata file for " + name + ", not using mmap: " + e, e);
+				System.err.println("Unable to map metadata file for " + name + ", not using mmap: " + e);
+				metaMap.close();
+				metaMap = null;
+			}
+		}
+		if (hdMap != null) {
+			try {
+				hdMap.remap();
+			} catch (IOException e) {
+				Logger.error(this, "Unable to map header/data file for " + name + ", not using mmap: " + e, e);
+				System.err.println("Unable to map header/data file for " + name + ", not using mmap: " + e);
+				hdMap.close();
+				hdMap = null;
+			}
+		}
+	}
+
+	/** Positional read of the metadata file, through the mapping if there is one. */
+	private int readMeta(ByteBuffer buf, long position) throws IOException {
+		SegmentedMappedFile map = metaMap;
+		return map != null ? map.read(buf, position) : metaFC.read(buf, position);
+	}
+
+	/** Positional write to the metadata file, through the mapping if there is one. */
+	private int writeMeta(ByteBuffer buf, long position) throws IOException {
+		SegmentedMappedFile map = metaMap;
+		return map != null ? map.write(buf, position) : metaFC.write(buf, position);
+	}
+
 	/**
 	 * Read entry from disk. Before calling this function, you should acquire all required locks.
 	 *
@@ -865,16 +1046,19 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			else
 				Logger.minor(this, "Unlikely match");
 		}
-		ByteBuffer mbf = ByteBuffer.allocate(Entry.METADATA_LENGTH);
-
-		do {
-			int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
-			if (status == -1) {
-				Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
-				throw new EOFException();
-			}
-		} while (mbf.hasRemaining());
-		mbf.flip();
+		SegmentedMappedFile map = metaMap;
+		ByteBuffer mbf = map == null ? null : map.slot(offset);
+		if (mbf == null) {
+			mbf = ByteBuffer.allocate(Entry.METADATA_LENGTH);
+			do {
+				int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
+				if (status == -1) {
+					Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
+					throw new EOFException();
+				}
+			} while (mbf.hasRemaining());
+			mbf.flip();
+		}
 
 		Entry entry = new Entry(mbf, null);
 		entry.curOffset = offset;
@@ -935,6 +1119,12 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 * @throws IOException
 	 */
 	private ByteBuffer readHD(long offset) throws IOException {
+		SegmentedMappedFile map = hdMap;
+		if (map != null) {
+			ByteBuffer buf = map.slot(offset);
+			if (buf != null)
+				return buf;
+		}
 		ByteBuffer buf = ByteBuffer.allocate(headerBlockLength + dataBlockLength + hdPadding);
 
 		long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
@@ -1000,14 +1190,26 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		
 		cipherManager.encrypt(entry, random);
 
-		ByteBuffer bf = entry.toMetaDataBuffer();
-		do {
-			int status = metaFC.write(bf, Entry.METADATA_LENGTH * offset + bf.position());
-			if (status == -1)
-				throw new EOFException();
-		} while (bf.hasRemaining());
+		ByteBuffer slot = metaMap == null ? null : metaMap.slot(offset);
+		if (slot != null) {
+			entry.writeMetaData(slot);
+		} else {
+			ByteBuffer bf = entry.toMetaDataBuffer();
+			do {
+				int status = metaFC.write(bf, Entry.METADATA_LENGTH * offset + bf.position());
+				if (status == -1)
+					throw new EOFException();
+			} while (bf.hasRemaining());
+		}
 
-		bf = entry.toHDBuffer();
+		slot = hdMap == null ? null : hdMap.slot(offset);
+		if (slot != null && entry.header != null && entry.data != null) {
+			entry.writeHD(slot);
+			entry.curOffset = offset;
+			return;
+		}
+
+		ByteBuffer bf = entry.toHDBuffer();
 		if (bf != null) {
 			long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
 			do {
@@ -1022,6 +1224,10 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 	private void flushAndClose(boolean abort) {
 		Logger.normal(this, "Flush and closing this store: " + name);
+		if (metaMap != null)
+			metaMap.close();
+		if (hdMap != null)
+			hdMap.close();
 		try {
 			metaFC.force(true);
 			metaFC.close();
@@ -1115,8 +1321,40 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			}
 			storeFileOffsetReady = 1 + storeMaxEntries;
 
-			metaRAF.setLength(newMetaLen);
-			hdRAF.setLength(newHdLen);
+			if ((metaMap != null || hdMap != null) &&
+					(metaRAF.length() > newMetaLen || hdRAF.length() > newHdLen)) {
+				// Truncating a mapped file under a reader would crash the reader, so make sure
+				// nobody is using the mapping. Everything that reads or writes slots, including
+				// the other cleaner threads, takes the read lock.
+				configLock.writeLock().lock();
+				try {
+					boolean unmapped = true;
+					if (metaMap != null && !metaMap.unmap())
+						unmapped = false;
+					if (hdMap != null && !hdMap.unmap())
+						unmapped = false;
+					if (unmapped || !FileUtil.detectedOS.isWindows) {
+						metaRAF.setLength(newMetaLen);
+						hdRAF.setLength(newHdLen);
+					} else {
+						// Truncating would fail while the old mapping is still there.
+						Logger.normal(this, "Unable to unmap " + name + ", not shrinking the store files until the next resize or restart");
+					}
+				} finally {
+					try {
+						remapStoreFiles();
+					} finally {
+						configLock.writeLock().unlock();
+					}
+				}
+			} else {
+				try {
+					metaRAF.setLength(newMetaLen);
+					hdRAF.setLength(newHdLen);
+				} finally {
+					remapStoreFiles();
+				}
+			}
 		} catch (IOException e) {
 			Logger.error(this, "error resizing store file", e);
 		}
@@ -1136,15 +1374,21 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 *  +----+---------------+-------+-------+
 	 *  |0020| Est Key Count |  Gen  | Flags |
 	 *  +----+-------+-------+-------+-------+
-	 *  |0030|   K   |      (reserved)       |
+	 *  |0030|   K   | CkTyp |  Checkpoint   |
 	 *  +----+-------+-------+---------------+
 	 *  |0040|    writes     |     hits      |
 	 *  +----+---------------+---------------+
 	 *  |0050|    misses     | bloomFalsePos |
-	 *  +----+---------------+---------------+
+	 *  +----+-------+-------+---------------+
+	 *  |0060| MigVol|  Pad  | MigCheckpoint |
+	 *  +----+-------+-------+---------------+
 	 *
 	 *  Gen = Generation
 	 *    K = K for bloom filter
+	 *  CkTyp = What the cleaner was doing when it saved its progress
+	 *  Checkpoint = Number of slots the cleaner has finished, so it can resume after a restart
+	 *  MigVol = Number of volumes of the multi-volume store we are moving keys to, if any
+	 *  MigCheckpoint = Number of slots whose keys have been moved to the new volumes
 	 * </pre>
 	 */
 	private final File configFile;
@@ -1152,13 +1396,19 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	/**
 	 * Load config file
 	 * @param masterKey
+	 * @param saltSource If not null, use its salt for a new store.
 	 *
 	 * @return <code>true</code> iff this is a new datastore
 	 */
-	private boolean loadConfigFile(byte[] masterKey) throws IOException {
+	private boolean loadConfigFile(byte[] masterKey, CipherManager saltSource) throws IOException {
 		assert cipherManager == null; // never load the configuration twice
 
-		if (!configFile.exists()) {
+		if (!configFile.exists() && saltSource != null) {
+			cipherManager = saltSource.copy();
+
+			writeConfigFile();
+			return true;
+		} else if (!configFile.exists()) {
 			// create new
 			byte[] newsalt = new byte[0x10];
 			random.nextBytes(newsalt);
@@ -1220,8 +1470,13 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 					try {
 						raf.readInt(); // bloomFilterK
-						raf.readInt(); // reserved
-						raf.readLong(); // reserved
+						cleanerCheckpointType = raf.readInt();
+						cleanerCheckpoint = raf.readLong();
+						if (cleanerCheckpointType == CHECKPOINT_REBUILD && (flags & FLAG_DIRTY) != 0) {
+							// The slot filter may not have been written since the checkpoint.
+							cleanerCheckpointType = CHECKPOINT_NONE;
+							cleanerCheckpoint = 0;
+						}
 						long w = raf.readLong();
 						writes.set(w);
 						initialWrites = w;
@@ -1232,6 +1487,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 						initialMisses = misses.get();
 						bloomFalsePos.set(raf.readLong());
 						initialBloomFalsePos = bloomFalsePos.get();
+						migrationCheckpointVolumes = raf.readInt();
+						raf.readInt(); // pad
+						migrationCheckpoint = raf.readLong();
 					} catch (EOFException e) {
 						// Ignore, back compatibility.
 					}
@@ -1247,7 +1505,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				if (configFile.exists() && configFile.delete()) {
 					File metaFile = new File(baseDir, name + ".metadata");
 					metaFile.delete();
-					return loadConfigFile(masterKey);
+					return loadConfigFile(masterKey, saltSource);
 				}
 
 				// last restore
@@ -1275,12 +1533,15 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			raf.writeInt(generation);
 			raf.writeInt(flags);
 			raf.writeInt(0); // bloomFilterK
-			raf.writeInt(0);
-			raf.writeLong(0);
+			raf.writeInt(cleanerCheckpointType);
+			raf.writeLong(cleanerCheckpoint);
 			raf.writeLong(writes.get());
 			raf.writeLong(hits.get());
 			raf.writeLong(misses.get());
 			raf.writeLong(bloomFalsePos.get());
+			raf.writeInt(migrationCheckpointVolumes);
+			raf.writeInt(0); // pad
+			raf.writeLong(migrationCheckpoint);
 
 			raf.getFD().sync();
 			raf.close();
@@ -1295,19 +1556,34 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 	// ------------- Store resizing
 	private long prevStoreSize = 0;
+	private static final int CHECKPOINT_NONE = 0;
+	private static final int CHECKPOINT_RESIZE = 1;
+	private static final int CHECKPOINT_REBUILD = 2;
+	/** What the cleaner was doing when it last saved its progress. Protected by configLock. */
+	private int cleanerCheckpointType = CHECKPOINT_NONE;
+	/** Number of slots the cleaner had finished when it last saved its progress. */
+	private long cleanerCheckpoint = 0;
+	/** Number of volumes keys were being moved to when the migration last saved its progress.
+	 * Protected by configLock. */
+	private int migrationCheckpointVolumes = 0;
+	/** Number of slots whose keys had been moved when the migration last saved its progress. */
+	private long migrationCheckpoint = 0;
 	private Lock cleanerLock = new ReentrantLock(); // local to this datastore
 	private Condition cleanerCondition = cleanerLock.newCondition();
-	private static Lock cleanerGlobalLock = new ReentrantLock(); // global across all datastore
+	private static final Lock GLOBAL_CLEANER_LOCK = new ReentrantLock();
+	/** Only one store using this lock is resized or rebuilt at a time. Shared by all datastores,
+	 * except for volumes of a multi-volume store which are on other disks. */
+	private Lock cleanerGlobalLock = GLOBAL_CLEANER_LOCK;
 	private Cleaner cleanerThread;
 	private CleanerStatusUserAlert cleanerStatusUserAlert;
 
 	private final Entry NOT_MODIFIED = new Entry();
 
 	private interface BatchProcessor<T extends StorableBlock> {
-		// initialize
-		void init();
+		// initialize, resume is true if we are continuing after a restart
+		void init(boolean resume);
 
-		// call this after reading RESIZE_MEMORY_ENTRIES entries
+		// call this after reading RESIZE_MEMORY_ENTRIES entries, never called concurrently
 		// return false to abort
 		boolean batch(long entriesLeft);
 
@@ -1318,6 +1594,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 		// return <code>null</code> to free the entry
 		// return NOT_MODIFIED to keep the old entry
+		// may be called by several threads at once, for different entries
 		SaltedHashFreenetStore<T>.Entry process(SaltedHashFreenetStore<T>.Entry entry);
 
 		/** Does this batch processor want to see free entries? */
@@ -1412,19 +1689,24 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			System.out.println("Resizing datastore "+name);
 
 			BatchProcessor<T> resizeProcesser = new BatchProcessor<T>() {
+				/** Protected by itself. */
 				Deque<Entry> oldEntryList = new LinkedList<Entry>();
 
 				@Override
-				public void init() {
+				public void init(boolean resume) {
 					if (storeSize > _prevStoreSize)
 						setStoreFileSize(storeSize, false);
 
-					configLock.writeLock().lock();
-					try {
-						generation++;
-						keyCount.set(0);
-					} finally {
-						configLock.writeLock().unlock();
+					if (!resume) {
+						// When resuming, entries which have been moved already have the new
+						// generation, and the key count was saved with the checkpoint.
+						configLock.writeLock().lock();
+						try {
+							generation++;
+							keyCount.set(0);
+						} finally {
+							configLock.writeLock().unlock();
+						}
 					}
 
 					WrapperManager.signalStarting((int) (RESIZE_MEMORY_ENTRIES * SECONDS.toMillis(30) + SECONDS.toMillis(1)));
@@ -1457,32 +1739,39 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					}
 					try {
 						entry.setHD(readHD(entry.curOffset));
-						oldEntryList.add(entry);
-						if (oldEntryList.size() > RESIZE_MEMORY_ENTRIES)
-							oldEntryList.poll();
+						synchronized (oldEntryList) {
+							oldEntryList.add(entry);
+							if (oldEntryList.size() > RESIZE_MEMORY_ENTRIES * cleanerThreads)
+								oldEntryList.poll();
+						}
 					} catch (IOException e) {
 						Logger.error(this, "error reading entry (offset=" + entry.curOffset + ")", e);
 					}
 					return null;
 				}
 
-				int i = 0;
 				@Override
 				public boolean batch(long entriesLeft) {
 					WrapperManager.signalStarting((int) (RESIZE_MEMORY_ENTRIES * SECONDS.toMillis(30) + SECONDS.toMillis(1)));
 
-					if (i++ % 16 == 0)
-						writeConfigFile();
-
 					// shrink data file to current size
 					if (storeSize < _prevStoreSize)
 						setStoreFileSize(Math.max(storeSize, entriesLeft), false);
 
 					// try to resolve the list
-					Iterator<Entry> it = oldEntryList.iterator();
-					while (it.hasNext())
-						if (resolveOldEntry(it.next()))
-							it.remove();
+					// Don't hold the list while locking entries: other threads add to it with
+					// their entries locked.
+					List<Entry> oldEntries;
+					synchronized (oldEntryList) {
+						oldEntries = new ArrayList<Entry>(oldEntryList);
+					}
+					for (Entry entry : oldEntries) {
+						if (resolveOldEntry(entry)) {
+							synchronized (oldEntryList) {
+								oldEntryList.remove(entry);
+							}
+						}
+					}
 
 					return _prevStoreSize == prevStoreSize;
 				}
@@ -1499,6 +1788,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 						if (_prevStoreSize != prevStoreSize)
 							return;
 						prevStoreSize = 0;
+						cleanerCheckpointType = CHECKPOINT_NONE;
+						cleanerCheckpoint = 0;
 						if(!slotFilterDisabled) {
 							if(slotFilter.size() != (int)storeSize)
 								slotFilter.resize((int)storeSize);
@@ -1520,7 +1811,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				}
 			};
 
-			batchProcessEntries(resizeProcesser, _prevStoreSize, true, sleep);
+			batchProcessEntries(resizeProcesser, _prevStoreSize, true, sleep, CHECKPOINT_RESIZE);
 		}
 		
 		/**
@@ -1532,12 +1823,14 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			
 			BatchProcessor<T> rebuildBloomProcessor = new BatchProcessor<T>() {
 				@Override
-				public void init() {
-					configLock.writeLock().lock();
-					try {
-						keyCount.set(0);
-					} finally {
-						configLock.writeLock().unlock();
+				public void init(boolean resume) {
+					if (!resume) {
+						configLock.writeLock().lock();
+						try {
+							keyCount.set(0);
+						} finally {
+							configLock.writeLock().unlock();
+						}
 					}
 
 					WrapperManager.signalStarting((int) (RESIZE_MEMORY_ENTRIES * SECONDS.toMillis(5) + SECONDS.toMillis(1)));
@@ -1564,18 +1857,10 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					return NOT_MODIFIED;
 				}
 				
-				int i = 0;
 				@Override
 				public boolean batch(long entriesLeft) {
 					WrapperManager.signalStarting((int) (RESIZE_MEMORY_ENTRIES * SECONDS.toMillis(5) + SECONDS.toMillis(1)));
 
-					if (i++ % 16 == 0)
-						writeConfigFile();
-					if (i++ % 1024 == 0) {
-						if(!slotFilterDisabled)
-							slotFilter.forceWrite();
-					}
-					
 					return prevStoreSize == 0;
 				}
 				
@@ -1590,6 +1875,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					configLock.writeLock().lock();
 					try {
 						flags &= ~FLAG_REBUILD_BLOOM;
+						cleanerCheckpointType = CHECKPOINT_NONE;
+						cleanerCheckpoint = 0;
 						writeConfigFile();
 					} finally {
 						configLock.writeLock().unlock();
@@ -1603,62 +1890,249 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				}
 			};
 			
-			batchProcessEntries(rebuildBloomProcessor, storeSize, false, sleep);
+			batchProcessEntries(rebuildBloomProcessor, storeSize, false, sleep, CHECKPOINT_REBUILD);
 		}
 
 
 
 		private volatile long entriesLeft;
 		private volatile long entriesTotal;
+		/** Entries processed when the current run started, and when it started, for the rate */
+		private volatile long entriesAtStart;
+		private volatile long startTime;
+		/** What we are doing, for checkpoints */
+		private volatile int runningCheckpointType = CHECKPOINT_NONE;
 
-		private void batchProcessEntries(BatchProcessor<T> processor, long storeSize, boolean reverse, boolean sleep) {
-			
-			entriesLeft = entriesTotal = storeSize;
+		/** How often to save how far we have got, so we can resume after a restart */
+		private static final long CHECKPOINT_INTERVAL = 60 * 1000; // 1 minute
 
-			long startOffset, step;
-			if (!reverse) {
-				startOffset = 0;
-				step = RESIZE_MEMORY_ENTRIES;
-			} else {
-				startOffset = ((storeSize - 1) / RESIZE_MEMORY_ENTRIES) * RESIZE_MEMORY_ENTRIES;
-				step = -RESIZE_MEMORY_ENTRIES;
+		/**
+		 * Progress of a run of batchProcessEntries. The store is split into batches of
+		 * RESIZE_MEMORY_ENTRIES which are handed out in order to the worker threads, but may
+		 * finish out of order, so we keep track of how many have been finished without gaps.
+		 * Only that many are saved as a checkpoint.
+		 */
+		private class BatchProgress {
+			private final long batches;
+			/** Next batch to hand out */
+			private long next;
+			/** All batches before this one have finished */
+			private long finished;
+			/** Batches after finished which have finished */
+			private final SortedSet<Long> finishedOutOfOrder = new TreeSet<Long>();
+			private boolean aborted;
+
+			BatchProgress(long batches, long start) {
+				this.batches = batches;
+				this.next = start;
+				this.finished = start;
 			}
 
-			int i = 0;
-			processor.init();
+			/** @return The next batch to process, or -1 if there are none left. */
+			synchronized long next() {
+				if (aborted || next >= batches) return -1;
+				return next++;
+			}
+
+			/** @return The number of batches finished without gaps. */
+			synchronized long finished(long batch) {
+				finishedOutOfOrder.add(batch);
+				while (!finishedOutOfOrder.isEmpty() && finishedOutOfOrder.first() == finished) {
+					finishedOutOfOrder.remove(finished);
+					finished++;
+				}
+				return finished;
+			}
+
+			synchronized void abort() {
+				aborted = true;
+			}
+
+			synchronized boolean isFinished() {
+				return finished >= batches;
+			}
+
+			synchronized boolean isAborted() {
+				return aborted;
+			}
+		}
+
+		/**
+		 * Process the whole store, using several threads for disjoint ranges of slots.
+		 * @param reverse If true, process from the end of the store to the start. Used for
+		 * shrinking, so we can truncate the file as we go.
+		 * @param checkpointType What to save our progress as, so we can resume if we are
+		 * restarted.
+		 * <p>Locking: each worker holds the configLock read lock while it reads and writes
+		 * its slots, so setStoreFileSize() can't unmap the store files under it. The
+		 * processor's batch() and the checkpoints run under the processor's lock with no
+		 * configLock held, because they may need the write lock. This must not be called
+		 * with configLock held.</p>
+		 */
+		private void batchProcessEntries(final BatchProcessor<T> processor, final long storeSize, final boolean reverse, final boolean sleep,
+				final int checkpointType) {
+			final long batches = (storeSize + RESIZE_MEMORY_ENTRIES - 1) / RESIZE_MEMORY_ENTRIES;
+
+			long resumeBatch = 0;
+			configLock.readLock().lock();
 			try {
-				for (long curOffset = startOffset; curOffset >= 0 && curOffset < storeSize; curOffset += step) {
-					if (shutdown) {
-						processor.abort();
-						return;
-					}
+				if (cleanerCheckpointType == checkpointType) {
+					// When going backwards the first batch is the partial one at the end.
+					long done = cleanerCheckpoint + (reverse ? batches * RESIZE_MEMORY_ENTRIES - storeSize : 0);
+					resumeBatch = Math.min(done / RESIZE_MEMORY_ENTRIES, batches);
+				}
+			} finally {
+				configLock.readLock().unlock();
+			}
+
+			final BatchProgress progress = new BatchProgress(batches, resumeBatch);
+			entriesTotal = storeSize;
+			entriesLeft = entriesLeft(resumeBatch, batches, storeSize, reverse);
+			entriesAtStart = storeSize - entriesLeft;
+			startTime = System.currentTimeMillis();
+			if (resumeBatch > 0)
+				Logger.normal(this, "Resuming " + name + " cleaner at " + entriesAtStart + "/" + storeSize);
 
-					if (i++ % 64 == 0)
-						System.err.println(name + " cleaner in progress: " + (entriesTotal - entriesLeft) + "/"
-						        + entriesTotal);
+			final long[] lastCheckpoint = new long[] { System.currentTimeMillis() };
+			Runnable worker = new Runnable() {
+				@Override
+				public void run() {
+					try {
+						long batch;
+						while ((batch = progress.next()) != -1) {
+							if (shutdown) {
+								progress.abort();
+								return;
+							}
 
-					batchProcessEntries(curOffset, RESIZE_MEMORY_ENTRIES, processor);
-					entriesLeft = reverse ? curOffset : Math.max(storeSize - curOffset - RESIZE_MEMORY_ENTRIES, 0);
-					if (!processor.batch(entriesLeft)) {
-						processor.abort();
-						return;
+							long curOffset = (reverse ? batches - 1 - batch : batch) * RESIZE_MEMORY_ENTRIES;
+							configLock.readLock().lock();
+							try {
+								batchProcessEntries(curOffset, RESIZE_MEMORY_ENTRIES, processor);
+							} finally {
+								configLock.readLock().unlock();
+							}
+							long finished = progress.finished(batch);
+
+							synchronized (processor) {
+								if (progress.isAborted()) return;
+								long left = entriesLeft(finished, batches, storeSize, reverse);
+								if (left < entriesLeft) {
+									if (batch % 64 == 0)
+										Logger.normal(this, name + " cleaner in progress: " + (storeSize - left) + "/" + storeSize
+												+ " (" + entriesPerSecond() + " slots/sec)");
+									entriesLeft = left;
+								}
+								if (!processor.batch(entriesLeft)) {
+									progress.abort();
+									return;
+								}
+								long now = System.currentTimeMillis();
+								if (now - lastCheckpoint[0] > CHECKPOINT_INTERVAL) {
+									checkpoint(checkpointType, storeSize - entriesLeft);
+									lastCheckpoint[0] = now;
+								}
+							}
+
+							if (sleep)
+								Thread.sleep(100);
+						}
+					} catch (InterruptedException e) {
+						progress.abort();
+					} catch (Throwable t) {
+						Logger.error(this, "Caught: "+t+" while processing store "+name, t);
+						progress.abort();
 					}
+				}
+			};
 
+			runningCheckpointType = checkpointType;
+			processor.init(resumeBatch > 0);
+			int threadCount = (int) Math.max(1, Math.min(cleanerThreads, batches - resumeBatch));
+			NativeThread[] threads = new NativeThread[threadCount - 1];
+			for (int i = 0; i < threads.length; i++) {
+				threads[i] = new NativeThread(worker, "Store-" + name + "-Cleaner-" + (i + 1), NativeThread.LOW_PRIORITY, false);
+				threads[i].setDaemon(true);
+				threads[i].start();
+			}
+			// This thread does its share too.
+			worker.run();
+			for (NativeThread t : threads) {
+				while (true) {
 					try {
-						if (sleep)
-							Thread.sleep(100);
+						t.join();
+						break;
 					} catch (InterruptedException e) {
-						processor.abort();
-						return;
+						progress.abort();
 					}
 				}
-				processor.finish();
-			} catch (Exception e) {
-				Logger.error(this, "Caught: "+e+" while shrinking", e);
-				processor.abort();
+			}
+
+			try {
+				if (progress.isAborted() || !progress.isFinished())
+					processor.abort(); // close() saves our progress if we are shutting down
+				else
+					processor.finish();
+			} finally {
+				runningCheckpointType = CHECKPOINT_NONE;
+			}
+		}
+
+		/** @return The number of entries left once the first finished batches are done. */
+		private long entriesLeft(long finished, long batches, long storeSize, boolean reverse) {
+			if (reverse)
+				return Math.min(storeSize, (batches - finished) * RESIZE_MEMORY_ENTRIES);
+			else
+				return Math.max(storeSize - finished * RESIZE_MEMORY_ENTRIES, 0);
+		}
+
+		/** Save our progress in the config file. */
+		private void checkpoint(int checkpointType, long entriesDone) {
+			if (shutdown)
+				return;
+			if (!slotFilterDisabled)
+				slotFilter.forceWrite();
+			configLock.writeLock().lock();
+			try {
+				if (shutdown)
+					return; // close() will save it
+				cleanerCheckpointType = checkpointType;
+				cleanerCheckpoint = entriesDone;
+				writeConfigFile();
+			} finally {
+				configLock.writeLock().unlock();
 			}
 		}
 
+		/**
+		 * Remember how far we have got, for the config file, while the store is being closed.
+		 * Called with configLock held.
+		 * @param abort If true, the slot filter isn't being written, so a slot filter rebuild
+		 * must start again.
+		 */
+		void saveProgress(boolean abort) {
+			int type = runningCheckpointType;
+			if (type == CHECKPOINT_NONE) return;
+			if (abort && type == CHECKPOINT_REBUILD) return;
+			cleanerCheckpointType = type;
+			cleanerCheckpoint = entriesTotal - entriesLeft;
+		}
+
+		/** @return The number of slots processed per second since the current run started. */
+		long entriesPerSecond() {
+			long elapsed = System.currentTimeMillis() - startTime;
+			if (elapsed <= 0) return 0;
+			return (entriesTotal - entriesLeft - entriesAtStart) * 1000 / elapsed;
+		}
+
+		/** @return The estimated time until the current run is finished, in milliseconds, or
+		 * -1 if we don't know yet. */
+		long eta() {
+			long rate = entriesPerSecond();
+			if (rate <= 0) return -1;
+			return entriesLeft * 1000 / rate;
+		}
+
 		/**
 		 * Read a list of items from store.
 		 *
@@ -1671,6 +2145,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		 *            batch processor
 		 * @return <code>true</code> if operation complete successfully; <code>false</code>
 		 *         otherwise (e.g. can't acquire locks, node shutting down)
+		 *         Called with the configLock read lock held.
 		 */
 		private boolean batchProcessEntries(long offset, int length, BatchProcessor<T> processor) {
 			boolean wantFreeEntries = processor.wantFreeEntries();
@@ -1691,7 +2166,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				boolean dirty = false;
 				try {
 					while (buf.hasRemaining()) {
-						int status = metaFC.read(buf, startFileOffset + buf.position());
+						int status = readMeta(buf, startFileOffset + buf.position());
 						if (status == -1)
 							break;
 					}
@@ -1760,7 +2235,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 						try {
 							while (buf.hasRemaining()) {
-								metaFC.write(buf, startFileOffset + buf.position());
+								writeMeta(buf, startFileOffset + buf.position());
 							}
 						} catch (IOException ioe) {
 							Logger.error(this, "unexpected IOException", ioe);
@@ -1857,12 +2332,12 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				return NodeL10n.getBase().getString("SaltedHashFreenetStore.shortResizeProgress", //
 				        new String[] { "name", "processed", "total" },//
 				        new String[] { name, (cleaner.entriesTotal - cleaner.entriesLeft) + "",
-				                cleaner.entriesTotal + "" });
+				                cleaner.entriesTotal + "" }) + getRateText();
 			else
 				return NodeL10n.getBase().getString("SaltedHashFreenetStore.shortRebuildProgress" + (slotFilter.isNew() ? "New" : ""), 
 				        new String[] { "name", "processed", "total" },//
 				        new String[] { name, (cleaner.entriesTotal - cleaner.entriesLeft) + "",
-				                cleaner.entriesTotal + "" });
+				                cleaner.entriesTotal + "" }) + getRateText();
 		}
 
 		@Override
@@ -1871,12 +2346,22 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				return NodeL10n.getBase().getString("SaltedHashFreenetStore.longResizeProgress", //
 				        new String[] { "name", "processed", "total" },//
 				        new String[] { name, (cleaner.entriesTotal - cleaner.entriesLeft) + "",
-				                cleaner.entriesTotal + "" });
+				                cleaner.entriesTotal + "" }) + getRateText();
 			else
 				return NodeL10n.getBase().getString("SaltedHashFreenetStore.longRebuildProgress" + (slotFilter.isNew() ? "New" : ""),
 				        new String[] { "name", "processed", "total" },
 				        new String[] { name, (cleaner.entriesTotal - cleaner.entriesLeft) + "",
-				                cleaner.entriesTotal + "" });
+				                cleaner.entriesTotal + "" }) + getRateText();
+		}
+
+		/** Throughput and time left, if we know them yet */
+		private String getRateText() {
+			long eta = cleaner.eta();
+			if (eta < 0)
+				return "";
+			return " " + NodeL10n.getBase().getString("SaltedHashFreenetStore.cleanerRate", //
+			        new String[] { "rate", "eta" }, //
+			        new String[] { cleaner.entriesPerSecond() + "", TimeUtil.formatTime(eta) });
 		}
 
 		@Override
@@ -1943,6 +2428,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			old = storeSize;
 			prevStoreSize = storeSize;
 			storeSize = newStoreSize;
+			// Progress of an earlier resize or rebuild doesn't apply to this one.
+			cleanerCheckpointType = CHECKPOINT_NONE;
+			cleanerCheckpoint = 0;
 			if(!slotFilterDisabled)
 				slotFilter.resize((int)Math.max(storeSize, prevStoreSize));
 			writeConfigFile();
@@ -2057,6 +2545,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	}
 	
 	public void close(boolean abort) {
+		if (writeQueue != null)
+			writeQueue.shutdown(abort);
 		shutdown = true;
 		lockManager.shutdown();
 
@@ -2071,6 +2561,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		configLock.writeLock().lock();
 		try {
 			flushAndClose(abort);
+			cleanerThread.saveProgress(abort);
 			flags &= ~FLAG_DIRTY; // clean shutdown
 			writeConfigFile();
 		} finally {
@@ -2156,8 +2647,196 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		return bloomFalsePos.get();
 	}
 
+	/** Get the first slot a key would be written to, for sorting writes. Also used by
+	 * write caches in front of the store. */
+	public long getFirstOffset(byte[] routingKey) {
+		return getOffsetFromDigestedKey(cipherManager.getDigestedKey(routingKey), storeSize)[0];
+	}
+
+	// ------------- Multi-volume support
+
+	/** Use a different lock to serialize resizes and rebuilds with other stores on the same
+	 * disk. Must be called before start(). */
+	void setCleanerLock(Lock lock) {
+		cleanerGlobalLock = lock;
+	}
+
+	/** Make this store a volume of a multi-volume store. Must be called before start(). */
+	void setMultiVolume(MultiVolumeFreenetStore<T> store) {
+		multiVolume = store;
+	}
+
+	/**
+	 * Write a block from the write-behind queue. If a volume has been added since the block was
+	 * queued, and the block now belongs in it, it is written there instead: the migration may
+	 * already have passed the slots it would have been written to here, and fetches look for it
+	 * in the new volume.
+	 */
+	void putQueued(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) throws IOException, KeyCollisionException {
+		MultiVolumeFreenetStore<T> volumes = multiVolume;
+		if (volumes != null) {
+			SaltedHashFreenetStore<T> owner = volumes.volumeForDigestedKey(cipherManager.getDigestedKey(block.getRoutingKey()));
+			if (owner != this) {
+				owner.put(block, data, header, overwrite, isOldBlock);
+				return;
+			}
+		}
+		put(block, data, header, overwrite, isOldBlock, false);
+	}
+
+	byte[] getDigestedKey(byte[] routingKey) {
+		return cipherManager.getDigestedKey(routingKey);
+	}
+
+	boolean isStarted() {
+		return started;
+	}
+
+	/**
+	 * @return The number of slots whose keys have already been moved to the volumes of a
+	 * multi-volume store with this many volumes, so the migration can resume after a restart.
+	 */
+	long migrationCheckpoint(int volumeCount) {
+		configLock.readLock().lock();
+		try {
+			return migrationCheckpointVolumes == volumeCount ? migrationCheckpoint : 0;
+		} finally {
+			configLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Save how far the migration to this many volumes has got in the config file.
+	 * @param volumeCount 0 when the migration has finished.
+	 */
+	void checkpointMigration(int volumeCount, long slotsDone) {
+		configLock.writeLock().lock();
+		try {
+			migrationCheckpointVolumes = volumeCount;
+			migrationCheckpoint = slotsDone;
+			if (!shutdown)
+				writeConfigFile(); // Otherwise close() will save it
+		} finally {
+			configLock.writeLock().unlock();
+		}
+	}
+
+	/** @return The number of slots, including those which are being resized away. */
+	long slotCount() {
+		configLock.readLock().lock();
+		try {
+			return Math.max(storeSize, prevStoreSize);
+		} finally {
+			configLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Move the entries in a range of slots which belong in another volume of a multi-volume
+	 * store. The entries are copied still encrypted, so this only works between volumes with
+	 * the same salt.
+	 * @return The number of entries moved, or -1 if we are shutting down.
+	 */
+	int moveEntries(long offset, int length, MultiVolumeFreenetStore<T> volumes) throws IOException {
+		int moved = 0;
+		for (long slot = offset; slot < offset + length; slot++) {
+			if (shutdown)
+				return -1;
+			configLock.readLock().lock();
+			try {
+				if (slot >= Math.max(storeSize, prevStoreSize) || (storeFileOffsetReady != -1 && slot >= storeFileOffsetReady))
+					break;
+				Condition lock = lockManager.lockEntry(slot);
+				if (lock == null)
+					return -1;
+				try {
+					if (isFree(slot))
+						continue;
+					Entry entry = readEntry(slot, null, null, false);
+					SaltedHashFreenetStore<T> target = volumes.migrationTarget(entry.getDigestedRoutingKey(), this);
+					if (target == null)
+						continue;
+					entry.setHD(readHD(slot));
+					if (!target.importEntry(entry))
+						continue;
+					ByteBuffer free = ByteBuffer.allocate(Entry.METADATA_LENGTH);
+					while (free.hasRemaining()) {
+						if (writeMeta(free, Entry.METADATA_LENGTH * slot + free.position()) == -1)
+							throw new EOFException();
+					}
+					if (!slotFilterDisabled)
+						slotFilter.put((int) slot, SLOT_CHECKED);
+					keyCount.decrementAndGet();
+					moved++;
+				} finally {
+					lockManager.unlockEntry(slot, lock);
+				}
+			} finally {
+				configLock.readLock().unlock();
+			}
+		}
+		return moved;
+	}
+
+	/**
+	 * Write an encrypted entry read from another volume, like a put: to a free slot if there is
+	 * one, otherwise over the first slot.
+	 * @return False if the entry couldn't be written, e.g. because we are shutting down.
+	 */
+	private boolean importEntry(SaltedHashFreenetStore<T>.Entry from) throws IOException {
+		byte[] digestedKey = from.getDigestedRoutingKey();
+		configLock.readLock().lock();
+		try {
+			if (shutdown || storeFileOffsetReady == -1)
+				return false;
+			Map<Long, Condition> lockMap = lockDigestedKey(digestedKey, false);
+			if (lockMap == null)
+				return false;
+			try {
+				Entry entry = new Entry();
+				entry.digestedRoutingKey = digestedKey;
+				entry.dataEncryptIV = from.dataEncryptIV;
+				entry.flag = from.flag & ~Entry.ENTRY_FLAG_PLAINKEY;
+				entry.storeSize = storeSize;
+				entry.generation = generation;
+				entry.header = from.header;
+				entry.data = from.data;
+				entry.isEncrypted = true;
+
+				long[] offsets = entry.getOffset();
+				for (long offset : offsets) {
+					// Written since the volume was added, and newer than the one we are moving.
+					if (offset < storeFileOffsetReady && !isFree(offset)
+					        && Arrays.equals(getDigestedKeyFromOffset(offset), digestedKey))
+						return true;
+				}
+				for (long offset : offsets) {
+					if (offset < storeFileOffsetReady && isFree(offset)) {
+						writeEntry(entry, digestedKey, offset);
+						keyCount.incrementAndGet();
+						return true;
+					}
+				}
+				if (offsets[0] >= storeFileOffsetReady)
+					return false;
+				Entry oldEntry = readEntry(offsets[0], null, null, false);
+				writeEntry(entry, digestedKey, offsets[0]);
+				if (oldEntry.generation != generation)
+					keyCount.incrementAndGet();
+				return true;
+			} finally {
+				unlockDigestedKey(digestedKey, false, lockMap);
+			}
+		} finally {
+			configLock.readLock().unlock();
+		}
+	}
+
 	@Override
 	public boolean probablyInStore(byte[] routingKey) {
+		if (writeQueue != null && writeQueue.get(routingKey) != null)
+			return true;
+
 		configLock.readLock().lock();
 		
 		try {
@@ -2244,6 +2923,55 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			public long writes() {
 				return writes.get() - initialWrites;
 			}
+
+			@Override
+			public long lockAcquisitions() {
+				return lockManager.lockCount();
+			}
+
+			@Override
+			public long lockContentions() {
+				return lockManager.contendedCount();
+			}
+
+			@Override
+			public long lockWaitTimeNanos() {
+				return lockManager.waitTimeNanos();
+			}
+
+			@Override
+			public long digestCacheHits() {
+				return cipherManager.digestCacheHits();
+			}
+
+			@Override
+			public long digestCacheMisses() {
+				return cipherManager.digestCacheMisses();
+			}
+
+			@Override
+			public long writeBehindQueuedBlocks() {
+				WriteBehindQueue<T> queue = writeQueue;
+				return queue == null ? 0 : queue.queuedBlocks();
+			}
+
+			@Override
+			public long writeBehindWrites() {
+				WriteBehindQueue<T> queue = writeQueue;
+				return queue == null ? 0 : queue.written();
+			}
+
+			@Override
+			public long writeBehindBatches() {
+				WriteBehindQueue<T> queue = writeQueue;
+				return queue == null ? 0 : queue.batches();
+			}
+
+			@Override
+			public long writeBehindBlockedPuts() {
+				WriteBehindQueue<T> queue = writeQueue;
+				return queue == null ? 0 : queue.blockedPuts();
+			}
 			
 		};
 	}
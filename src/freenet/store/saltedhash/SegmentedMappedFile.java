@@ -0,0 +1,218 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import freenet.support.Logger;
+
+/**
+ * Memory mapped view of a store file made of fixed length records (slots).
+ *
+ * A single MappedByteBuffer is limited to 2GB, so the file is mapped in segments. Each segment
+ * holds a whole number of records, so a slot never straddles two segments and can always be
+ * handed out as a single slice of the mapping, without copying it to the heap.
+ *
+ * Only the part of the file that existed at the last {@link #remap()} is mapped. Accesses beyond
+ * that go through the underlying {@link FileChannel}, so the read/write methods can be used as a
+ * drop in replacement for positional channel I/O while the file is being grown. The caller must
+ * make sure nobody is accessing the mapping while the file is being truncated, and must call
+ * {@link #remap()} after the file length changes.
+ */
+class SegmentedMappedFile {
+
+	/** Default maximum size of a single mapped segment */
+	static final int DEFAULT_SEGMENT_SIZE = 256 * 1024 * 1024;
+
+	private static final MappedByteBuffer[] NO_SEGMENTS = new MappedByteBuffer[0];
+
+	private final FileChannel channel;
+	private final int recordLength;
+	/** Number of bytes in every segment except possibly the last one */
+	private final long segmentLength;
+	/** Segments are replaced as a whole, never modified in place */
+	private volatile MappedByteBuffer[] segments = NO_SEGMENTS;
+	/** Number of bytes covered by segments */
+	private volatile long mappedLength;
+
+	SegmentedMappedFile(FileChannel channel, int recordLength) {
+		this(channel, recordLength, DEFAULT_SEGMENT_SIZE);
+	}
+
+	SegmentedMappedFile(FileChannel channel, int recordLength, int maxSegmentSize) {
+		if(recordLength <= 0 || recordLength > maxSegmentSize)
+			throw new IllegalArgumentException("Bad record length "+recordLength);
+		this.channel = channel;
+		this.recordLength = recordLength;
+		this.segmentLength = (long)(maxSegmentSize / recordLength) * recordLength;
+	}
+
+	/**
+	 * Map the whole records currently in the file. Segments which have not changed are kept, so
+	 * growing the file only maps the new area.
+	 * @throws IOException If the mapping failed. Running out of address space is reported as an
+	 * IOException too, the old mapping is kept in that case.
+	 */
+	synchronized void remap() throws IOException {
+		long length = (channel.size() / recordLength) * recordLength;
+		if(length == mappedLength) return;
+		int count = (int) ((length + segmentLength - 1) / segmentLength);
+		MappedByteBuffer[] oldSegments = segments;
+		MappedByteBuffer[] newSegments = new MappedByteBuffer[count];
+		try {
+			for(int i=0;i<count;i++) {
+				long start = i * segmentLength;
+				long size = Math.min(segmentLength, length - start);
+				if(i < oldSegments.length && oldSegments[i].capacity() == size)
+					newSegments[i] = oldSegments[i];
+				else
+					newSegments[i] = channel.map(MapMode.READ_WRITE, start, size);
+			}
+		} catch (OutOfMemoryError e) {
+			// Thrown by map() when we run out of address space e.g. on a 32-bit JVM.
+			throw new IOException("Unable to map store file: "+e);
+		}
+		segments = newSegments;
+		mappedLength = length;
+	}
+
+	/** @return The number of whole records which are currently mapped. */
+	long mappedRecords() {
+		return mappedLength / recordLength;
+	}
+
+	/**
+	 * Get a view of a single record.
+	 * @param index The record number.
+	 * @return A buffer with position 0 and limit recordLength which shares its content with the
+	 * file, or null if the record is not mapped.
+	 */
+	ByteBuffer slot(long index) {
+		long pos = index * recordLength;
+		MappedByteBuffer[] segs = segments;
+		int seg = (int) (pos / segmentLength);
+		if(pos < 0 || seg >= segs.length) return null;
+		int segOffset = (int) (pos - seg * segmentLength);
+		if(segOffset + recordLength > segs[seg].capacity()) return null;
+		ByteBuffer buf = segs[seg].duplicate();
+		buf.position(segOffset);
+		buf.limit(segOffset + recordLength);
+		return buf.slice();
+	}
+
+	/**
+	 * Positional read, same semantics as {@link FileChannel#read(ByteBuffer, long)}. Reads from
+	 * the mapping if possible, otherwise from the channel. May read less than requested.
+	 */
+	int read(ByteBuffer dst, long position) throws IOException {
+		ByteBuffer src = view(position, dst.remaining());
+		if(src == null) return channel.read(dst, position);
+		int length = src.remaining();
+		dst.put(src);
+		return length;
+	}
+
+	/**
+	 * Positional write, same semantics as {@link FileChannel#write(ByteBuffer, long)}. Writes to
+	 * the mapping if possible, otherwise to the channel. May write less than requested.
+	 */
+	int write(ByteBuffer src, long position) throws IOException {
+		ByteBuffer dst = view(position, src.remaining());
+		if(dst == null) return channel.write(src, position);
+		int length = dst.remaining();
+		int oldLimit = src.limit();
+		src.limit(src.position() + length);
+		dst.put(src);
+		src.limit(oldLimit);
+		return length;
+	}
+
+	/** A view starting at position of at most length bytes, up to the end of the segment. */
+	private ByteBuffer view(long position, int length) {
+		MappedByteBuffer[] segs = segments;
+		int seg = (int) (position / segmentLength);
+		if(position < 0 || seg >= segs.length) return null;
+		int segOffset = (int) (position - seg * segmentLength);
+		if(segOffset >= segs[seg].capacity()) return null;
+		ByteBuffer buf = segs[seg].duplicate();
+		buf.position(segOffset);
+		buf.limit((int) Math.min(segs[seg].capacity(), (long)segOffset + length));
+		return buf;
+	}
+
+	/** Write dirty pages to disk. */
+	void force() {
+		for(MappedByteBuffer buf : segments) {
+			try {
+				buf.force();
+			} catch (Throwable t) {
+				// Can throw an Error for an unsafe memory access if the disk is full etc.
+				Logger.error(this, "Unable to flush mapped store file: "+t, t);
+			}
+		}
+	}
+
+	/** Drop the mapping. It will be unmapped by the garbage collector once nobody uses it. */
+	synchronized void close() {
+		force();
+		mappedLength = 0;
+		segments = NO_SEGMENTS;
+	}
+
+	/**
+	 * Drop the mapping and unmap it now rather than when it is garbage collected, so that the
+	 * file can be truncated: Windows won't truncate a file while part of it is mapped. The caller
+	 * must make sure nobody is using the mapping, as touching it afterwards would crash the JVM.
+	 * {@link #remap()} maps the file again.
+	 * @return False if the mapping could not be unmapped on this JVM, in which case it is left to
+	 * the garbage collector.
+	 */
+	synchronized boolean unmap() {
+		MappedByteBuffer[] oldSegments = segments;
+		close();
+		boolean unmapped = true;
+		for(MappedByteBuffer buf : oldSegments) {
+			if(!unmap(buf)) unmapped = false;
+		}
+		return unmapped;
+	}
+
+	/** Unmap a buffer through the JVM's internal cleaner, which isn't part of the public API:
+	 * Unsafe.invokeCleaner() on Java 9 and later, DirectByteBuffer.cleaner() before that. */
+	private static boolean unmap(MappedByteBuffer buf) {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			invokeCleaner.invoke(theUnsafe.get(null), buf);
+			return true;
+		} catch (NoSuchMethodException e) {
+			// Before Java 9.
+		} catch (Throwable t) {
+			Logger.normal(SegmentedMappedFile.class, "Unable to unmap store file: "+t, t);
+			return false;
+		}
+		try {
+			Method cleanerMethod = buf.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buf);
+			if(cleaner == null) return true; // Nothing was mapped.
+			Method cleanMethod = cleaner.getClass().getMethod("clean");
+			cleanMethod.setAccessible(true);
+			cleanMethod.invoke(cleaner);
+			return true;
+		} catch (Throwable t) {
+			Logger.normal(SegmentedMappedFile.class, "Unable to unmap store file: "+t, t);
+			return false;
+		}
+	}
+
+}
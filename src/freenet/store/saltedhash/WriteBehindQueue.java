@@ -0,0 +1,298 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import freenet.store.KeyCollisionException;
+import freenet.store.StorableBlock;
+import freenet.support.ByteArrayWrapper;
+import freenet.support.Logger;
+import freenet.support.io.NativeThread;
+
+/**
+ * Write-behind queue for a {@link SaltedHashFreenetStore}.
+ *
+ * Puts are queued in memory and the caller returns immediately. A single flusher thread drains
+ * the queue in batches, sorted by the slot they will most likely be written to, so the disk sees
+ * roughly sequential writes rather than one random seek per request thread. Blocks stay visible
+ * to fetch() and probablyInStore() until they have been written. Puts of the same key coalesce.
+ *
+ * Memory is bounded: when the queue is full, put() blocks until the flusher has made room. The
+ * queue is flushed completely when the store is closed. It is not persistent, so an unclean
+ * shutdown loses whatever was queued, which is acceptable for a cache.
+ *
+ * Collision semantics are the same as for a synchronous put: if collisions are possible and we
+ * are not overwriting, we compare against the queued block, and if there might be a block with
+ * the same key on disk, we write synchronously so that a KeyCollisionException can be thrown.
+ */
+class WriteBehindQueue<T extends StorableBlock> {
+
+	private static volatile boolean logMINOR;
+
+	static { Logger.registerClass(WriteBehindQueue.class); }
+
+	/** How long to wait for more puts to accumulate before writing a batch */
+	private static final int BATCH_DELAY = 100;
+	/** How long a put waits for space before checking whether we are shutting down */
+	private static final int BACKPRESSURE_WAIT = 1000;
+
+	static final class PendingWrite<T> {
+		final T block;
+		final byte[] data;
+		final byte[] header;
+		final boolean overwrite;
+		final boolean isOldBlock;
+		final long size;
+		/** Slot the block will probably be written to, for sorting. */
+		long sortKey;
+
+		PendingWrite(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock, long size) {
+			this.block = block;
+			this.data = data;
+			this.header = header;
+			this.overwrite = overwrite;
+			this.isOldBlock = isOldBlock;
+			this.size = size;
+		}
+	}
+
+	private final SaltedHashFreenetStore<T> store;
+	private final boolean collisionPossible;
+	private final long maxBytes;
+	/** Queued blocks by routing key. Protected by this. */
+	private final HashMap<ByteArrayWrapper, PendingWrite<T>> pending;
+	private long bytes;
+	/** Number of blocks being written by the flusher, still in pending. */
+	private int writing;
+	private boolean shutdown;
+	private NativeThread flusher;
+
+	// Statistics, protected by this
+	private long queued;
+	private long coalesced;
+	/** Also read without the lock, to tell whether a write raced with a check of the disk. */
+	private volatile long written;
+	private long batches;
+	private long blockedPuts;
+
+	WriteBehindQueue(SaltedHashFreenetStore<T> store, boolean collisionPossible, long maxBytes) {
+		this.store = store;
+		this.collisionPossible = collisionPossible;
+		this.maxBytes = maxBytes;
+		pending = new HashMap<ByteArrayWrapper, PendingWrite<T>>();
+	}
+
+	synchronized void start(String name) {
+		if(flusher != null) return;
+		flusher = new NativeThread("Store-" + name + "-Writer", NativeThread.HIGH_PRIORITY, false) {
+			@Override
+			public void realRun() {
+				runFlusher();
+			}
+		};
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/** Get a block which has been queued but may not have been written yet. */
+	synchronized PendingWrite<T> get(byte[] routingKey) {
+		if(pending.isEmpty()) return null;
+		return pending.get(new ByteArrayWrapper(routingKey));
+	}
+
+	/**
+	 * Queue a block for writing.
+	 * @return False if the caller must write the block synchronously instead.
+	 * @throws KeyCollisionException If there is a different block with the same key in the
+	 * queue and overwrite is false.
+	 */
+	boolean queue(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) throws KeyCollisionException {
+		byte[] routingKey = block.getRoutingKey();
+		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
+		long size = data.length + header.length + routingKey.length + block.getFullKey().length;
+		if(size > maxBytes) return false;
+		// The caller may reuse its buffers.
+		PendingWrite<T> write = new PendingWrite<T>(block, data.clone(), header.clone(), overwrite, isOldBlock, size);
+		boolean checkCollision = collisionPossible && !overwrite;
+		// Check the disk before taking the lock, so other puts and fetches don't wait for it.
+		long writtenBefore = written;
+		boolean onDisk = checkCollision && store.probablyInStore(routingKey);
+		synchronized(this) {
+			if(flusher == null || shutdown) return false;
+			PendingWrite<T> old = pending.get(key);
+			if(old != null) {
+				if(checkCollision) {
+					if(block.equals(old.block)) return true;
+					throw new KeyCollisionException();
+				}
+			} else if(checkCollision && (onDisk || written != writtenBefore)) {
+				// Need to check the disk for a collision. If a queued block has been written
+				// since we looked, it may have the same key, so check again synchronously.
+				return false;
+			}
+			boolean waited = false;
+			while(bytes + size - (old == null ? 0 : old.size) > maxBytes) {
+				if(!waited) {
+					blockedPuts++;
+					waited = true;
+				}
+				notifyAll();
+				try {
+					wait(BACKPRESSURE_WAIT);
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+				if(shutdown) return false;
+				old = pending.get(key);
+			}
+			if(old != null) {
+				bytes -= old.size;
+				coalesced++;
+			}
+			pending.put(key, write);
+			bytes += size;
+			queued++;
+			// Wake the flusher if it is idle, or if the queue is getting full.
+			if(pending.size() == 1 || bytes > maxBytes / 2)
+				notifyAll();
+		}
+		return true;
+	}
+
+	private void runFlusher() {
+		while(true) {
+			PendingWrite<T>[] batch;
+			synchronized(this) {
+				while(pending.isEmpty() && !shutdown) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+				}
+				if(pending.isEmpty()) {
+					// Shut down and nothing left to write.
+					flusher = null;
+					notifyAll();
+					return;
+				}
+				if(!shutdown && bytes <= maxBytes / 2) {
+					// Give more puts a chance to accumulate.
+					try {
+						wait(BATCH_DELAY);
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+				}
+				batch = toArray(pending.values());
+				writing = batch.length;
+				batches++;
+			}
+			for(PendingWrite<T> write : batch)
+				write.sortKey = store.getFirstOffset(write.block.getRoutingKey());
+			Arrays.sort(batch, new Comparator<PendingWrite<T>>() {
+				@Override
+				public int compare(PendingWrite<T> w1, PendingWrite<T> w2) {
+					if(w1.sortKey < w2.sortKey) return -1;
+					if(w1.sortKey > w2.sortKey) return 1;
+					return 0;
+				}
+			});
+			if(logMINOR) Logger.minor(this, "Writing batch of "+batch.length+" blocks for "+store);
+			for(PendingWrite<T> write : batch) {
+				try {
+					store.putQueued(write.block, write.data, write.header, write.overwrite, write.isOldBlock);
+				} catch (IOException e) {
+					Logger.error(this, "Unable to write queued block to "+store+" : "+e, e);
+				} catch (KeyCollisionException e) {
+					if(logMINOR) Logger.minor(this, "Collision writing queued block to "+store+" : "+e, e);
+				} catch (Throwable t) {
+					Logger.error(this, "Caught "+t+" writing queued block to "+store, t);
+				}
+				synchronized(this) {
+					ByteArrayWrapper key = new ByteArrayWrapper(write.block.getRoutingKey());
+					// A newer put for the same key may have replaced it in the meantime.
+					if(pending.get(key) == write) {
+						pending.remove(key);
+						bytes -= write.size;
+					}
+					writing--;
+					written++;
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private PendingWrite<T>[] toArray(Collection<PendingWrite<T>> writes) {
+		return new ArrayList<PendingWrite<T>>(writes).toArray(new PendingWrite[writes.size()]);
+	}
+
+	/** Wait until everything queued so far has been written. */
+	synchronized void flush() {
+		notifyAll();
+		while(flusher != null && !pending.isEmpty()) {
+			try {
+				wait(BACKPRESSURE_WAIT);
+			} catch (InterruptedException e) {
+				// Ignore
+			}
+		}
+	}
+
+	/**
+	 * Stop accepting puts and write everything that is queued.
+	 * @param abort If true, drop the queue instead of writing it.
+	 */
+	synchronized void shutdown(boolean abort) {
+		shutdown = true;
+		if(abort) {
+			pending.clear();
+			bytes = 0;
+		}
+		notifyAll();
+		while(flusher != null && (!pending.isEmpty() || writing > 0)) {
+			try {
+				wait(BACKPRESSURE_WAIT);
+			} catch (InterruptedException e) {
+				// Ignore
+			}
+		}
+	}
+
+	synchronized long queuedBytes() {
+		return bytes;
+	}
+
+	synchronized int queuedBlocks() {
+		return pending.size();
+	}
+
+	long written() {
+		return written;
+	}
+
+	synchronized long batches() {
+		return batches;
+	}
+
+	synchronized long blockedPuts() {
+		return blockedPuts;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return super.toString() + ": " + pending.size() + " blocks (" + bytes + "/" + maxBytes + " bytes) queued, " +
+			queued + " puts, " + coalesced + " coalesced, " + written + " written in " + batches + " batches, " +
+			blockedPuts + " puts blocked";
+	}
+
+}
@@ -110,6 +110,19 @@ public class BitArray implements WritableToDataOutputStream {
 		dos.write(_bits);
 	}
 
+	/**
+	 * Write the same bytes as writeToDataOutputStream() directly to an array.
+	 * @return The offset after the last byte written.
+	 */
+	public int writeTo(byte[] buf, int offset) {
+		buf[offset++] = (byte) (_size >>> 24);
+		buf[offset++] = (byte) (_size >>> 16);
+		buf[offset++] = (byte) (_size >>> 8);
+		buf[offset++] = (byte) _size;
+		System.arraycopy(_bits, 0, buf, offset, _bits.length);
+		return offset + _bits.length;
+	}
+
 	public static int serializedLength(int size) {
 		return ((size + 7) / 8) + 4;
 	}
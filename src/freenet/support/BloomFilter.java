@@ -27,8 +27,20 @@ public abstract class BloomFilter {
 	}
 
 	public static BloomFilter createFilter(int length, int k, boolean counting) {
+		return createFilter(length, k, counting, false);
+	}
+	
+	/**
+	 * @param blocked If true, create a {@link BlockedBloomFilter}, which is faster to check
+	 * but has a slightly higher false positive rate. Can't be counting.
+	 */
+	public static BloomFilter createFilter(int length, int k, boolean counting, boolean blocked) {
 		if (length == 0)
 			return new NullBloomFilter(length, k);
+		if (blocked && counting)
+			throw new IllegalArgumentException("No counting blocked bloom filter");
+		if (blocked)
+			return new BlockedBloomFilter(length, k);
 		if (counting)
 			return new CountingBloomFilter(length, k);
 		else
@@ -36,8 +48,21 @@ public abstract class BloomFilter {
 	}
 	
 	public static BloomFilter createFilter(File file, int length, int k, boolean counting) throws IOException {
+		return createFilter(file, length, k, counting, false);
+	}
+	
+	/**
+	 * @param blocked If true, create a {@link BlockedBloomFilter}. If the file was written by
+	 * another kind of filter, it is converted to an empty blocked filter and
+	 * {@link #needRebuild()} returns true, so the caller can add the keys again.
+	 */
+	public static BloomFilter createFilter(File file, int length, int k, boolean counting, boolean blocked) throws IOException {
 		if (length == 0)
 			return new NullBloomFilter(length, k);
+		if (blocked && counting)
+			throw new IllegalArgumentException("No counting blocked bloom filter");
+		if (blocked)
+			return new BlockedBloomFilter(file, length, k);
 		if (counting)
 			return new CountingBloomFilter(file, length, k);
 		else
@@ -106,6 +106,20 @@ public class Buffer implements WritableToDataOutputStream {
 		System.arraycopy(_data, _start, array, position, _length);
 	}
 
+	/**
+	 * Copy part of the data to a byte array, without copying the rest of it.
+	 *
+	 * @param offset The offset within this buffer to start copying from
+	 * @param array
+	 * @param position
+	 * @param length
+	 */
+	public void copyTo(int offset, byte[] array, int position, int length) {
+		if(offset < 0 || length < 0 || offset + length > _length)
+			throw new ArrayIndexOutOfBoundsException();
+		System.arraycopy(_data, _start + offset, array, position, length);
+	}
+
 	public byte byteAt(int pos) {
 		if (pos >= _length) {
 			throw new ArrayIndexOutOfBoundsException();
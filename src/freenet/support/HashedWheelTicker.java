@@ -0,0 +1,400 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.node.FastRunnable;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.NativeThread;
+
+/**
+ * Ticker based on a hashed timing wheel. Time is divided into ticks of TICK_LENGTH milliseconds,
+ * and a job is kept in the bucket for the tick in which it is due, together with the number of
+ * times the wheel must go round before it runs. Scheduling and cancelling are O(1), unlike
+ * PrioritizedTicker whose TreeMap is O(log n) to add to and whose dedupe and removal are done
+ * under the same lock as everything else.
+ *
+ * The buckets are only touched by the ticker thread. New jobs are handed over through a lock
+ * free queue, and cancelled jobs are only marked as such, and dropped when their bucket comes
+ * round. To find the jobs for removeQueuedJob() and noDupes, queued jobs are indexed by
+ * Runnable in a table split into INDEX_STRIPES separately locked parts.
+ *
+ * Jobs never run early, and run at most TICK_LENGTH late if the ticker thread is not busy.
+ */
+public class HashedWheelTicker implements Ticker, Runnable {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** Length of a tick in milliseconds. */
+	static final int TICK_LENGTH = 10;
+	/** Number of buckets. Must be a power of 2. One rotation is TICKS_PER_WHEEL * TICK_LENGTH. */
+	static final int TICKS_PER_WHEEL = 512;
+	/** Number of parts of the job index. Must be a power of 2. */
+	static final int INDEX_STRIPES = 16;
+	/** Maximum time to sleep when there is nothing queued. */
+	static final int MAX_SLEEP_TIME = 200;
+
+	private static final int QUEUED = 0;
+	private static final int CANCELLED = 1;
+	private static final int RUN = 2;
+
+	/** A queued job. */
+	private static final class Timeout {
+		final Runnable job;
+		final String name;
+		final long deadline;
+		final AtomicInteger state = new AtomicInteger(QUEUED);
+		/** Only used by the ticker thread. */
+		long remainingRounds;
+		/** Next timeout in the same bucket, only used by the ticker thread. */
+		Timeout nextInBucket;
+		/** Earlier timeout for the same job, protected by the index stripe. */
+		Timeout older;
+
+		Timeout(Runnable job, String name, long deadline) {
+			this.job = job;
+			this.name = name;
+			this.deadline = deadline;
+		}
+
+		boolean isQueued() {
+			return state.get() == QUEUED;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	/** Key for the job index. Jobs are compared by identity, as in PrioritizedTicker. */
+	private static final class JobKey {
+		final Runnable job;
+		JobKey(Runnable job) {
+			this.job = job;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof JobKey)) return false;
+			return ((JobKey)o).job == job;
+		}
+
+		@Override
+		public int hashCode() {
+			return job.hashCode();
+		}
+	}
+
+	private final Timeout[] buckets = new Timeout[TICKS_PER_WHEEL];
+	private final ConcurrentLinkedQueue<Timeout> newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+	/** The latest queued timeout for each job, by stripe. */
+	@SuppressWarnings("unchecked")
+	private final HashMap<JobKey, Timeout>[] index = new HashMap[INDEX_STRIPES];
+	final NativeThread myThread;
+	final Executor executor;
+	private final long startTime;
+	/** The tick being processed. Only used by the ticker thread. */
+	private long tick;
+	/** True if the ticker thread is waiting for a job to be queued. */
+	private volatile boolean idle;
+
+	// Statistics
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicLong jobsRun = new AtomicLong();
+	private final AtomicLong totalLateness = new AtomicLong();
+	private final AtomicLong maxLateness = new AtomicLong();
+
+	public HashedWheelTicker(Executor executor, int portNumber) {
+		this.executor = executor;
+		for(int i=0;i<INDEX_STRIPES;i++)
+			index[i] = new HashMap<JobKey, Timeout>();
+		startTime = System.currentTimeMillis();
+		myThread = new NativeThread(this, "Ticker thread for " + portNumber, NativeThread.MAX_PRIORITY, false);
+		myThread.setDaemon(true);
+	}
+
+	public void start() {
+		Logger.normal(this, "Starting Ticker");
+		System.out.println("Starting Ticker");
+		myThread.start();
+	}
+
+	@Override
+	public void run() {
+		if(logMINOR) Logger.minor(this, "In Ticker.run()");
+		freenet.support.Logger.OSThread.logPID(this);
+		while(true) {
+			try {
+				waitForNextTick();
+				transferNewTimeouts();
+				expireBucket();
+				tick++;
+			} catch(OutOfMemoryError e) {
+				OOMHandler.handleOOM(e);
+				System.err.println("Will retry above failed operation...");
+			} catch(Throwable t) {
+				Logger.error(this, "Caught in Ticker: " + t, t);
+				System.err.println("Caught in Ticker: " + t);
+				t.printStackTrace();
+			}
+		}
+	}
+
+	/** Sleep until the end of the current tick. If we are behind, return immediately. */
+	private void waitForNextTick() {
+		while(true) {
+			long sleepTime = startTime + (tick + 1) * TICK_LENGTH - System.currentTimeMillis();
+			if(sleepTime <= 0) return;
+			try {
+				if(queued.get() == 0 && newTimeouts.isEmpty()) {
+					synchronized(this) {
+						idle = true;
+						// Recheck after setting idle, queueTimedJob() checks idle after adding.
+						if(newTimeouts.isEmpty())
+							wait(Math.max(sleepTime, MAX_SLEEP_TIME));
+						idle = false;
+					}
+					// Nothing to do in the buckets, so skip the ticks we slept through.
+					// Any cancelled timeouts left in them are dropped when they come round.
+					long current = (System.currentTimeMillis() - startTime) / TICK_LENGTH;
+					if(current > tick) tick = current;
+				} else {
+					Thread.sleep(sleepTime);
+				}
+			} catch (InterruptedException e) {
+				// Ignore, check the time again.
+			}
+		}
+	}
+
+	/** Put the timeouts which have been queued since the last tick into their buckets. */
+	private void transferNewTimeouts() {
+		Timeout timeout;
+		while((timeout = newTimeouts.poll()) != null) {
+			if(!timeout.isQueued()) continue;
+			long due = (timeout.deadline - startTime) / TICK_LENGTH;
+			if(due < tick) due = tick;
+			timeout.remainingRounds = (due - tick) / TICKS_PER_WHEEL;
+			int bucket = (int) (due & (TICKS_PER_WHEEL - 1));
+			timeout.nextInBucket = buckets[bucket];
+			buckets[bucket] = timeout;
+		}
+	}
+
+	private void expireBucket() {
+		int bucket = (int) (tick & (TICKS_PER_WHEEL - 1));
+		Timeout timeout = buckets[bucket];
+		Timeout prev = null;
+		long now = System.currentTimeMillis();
+		while(timeout != null) {
+			Timeout next = timeout.nextInBucket;
+			boolean remove;
+			if(!timeout.isQueued()) {
+				remove = true;
+			} else if(timeout.remainingRounds > 0) {
+				timeout.remainingRounds--;
+				remove = false;
+			} else {
+				remove = true;
+				if(timeout.state.compareAndSet(QUEUED, RUN)) {
+					queued.decrementAndGet();
+					unindex(timeout);
+					long lateness = Math.max(0, now - timeout.deadline);
+					jobsRun.incrementAndGet();
+					totalLateness.addAndGet(lateness);
+					long max;
+					while(lateness > (max = maxLateness.get()) && !maxLateness.compareAndSet(max, lateness));
+					runJob(timeout);
+				}
+			}
+			if(remove) {
+				if(prev == null)
+					buckets[bucket] = next;
+				else
+					prev.nextInBucket = next;
+				timeout.nextInBucket = null;
+			} else {
+				prev = timeout;
+			}
+			timeout = next;
+		}
+	}
+
+	private void runJob(Timeout timeout) {
+		if(logMINOR)
+			Logger.minor(this, "Running " + timeout);
+		if(timeout.job instanceof FastRunnable)
+			// Run in-line
+			try {
+				timeout.job.run();
+			} catch(Throwable t) {
+				Logger.error(this, "Caught " + t + " running " + timeout, t);
+			}
+		else
+			try {
+				executor.execute(timeout.job, timeout.name, true);
+			} catch(OutOfMemoryError e) {
+				OOMHandler.handleOOM(e);
+				System.err.println("Will retry above failed operation...");
+				queueTimedJob(timeout.job, timeout.name, 200, true, false);
+			} catch(Throwable t) {
+				Logger.error(this, "Caught in Ticker: " + t, t);
+				System.err.println("Caught in Ticker: " + t);
+				t.printStackTrace();
+			}
+	}
+
+	private HashMap<JobKey, Timeout> stripe(JobKey key) {
+		return index[key.hashCode() & (INDEX_STRIPES - 1)];
+	}
+
+	/** Remove a timeout which has been run from the index. */
+	private void unindex(Timeout timeout) {
+		JobKey key = new JobKey(timeout.job);
+		HashMap<JobKey, Timeout> stripe = stripe(key);
+		synchronized(stripe) {
+			Timeout t = stripe.get(key);
+			Timeout newer = null;
+			while(t != null && t != timeout) {
+				newer = t;
+				t = t.older;
+			}
+			if(t == null) return;
+			if(newer != null)
+				newer.older = t.older;
+			else if(t.older != null)
+				stripe.put(key, t.older);
+			else
+				stripe.remove(key);
+			t.older = null;
+		}
+	}
+
+	/** Cancel every queued timeout in a chain. Caller must hold the stripe lock. */
+	private void cancelAll(Timeout t) {
+		while(t != null) {
+			if(t.state.compareAndSet(QUEUED, CANCELLED))
+				queued.decrementAndGet();
+			Timeout older = t.older;
+			t.older = null;
+			t = older;
+		}
+	}
+
+	@Override
+	public void queueTimedJob(Runnable job, long offset) {
+		queueTimedJob(job, "Scheduled job: "+job, offset, false, false);
+	}
+
+	/**
+	 * Queue a job at a specific time.
+	 * @param runner The job to run. FastRunnable's get run directly on the ticker thread.
+	 * @param name The name of the job, the thread running it will temporarily take this name,
+	 * assuming it is run on a separate thread.
+	 * @param offset The time at which to run the job in milliseconds after
+	 * System.currentTimeMillis().
+	 * @param runOnTickerAnyway If false, run jobs with offset <=0 on the ticker, to preserve
+	 * their thread priorities; if true, jobs to run immediately through the executor (which
+	 * normally will also preserve thread priorities, but may need to call back via
+	 * runOnTickerAnyway=true if it needs to increase the thread priority).
+	 * @param noDupes Don't run this job if it is already scheduled to run no later than this.
+	 * If it is scheduled later, the existing job is cancelled. Only looks at the jobs queued for
+	 * the same Runnable.
+	 */
+	@Override
+	public void queueTimedJob(Runnable runner, String name, long offset, boolean runOnTickerAnyway, boolean noDupes) {
+		// Run directly *if* that won't cause any priority problems.
+		if(offset <= 0 && !runOnTickerAnyway) {
+			if(logMINOR) Logger.minor(this, "Running directly: "+runner);
+			executor.execute(runner, name);
+			return;
+		}
+		if(offset < 0) offset = 0;
+		long deadline = System.currentTimeMillis() + offset;
+		Timeout timeout = new Timeout(runner, name, deadline);
+		JobKey key = new JobKey(runner);
+		HashMap<JobKey, Timeout> stripe = stripe(key);
+		synchronized(stripe) {
+			Timeout head = stripe.get(key);
+			if(noDupes && head != null) {
+				long earliest = Long.MAX_VALUE;
+				for(Timeout t = head; t != null; t = t.older)
+					if(t.isQueued()) earliest = Math.min(earliest, t.deadline);
+				if(earliest <= deadline) {
+					Logger.normal(this, "Not re-running as already queued: "+runner+" for "+name);
+					return;
+				}
+				// Delete the existing jobs because the new job will run first.
+				cancelAll(head);
+				head = null;
+			}
+			// Drop timeouts which have been cancelled or run from the chain.
+			while(head != null && !head.isQueued())
+				head = head.older;
+			timeout.older = head;
+			stripe.put(key, timeout);
+			queued.incrementAndGet();
+		}
+		newTimeouts.add(timeout);
+		if(idle) {
+			synchronized(this) {
+				notifyAll();
+			}
+		}
+	}
+
+	@Override
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/** @return The number of jobs waiting to run. */
+	public int queuedJobs() {
+		return queued.get();
+	}
+
+	/** @return The number of jobs which have been run. */
+	public long jobsRun() {
+		return jobsRun.get();
+	}
+
+	/** @return The average time between when jobs were due and when they were started or handed
+	 * to the executor, in milliseconds. */
+	public double averageLateness() {
+		long run = jobsRun.get();
+		if(run == 0) return 0;
+		return totalLateness.get() / (double) run;
+	}
+
+	/** @return The longest time between when a job was due and when it was started or handed to
+	 * the executor, in milliseconds. */
+	public long maxLateness() {
+		return maxLateness.get();
+	}
+
+	@Override
+	public void removeQueuedJob(Runnable runnable) {
+		JobKey key = new JobKey(runnable);
+		HashMap<JobKey, Timeout> stripe = stripe(key);
+		synchronized(stripe) {
+			Timeout head = stripe.remove(key);
+			cancelAll(head);
+		}
+	}
+
+}
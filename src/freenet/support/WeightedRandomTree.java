@@ -0,0 +1,162 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * A set of items with weights, which can choose an item at random with probability proportional
+ * to its weight. Adding, removing, reweighting and choosing an item are all O(log n): the weights
+ * are kept in a Fenwick tree (binary indexed tree) over the slots of an array, and removing an
+ * item moves the last item into its slot.
+ *
+ * Items are compared with equals() and hashCode(). Not thread-safe: the caller must synchronize.
+ */
+public final class WeightedRandomTree<T> {
+
+	private static final int MIN_SIZE = 16;
+
+	private Object[] items;
+	private long[] weights;
+	/** tree[i] is the sum of the weights of slots (i - lowestOneBit(i), i], 1-based. */
+	private long[] tree;
+	private int size;
+	private long totalWeight;
+	private final HashMap<T, Integer> slots;
+
+	public WeightedRandomTree() {
+		items = new Object[MIN_SIZE];
+		weights = new long[MIN_SIZE];
+		tree = new long[MIN_SIZE + 1];
+		slots = new HashMap<T, Integer>();
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public long totalWeight() {
+		return totalWeight;
+	}
+
+	public boolean contains(T item) {
+		return slots.containsKey(item);
+	}
+
+	/** @return The weight of the item, or -1 if it is not in the tree. */
+	public long getWeight(T item) {
+		Integer slot = slots.get(item);
+		if(slot == null) return -1;
+		return weights[slot];
+	}
+
+	/**
+	 * Add an item, or change its weight if it is already present.
+	 * @param weight Must not be negative. An item of weight 0 is never chosen.
+	 * @return True if the item was added, false if it was already present.
+	 */
+	public boolean add(T item, long weight) {
+		if(weight < 0) throw new IllegalArgumentException("Negative weight "+weight+" for "+item);
+		Integer slot = slots.get(item);
+		if(slot != null) {
+			setSlotWeight(slot, weight);
+			return false;
+		}
+		if(size == items.length) grow();
+		items[size] = item;
+		slots.put(item, size);
+		setSlotWeight(size, weight);
+		size++;
+		return true;
+	}
+
+	/** @return True if the item was present and has been removed. */
+	public boolean remove(T item) {
+		Integer slot = slots.remove(item);
+		if(slot == null) return false;
+		int last = size - 1;
+		if(slot != last) {
+			@SuppressWarnings("unchecked")
+			T moved = (T) items[last];
+			long movedWeight = weights[last];
+			setSlotWeight(last, 0);
+			items[slot] = moved;
+			setSlotWeight(slot, movedWeight);
+			slots.put(moved, slot);
+		} else {
+			setSlotWeight(slot, 0);
+		}
+		items[last] = null;
+		size--;
+		if(items.length > MIN_SIZE && size < items.length / 4)
+			resize(Math.max(MIN_SIZE, items.length / 2));
+		return true;
+	}
+
+	/**
+	 * Choose an item at random, with probability proportional to its weight.
+	 * @return An item, or null if the tree is empty or all the weights are 0.
+	 */
+	public T choose(Random random) {
+		if(totalWeight <= 0) return null;
+		long target;
+		if(totalWeight <= Integer.MAX_VALUE)
+			target = random.nextInt((int) totalWeight);
+		else
+			target = (random.nextLong() & Long.MAX_VALUE) % totalWeight;
+		return get(target);
+	}
+
+	/**
+	 * @param target A number from 0 to totalWeight() - 1.
+	 * @return The item whose range of weight contains the target, i.e. the first item such that
+	 * the weights of it and all the items before it add up to more than the target.
+	 */
+	@SuppressWarnings("unchecked")
+	public T get(long target) {
+		if(target < 0 || target >= totalWeight)
+			throw new IndexOutOfBoundsException("Target "+target+" total weight "+totalWeight);
+		int pos = 0;
+		for(int step = Integer.highestOneBit(items.length); step > 0; step >>= 1) {
+			int next = pos + step;
+			if(next <= items.length && tree[next] <= target) {
+				pos = next;
+				target -= tree[next];
+			}
+		}
+		return (T) items[pos];
+	}
+
+	private void setSlotWeight(int slot, long weight) {
+		long delta = weight - weights[slot];
+		if(delta == 0) return;
+		weights[slot] = weight;
+		totalWeight += delta;
+		for(int i = slot + 1; i < tree.length; i += i & -i)
+			tree[i] += delta;
+	}
+
+	private void grow() {
+		resize(items.length * 2);
+	}
+
+	private void resize(int length) {
+		items = Arrays.copyOf(items, length);
+		weights = Arrays.copyOf(weights, length);
+		// Rebuild the tree in O(n).
+		tree = new long[length + 1];
+		for(int i = 1; i <= length; i++) {
+			tree[i] += weights[i - 1];
+			int parent = i + (i & -i);
+			if(parent <= length) tree[parent] += tree[i];
+		}
+	}
+
+}
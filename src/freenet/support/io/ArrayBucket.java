@@ -18,7 +18,7 @@ import freenet.support.api.Bucket;
  * 
  * @author oskar
  */
-public class ArrayBucket implements Bucket {
+public class ArrayBucket implements RandomAccessBucket {
 	private volatile byte[] data;
 	private String name;
 	private boolean readOnly;
@@ -96,6 +96,42 @@ public class ArrayBucket implements Bucket {
 		// Not much else we can do.
 	}
 
+	@Override
+	public RandomAccessThing toRandomAccessThing() {
+		return new RandomAccessThing() {
+
+			@Override
+			public long size() {
+				return data.length;
+			}
+
+			@Override
+			public void pread(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
+				byte[] d = data;
+				if(fileOffset < 0) throw new IOException("Cannot read before zero");
+				if(fileOffset + length > d.length) throw new IOException("Cannot read after end: trying to read from "+fileOffset+" to "+(fileOffset+length)+" on length "+d.length);
+				System.arraycopy(d, (int)fileOffset, buf, bufOffset, length);
+			}
+
+			@Override
+			public void pwrite(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
+				if(readOnly) throw new IOException("Read only");
+				if(fileOffset < 0) throw new IOException("Cannot write before zero");
+				if(fileOffset + length > Integer.MAX_VALUE) throw new IOException("Too big");
+				byte[] d = data;
+				if(fileOffset + length > d.length)
+					d = data = Arrays.copyOf(d, (int)(fileOffset + length));
+				System.arraycopy(buf, bufOffset, d, (int)fileOffset, length);
+			}
+
+			@Override
+			public void close() {
+				// Do nothing.
+			}
+
+		};
+	}
+
 	public byte[] toByteArray() {
 		long sz = size();
 		int size = (int)sz;
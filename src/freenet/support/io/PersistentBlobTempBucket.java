@@ -18,7 +18,7 @@ import freenet.support.api.Bucket;
  * @author Matthew Toseland <toad@amphibian.dyndns.org> (0xE43DA450)
  */
 // WARNING: THIS CLASS IS STORED IN DB4O -- THINK TWICE BEFORE ADD/REMOVE/RENAME FIELDS
-public class PersistentBlobTempBucket implements Bucket {
+public class PersistentBlobTempBucket implements RandomAccessBucket {
 	
 	public final long blockSize;
 	long size;
@@ -208,6 +208,69 @@ public class PersistentBlobTempBucket implements Bucket {
 		};
 	}
 
+	/** Reads and writes directly on the factory's FileChannel. Counts as an input stream until
+	 * closed, so we don't get deactivated while it is in use. */
+	@Override
+	public RandomAccessThing toRandomAccessThing() throws IOException {
+		if(freed) throw new IOException("Already freed");
+		final FileChannel channel = factory.channel;
+		synchronized(this) {
+			inputStreams++;
+		}
+		return new RandomAccessThing() {
+
+			private boolean closed;
+
+			@Override
+			public long size() {
+				return PersistentBlobTempBucket.this.size();
+			}
+
+			@Override
+			public void pread(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
+				if(closed) throw new IOException("closed");
+				if(fileOffset < 0) throw new IOException("Cannot read before zero");
+				ByteBuffer buffer = ByteBuffer.wrap(buf, bufOffset, length);
+				// Synchronize to guarantee that index doesn't change during a read.
+				synchronized(PersistentBlobTempBucket.this) {
+					if(freed) throw new IOException("Bucket freed during read");
+					if(fileOffset + length > Math.min(blockSize, size))
+						throw new IOException("Cannot read after end: trying to read from "+fileOffset+" to "+(fileOffset+length)+" on size "+size);
+					while(buffer.hasRemaining()) {
+						int read = channel.read(buffer, blockSize * index + fileOffset + buffer.position() - bufOffset);
+						if(read == -1) throw new IOException("Blob file truncated");
+					}
+				}
+			}
+
+			@Override
+			public void pwrite(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
+				if(closed) throw new IOException("closed");
+				if(fileOffset < 0) throw new IOException("Cannot write before zero");
+				if(fileOffset + length > blockSize) throw new IOException("Writing too many bytes: writing from "+fileOffset+" to "+(fileOffset+length)+" of "+blockSize);
+				ByteBuffer buffer = ByteBuffer.wrap(buf, bufOffset, length);
+				// Synchronize to guarantee that index doesn't change during a write.
+				synchronized(PersistentBlobTempBucket.this) {
+					if(freed) throw new IOException("Bucket freed during write");
+					if(readOnly) throw new IOException("Read-only");
+					while(buffer.hasRemaining())
+						channel.write(buffer, blockSize * index + fileOffset + buffer.position() - bufOffset);
+					size = Math.max(size, fileOffset + length);
+				}
+			}
+
+			@Override
+			public void close() {
+				if(closed) return;
+				closed = true;
+				synchronized(PersistentBlobTempBucket.this) {
+					inputStreams--;
+				}
+			}
+
+		};
+	}
+
 	@Override
 	public synchronized boolean isReadOnly() {
 		return readOnly;
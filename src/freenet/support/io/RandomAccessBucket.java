@@ -0,0 +1,23 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.IOException;
+
+import freenet.support.api.Bucket;
+
+/**
+ * A Bucket whose data can be read and written at any offset, without opening streams or
+ * copying through intermediate buffers.
+ */
+public interface RandomAccessBucket extends Bucket {
+
+	/**
+	 * @return A RandomAccessThing over the bucket's data. Writing past the end makes the
+	 * bucket bigger, as far as it can grow. Closing it does not free the bucket.
+	 * @throws IOException If the bucket has been freed.
+	 */
+	public RandomAccessThing toRandomAccessThing() throws IOException;
+
+}
@@ -1,8 +1,12 @@
 package freenet.client;
 
+import java.util.Arrays;
+import java.util.Random;
+
 import junit.framework.Assert;
 import junit.framework.TestCase;
 
+import freenet.support.PooledExecutor;
 import freenet.support.TestProperty;
 
 import com.onionnetworks.fec.FECCode;
@@ -139,4 +143,193 @@ public class CodeTest extends TestCase {
 			encodeDecode(code2, code, index);
 		}
 	}
+
+	/** Our own code must produce exactly the same check blocks as the onion code. */
+	public void testReedSolomonMatchesPureCode() {
+		Random random = new Random(1234);
+		int[][] params = { { 1, 2 }, { 2, 3 }, { 17, 40 }, { 128, 256 }, { KK, 256 } };
+		for(int[] kn : params) {
+			int k = kn[0], n = kn[1];
+			byte[][] data = new byte[k][PACKET_SIZE];
+			Buffer[] dataBufs = new Buffer[k];
+			for(int i = 0; i < k; i++) {
+				random.nextBytes(data[i]);
+				dataBufs[i] = new Buffer(data[i], 0, PACKET_SIZE);
+			}
+			int[] index = new int[n - k];
+			byte[][] expected = new byte[n - k][PACKET_SIZE];
+			Buffer[] expectedBufs = new Buffer[n - k];
+			for(int i = 0; i < n - k; i++) {
+				index[i] = i + k;
+				expectedBufs[i] = new Buffer(expected[i], 0, PACKET_SIZE);
+			}
+			new PureCode(k, n).encode(dataBufs, expectedBufs, index.clone());
+
+			byte[][] check = new byte[n - k][PACKET_SIZE];
+			new ReedSolomonCode(k, n).encode(data, new int[k], check, new int[n - k], index, PACKET_SIZE);
+			for(int i = 0; i < n - k; i++)
+				assertTrue("Check block "+i+" for k="+k+" n="+n, Arrays.equals(expected[i], check[i]));
+		}
+	}
+
+	/** Check blocks computed by a port of Rizzo's fec.c, which PureCode is also based on. */
+	public void testReedSolomonKnownAnswer() {
+		int k = 4, n = 8, length = 8;
+		byte[][] data = new byte[k][length];
+		for(int i = 0; i < k; i++)
+			for(int j = 0; j < length; j++)
+				data[i][j] = (byte) (i * length + j + 1);
+		int[][] expected = {
+			{ 0x0C, 0x0F, 0x0E, 0x09, 0x08, 0x0B, 0x0A, 0x4C },
+			{ 0x49, 0x4A, 0x4B, 0x4C, 0x4D, 0x4E, 0x4F, 0x6D },
+			{ 0x9D, 0x9E, 0x9F, 0x98, 0x99, 0x9A, 0x9B, 0xD0 },
+			{ 0xE6, 0xE5, 0xE4, 0xE3, 0xE2, 0xE1, 0xE0, 0x91 }
+		};
+		byte[][] check = new byte[n - k][length];
+		new ReedSolomonCode(k, n).encode(data, new int[k], check, new int[n - k], new int[] { 4, 5, 6, 7 }, length);
+		for(int i = 0; i < n - k; i++)
+			for(int j = 0; j < length; j++)
+				assertEquals("Check block "+(k+i)+" byte "+j, (byte) expected[i][j], check[i][j]);
+	}
+
+	/** Decode blocks encoded by the onion code, with random blocks missing. */
+	public void testReedSolomonDecode() {
+		Random random = new Random(5678);
+		int k = 128, n = 256;
+		ReedSolomonCode code = new ReedSolomonCode(k, n);
+		PureCode pureCode = new PureCode(k, n);
+		byte[] src = new byte[n * PACKET_SIZE];
+		random.nextBytes(src);
+		Buffer[] dataBufs = new Buffer[k];
+		for(int i = 0; i < k; i++)
+			dataBufs[i] = new Buffer(src, i * PACKET_SIZE, PACKET_SIZE);
+		Buffer[] checkBufs = new Buffer[n - k];
+		int[] checkIndex = new int[n - k];
+		for(int i = 0; i < n - k; i++) {
+			checkBufs[i] = new Buffer(src, (i + k) * PACKET_SIZE, PACKET_SIZE);
+			checkIndex[i] = i + k;
+		}
+		pureCode.encode(dataBufs, checkBufs, checkIndex);
+
+		for(int missing : new int[] { 0, 1, 37, k }) {
+			byte[] buf = new byte[k * PACKET_SIZE];
+			int[] index = new int[k];
+			boolean[] drop = new boolean[k];
+			for(int dropped = 0; dropped < missing;) {
+				int i = random.nextInt(k);
+				if(drop[i]) continue;
+				drop[i] = true;
+				dropped++;
+			}
+			int nextCheck = k + random.nextInt(n - k - missing + 1);
+			for(int i = 0; i < k; i++) {
+				index[i] = drop[i] ? nextCheck++ : i;
+				System.arraycopy(src, index[i] * PACKET_SIZE, buf, i * PACKET_SIZE, PACKET_SIZE);
+			}
+			byte[][] blocks = new byte[k][];
+			int[] offsets = new int[k];
+			for(int i = 0; i < k; i++) {
+				blocks[i] = buf;
+				offsets[i] = i * PACKET_SIZE;
+			}
+			code.decode(blocks, offsets, index, PACKET_SIZE);
+			for(int i = 0; i < k * PACKET_SIZE; i++)
+				Assert.assertEquals(src[i], buf[i]);
+		}
+	}
+
+	/** Splitting the work between threads gives the same results. */
+	public void testReedSolomonStriped() {
+		Random random = new Random(4321);
+		int k = 64, n = 128, length = 100000;
+		ReedSolomonCode code = new ReedSolomonCode(k, n);
+		FECStriper striper = new FECStriper(new PooledExecutor(), 4);
+		byte[][] data = new byte[k][length];
+		for(byte[] block : data)
+			random.nextBytes(block);
+		int[] index = new int[n - k];
+		for(int i = 0; i < n - k; i++)
+			index[i] = i + k;
+		byte[][] expected = new byte[n - k][length];
+		code.encode(data, new int[k], expected, new int[n - k], index, length);
+		byte[][] check = new byte[n - k][length];
+		code.encode(data, new int[k], check, new int[n - k], index, length, striper);
+		for(int i = 0; i < n - k; i++)
+			assertTrue(Arrays.equals(expected[i], check[i]));
+
+		byte[][] blocks = new byte[k][];
+		int[] decodeIndex = new int[k];
+		for(int i = 0; i < k; i++) {
+			decodeIndex[i] = (i % 3 == 0) ? i + k : i;
+			blocks[i] = (i % 3 == 0) ? check[i].clone() : data[i].clone();
+		}
+		code.decode(blocks, new int[k], decodeIndex, length, striper);
+		for(int i = 0; i < k; i++)
+			assertTrue(Arrays.equals(data[i], blocks[i]));
+	}
+
+	public void testReedSolomonBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+
+		int k = 128, n = 256, blockSize = 32768;
+		Random random = new Random(91011);
+		byte[] src = new byte[n * blockSize];
+		random.nextBytes(src);
+		Buffer[] dataBufs = new Buffer[k];
+		byte[][] data = new byte[k][];
+		int[] dataOffsets = new int[k];
+		for(int i = 0; i < k; i++) {
+			dataBufs[i] = new Buffer(src, i * blockSize, blockSize);
+			data[i] = src;
+			dataOffsets[i] = i * blockSize;
+		}
+		Buffer[] checkBufs = new Buffer[n - k];
+		byte[][] check = new byte[n - k][];
+		int[] checkOffsets = new int[n - k];
+		int[] checkIndex = new int[n - k];
+		for(int i = 0; i < n - k; i++) {
+			checkBufs[i] = new Buffer(src, (i + k) * blockSize, blockSize);
+			check[i] = src;
+			checkOffsets[i] = (i + k) * blockSize;
+			checkIndex[i] = i + k;
+		}
+		FECCode pureCode = new PureCode(k, n);
+		ReedSolomonCode code = new ReedSolomonCode(k, n);
+
+		// Decode with half the data blocks missing.
+		int[] index = new int[k];
+		for(int i = 0; i < k; i++)
+			index[i] = (i % 2 == 0) ? i : k + i;
+		byte[] received = new byte[k * blockSize];
+		Buffer[] receivedBufs = new Buffer[k];
+		byte[][] receivedBlocks = new byte[k][];
+		int[] receivedOffsets = new int[k];
+		for(int i = 0; i < k; i++) {
+			receivedBufs[i] = new Buffer(received, i * blockSize, blockSize);
+			receivedBlocks[i] = received;
+			receivedOffsets[i] = i * blockSize;
+		}
+
+		for(int run = 0; run < 5; run++) {
+			long t1 = System.nanoTime();
+			pureCode.encode(dataBufs, checkBufs, checkIndex.clone());
+			long t2 = System.nanoTime();
+			code.encode(data, dataOffsets, check, checkOffsets, checkIndex, blockSize);
+			long t3 = System.nanoTime();
+
+			for(int i = 0; i < k; i++)
+				System.arraycopy(src, index[i] * blockSize, received, i * blockSize, blockSize);
+			long t4 = System.nanoTime();
+			pureCode.decode(receivedBufs.clone(), index.clone());
+			long t5 = System.nanoTime();
+			for(int i = 0; i < k; i++)
+				System.arraycopy(src, index[i] * blockSize, received, i * blockSize, blockSize);
+			long t6 = System.nanoTime();
+			code.decode(receivedBlocks, receivedOffsets, index, blockSize);
+			long t7 = System.nanoTime();
+
+			System.out.println("Encode "+k+"+"+(n-k)+" x "+blockSize+": PureCode "+(t2-t1)/1000000+"ms, ReedSolomonCode "+(t3-t2)/1000000+"ms");
+			System.out.println("Decode "+k+"+"+(n-k)+" x "+blockSize+": PureCode "+(t5-t4)/1000000+"ms, ReedSolomonCode "+(t7-t6)/1000000+"ms");
+		}
+	}
 }
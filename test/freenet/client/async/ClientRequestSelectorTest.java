@@ -0,0 +1,127 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import freenet.client.async.MockRequests.MockClient;
+import freenet.client.async.MockRequests.MockGet;
+import freenet.client.async.MockRequests.MockRequester;
+import freenet.client.async.MockRequests.MockToken;
+import freenet.crypt.DummyRandomSource;
+import freenet.crypt.RandomSource;
+import freenet.keys.Key;
+import freenet.node.RequestStarter;
+import freenet.support.RandomGrabArrayItemExclusionList;
+import freenet.support.math.MersenneTwister;
+
+import junit.framework.TestCase;
+
+/** Tests choosing a batch of transient blocks with removeFirstTransient(). */
+public class ClientRequestSelectorTest extends TestCase {
+
+	/** As the scheduler passes it with PRIORITY_HARD. */
+	private static final int FUZZ = 0;
+
+	private ClientContext context;
+	private RandomSource random;
+	private ClientRequestScheduler sched;
+	private ClientRequestSelector selector;
+	private RandomGrabArrayItemExclusionList excluding;
+	private MockClient client;
+	private MockRequester requester;
+
+	@Override
+	protected void setUp() {
+		context = new ClientContext(0, 0, null, null, null, null, null, null, null, null, null, null, null,
+				new MersenneTwister(12345), null, null, null, null, null, null);
+		random = new DummyRandomSource(12345);
+		sched = new ClientRequestScheduler(false, false, false, random, null, null, null, null, "test", context);
+		selector = new ClientRequestSelector(false, sched);
+		excluding = MockRequests.cooldownOnly(context);
+		client = new MockClient();
+		requester = new MockRequester(client);
+	}
+
+	public void testMaxPriority() {
+		HashSet<Key> better = new HashSet<Key>();
+		for(int i = 0; i < 3; i++) {
+			MockToken token = new MockToken(i);
+			better.add(token.key);
+			register(new MockGet(requester, RequestStarter.INTERACTIVE_PRIORITY_CLASS, token));
+		}
+		// Worse than the best persistent request, so left for later.
+		MockGet worse = register(new MockGet(requester, RequestStarter.PREFETCH_PRIORITY_CLASS, new MockToken(3)));
+		List<ChosenBlock> blocks = new ArrayList<ChosenBlock>();
+		assertEquals(3, removeFirstTransient(RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, 16, blocks));
+		assertEquals(better, keys(blocks));
+		assertEquals(1, worse.tokens.size());
+		// With nothing better left, the worse one is chosen once the limit allows it.
+		blocks.clear();
+		assertEquals(0, removeFirstTransient(RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, 16, blocks));
+		assertEquals(1, removeFirstTransient(RequestStarter.PREFETCH_PRIORITY_CLASS, 16, blocks));
+		assertTrue(worse.tokens.isEmpty());
+	}
+
+	public void testBatchSize() {
+		for(int i = 0; i < 5; i++)
+			register(new MockGet(requester, RequestStarter.INTERACTIVE_PRIORITY_CLASS, new MockToken(i)));
+		List<ChosenBlock> blocks = new ArrayList<ChosenBlock>();
+		assertEquals(3, removeFirstTransient(RequestStarter.MINIMUM_PRIORITY_CLASS, 3, blocks));
+		assertEquals(3, blocks.size());
+		assertEquals(2, removeFirstTransient(RequestStarter.MINIMUM_PRIORITY_CLASS, 3, blocks));
+		assertEquals(5, keys(blocks).size());
+		assertEquals(0, removeFirstTransient(RequestStarter.MINIMUM_PRIORITY_CLASS, 3, blocks));
+	}
+
+	public void testOncePerBatch() {
+		MockGet get = register(new MockGet(requester, RequestStarter.INTERACTIVE_PRIORITY_CLASS,
+				new MockToken(0), new MockToken(1), new MockToken(2)));
+		List<ChosenBlock> blocks = new ArrayList<ChosenBlock>();
+		assertEquals(1, removeFirstTransient(RequestStarter.MINIMUM_PRIORITY_CLASS, 16, blocks));
+		assertEquals(2, get.tokens.size());
+		assertEquals(1, removeFirstTransient(RequestStarter.MINIMUM_PRIORITY_CLASS, 16, blocks));
+		assertEquals(1, get.tokens.size());
+	}
+
+	public void testDumpDuplicateKeys() {
+		// Two requests for the same key, as may happen when the key is in more than one
+		// splitfile. We haven't started either yet, so both will offer it.
+		MockToken a1 = new MockToken(0);
+		MockToken a2 = new MockToken(0);
+		MockToken b = new MockToken(1);
+		register(new MockGet(requester, RequestStarter.INTERACTIVE_PRIORITY_CLASS, a1));
+		register(new MockGet(requester, RequestStarter.INTERACTIVE_PRIORITY_CLASS, a2, b));
+		List<ChosenBlock> blocks = new ArrayList<ChosenBlock>();
+		assertEquals(1, removeFirstTransient(RequestStarter.MINIMUM_PRIORITY_CLASS, 16, blocks));
+		assertEquals(a1.key, blocks.get(0).key);
+		// Exactly one of the duplicates is dumped.
+		assertEquals(1, a1.dumped + a2.dumped);
+		assertEquals(0, ((MockToken) blocks.get(0).token).dumped);
+		// The other key is left for the next batch.
+		assertEquals(0, b.dumped);
+		assertEquals(1, removeFirstTransient(RequestStarter.MINIMUM_PRIORITY_CLASS, 16, blocks));
+		assertEquals(new HashSet<Key>(Arrays.asList(a1.key, b.key)), keys(blocks));
+	}
+
+	private MockGet register(MockGet get) {
+		sched.schedTransient.selector.add(get, get.priority, client, requester);
+		return get;
+	}
+
+	private int removeFirstTransient(short maxPrio, int max, List<ChosenBlock> blocks) {
+		return selector.removeFirstTransient(FUZZ, random, null, excluding, sched.schedTransient, maxPrio, false, context, max, blocks);
+	}
+
+	private static HashSet<Key> keys(List<ChosenBlock> blocks) {
+		HashSet<Key> keys = new HashSet<Key>();
+		for(ChosenBlock block : blocks)
+			keys.add(block.key);
+		return keys;
+	}
+
+}
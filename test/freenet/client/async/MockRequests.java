@@ -0,0 +1,268 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+import com.db4o.ObjectContainer;
+
+import freenet.client.FetchContext;
+import freenet.keys.ClientKey;
+import freenet.keys.FreenetURI;
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+import freenet.node.KeysFetchingLocally;
+import freenet.node.LowLevelGetException;
+import freenet.node.RequestClient;
+import freenet.node.RequestScheduler;
+import freenet.node.RequestStarter;
+import freenet.node.SendableGet;
+import freenet.node.SendableRequestItem;
+import freenet.node.SendableRequestItemKey;
+import freenet.support.RandomGrabArray;
+import freenet.support.RandomGrabArrayItem;
+import freenet.support.RandomGrabArrayItemExclusionList;
+
+/** Transient requests which don't fetch anything, for testing request selection. */
+final class MockRequests {
+
+	private static final FetchContext FETCH_CONTEXT = new FetchContext(0, 0, 0, 0, 0, 0, false, 0, 0, 0,
+			false, false, false, false, 0, 0, null, null, false, false, null, null);
+
+	private MockRequests() {
+		// Holder only
+	}
+
+	/** Like the RequestStarter, but only checks the cooldown cache. */
+	static RandomGrabArrayItemExclusionList cooldownOnly(final ClientContext context) {
+		return new RandomGrabArrayItemExclusionList() {
+
+			@Override
+			public long excludeSummarily(HasCooldownCacheItem item, HasCooldownCacheItem parent, ObjectContainer container, boolean persistent, long now) {
+				return context.cooldownTracker.getCachedWakeup(item, persistent, container, now);
+			}
+
+			@Override
+			public long exclude(RandomGrabArrayItem item, ObjectContainer container, ClientContext context, long now) {
+				return -1;
+			}
+
+		};
+	}
+
+	static class MockToken implements SendableRequestItem, SendableRequestItemKey {
+
+		final Key key;
+		/** The number of times the block for this key was dumped. */
+		int dumped;
+
+		MockToken(int keyNumber) {
+			byte[] routingKey = new byte[32];
+			routingKey[0] = (byte) keyNumber;
+			key = new NodeCHK(routingKey, Key.ALGO_AES_PCFB_256_SHA256);
+		}
+
+		@Override
+		public void dump() {
+			dumped++;
+		}
+
+		@Override
+		public SendableRequestItemKey getKey() {
+			return this;
+		}
+
+	}
+
+	static class MockClient implements RequestClient {
+
+		@Override
+		public boolean persistent() {
+			return false;
+		}
+
+		@Override
+		public boolean realTimeFlag() {
+			return false;
+		}
+
+		@Override
+		public void removeFrom(ObjectContainer container) {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+	static class MockRequester extends ClientRequester {
+
+		MockRequester(RequestClient client) {
+			super(RequestStarter.INTERACTIVE_PRIORITY_CLASS, client);
+		}
+
+		@Override
+		public void onTransition(ClientGetState oldState, ClientGetState newState, ObjectContainer container) {
+			// Ignore
+		}
+
+		@Override
+		public void cancel(ObjectContainer container, ClientContext context) {
+			// Ignore
+		}
+
+		@Override
+		public FreenetURI getURI() {
+			return null;
+		}
+
+		@Override
+		public boolean isFinished() {
+			return false;
+		}
+
+		@Override
+		public void notifyClients(ObjectContainer container, ClientContext context) {
+			// Ignore
+		}
+
+		@Override
+		protected void innerToNetwork(ObjectContainer container, ClientContext context) {
+			// Ignore
+		}
+
+	}
+
+	/** Offers each of its tokens once, then finishes. */
+	static class MockGet extends SendableGet {
+
+		/** As returned by getCooldownTime(), but 0 once it has passed. */
+		long wakeupTime;
+		final short priority;
+		final Deque<MockToken> tokens;
+
+		MockGet(MockRequester requester, short priority, MockToken... tokens) {
+			super(requester, false);
+			this.priority = priority;
+			this.tokens = new ArrayDeque<MockToken>(Arrays.asList(tokens));
+		}
+
+		@Override
+		public long getCooldownTime(ObjectContainer container, ClientContext context, long now) {
+			if(wakeupTime > 0 && wakeupTime <= now) return 0;
+			return wakeupTime;
+		}
+
+		@Override
+		public Key getNodeKey(SendableRequestItem token, ObjectContainer container) {
+			return ((MockToken) token).key;
+		}
+
+		@Override
+		public ClientKey getKey(Object token, ObjectContainer container) {
+			return null;
+		}
+
+		@Override
+		public Key[] listKeys(ObjectContainer container) {
+			return new Key[0];
+		}
+
+		@Override
+		public FetchContext getContext(ObjectContainer container) {
+			return FETCH_CONTEXT;
+		}
+
+		@Override
+		public void onFailure(LowLevelGetException e, Object token, ObjectContainer container, ClientContext context) {
+			// Ignore
+		}
+
+		@Override
+		public long getCooldownWakeup(Object token, ObjectContainer container, ClientContext context) {
+			return wakeupTime;
+		}
+
+		@Override
+		public long getCooldownWakeupByKey(Key key, ObjectContainer container, ClientContext context) {
+			return wakeupTime;
+		}
+
+		@Override
+		public void requeueAfterCooldown(Key key, long time, ObjectContainer container, ClientContext context) {
+			// Ignore
+		}
+
+		@Override
+		public boolean preRegister(ObjectContainer container, ClientContext context, boolean toNetwork) {
+			return false;
+		}
+
+		@Override
+		public short getPriorityClass(ObjectContainer container) {
+			return priority;
+		}
+
+		@Override
+		public SendableRequestItem chooseKey(KeysFetchingLocally keys, ObjectContainer container, ClientContext context) {
+			MockToken token = tokens.poll();
+			if(tokens.isEmpty())
+				wakeupTime = -1;
+			return token;
+		}
+
+		@Override
+		public long countAllKeys(ObjectContainer container, ClientContext context) {
+			return 1;
+		}
+
+		@Override
+		public long countSendableKeys(ObjectContainer container, ClientContext context) {
+			return 1;
+		}
+
+		@Override
+		public boolean isCancelled(ObjectContainer container) {
+			return false;
+		}
+
+		@Override
+		public RequestClient getClient(ObjectContainer container) {
+			return parent.getClient();
+		}
+
+		@Override
+		public ClientRequester getClientRequest() {
+			return parent;
+		}
+
+		@Override
+		public boolean isSSK() {
+			return false;
+		}
+
+		@Override
+		public List<PersistentChosenBlock> makeBlocks(PersistentChosenRequest request, RequestScheduler sched, KeysFetchingLocally keys, ObjectContainer container, ClientContext context) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean knowsParentGrabArray() {
+			return false;
+		}
+
+		@Override
+		public void setParentGrabArray(RandomGrabArray parent, ObjectContainer container) {
+			// Ignore
+		}
+
+		@Override
+		public RandomGrabArray getParentGrabArray() {
+			return null;
+		}
+
+	}
+
+}
@@ -0,0 +1,148 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.HashSet;
+
+import freenet.client.async.MockRequests.MockClient;
+import freenet.client.async.MockRequests.MockGet;
+import freenet.client.async.MockRequests.MockRequester;
+import freenet.node.RequestStarter;
+import freenet.support.RandomGrabArrayItemExclusionList;
+import freenet.support.TestProperty;
+import freenet.support.math.MersenneTwister;
+
+import junit.framework.TestCase;
+
+public class TransientRequestSelectorTest extends TestCase {
+
+	private static final short PRIORITY = RequestStarter.INTERACTIVE_PRIORITY_CLASS;
+
+	private ClientContext context;
+	private TransientRequestSelector selector;
+	/** Like the RequestStarter: only the cooldown cache. */
+	private RandomGrabArrayItemExclusionList excluding;
+
+	@Override
+	protected void setUp() {
+		context = new ClientContext(0, 0, null, null, null, null, null, null, null, null, null, null, null,
+				new MersenneTwister(12345), null, null, null, null, null, null);
+		selector = new TransientRequestSelector();
+		excluding = MockRequests.cooldownOnly(context);
+	}
+
+	public void testChooseAll() {
+		HashSet<MockGet> gets = new HashSet<MockGet>();
+		for(int i = 0; i < 10; i++) {
+			MockClient client = new MockClient();
+			for(int j = 0; j < 3; j++) {
+				MockRequester requester = new MockRequester(client);
+				for(int k = 0; k < 5; k++) {
+					MockGet get = new MockGet(requester, PRIORITY);
+					gets.add(get);
+					selector.add(get, PRIORITY, client, requester);
+				}
+			}
+		}
+		assertEquals(150, selector.size());
+		assertEquals(10, selector.countClients(PRIORITY, 0));
+		assertEquals(0, selector.getWakeupTime(PRIORITY, 0));
+		assertEquals(-1, selector.getWakeupTime(RequestStarter.MINIMUM_PRIORITY_CLASS, 0));
+		HashSet<MockGet> chosen = new HashSet<MockGet>();
+		for(int i = 0; i < 10000; i++) {
+			MockGet get = (MockGet) selector.chooseRequest(PRIORITY, excluding, context, 0);
+			assertTrue(gets.contains(get));
+			chosen.add(get);
+		}
+		assertEquals(gets, chosen);
+		for(MockGet get : gets)
+			assertTrue(selector.remove(get));
+		assertFalse(selector.remove(gets.iterator().next()));
+		assertNull(selector.chooseRequest(PRIORITY, excluding, context, 0));
+		assertEquals(-1, selector.getWakeupTime(PRIORITY, 0));
+	}
+
+	public void testCooldown() {
+		MockClient client = new MockClient();
+		MockRequester requester = new MockRequester(client);
+		MockGet waiting = new MockGet(requester, PRIORITY);
+		waiting.wakeupTime = 1000;
+		MockGet blocked = new MockGet(requester, PRIORITY);
+		blocked.wakeupTime = Long.MAX_VALUE;
+		selector.add(waiting, PRIORITY, client, requester);
+		selector.add(blocked, PRIORITY, client, requester);
+		assertNull(selector.chooseRequest(PRIORITY, excluding, context, 0));
+		assertEquals(2, selector.countParked());
+		assertEquals(1000, selector.getWakeupTime(PRIORITY, 0));
+		assertEquals(2, selector.size());
+		// Parked until the wakeup time.
+		waiting.wakeupTime = 0;
+		assertEquals(1000, selector.getWakeupTime(PRIORITY, 999));
+		assertSame(waiting, selector.chooseRequest(PRIORITY, excluding, context, 1000));
+		assertEquals(1, selector.countParked());
+		// Never longer than MAX_PARK_TIME, even if the cooldown is indefinite.
+		selector.remove(waiting);
+		assertEquals(TransientRequestSelector.MAX_PARK_TIME, selector.getWakeupTime(PRIORITY, 1000));
+		// Clearing the cooldown wakes it up immediately.
+		blocked.wakeupTime = 0;
+		context.cooldownTracker.clearCachedWakeup(blocked, false, null);
+		assertEquals(0, selector.getWakeupTime(PRIORITY, 1000));
+		assertSame(blocked, selector.chooseRequest(PRIORITY, excluding, context, 1000));
+	}
+
+	public void testFinished() {
+		MockClient client = new MockClient();
+		MockRequester requester = new MockRequester(client);
+		MockGet get = new MockGet(requester, PRIORITY);
+		get.wakeupTime = -1;
+		selector.add(get, PRIORITY, client, requester);
+		assertNull(selector.chooseRequest(PRIORITY, excluding, context, 0));
+		assertFalse(selector.isRegistered(get));
+		assertEquals(0, selector.size());
+		assertEquals(-1, selector.getWakeupTime(PRIORITY, 0));
+	}
+
+	public void testChangePriority() {
+		MockClient client = new MockClient();
+		MockRequester requester = new MockRequester(client);
+		MockGet get = new MockGet(requester, PRIORITY);
+		selector.add(get, PRIORITY, client, requester);
+		selector.add(get, RequestStarter.MINIMUM_PRIORITY_CLASS, client, requester);
+		assertEquals(1, selector.size());
+		assertNull(selector.chooseRequest(PRIORITY, excluding, context, 0));
+		assertSame(get, selector.chooseRequest(RequestStarter.MINIMUM_PRIORITY_CLASS, excluding, context, 0));
+	}
+
+	/** Choose requests with 100,000 registered, most of them in cooldown. */
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		int clients = 100;
+		int perClient = 1000;
+		MockGet[] gets = new MockGet[clients * perClient];
+		long start = System.currentTimeMillis();
+		for(int i = 0; i < clients; i++) {
+			MockClient client = new MockClient();
+			MockRequester requester = new MockRequester(client);
+			for(int j = 0; j < perClient; j++) {
+				MockGet get = new MockGet(requester, PRIORITY);
+				// 90% of them are waiting for other requests to finish.
+				if(j % 10 != 0) get.wakeupTime = Long.MAX_VALUE;
+				gets[i * perClient + j] = get;
+				selector.add(get, PRIORITY, client, requester);
+			}
+		}
+		long added = System.currentTimeMillis();
+		System.out.println("Registered "+gets.length+" requests in "+(added - start)+"ms");
+		int rounds = 1000000;
+		for(int i = 0; i < rounds; i++)
+			assertNotNull(selector.chooseRequest(PRIORITY, excluding, context, 0));
+		long chosen = System.currentTimeMillis();
+		System.out.println("Chose "+rounds+" requests in "+(chosen - added)+"ms, "+selector.countParked()+" parked");
+		for(MockGet get : gets)
+			selector.remove(get);
+		assertNull(selector.chooseRequest(PRIORITY, excluding, context, 0));
+		System.out.println("Unregistered them in "+(System.currentTimeMillis() - chosen)+"ms");
+	}
+
+}
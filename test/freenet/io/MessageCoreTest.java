@@ -0,0 +1,139 @@
+package freenet.io;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import freenet.io.comm.AsyncMessageFilterCallback;
+import freenet.io.comm.DMT;
+import freenet.io.comm.DisconnectedException;
+import freenet.io.comm.Message;
+import freenet.io.comm.MessageCore;
+import freenet.io.comm.MessageFilter;
+import freenet.io.comm.MessageType;
+import freenet.io.comm.PeerContext;
+import junit.framework.TestCase;
+
+/**
+ * Tests matching messages against MessageCore's filters and unclaimed messages.
+ */
+public class MessageCoreTest extends TestCase {
+
+	private static final MessageType typeA = new MessageType("testMessageCoreA", DMT.PRIORITY_LOW) {{
+		addField(DMT.UID, Long.class);
+	}};
+
+	private static final MessageType typeB = new MessageType("testMessageCoreB", DMT.PRIORITY_LOW) {{
+		addField(DMT.UID, Long.class);
+	}};
+
+	private MessageCore core;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		core = new MessageCore(null);
+	}
+
+	private static Message create(MessageType type, long uid) {
+		Message m = new Message(type);
+		m.set(DMT.UID, uid);
+		return m;
+	}
+
+	private class Callback implements AsyncMessageFilterCallback {
+
+		final List<Message> matched = new ArrayList<Message>();
+
+		@Override
+		public void onMatched(Message m) {
+			matched.add(m);
+		}
+
+		@Override
+		public boolean shouldTimeout() {
+			return false;
+		}
+
+		@Override
+		public void onTimeout() {
+			// Ignore.
+		}
+
+		@Override
+		public void onDisconnect(PeerContext ctx) {
+			// Ignore.
+		}
+
+		@Override
+		public void onRestarted(PeerContext ctx) {
+			// Ignore.
+		}
+
+	}
+
+	public void testUnclaimed() throws DisconnectedException {
+		for(long uid = 1; uid <= 3; uid++)
+			core.checkFilters(create(typeA, uid), null);
+		core.checkFilters(create(typeB, 2), null);
+		assertEquals(4, core.getUnclaimedFIFOSize());
+
+		MessageFilter filter = MessageFilter.create().setType(typeA).setField(DMT.UID, 2L).setTimeout(1000);
+		Message m = core.waitFor(filter, null);
+		assertEquals(typeA, m.getSpec());
+		assertEquals(2, m.getLong(DMT.UID));
+		assertEquals(3, core.getUnclaimedFIFOSize());
+
+		// Without a UID, the oldest message of the type matches.
+		filter = MessageFilter.create().setType(typeA).setTimeout(1000);
+		m = core.waitFor(filter, null);
+		assertEquals(1, m.getLong(DMT.UID));
+
+		filter = MessageFilter.create().setType(typeB).setField(DMT.UID, 2L).setTimeout(1000);
+		m = core.waitFor(filter, null);
+		assertEquals(typeB, m.getSpec());
+		assertEquals(1, core.getUnclaimedFIFOSize());
+		assertEquals(0, core.getFilterCount());
+	}
+
+	public void testOr() throws DisconnectedException {
+		Callback cb = new Callback();
+		MessageFilter filter = MessageFilter.create().setType(typeA).setField(DMT.UID, 5L).setTimeout(10000);
+		filter.or(MessageFilter.create().setType(typeB).setField(DMT.UID, 5L).setTimeout(10000));
+		core.addAsyncFilter(filter, cb, null);
+		assertEquals(1, core.getFilterCount());
+		assertEquals(0, core.getUnindexedFilterCount());
+
+		core.checkFilters(create(typeB, 4), null);
+		core.checkFilters(create(typeA, 6), null);
+		assertTrue(cb.matched.isEmpty());
+		Message m = create(typeB, 5);
+		core.checkFilters(m, null);
+		assertEquals(1, cb.matched.size());
+		assertSame(m, cb.matched.get(0));
+		assertEquals(0, core.getFilterCount());
+		assertEquals(2, core.getUnclaimedFIFOSize());
+	}
+
+	/** Each message goes to the waiting filter which times out first. */
+	public void testOrder() throws DisconnectedException {
+		Callback later = new Callback();
+		Callback sooner = new Callback();
+		Callback anyType = new Callback();
+		core.addAsyncFilter(MessageFilter.create().setType(typeA).setTimeout(20000), later, null);
+		core.addAsyncFilter(MessageFilter.create().setType(typeA).setField(DMT.UID, 7L).setTimeout(10000), sooner, null);
+		core.addAsyncFilter(MessageFilter.create().setField(DMT.UID, 7L).setTimeout(30000), anyType, null);
+		assertEquals(3, core.getFilterCount());
+		assertEquals(1, core.getUnindexedFilterCount());
+
+		core.checkFilters(create(typeA, 7), null);
+		assertEquals(1, sooner.matched.size());
+		core.checkFilters(create(typeA, 7), null);
+		assertEquals(1, later.matched.size());
+		core.checkFilters(create(typeA, 7), null);
+		assertEquals(1, anyType.matched.size());
+		assertEquals(0, core.getFilterCount());
+		assertEquals(0, core.getUnindexedFilterCount());
+		assertEquals(0, core.getUnclaimedFIFOSize());
+	}
+
+}
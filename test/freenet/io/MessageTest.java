@@ -1,8 +1,13 @@
 package freenet.io;
 
 import freenet.io.comm.DMT;
+import freenet.io.comm.IncorrectTypeException;
 import freenet.io.comm.Message;
 import freenet.io.comm.MessageType;
+import freenet.support.BitArray;
+import freenet.support.Buffer;
+import freenet.support.ShortBuffer;
+import freenet.support.TestProperty;
 import junit.framework.TestCase;
 
 import java.util.Arrays;
@@ -34,6 +39,27 @@ public class MessageTest extends TestCase {
 		addField(FLOAT_ARRAY, float[].class);
 	}};
 
+	private static final String STRING = "string";
+	private static final String BUFFER = "buffer";
+	private static final String SHORT_BUFFER = "shortBuffer";
+	private static final String BIT_ARRAY = "bitArray";
+
+	private static final MessageType roundTrip = new MessageType("testRoundTrip", DMT.PRIORITY_LOW) {{
+		addField(BOOLEAN, Boolean.class);
+		addField(BYTE, Byte.class);
+		addField(SHORT, Short.class);
+		addField(INT, Integer.class);
+		addField(LONG, Long.class);
+		addField(DOUBLE, Double.class);
+		addField(FLOAT, Float.class);
+		addField(DOUBLE_ARRAY, double[].class);
+		addField(FLOAT_ARRAY, float[].class);
+		addField(STRING, String.class);
+		addField(BUFFER, Buffer.class);
+		addField(SHORT_BUFFER, ShortBuffer.class);
+		addField(BIT_ARRAY, BitArray.class);
+	}};
+
 	/**
 	 * Test that different types can be set and retrieved to and from a Message.
 	 */
@@ -73,4 +99,135 @@ public class MessageTest extends TestCase {
 		assertTrue(Arrays.equals(doubleArrayVal, msg.getDoubleArray(DOUBLE_ARRAY)));
 		assertTrue(Arrays.equals(floatArrayVal, msg.getFloatArray(FLOAT_ARRAY)));
 	}
+
+	/**
+	 * Test that a packetTransmit encoded without a Message is the same as one encoded with one.
+	 */
+	public void testPacketTransmitHeader() {
+		byte[] block = new byte[32 * 1024];
+		for(int i = 0; i < block.length; i++)
+			block[i] = (byte) i;
+		BitArray sent = new BitArray(32);
+		sent.setBit(0, true);
+		sent.setBit(5, true);
+		sent.setBit(31, true);
+		Buffer packet = new Buffer(block, 6 * 1024, 1024);
+		long uid = 0x123456789abcdefL;
+
+		byte[] expected = DMT.createPacketTransmit(uid, 6, sent, packet, false).encodeToPacket();
+		byte[] header = DMT.encodePacketTransmitHeader(uid, 6, sent, packet.getLength());
+		assertEquals(expected.length, header.length + packet.getLength());
+		byte[] encoded = Arrays.copyOf(header, expected.length);
+		packet.copyTo(encoded, header.length);
+		assertTrue(Arrays.equals(expected, encoded));
+
+		Message decoded = Message.decodeMessageFromPacket(encoded, 0, encoded.length, null, 0);
+		assertEquals(uid, decoded.getLong(DMT.UID));
+		assertEquals(6, decoded.getInt(DMT.PACKET_NO));
+		assertEquals(sent, decoded.getObject(DMT.SENT));
+		// Buffer.equals() compares offsets too.
+		assertTrue(Arrays.equals(packet.getData(), ((Buffer) decoded.getObject(DMT.DATA)).getData()));
+		assertEquals(DMT.createPacketTransmit(uid, 6, sent, packet, true).getPriority(), DMT.getPacketTransmitPriority(true));
+	}
+
+	private Message createRoundTripMessage(long l) {
+		Message msg = new Message(roundTrip);
+		msg.set(BOOLEAN, true);
+		msg.set(BYTE, (byte)-3);
+		msg.set(SHORT, (short)-456);
+		msg.set(INT, -78912);
+		msg.set(LONG, l);
+		msg.set(DOUBLE, -Math.PI);
+		msg.set(FLOAT, Float.NaN);
+		msg.set(DOUBLE_ARRAY, new double[] { Math.E, Double.NEGATIVE_INFINITY });
+		msg.set(FLOAT_ARRAY, new float[] { 1.5f });
+		msg.set(STRING, "Hello \u00e9");
+		msg.set(BUFFER, new Buffer(new byte[] { 1, 2, 3 }));
+		msg.set(SHORT_BUFFER, new ShortBuffer(new byte[] { 4, 5 }));
+		BitArray bits = new BitArray(10);
+		bits.setBit(9, true);
+		msg.set(BIT_ARRAY, bits);
+		return msg;
+	}
+
+	/**
+	 * Test that every type of field survives being encoded and decoded, and that getObject()
+	 * and the primitive getters agree.
+	 */
+	public void testRoundTrip() {
+		Message msg = createRoundTripMessage(Long.MIN_VALUE);
+		byte[] buf = msg.encodeToPacket();
+		Message decoded = Message.decodeMessageFromPacket(buf, 0, buf.length, null, 0);
+		assertNotNull(decoded);
+		assertSame(roundTrip, decoded.getSpec());
+
+		assertEquals(true, decoded.getBoolean(BOOLEAN));
+		assertEquals((byte)-3, decoded.getByte(BYTE));
+		assertEquals((short)-456, decoded.getShort(SHORT));
+		assertEquals(-78912, decoded.getInt(INT));
+		assertEquals(Long.MIN_VALUE, decoded.getLong(LONG));
+		assertEquals(-Math.PI, decoded.getDouble(DOUBLE));
+		assertTrue(Float.isNaN(decoded.getFloat(FLOAT)));
+		assertTrue(Arrays.equals(new double[] { Math.E, Double.NEGATIVE_INFINITY }, decoded.getDoubleArray(DOUBLE_ARRAY)));
+		assertTrue(Arrays.equals(new float[] { 1.5f }, decoded.getFloatArray(FLOAT_ARRAY)));
+		assertEquals("Hello \u00e9", decoded.getString(STRING));
+		assertEquals(msg.getObject(BUFFER), decoded.getObject(BUFFER));
+		assertEquals(msg.getObject(SHORT_BUFFER), decoded.getObject(SHORT_BUFFER));
+		assertEquals(msg.getObject(BIT_ARRAY), decoded.getObject(BIT_ARRAY));
+
+		assertEquals(Boolean.TRUE, decoded.getObject(BOOLEAN));
+		assertEquals(Short.valueOf((short)-456), decoded.getObject(SHORT));
+		assertEquals(Long.valueOf(Long.MIN_VALUE), decoded.getObject(LONG));
+		assertTrue(Arrays.equals(buf, decoded.encodeToPacket()));
+		assertTrue(Arrays.equals(buf, decoded.cloneAndDropSubMessages().encodeToPacket()));
+	}
+
+	/** The typed setters and getters behave as if values were stored boxed. */
+	public void testFieldTypes() {
+		Message msg = new Message(test);
+		assertFalse(msg.isSet(LONG));
+		assertNull(msg.getObject(LONG));
+		msg.set(LONG, Long.valueOf(5));
+		assertTrue(msg.isSet(LONG));
+		assertEquals(5, msg.getLong(LONG));
+		try {
+			msg.set(LONG, 5);
+			fail("Set an int in a long field");
+		} catch (IncorrectTypeException e) {
+			// Expected.
+		}
+		try {
+			msg.getInt(LONG);
+			fail("Got an int from a long field");
+		} catch (ClassCastException e) {
+			// Expected.
+		}
+		try {
+			msg.encodeToPacket();
+			fail("Encoded a message with fields not set");
+		} catch (Message.FieldNotSetException e) {
+			// Expected.
+		}
+	}
+
+	public void testEncodeDecodeBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		final int messages = 1000000;
+		Message msg = createRoundTripMessage(0);
+		byte[] buf = null;
+		long start = System.nanoTime();
+		for(int i = 0; i < messages; i++) {
+			msg.set(LONG, (long) i);
+			buf = msg.encodeToPacket();
+		}
+		long encoded = System.nanoTime();
+		long total = 0;
+		for(int i = 0; i < messages; i++) {
+			total += Message.decodeMessageFromPacket(buf, 0, buf.length, null, 0).getLong(LONG);
+		}
+		long decoded = System.nanoTime();
+		assertEquals((long)(messages - 1) * messages, total);
+		System.out.println("Encode: " + (messages * 1000000000L / (encoded - start)) + " messages/sec");
+		System.out.println("Decode: " + (messages * 1000000000L / (decoded - encoded)) + " messages/sec");
+	}
 }
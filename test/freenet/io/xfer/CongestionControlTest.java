@@ -0,0 +1,88 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.xfer;
+
+import junit.framework.TestCase;
+
+public class CongestionControlTest extends TestCase {
+
+	private static final long RTT = 100;
+
+	/** Ack a window's worth of packets per round trip, for the given number of round trips. */
+	private long ackRounds(CongestionControl cc, long now, int rounds, double maxWindow) {
+		for(int i = 0; i < rounds; i++) {
+			int packets = (int) cc.getWindowSize();
+			for(int j = 0; j < packets; j++)
+				cc.onAck(now + (RTT * j) / packets, RTT, maxWindow);
+			now += RTT;
+		}
+		return now;
+	}
+
+	public void testGrowsAndRespectsMaximum() {
+		for(CongestionControl.Algorithm algorithm : CongestionControl.Algorithm.values()) {
+			CongestionControl cc = algorithm.create();
+			assertEquals(algorithm, cc.getAlgorithm());
+			double initial = cc.getWindowSize();
+			assertTrue(initial >= 1.0);
+			ackRounds(cc, 1000, 20, 50);
+			assertTrue(algorithm+" did not grow: "+cc, cc.getWindowSize() > initial);
+			assertTrue(algorithm+" exceeded the maximum: "+cc, cc.getWindowSize() <= 50);
+		}
+	}
+
+	public void testLossReducesWindow() {
+		CongestionControl.Algorithm[] lossBased = { CongestionControl.Algorithm.AIMD, CongestionControl.Algorithm.CUBIC };
+		for(CongestionControl.Algorithm algorithm : lossBased) {
+			CongestionControl cc = algorithm.create();
+			long now = ackRounds(cc, 1000, 10, 100);
+			double before = cc.getWindowSize();
+			cc.onLoss(now);
+			assertTrue(algorithm+" did not reduce the window: "+cc, cc.getWindowSize() < before);
+			for(int i = 0; i < 1000; i++)
+				cc.onLoss(now += RTT);
+			assertTrue(cc.getWindowSize() >= 1.0);
+		}
+	}
+
+	/** CUBIC gets back to the window at which it lost packets sooner than AIMD does. */
+	public void testCubicRecoversFaster() {
+		CongestionControl aimd = CongestionControl.Algorithm.AIMD.create();
+		CongestionControl cubic = CongestionControl.Algorithm.CUBIC.create();
+		long now = 1000;
+		ackRounds(aimd, now, 20, 200);
+		now = ackRounds(cubic, now, 20, 200);
+		aimd.onLoss(now);
+		cubic.onLoss(now);
+		ackRounds(aimd, now, 30, 200);
+		ackRounds(cubic, now, 30, 200);
+		assertTrue("AIMD: "+aimd+" CUBIC: "+cubic, cubic.getWindowSize() > aimd.getWindowSize());
+	}
+
+	/** The delay based window tracks the bandwidth-delay product, whatever the losses. */
+	public void testDelayBasedTracksBandwidth() {
+		DelayBasedCongestionControl cc = new DelayBasedCongestionControl();
+		// 1 packet per millisecond with a 100ms RTT: 100 packets in flight.
+		long now = 1000;
+		for(int i = 0; i < 10000; i++) {
+			cc.onAck(now, RTT, 1000);
+			if(i % 50 == 0) cc.onLoss(now);
+			now++;
+		}
+		assertEquals(1.0, cc.getBandwidth(), 0.1);
+		assertTrue(cc.toString(), cc.getWindowSize() >= 0.75 * DelayBasedCongestionControl.WINDOW_GAIN * 100);
+		assertTrue(cc.toString(), cc.getWindowSize() <= 1.25 * DelayBasedCongestionControl.WINDOW_GAIN * 100);
+	}
+
+	public void testThrottleAlgorithmSelection() {
+		PacketThrottle throttle = new PacketThrottle(1024, CongestionControl.Algorithm.CUBIC);
+		assertEquals(CongestionControl.Algorithm.CUBIC, throttle.getAlgorithm());
+		assertEquals(0, throttle.getSamples().length);
+		throttle.setAlgorithm(CongestionControl.Algorithm.DELAY);
+		assertEquals(CongestionControl.Algorithm.DELAY, throttle.getAlgorithm());
+		assertEquals(CongestionControl.Algorithm.CUBIC, CongestionControl.Algorithm.fromConfigName("cubic"));
+		assertNull(CongestionControl.Algorithm.fromConfigName("reno"));
+	}
+
+}
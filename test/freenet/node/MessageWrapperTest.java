@@ -1,5 +1,8 @@
 package freenet.node;
 
+import java.util.Arrays;
+
+import freenet.support.Buffer;
 import junit.framework.TestCase;
 
 public class MessageWrapperTest extends TestCase {
@@ -127,4 +130,30 @@ public class MessageWrapperTest extends TestCase {
 			}
 		}
 	}
+
+	public void testGetFragmentWithSharedData() {
+		byte[] header = new byte[] { 1, 2, 3, 4, 5 };
+		byte[] block = new byte[2048];
+		for(int i = 0; i < block.length; i++)
+			block[i] = (byte) (i * 7);
+		Buffer data = new Buffer(block, 1024, 1024);
+		MessageItem item = new MessageItem(header, data, 12345, null, null, (short) 0);
+		assertEquals(header.length + 1024, item.getLength());
+		assertEquals(12345, item.getID());
+
+		byte[] expected = new byte[item.getLength()];
+		System.arraycopy(header, 0, expected, 0, header.length);
+		data.copyTo(expected, header.length);
+		assertTrue(Arrays.equals(expected, item.getData()));
+
+		MessageWrapper wrapper = new MessageWrapper(item, 0);
+		byte[] reassembled = new byte[item.getLength()];
+		MessageFragment frag;
+		while((frag = wrapper.getMessageFragment(100)) != null) {
+			assertEquals(item.getLength(), frag.messageLength);
+			System.arraycopy(frag.fragmentData, 0, reassembled, frag.fragmentOffset, frag.fragmentLength);
+		}
+		assertTrue(wrapper.allSent());
+		assertTrue(Arrays.equals(expected, reassembled));
+	}
 }
@@ -3,6 +3,8 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.Arrays;
 import java.util.List;
 
@@ -11,6 +13,7 @@ import freenet.crypt.ciphers.Rijndael;
 import freenet.io.comm.DMT;
 import freenet.io.comm.Message;
 import freenet.support.MutableBoolean;
+import freenet.support.TestProperty;
 import junit.framework.TestCase;
 
 public class NewPacketFormatTest extends TestCase {
@@ -333,6 +336,91 @@ public class NewPacketFormatTest extends TestCase {
 		}
 	}
 	
+	/** The sequence numbers the receiver expects next are found in the tag index. */
+	public void testPacketTagIndex() {
+		BlockCipher ivCipher = new Rijndael();
+		ivCipher.initialize(new byte[16]);
+		BlockCipher incommingCipher = new Rijndael();
+		incommingCipher.initialize(new byte[16]);
+		SessionKey receiverKey = new SessionKey(null, null, null, incommingCipher, null, ivCipher, new byte[16], null, new NewPacketFormatKeyContext(0, 0), 1);
+		NullBasePeerNode receiverNode = new NullBasePeerNode();
+		receiverNode.currentKey = receiverKey;
+		PacketTagIndex index = new PacketTagIndex();
+		NewPacketFormat receiver = new NewPacketFormat(receiverNode, 0, 0, index);
+
+		// Doesn't decode, but sets up the watch list and the index.
+		byte[] buf = new byte[64];
+		assertFalse(receiver.handleReceivedPacket(buf, 0, buf.length, System.currentTimeMillis(), null));
+		assertEquals(NewPacketFormat.TAG_INDEX_WINDOW, index.size());
+
+		System.arraycopy(NewPacketFormat.encryptSequenceNumber(1, receiverKey), 0, buf, 10, 4);
+		assertSame(receiverNode, index.get(buf, 0, buf.length));
+		assertNull(index.get(buf, 0, 12));
+		System.arraycopy(NewPacketFormat.encryptSequenceNumber(NewPacketFormat.TAG_INDEX_WINDOW, receiverKey), 0, buf, 10, 4);
+		assertNull(index.get(buf, 0, buf.length));
+
+		receiver.onDisconnect();
+		assertEquals(0, index.size());
+	}
+
+	public void testRangePacking() {
+		int[][] ranges = { { 0, 0 }, { 0, 511 }, { 1024, 2047 }, { 0, Integer.MAX_VALUE }, { Integer.MAX_VALUE - 1, Integer.MAX_VALUE } };
+		for(int[] range : ranges) {
+			long packed = NewPacketFormat.SentPacket.packRange(range[0], range[1]);
+			assertEquals(range[0], NewPacketFormat.SentPacket.rangeStart(packed));
+			assertEquals(range[1], NewPacketFormat.SentPacket.rangeEnd(packed));
+		}
+	}
+
+	/** Two peers exchanging 1KB messages in 512 byte packets, with acks piggybacked on the data. */
+	public void testAllocationPerPacketBenchmark() throws BlockedTooLongException {
+		if(!TestProperty.BENCHMARK) return;
+		final int messages = 100 * 1000;
+		NullBasePeerNode nodeA = new NullBasePeerNode();
+		NullBasePeerNode nodeB = new NullBasePeerNode();
+		NewPacketFormat a = new NewPacketFormat(nodeA, 0, 0);
+		NewPacketFormat b = new NewPacketFormat(nodeB, 0, 0);
+		PeerMessageQueue queueA = new PeerMessageQueue();
+		PeerMessageQueue queueB = new PeerMessageQueue();
+		SessionKey keyA = new SessionKey(null, null, null, null, null, null, null, null, new NewPacketFormatKeyContext(0, 0), 1);
+		SessionKey keyB = new SessionKey(null, null, null, null, null, null, null, null, new NewPacketFormatKeyContext(0, 0), 1);
+		nodeA.currentKey = keyA;
+		nodeB.currentKey = keyB;
+		for(int round = 0; round < 2; round++) {
+			// The first round warms up the JIT.
+			long packets = 0;
+			long received = 0;
+			long startBytes = allocatedBytes();
+			long start = System.nanoTime();
+			for(int i = 0; i < messages; i++) {
+				queueA.queueAndEstimateSize(new MessageItem(new byte[1024], null, false, null, (short) 0, false, false), 1024);
+				queueB.queueAndEstimateSize(new MessageItem(new byte[1024], null, false, null, (short) 0, false, false), 1024);
+				NPFPacket packet;
+				while((packet = a.createPacket(512, queueA, keyA, false, true)) != null) {
+					received += b.handleDecryptedPacket(packet, keyB).size();
+					packets++;
+				}
+				while((packet = b.createPacket(512, queueB, keyB, false, true)) != null) {
+					received += a.handleDecryptedPacket(packet, keyA).size();
+					packets++;
+				}
+			}
+			long time = System.nanoTime() - start;
+			long bytes = allocatedBytes() - startBytes;
+			if(round == 0) continue;
+			System.out.println("NewPacketFormat: " + packets + " packets, " + received + " messages, " +
+					(time / packets) + "ns per packet" +
+					(startBytes < 0 ? "" : ", " + (bytes / packets) + " bytes allocated per packet (including the 1KB messages)"));
+		}
+	}
+
+	/** @return The number of bytes allocated by this thread so far, or -1 if the JVM can't tell us. */
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(!(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+		return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
 	/* This checks the output of the sequence number encryption function to
 	 * make sure it doesn't change accidentally. */
 	public void testSequenceNumberEncryption() {
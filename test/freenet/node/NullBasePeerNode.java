@@ -12,6 +12,7 @@ import freenet.io.comm.PeerContext;
 import freenet.io.comm.SocketHandler;
 import freenet.io.comm.Peer.LocalAddressException;
 import freenet.io.xfer.PacketThrottle;
+import freenet.support.Buffer;
 
 /** Tests can override this to record specific events e.g. rekey */
 public class NullBasePeerNode implements BasePeerNode {
@@ -47,6 +48,13 @@ public class NullBasePeerNode implements BasePeerNode {
 		throw new UnsupportedOperationException();
 	}
 
+	@Override
+	public MessageItem sendPacketTransmit(byte[] header, Buffer data, long uid,
+			boolean realTime, AsyncMessageCallback cb, ByteCounter ctr)
+			throws NotConnectedException {
+		throw new UnsupportedOperationException();
+	}
+
 	@Override
 	public long getBootID() {
 		return 0;
@@ -3,7 +3,11 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node;
 
+import java.util.IdentityHashMap;
+import java.util.Random;
+
 import junit.framework.TestCase;
+import freenet.io.comm.DMT;
 
 public class PeerMessageQueueTest extends TestCase {
 	public void testUrgentTimeEmpty() {
@@ -81,4 +85,59 @@ public class PeerMessageQueueTest extends TestCase {
 		//grabQueuedMessageItem() should return the most urgent item, even though it was queued last
 		assertSame(itemUrgent, pmq.grabQueuedMessageItem(0));
 	}
+
+	/* Several threads queue messages while another grabs them, sometimes pushing one back. Every 
+	 * message must come out exactly once, and the counts must agree with the queue afterwards. */
+	public void testConcurrentQueueAndGrab() throws InterruptedException {
+		final PeerMessageQueue pmq = new PeerMessageQueue();
+		final int threads = 4;
+		final int perThread = 5000;
+		final MessageItem[][] queued = new MessageItem[threads][perThread];
+		Thread[] producers = new Thread[threads];
+		for(int i=0;i<threads;i++) {
+			final int thread = i;
+			producers[i] = new Thread() {
+				@Override
+				public void run() {
+					Random r = new Random(thread);
+					for(int j=0;j<perThread;j++) {
+						MessageItem item = new MessageItem(new byte[1 + r.nextInt(100)], null, false, null, (short) r.nextInt(DMT.NUM_PRIORITIES), false, false);
+						queued[thread][j] = item;
+						pmq.queueAndEstimateSize(item, 1024);
+					}
+				}
+			};
+		}
+		for(Thread t : producers)
+			t.start();
+
+		IdentityHashMap<MessageItem, MessageItem> grabbed = new IdentityHashMap<MessageItem, MessageItem>();
+		Random r = new Random(threads);
+		long deadline = System.currentTimeMillis() + 60*1000;
+		while(grabbed.size() < threads * perThread) {
+			assertTrue("Timed out with "+grabbed.size()+" messages", System.currentTimeMillis() < deadline);
+			pmq.getNextUrgentTime(Long.MAX_VALUE, System.currentTimeMillis());
+			MessageItem item = pmq.grabQueuedMessageItem(0);
+			if(item == null) {
+				Thread.yield();
+				continue;
+			}
+			if(r.nextInt(10) == 0) {
+				pmq.pushfrontPrioritizedMessageItem(item);
+				continue;
+			}
+			assertNull("Grabbed twice: "+item, grabbed.put(item, item));
+		}
+		for(Thread t : producers)
+			t.join();
+
+		for(MessageItem[] items : queued)
+			for(MessageItem item : items)
+				assertTrue(grabbed.containsKey(item));
+		assertNull(pmq.grabQueuedMessageItem(0));
+		assertEquals(0, pmq.grabQueuedMessageItems().length);
+		assertEquals(0, pmq.getMessageQueueLengthBytes());
+		assertFalse(pmq.mustSendSize(0, 0));
+		assertEquals(Long.MAX_VALUE, pmq.getNextUrgentTime(Long.MAX_VALUE, System.currentTimeMillis()));
+	}
 }
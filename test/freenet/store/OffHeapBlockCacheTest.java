@@ -0,0 +1,168 @@
+package freenet.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class OffHeapBlockCacheTest extends TestCase {
+
+	private static final int KEY_LENGTH = 32;
+	private static final int HEADER_LENGTH = 36;
+	private static final int DATA_LENGTH = 1024;
+
+	private final Random random = new Random(1234);
+
+	private byte[] randomBytes(int length) {
+		byte[] buf = new byte[length];
+		random.nextBytes(buf);
+		return buf;
+	}
+
+	private OffHeapBlockCache create(int capacity) {
+		return new OffHeapBlockCache(capacity, KEY_LENGTH, KEY_LENGTH, HEADER_LENGTH, DATA_LENGTH);
+	}
+
+	public void testCreate() {
+		assertNull(OffHeapBlockCache.create(1000, KEY_LENGTH, KEY_LENGTH, HEADER_LENGTH, DATA_LENGTH));
+		OffHeapBlockCache cache = OffHeapBlockCache.create(10000, KEY_LENGTH, KEY_LENGTH, HEADER_LENGTH, DATA_LENGTH);
+		assertEquals(8, cache.capacity());
+		assertTrue(cache.maxBytes() <= 10000);
+		// Nothing is allocated until it is used.
+		assertEquals(0, cache.allocatedBytes());
+	}
+
+	public void testSegments() {
+		OffHeapBlockCache cache = new OffHeapBlockCache(10, 4, KEY_LENGTH, KEY_LENGTH, HEADER_LENGTH, DATA_LENGTH);
+		long entrySize = cache.maxBytes() / cache.capacity();
+		assertEquals(0, cache.allocatedBytes());
+		ArrayList<byte[]> keys = new ArrayList<byte[]>();
+		for(int i=0;i<10;i++) {
+			byte[] key = randomBytes(KEY_LENGTH);
+			byte[] data = new byte[DATA_LENGTH];
+			Arrays.fill(data, (byte)i);
+			assertEquals(OffHeapBlockCache.PutResult.ADDED,
+					cache.put(key, key, new byte[HEADER_LENGTH], data, 0, null, false));
+			keys.add(key);
+			// Segments of 4, 4 and 2 entries.
+			int segments = i / 4 + 1;
+			assertEquals(Math.min(segments * 4, 10) * entrySize, cache.allocatedBytes());
+		}
+		for(int i=0;i<10;i++)
+			assertEquals((byte)i, cache.get(keys.get(i)).data[DATA_LENGTH - 1]);
+		assertEquals(cache.maxBytes(), cache.allocatedBytes());
+	}
+
+	public void testPutGetRemove() {
+		OffHeapBlockCache cache = create(4);
+		byte[] key = randomBytes(KEY_LENGTH);
+		byte[] header = randomBytes(HEADER_LENGTH);
+		byte[] data = randomBytes(DATA_LENGTH);
+		assertNull(cache.get(key));
+		assertEquals(OffHeapBlockCache.PutResult.ADDED,
+				cache.put(key, key, header, data, OffHeapBlockCache.FLAG_OLD_BLOCK, null, false));
+		assertTrue(cache.contains(key));
+		OffHeapBlockCache.Entry entry = cache.get(key);
+		assertTrue(Arrays.equals(key, entry.routingKey));
+		assertTrue(Arrays.equals(header, entry.header));
+		assertTrue(Arrays.equals(data, entry.data));
+		assertTrue(entry.isOldBlock());
+		assertFalse(entry.overwrite());
+		assertEquals(1, cache.hits());
+		assertEquals(1, cache.misses());
+
+		assertEquals(OffHeapBlockCache.PutResult.EXISTS,
+				cache.put(key, key, header, randomBytes(DATA_LENGTH), 0, null, true));
+		byte[] newData = randomBytes(DATA_LENGTH);
+		assertEquals(OffHeapBlockCache.PutResult.REPLACED,
+				cache.put(key, key, header, newData, 0, null, false));
+		// Replaced since we copied it, so it mustn't be removed.
+		assertFalse(cache.remove(entry));
+		entry = cache.get(key);
+		assertTrue(Arrays.equals(newData, entry.data));
+		assertTrue(cache.remove(entry));
+		assertNull(cache.get(key));
+		assertEquals(0, cache.size());
+	}
+
+	public void testFull() {
+		OffHeapBlockCache cache = create(4);
+		for(int i=0;i<4;i++)
+			assertEquals(OffHeapBlockCache.PutResult.ADDED,
+					cache.put(randomBytes(KEY_LENGTH), randomBytes(KEY_LENGTH), randomBytes(HEADER_LENGTH), randomBytes(DATA_LENGTH), 0, null, false));
+		assertEquals(OffHeapBlockCache.PutResult.FULL,
+				cache.put(randomBytes(KEY_LENGTH), randomBytes(KEY_LENGTH), randomBytes(HEADER_LENGTH), randomBytes(DATA_LENGTH), 0, null, false));
+		assertEquals(4, cache.entries().size());
+	}
+
+	/** Add and remove many more blocks than fit, so the table is rebuilt several times. */
+	public void testChurn() {
+		OffHeapBlockCache cache = create(16);
+		ArrayList<byte[]> keys = new ArrayList<byte[]>();
+		for(int i=0;i<1000;i++) {
+			byte[] key = randomBytes(KEY_LENGTH);
+			byte[] data = new byte[DATA_LENGTH];
+			Arrays.fill(data, (byte)i);
+			assertEquals(OffHeapBlockCache.PutResult.ADDED,
+					cache.put(key, key, new byte[HEADER_LENGTH], data, 0, null, false));
+			keys.add(key);
+			if(keys.size() == 16) {
+				for(OffHeapBlockCache.Entry entry : cache.entries()) {
+					assertEquals(entry.data[0], cache.get(entry.routingKey).data[0]);
+					assertTrue(cache.remove(entry));
+				}
+				for(byte[] k : keys)
+					assertFalse(cache.contains(k));
+				keys.clear();
+			}
+		}
+	}
+
+	/** Readers must never see a block with the wrong content while writers replace it. */
+	public void testConcurrentReaders() throws InterruptedException {
+		final OffHeapBlockCache cache = create(8);
+		final byte[] key = randomBytes(KEY_LENGTH);
+		final byte[] header = new byte[HEADER_LENGTH];
+		final boolean[] failed = new boolean[1];
+		final boolean[] stop = new boolean[1];
+		Thread[] readers = new Thread[4];
+		for(int i=0;i<readers.length;i++) {
+			readers[i] = new Thread() {
+				@Override
+				public void run() {
+					while(true) {
+						synchronized(stop) {
+							if(stop[0]) return;
+						}
+						OffHeapBlockCache.Entry entry = cache.get(key);
+						if(entry == null) continue;
+						for(int j=1;j<entry.data.length;j++) {
+							if(entry.data[j] != entry.data[0]) {
+								synchronized(failed) {
+									failed[0] = true;
+								}
+								return;
+							}
+						}
+					}
+				}
+			};
+			readers[i].start();
+		}
+		byte[] data = new byte[DATA_LENGTH];
+		for(int i=0;i<10000;i++) {
+			Arrays.fill(data, (byte)i);
+			cache.put(key, key, header, data, 0, null, false);
+		}
+		synchronized(stop) {
+			stop[0] = true;
+		}
+		for(Thread t : readers)
+			t.join();
+		synchronized(failed) {
+			assertFalse(failed[0]);
+		}
+	}
+
+}
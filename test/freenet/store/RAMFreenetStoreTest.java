@@ -0,0 +1,61 @@
+package freenet.store;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+import freenet.keys.CHKBlock;
+import freenet.keys.CHKEncodeException;
+import freenet.keys.ClientCHK;
+import freenet.keys.ClientCHKBlock;
+import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.compress.Compressor;
+
+public class RAMFreenetStoreTest extends TestCase {
+
+	public void testScanResistance() throws IOException, CHKEncodeException {
+		checkScanResistance(false);
+	}
+
+	public void testScanResistanceOffHeap() throws IOException, CHKEncodeException {
+		checkScanResistance(true);
+	}
+
+	/** Blocks which have been fetched survive a burst of new blocks which haven't. */
+	private void checkScanResistance(boolean offHeap) throws IOException, CHKEncodeException {
+		CHKStore store = new CHKStore();
+		RAMFreenetStore<CHKBlock> ramStore = new RAMFreenetStore<CHKBlock>(store, 10, offHeap);
+
+		ClientCHK[] popular = new ClientCHK[5];
+		for(int i=0;i<popular.length;i++) {
+			ClientCHKBlock block = encodeBlockCHK("popular" + i);
+			store.put(block.getBlock(), false);
+			popular[i] = block.getClientKey();
+			assertNotNull(store.fetch(popular[i].getNodeCHK(), false, false, null));
+		}
+		ClientCHK last = null;
+		for(int i=0;i<20;i++) {
+			ClientCHKBlock block = encodeBlockCHK("scan" + i);
+			store.put(block.getBlock(), false);
+			last = block.getClientKey();
+		}
+		assertEquals(10, ramStore.keyCount());
+		for(ClientCHK key : popular)
+			assertNotNull(store.fetch(key.getNodeCHK(), true, false, null));
+		assertNotNull(store.fetch(last.getNodeCHK(), true, false, null));
+
+		ramStore.setMaxKeys(3, true);
+		assertEquals(3, ramStore.keyCount());
+		ramStore.setMaxKeys(20, true);
+		int found = 0;
+		for(ClientCHK key : popular)
+			if(store.fetch(key.getNodeCHK(), true, false, null) != null) found++;
+		assertEquals(3, found);
+	}
+
+	private ClientCHKBlock encodeBlockCHK(String test) throws CHKEncodeException, IOException {
+		byte[] data = test.getBytes("UTF-8");
+		SimpleReadOnlyArrayBucket bucket = new SimpleReadOnlyArrayBucket(data);
+		return ClientCHKBlock.encode(bucket, false, false, (short)-1, bucket.size(), Compressor.DEFAULT_COMPRESSORDESCRIPTOR, false, null, (byte)0);
+	}
+
+}
@@ -48,6 +48,7 @@ public class RAMSaltMigrationTest extends TestCase {
 	@Override
 	protected void tearDown() {
 		FileUtil.removeAll(tempDir);
+		SaltedHashFreenetStore.NO_CLEANER_SLEEP = false;
 	}
 
 	public void testRAMStore() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
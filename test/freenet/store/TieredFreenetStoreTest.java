@@ -0,0 +1,74 @@
+package freenet.store;
+
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.keys.CHKBlock;
+import freenet.keys.CHKEncodeException;
+import freenet.keys.ClientCHK;
+import freenet.keys.ClientCHKBlock;
+import freenet.support.PooledExecutor;
+import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.Ticker;
+import freenet.support.TrivialTicker;
+import freenet.support.compress.Compressor;
+
+public class TieredFreenetStoreTest extends TestCase {
+
+	private Random weakPRNG = new Random(12340);
+	private PooledExecutor exec = new PooledExecutor();
+	private Ticker ticker = new TrivialTicker(exec);
+
+	@Override
+	protected void setUp() throws java.lang.Exception {
+		exec.start();
+	}
+
+	/** Blocks fetched often enough are copied to the fast tier, local fetches don't count. */
+	public void testPromotion() throws IOException, CHKEncodeException, InterruptedException {
+		CHKStore store = new CHKStore();
+		RAMFreenetStore<CHKBlock> fastStore = new RAMFreenetStore<CHKBlock>(store, 10);
+		RAMFreenetStore<CHKBlock> slowStore = new RAMFreenetStore<CHKBlock>(store, 100);
+		TieredFreenetStore<CHKBlock> tieredStore = new TieredFreenetStore<CHKBlock>(store, fastStore, slowStore, ticker, weakPRNG);
+		tieredStore.start(ticker, true);
+
+		ClientCHK[] keys = new ClientCHK[3];
+		for(int i=0;i<keys.length;i++) {
+			ClientCHKBlock block = encodeBlockCHK("test" + i);
+			store.put(block.getBlock(), false);
+			keys[i] = block.getClientKey();
+		}
+		assertEquals(0, fastStore.keyCount());
+		assertEquals(keys.length, slowStore.keyCount());
+
+		for(int i=0;i<TieredFreenetStore.PROMOTE_HITS;i++) {
+			assertNotNull(store.fetch(keys[0].getNodeCHK(), false, false, null));
+			assertNotNull(store.fetch(keys[1].getNodeCHK(), true, false, null));
+			assertNotNull(tieredStore.fetch(keys[2].getRoutingKey(), keys[2].getNodeCHK().getFullKey(), false, true, false, false, null));
+		}
+		for(int i=0;i<100 && tieredStore.promoted() == 0;i++)
+			Thread.sleep(10);
+
+		assertEquals(1, tieredStore.promoted());
+		assertNotNull(fastStore.fetch(keys[0].getRoutingKey(), keys[0].getNodeCHK().getFullKey(), false, false, false, false, null));
+		assertNull(fastStore.fetch(keys[1].getRoutingKey(), keys[1].getNodeCHK().getFullKey(), false, false, false, false, null));
+		assertNull(fastStore.fetch(keys[2].getRoutingKey(), keys[2].getNodeCHK().getFullKey(), false, false, false, false, null));
+
+		// Now it comes from the fast tier.
+		long slowHits = slowStore.hits();
+		long hits = tieredStore.hits();
+		assertNotNull(store.fetch(keys[0].getNodeCHK(), false, false, null));
+		assertEquals(slowHits, slowStore.hits());
+		assertEquals(hits + 1, tieredStore.hits());
+
+		tieredStore.close();
+	}
+
+	private ClientCHKBlock encodeBlockCHK(String test) throws CHKEncodeException, IOException {
+		byte[] data = test.getBytes("UTF-8");
+		SimpleReadOnlyArrayBucket bucket = new SimpleReadOnlyArrayBucket(data);
+		return ClientCHKBlock.encode(bucket, false, false, (short)-1, bucket.size(), Compressor.DEFAULT_COMPRESSORDESCRIPTOR, false, null, (byte)0);
+	}
+
+}
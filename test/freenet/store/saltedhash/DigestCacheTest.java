@@ -0,0 +1,88 @@
+package freenet.store.saltedhash;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class DigestCacheTest extends TestCase {
+
+	private final Random random = new Random(1234);
+
+	private byte[] randomBytes(int length) {
+		byte[] buf = new byte[length];
+		random.nextBytes(buf);
+		return buf;
+	}
+
+	public void testGetPut() {
+		DigestCache cache = new DigestCache(16);
+		byte[] key = randomBytes(32);
+		byte[] digest = randomBytes(32);
+		assertNull(cache.get(key));
+		cache.put(key.clone(), digest);
+		assertSame(digest, cache.get(key));
+		// Same tag, different key.
+		byte[] other = key.clone();
+		other[31]++;
+		assertNull(cache.get(other));
+		assertEquals(1, cache.hits());
+		assertEquals(2, cache.misses());
+	}
+
+	/** Keys which are used keep their slot, keys which aren't are evicted. */
+	public void testClockEviction() {
+		DigestCache cache = new DigestCache(DigestCache.WAYS);
+		byte[][] keys = new byte[DigestCache.WAYS][];
+		for(int i=0;i<keys.length;i++) {
+			keys[i] = randomBytes(32);
+			cache.put(keys[i], randomBytes(32));
+		}
+		for(int i=1;i<keys.length;i++)
+			assertNotNull(cache.get(keys[i]));
+		cache.put(randomBytes(32), randomBytes(32));
+		assertNull(cache.get(keys[0]));
+		for(int i=1;i<keys.length;i++)
+			assertNotNull(cache.get(keys[i]));
+	}
+
+	public void testConcurrent() throws InterruptedException {
+		final DigestCache cache = new DigestCache(64);
+		final byte[][] keys = new byte[256][];
+		final byte[][] digests = new byte[keys.length][];
+		for(int i=0;i<keys.length;i++) {
+			keys[i] = randomBytes(32);
+			digests[i] = randomBytes(32);
+		}
+		final boolean[] failed = new boolean[1];
+		Thread[] threads = new Thread[4];
+		for(int i=0;i<threads.length;i++) {
+			final int seed = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					Random r = new Random(seed);
+					for(int j=0;j<100000;j++) {
+						int k = r.nextInt(keys.length);
+						byte[] digest = cache.get(keys[k]);
+						if(digest == null)
+							cache.put(keys[k], digests[k]);
+						else if(digest != digests[k]) {
+							synchronized(failed) {
+								failed[0] = true;
+							}
+							return;
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		synchronized(failed) {
+			assertFalse(failed[0]);
+		}
+		assertEquals(threads.length * 100000, cache.hits() + cache.misses());
+	}
+
+}
@@ -0,0 +1,61 @@
+package freenet.store.saltedhash;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+
+import junit.framework.TestCase;
+
+public class LockManagerTest extends TestCase {
+
+	public void testLockUnlock() {
+		LockManager lm = new LockManager();
+		Condition c1 = lm.lockEntry(1);
+		Condition c2 = lm.lockEntry(2);
+		// Same stripe for 1 and 65, must still be independent.
+		Condition c3 = lm.lockEntry(65);
+		assertNotNull(c1);
+		assertNotNull(c2);
+		assertNotNull(c3);
+		lm.unlockEntry(65, c3);
+		lm.unlockEntry(2, c2);
+		lm.unlockEntry(1, c1);
+		assertEquals(3, lm.lockCount());
+		assertEquals(0, lm.contendedCount());
+		lm.shutdown();
+		assertNull(lm.lockEntry(1));
+	}
+
+	public void testMutualExclusion() throws InterruptedException {
+		final LockManager lm = new LockManager();
+		final AtomicInteger inside = new AtomicInteger();
+		final AtomicInteger failures = new AtomicInteger();
+		Thread[] threads = new Thread[8];
+		for(int i=0;i<threads.length;i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j=0;j<1000;j++) {
+						long offset = j % 4;
+						Condition c = lm.lockEntry(offset);
+						if(c == null) {
+							failures.incrementAndGet();
+							return;
+						}
+						if(offset == 0 && inside.incrementAndGet() != 1)
+							failures.incrementAndGet();
+						if(offset == 0)
+							inside.decrementAndGet();
+						lm.unlockEntry(offset, c);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		assertEquals(0, failures.get());
+		assertEquals(8000, lm.lockCount());
+		lm.shutdown();
+	}
+
+}
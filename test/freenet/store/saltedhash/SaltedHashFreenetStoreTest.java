@@ -71,6 +71,7 @@ public class SaltedHashFreenetStoreTest extends TestCase {
 	@Override
 	protected void tearDown() {
 		FileUtil.removeAll(tempDir);
+		SaltedHashFreenetStore.NO_CLEANER_SLEEP = false;
 	}
 	
 	/* Simple test with CHK for SaltedHashFreenetStore without slotFilter */
@@ -94,7 +95,229 @@ public class SaltedHashFreenetStoreTest extends TestCase {
 		
 		saltStore.close();
 	}
-	
+
+	/* Test mmap mode, including a shrink, and that the files can be read back without mmap */
+	public void testMmapCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore.NO_CLEANER_SLEEP = true;
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreMmapCHK", store, weakPRNG, 20, true, SemiOrderedShutdownHook.get(), true, true, ticker, null, true, true);
+		saltStore.start(null, true);
+
+		ClientCHK[] keys = new ClientCHK[5];
+		for(int i=0;i<keys.length;i++) {
+			String test = "test" + i;
+			ClientCHKBlock block = encodeBlockCHK(test);
+			store.put(block.getBlock(), false);
+			keys[i] = block.getClientKey();
+			CHKBlock verify = store.fetch(keys[i].getNodeCHK(), false, false, null);
+			assertEquals(test, decodeBlockCHK(verify, keys[i]));
+		}
+
+		saltStore.setMaxKeys(10, true);
+		for(int i=0;i<keys.length;i++) {
+			CHKBlock verify = store.fetch(keys[i].getNodeCHK(), false, false, null);
+			if(verify != null)
+				assertEquals("test" + i, decodeBlockCHK(verify, keys[i]));
+		}
+		saltStore.close();
+
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreMmapCHK", store, weakPRNG, 10, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+		ClientCHKBlock block = encodeBlockCHK("test" + keys.length);
+		store.put(block.getBlock(), false);
+		CHKBlock verify = store.fetch(block.getClientKey().getNodeCHK(), false, false, null);
+		assertEquals("test" + keys.length, decodeBlockCHK(verify, block.getClientKey()));
+		saltStore.close();
+	}
+
+	/* Test growing and shrinking the store with several cleaner threads */
+	public void testParallelResizeCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore.NO_CLEANER_SLEEP = true;
+		SaltedHashFreenetStore.setCleanerThreads(4);
+		try {
+			// Several batches of slots, so the threads have something to share.
+			SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreParallelResizeCHK", store, weakPRNG, 1000, true, SemiOrderedShutdownHook.get(), false, true, ticker, null);
+			saltStore.start(null, true);
+
+			ClientCHK[] keys = new ClientCHK[20];
+			for(int i=0;i<keys.length;i++) {
+				ClientCHKBlock block = encodeBlockCHK("test" + i);
+				store.put(block.getBlock(), false);
+				keys[i] = block.getClientKey();
+			}
+
+			saltStore.setMaxKeys(2000, true);
+			for(int i=0;i<keys.length;i++) {
+				CHKBlock verify = store.fetch(keys[i].getNodeCHK(), false, false, null);
+				assertNotNull(verify);
+				assertEquals("test" + i, decodeBlockCHK(verify, keys[i]));
+			}
+
+			saltStore.setMaxKeys(500, true);
+			for(int i=0;i<keys.length;i++) {
+				CHKBlock verify = store.fetch(keys[i].getNodeCHK(), false, false, null);
+				if(verify != null)
+					assertEquals("test" + i, decodeBlockCHK(verify, keys[i]));
+			}
+			assertEquals(500, saltStore.getMaxKeys());
+			saltStore.close();
+		} finally {
+			SaltedHashFreenetStore.setCleanerThreads(2);
+		}
+	}
+
+	/* Test shrinking a memory mapped store with several cleaner threads, so one thread
+	 * truncates the files while the others are still reading and writing slots */
+	public void testParallelMmapShrinkCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore.NO_CLEANER_SLEEP = true;
+		SaltedHashFreenetStore.setCleanerThreads(4);
+		try {
+			SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreParallelMmapShrinkCHK", store, weakPRNG, 2000, true, SemiOrderedShutdownHook.get(), true, true, ticker, null, true, true);
+			saltStore.start(null, true);
+
+			ClientCHK[] keys = new ClientCHK[50];
+			for(int i=0;i<keys.length;i++) {
+				ClientCHKBlock block = encodeBlockCHK("test" + i);
+				store.put(block.getBlock(), false);
+				keys[i] = block.getClientKey();
+			}
+
+			saltStore.setMaxKeys(200, true);
+			for(int i=0;i<keys.length;i++) {
+				CHKBlock verify = store.fetch(keys[i].getNodeCHK(), false, false, null);
+				if(verify != null)
+					assertEquals("test" + i, decodeBlockCHK(verify, keys[i]));
+			}
+			assertEquals(200, saltStore.getMaxKeys());
+			saltStore.close();
+
+			// The truncated files must still be readable without mmap.
+			store = new CHKStore();
+			saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreParallelMmapShrinkCHK", store, weakPRNG, 200, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+			saltStore.start(null, true);
+			for(int i=0;i<keys.length;i++) {
+				CHKBlock verify = store.fetch(keys[i].getNodeCHK(), false, false, null);
+				if(verify != null)
+					assertEquals("test" + i, decodeBlockCHK(verify, keys[i]));
+			}
+			saltStore.close();
+		} finally {
+			SaltedHashFreenetStore.setCleanerThreads(2);
+		}
+	}
+
+	/* Test that queued writes are visible before they are written, and are written on close */
+	public void testWriteBehindCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreWriteBehindCHK", store, weakPRNG, 20, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.setWriteBehindSize(4 * 32768);
+		saltStore.start(null, true);
+
+		ClientCHK[] keys = new ClientCHK[10];
+		for(int i=0;i<keys.length;i++) {
+			String test = "test" + i;
+			ClientCHKBlock block = encodeBlockCHK(test);
+			store.put(block.getBlock(), false);
+			keys[i] = block.getClientKey();
+			assertTrue(saltStore.probablyInStore(keys[i].getNodeCHK().getRoutingKey()));
+			CHKBlock verify = store.fetch(keys[i].getNodeCHK(), false, false, null);
+			assertEquals(test, decodeBlockCHK(verify, keys[i]));
+		}
+		saltStore.close();
+
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreWriteBehindCHK", store, weakPRNG, 20, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+		int found = 0;
+		for(int i=0;i<keys.length;i++) {
+			CHKBlock verify = store.fetch(keys[i].getNodeCHK(), false, false, null);
+			if(verify == null) continue; // Lost to a collision in a tiny store.
+			assertEquals("test" + i, decodeBlockCHK(verify, keys[i]));
+			found++;
+		}
+		assertTrue(found > keys.length / 2);
+		saltStore.close();
+	}
+
+	/* Test adding a volume to a running store, and reopening it with both volumes */
+	public void testMultiVolumeCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException, InterruptedException {
+		File f1 = new File(tempDir, "saltstore");
+		File f2 = new File(tempDir, "saltstore2");
+		FileUtil.removeAll(f1);
+		FileUtil.removeAll(f2);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore.NO_CLEANER_SLEEP = true;
+		MultiVolumeFreenetStore<CHKBlock> multiStore = MultiVolumeFreenetStore.construct(new File[] { f1 }, "testMultiVolumeCHK", store, weakPRNG, 200, true, SemiOrderedShutdownHook.get(), false, true, null, false, false, 0);
+		multiStore.start(null, true);
+
+		ClientCHK[] keys = new ClientCHK[20];
+		for(int i=0;i<keys.length;i++) {
+			ClientCHKBlock block = encodeBlockCHK("test" + i);
+			store.put(block.getBlock(), false);
+			keys[i] = block.getClientKey();
+		}
+
+		multiStore.addVolume(f2);
+		multiStore.testingWaitForMigration(100, 600);
+		assertEquals(2, multiStore.volumeCount());
+		for(int i=0;i<keys.length;i++) {
+			CHKBlock verify = store.fetch(keys[i].getNodeCHK(), false, false, null);
+			assertNotNull(verify);
+			assertEquals("test" + i, decodeBlockCHK(verify, keys[i]));
+		}
+		ClientCHKBlock block = encodeBlockCHK("test" + keys.length);
+		store.put(block.getBlock(), false);
+		multiStore.close();
+
+		store = new CHKStore();
+		multiStore = MultiVolumeFreenetStore.construct(new File[] { f1, f2 }, "testMultiVolumeCHK", store, weakPRNG, 200, true, SemiOrderedShutdownHook.get(), false, true, null, false, false, 0);
+		multiStore.start(null, true);
+		assertEquals(2, multiStore.volumeCount());
+		int found = 0;
+		for(int i=0;i<keys.length;i++) {
+			CHKBlock verify = store.fetch(keys[i].getNodeCHK(), false, false, null);
+			if(verify == null) continue; // Lost to a collision while shrinking the first volume.
+			assertEquals("test" + i, decodeBlockCHK(verify, keys[i]));
+			found++;
+		}
+		assertTrue(found > keys.length / 2);
+		CHKBlock verify = store.fetch(block.getClientKey().getNodeCHK(), false, false, null);
+		assertEquals("test" + keys.length, decodeBlockCHK(verify, block.getClientKey()));
+		multiStore.close();
+	}
+
+	/* Volumes are chosen evenly, and adding one only moves keys to it */
+	public void testSelectVolume() {
+		Random random = new Random(1234);
+		int[] counts = new int[4];
+		byte[] digestedKey = new byte[32];
+		for(int i=0;i<4000;i++) {
+			random.nextBytes(digestedKey);
+			int volume = MultiVolumeFreenetStore.selectVolume(digestedKey, 4);
+			counts[volume]++;
+			int before = MultiVolumeFreenetStore.selectVolume(digestedKey, 3);
+			assertTrue(volume == before || volume == 3);
+		}
+		for(int count : counts)
+			assertTrue(count > 800 && count < 1200);
+	}
+
 	/* Simple test with SSK for SaltedHashFreenetStore without slotFilter */
 	public void testSimpleSSK() throws IOException, KeyCollisionException, SSKVerifyException, KeyDecodeException, SSKEncodeException, InvalidCompressionCodecException {
 		File f = new File(tempDir, "saltstore");
@@ -1,5 +1,7 @@
 package freenet.support;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -149,4 +151,76 @@ public class BloomFilterTest extends TestCase {
 		BloomFilter filter = BloomFilter.createFilter(FILTER_SIZE, K, false);
 		_testFilterFalsePositive(filter);
 	}
+
+	public void testBlockedFilterPositive() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS_POS);
+		BloomFilter filter = BloomFilter.createFilter(FILTER_SIZE, K, false, true);
+		_testFilterPositive(filter);
+	}
+
+	public void testBlockedFilterFalsePositive() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS);
+		BloomFilter filter = BloomFilter.createFilter(FILTER_SIZE, K, false, true);
+		_testFilterFalsePositive(filter);
+	}
+
+	public void testBlockedFilterFile() throws IOException {
+		File f = File.createTempFile("bloomfiltertest", ".bloom");
+		try {
+			int K = BloomFilter.optimialK(FILTER_SIZE, PASS_POS);
+			// A file written by another kind of filter must be converted.
+			BloomFilter filter = BloomFilter.createFilter(f, FILTER_SIZE, K, false, false);
+			filter.addKey(new byte[32]);
+			filter.close();
+			filter = BloomFilter.createFilter(f, FILTER_SIZE, K, false, true);
+			assertTrue(filter.needRebuild());
+			assertFalse(filter.checkFilter(new byte[32]));
+
+			byte[][] keys = new byte[PASS_POS][];
+			for (int i = 0; i < keys.length; i++) {
+				keys[i] = new byte[32];
+				rand.nextBytes(keys[i]);
+				filter.addKey(keys[i]);
+			}
+			filter.close();
+			filter = BloomFilter.createFilter(f, FILTER_SIZE, K, false, true);
+			assertFalse(filter.needRebuild());
+			for (byte[] key : keys)
+				assertTrue(filter.checkFilter(key));
+			filter.close();
+		} finally {
+			f.delete();
+		}
+	}
+
+	/** Compare false positive rate and lookup time of the binary and blocked filters. */
+	public void testBenchmark() {
+		if (!TestProperty.BENCHMARK) return;
+		final int size = 512 * 1024 * 1024; // bits, larger than the CPU cache
+		final int keys = size / 16;
+		final int lookups = 1000 * 1000;
+		int K = BloomFilter.optimialK(size, keys);
+		for (boolean blocked : new boolean[] { false, true }) {
+			BloomFilter filter = BloomFilter.createFilter(size, K, false, blocked);
+			Random r = new Random(1);
+			byte[] key = new byte[32];
+			for (int i = 0; i < keys; i++) {
+				r.nextBytes(key);
+				filter.addKey(key);
+			}
+			byte[][] probes = new byte[lookups][];
+			for (int i = 0; i < lookups; i++) {
+				probes[i] = new byte[32];
+				r.nextBytes(probes[i]);
+			}
+			int fPos = 0;
+			long start = System.nanoTime();
+			for (byte[] probe : probes)
+				if (filter.checkFilter(probe))
+					fPos++;
+			long time = System.nanoTime() - start;
+			System.out.println((blocked ? "Blocked" : "Binary") + " filter, k=" + K + ": false positives " +
+					((double) fPos / lookups) + ", " + (time / lookups) + "ns per lookup");
+		}
+	}
 }
@@ -0,0 +1,102 @@
+package freenet.support;
+
+import junit.framework.TestCase;
+
+public class HashedWheelTickerTest extends TestCase {
+
+	private Executor realExec;
+
+	private HashedWheelTicker ticker;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		realExec = new PooledExecutor();
+		ticker = new HashedWheelTicker(realExec, 0);
+		ticker.start();
+	}
+
+	private int runCount = 0;
+
+	Runnable simpleRunnable = new Runnable() {
+
+		@Override
+		public void run() {
+			synchronized(HashedWheelTickerTest.this) {
+				runCount++;
+			}
+		}
+
+	};
+
+	private synchronized int runCount() {
+		return runCount;
+	}
+
+	public void testSimple() throws InterruptedException {
+		synchronized(HashedWheelTickerTest.this) {
+			runCount = 0;
+		}
+		assertEquals(0, ticker.queuedJobs());
+		ticker.queueTimedJob(simpleRunnable, 0);
+		Thread.sleep(50);
+		assertEquals(1, runCount());
+		assertEquals(0, ticker.queuedJobs());
+		long start = System.currentTimeMillis();
+		ticker.queueTimedJob(simpleRunnable, 100);
+		assertEquals(1, ticker.queuedJobs());
+		while(runCount() == 1 && System.currentTimeMillis() - start < 1000)
+			Thread.sleep(5);
+		assertTrue(System.currentTimeMillis() - start >= 100);
+		assertEquals(2, runCount());
+		assertEquals(0, ticker.queuedJobs());
+	}
+
+	/** Jobs further away than one rotation of the wheel wait for their round. */
+	public void testRounds() throws InterruptedException {
+		synchronized(HashedWheelTickerTest.this) {
+			runCount = 0;
+		}
+		long rotation = HashedWheelTicker.TICK_LENGTH * HashedWheelTicker.TICKS_PER_WHEEL;
+		ticker.queueTimedJob(simpleRunnable, "Rounds test", rotation + 50, true, false);
+		Thread.sleep(rotation);
+		assertEquals(0, runCount());
+		Thread.sleep(300);
+		assertEquals(1, runCount());
+	}
+
+	public void testRemove() throws InterruptedException {
+		synchronized(HashedWheelTickerTest.this) {
+			runCount = 0;
+		}
+		ticker.queueTimedJob(simpleRunnable, 100);
+		ticker.queueTimedJob(simpleRunnable, 150);
+		assertEquals(2, ticker.queuedJobs());
+		ticker.removeQueuedJob(simpleRunnable);
+		assertEquals(0, ticker.queuedJobs());
+		Thread.sleep(300);
+		assertEquals(0, runCount());
+	}
+
+	public void testDeduping() throws InterruptedException {
+		synchronized(HashedWheelTickerTest.this) {
+			runCount = 0;
+		}
+		ticker.queueTimedJob(simpleRunnable, "De-dupe test", 200, false, true);
+		assertEquals(1, ticker.queuedJobs());
+		ticker.queueTimedJob(simpleRunnable, "De-dupe test", 300, false, true);
+		assertEquals(1, ticker.queuedJobs());
+		Thread.sleep(500);
+		assertEquals(1, runCount());
+		assertEquals(0, ticker.queuedJobs());
+		// Now backwards
+		ticker.queueTimedJob(simpleRunnable, "De-dupe test", 300, false, true);
+		assertEquals(1, ticker.queuedJobs());
+		ticker.queueTimedJob(simpleRunnable, "De-dupe test", 200, false, true);
+		assertEquals(1, ticker.queuedJobs());
+		Thread.sleep(500);
+		assertEquals(2, runCount());
+		assertEquals(0, ticker.queuedJobs());
+	}
+
+}
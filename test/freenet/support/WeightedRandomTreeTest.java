@@ -0,0 +1,82 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.HashSet;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class WeightedRandomTreeTest extends TestCase {
+
+	public void testEmpty() {
+		WeightedRandomTree<Integer> tree = new WeightedRandomTree<Integer>();
+		assertTrue(tree.isEmpty());
+		assertNull(tree.choose(new Random(0)));
+		tree.add(1, 0);
+		assertEquals(1, tree.size());
+		assertNull(tree.choose(new Random(0)));
+	}
+
+	public void testAddRemove() {
+		WeightedRandomTree<Integer> tree = new WeightedRandomTree<Integer>();
+		for(int i = 0; i < 1000; i++)
+			assertTrue(tree.add(i, i + 1));
+		assertFalse(tree.add(5, 6));
+		assertEquals(1000, tree.size());
+		assertEquals(1000L * 1001 / 2, tree.totalWeight());
+		for(int i = 0; i < 1000; i += 2)
+			assertTrue(tree.remove(i));
+		assertFalse(tree.remove(0));
+		assertEquals(500, tree.size());
+		long total = 0;
+		for(int i = 0; i < 1000; i++) {
+			assertEquals(i % 2 == 1, tree.contains(i));
+			if(i % 2 == 1) {
+				assertEquals(i + 1, tree.getWeight(i));
+				total += i + 1;
+			} else {
+				assertEquals(-1, tree.getWeight(i));
+			}
+		}
+		assertEquals(total, tree.totalWeight());
+		// Every item can be reached, each exactly once.
+		HashSet<Integer> seen = new HashSet<Integer>();
+		for(long target = 0; target < total; target++)
+			seen.add(tree.get(target));
+		assertEquals(500, seen.size());
+		for(int i = 1; i < 1000; i += 2)
+			assertTrue(tree.remove(i));
+		assertTrue(tree.isEmpty());
+		assertEquals(0, tree.totalWeight());
+	}
+
+	public void testReweight() {
+		WeightedRandomTree<String> tree = new WeightedRandomTree<String>();
+		tree.add("a", 1);
+		tree.add("b", 1);
+		tree.add("b", 0);
+		assertEquals(1, tree.totalWeight());
+		Random random = new Random(0);
+		for(int i = 0; i < 100; i++)
+			assertEquals("a", tree.choose(random));
+	}
+
+	public void testDistribution() {
+		WeightedRandomTree<Integer> tree = new WeightedRandomTree<Integer>();
+		for(int i = 0; i < 10; i++)
+			tree.add(i, i + 1);
+		int[] counts = new int[10];
+		Random random = new Random(12345);
+		int samples = 550000;
+		for(int i = 0; i < samples; i++)
+			counts[tree.choose(random)]++;
+		for(int i = 0; i < 10; i++) {
+			double expected = samples * (i + 1) / 55.0;
+			assertTrue("Item "+i+" chosen "+counts[i]+" times, expected "+expected,
+					Math.abs(counts[i] - expected) < expected * 0.05);
+		}
+	}
+
+}
@@ -203,4 +203,39 @@ public abstract class BucketTestBase extends TestCase {
 			freeBucket(bucket);
 		}
 	}
+
+	public void testRandomAccess() throws IOException {
+		Bucket bucket = makeBucket(DATA1.length + DATA2.length);
+		try {
+			if(!(bucket instanceof RandomAccessBucket)) return;
+			OutputStream os = bucket.getOutputStream();
+			os.write(DATA1);
+			os.close();
+
+			RandomAccessThing raf = ((RandomAccessBucket) bucket).toRandomAccessThing();
+			try {
+				byte[] data = new byte[4];
+				raf.pread(2, data, 1, 3);
+				assertEquals("Pread", 0x02, data[1]);
+				assertEquals("Pread", 0x04, data[3]);
+
+				// Overwrite the end and extend the bucket.
+				raf.pwrite(DATA1.length - 2, DATA2, 0, DATA2.length);
+			} finally {
+				raf.close();
+			}
+			assertEquals("Size-Extended", DATA1.length - 2 + DATA2.length, bucket.size());
+
+			DataInputStream is = new DataInputStream(bucket.getInputStream());
+			byte[] data = new byte[DATA1.length - 2 + DATA2.length];
+			is.readFully(data);
+			is.close();
+			for(int i = 0; i < DATA1.length - 2; i++)
+				assertEquals("Unchanged", DATA1[i], data[i]);
+			for(int i = 0; i < DATA2.length; i++)
+				assertEquals("Written", DATA2[i], data[DATA1.length - 2 + i]);
+		} finally {
+			freeBucket(bucket);
+		}
+	}
 }